@@ -0,0 +1,192 @@
+package buffer;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import metrics.Metrics;
+
+/**
+ * Pool of reusable I/O buffers, so that serving a request does not allocate
+ * (and later collect) buffers for reading and writing it.
+ * <p>
+ * Buffers come in a few size classes; a request for a size gets a buffer of
+ * the smallest class that fits it, and sizes larger than every class get a
+ * new buffer that is never pooled. Free buffers are kept in stripes, chosen
+ * by thread, so that threads rarely contend for the same stripe. Stripes are
+ * used rather than thread-local pools because with virtual threads every task
+ * runs on a thread of its own, which would never find a buffer.
+ * <p>
+ * Buffers are heap buffers: the proxy's sockets are read and written through
+ * streams, which copy a direct buffer into a heap array anyway.
+ * <p>
+ * Every buffer acquired must be released exactly once. With leak detection
+ * on (the default when assertions are enabled, as they are in tests), the
+ * pool remembers where each outstanding buffer was acquired, rejects buffers
+ * released twice, and {@link #checkNoLeaks()} reports the buffers that were
+ * never released.
+ */
+public final class BufferPool {
+
+  /** The buffer sizes, smallest first. */
+  @VisibleForTesting
+  static final int[] SIZE_CLASSES = {1024, 8 * 1024, 64 * 1024};
+  /** How many free buffers of each class a stripe keeps at most. */
+  private static final int BUFFERS_PER_STRIPE = 32;
+
+  private static final BufferPool SHARED =
+      new BufferPool(
+          "buffers",
+          Runtime.getRuntime().availableProcessors(),
+          BufferPool.class.desiredAssertionStatus());
+
+  /** Free buffers, by stripe then size class. Each deque is its own lock. */
+  private final ArrayDeque<ByteBuffer>[][] stripes;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final AtomicLong outstanding = new AtomicLong();
+  /**
+   * Where each outstanding buffer was acquired, keyed by identity, or null if
+   * leak detection is off.
+   */
+  @Nullable private final Map<Identity, Throwable> acquiredAt;
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix for this pool's metrics (e.g. "buffers")
+   * @param stripes the number of stripes, rounded up to a power of 2
+   * @param detectLeaks whether to track outstanding buffers (which is slow)
+   */
+  @SuppressWarnings("unchecked")
+  @VisibleForTesting
+  BufferPool(String name, int stripes, boolean detectLeaks) {
+    Preconditions.checkArgument(stripes > 0, "stripes must be > 0");
+    int count = Integer.highestOneBit(stripes - 1) << 1;
+    this.stripes = new ArrayDeque[Math.max(1, count)][SIZE_CLASSES.length];
+    for (ArrayDeque<ByteBuffer>[] stripe : this.stripes) {
+      for (int i = 0; i < stripe.length; i++) {
+        stripe[i] = new ArrayDeque<>();
+      }
+    }
+    this.hits = Metrics.counter(name + ".hits");
+    this.misses = Metrics.counter(name + ".misses");
+    this.acquiredAt = detectLeaks ? new ConcurrentHashMap<>() : null;
+    Metrics.gauge(name + ".outstanding", outstanding::get);
+  }
+
+  /** Returns the pool shared by the servers. */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * Returns an empty buffer (position 0, limit at its capacity) that holds at
+   * least the specified number of bytes.
+   */
+  public ByteBuffer acquire(int minCapacity) {
+    int sizeClass = sizeClass(minCapacity);
+    ByteBuffer buffer = null;
+    if (sizeClass >= 0) {
+      ArrayDeque<ByteBuffer> free = stripe()[sizeClass];
+      synchronized (free) {
+        buffer = free.pollFirst();
+      }
+    }
+    if (buffer == null) {
+      misses.increment();
+      buffer =
+          ByteBuffer.allocate(
+              sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : minCapacity);
+    } else {
+      hits.increment();
+      buffer.clear();
+    }
+    outstanding.incrementAndGet();
+    if (acquiredAt != null) {
+      acquiredAt.put(new Identity(buffer), new Throwable("acquired here"));
+    }
+    return buffer;
+  }
+
+  /** Returns a buffer to the pool. The caller must not use it afterwards. */
+  public void release(ByteBuffer buffer) {
+    if (acquiredAt != null && acquiredAt.remove(new Identity(buffer)) == null) {
+      throw new IllegalStateException(
+          "Buffer released twice or not acquired from this pool");
+    }
+    outstanding.decrementAndGet();
+    int sizeClass = sizeClass(buffer.capacity());
+    if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.capacity()) {
+      return;
+    }
+    ArrayDeque<ByteBuffer> free = stripe()[sizeClass];
+    synchronized (free) {
+      if (free.size() < BUFFERS_PER_STRIPE) {
+        free.addFirst(buffer);
+      }
+    }
+  }
+
+  /** Returns the number of buffers acquired and not yet released. */
+  public long outstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Throws if any buffer is still outstanding. The exception's cause shows
+   * where one of them was acquired, if leak detection is on.
+   */
+  public void checkNoLeaks() {
+    long count = outstanding();
+    if (count == 0) {
+      return;
+    }
+    IllegalStateException leak =
+        new IllegalStateException(count + " buffer(s) were never released");
+    if (acquiredAt != null) {
+      acquiredAt.values().stream().findFirst().ifPresent(leak::initCause);
+    }
+    throw leak;
+  }
+
+  private ArrayDeque<ByteBuffer>[] stripe() {
+    int index = (int) Thread.currentThread().getId() & (stripes.length - 1);
+    return stripes[index];
+  }
+
+  /** Returns the smallest class that fits the size, or -1 if none does. */
+  private static int sizeClass(int size) {
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      if (size <= SIZE_CLASSES[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** A buffer compared by identity (ByteBuffer.equals compares contents). */
+  private static final class Identity {
+
+    private final ByteBuffer buffer;
+
+    Identity(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Identity && ((Identity) other).buffer == buffer;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(buffer);
+    }
+  }
+}
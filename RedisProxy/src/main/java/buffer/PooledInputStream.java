@@ -0,0 +1,132 @@
+package buffer;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+
+/**
+ * A buffered input stream whose buffer comes from a {@link BufferPool}, with
+ * line reading for the text protocols.
+ * <p>
+ * Closing the stream returns its buffer to the pool. It does not close the
+ * underlying stream, which belongs to the caller (e.g. a socket).
+ */
+public final class PooledInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final InputStream in;
+  private final BufferPool pool;
+  /** Holds the bytes read but not consumed yet, between position and limit. */
+  @Nullable private ByteBuffer buffer;
+
+  public PooledInputStream(InputStream in, BufferPool pool) {
+    this.in = in;
+    this.pool = pool;
+    this.buffer = pool.acquire(BUFFER_SIZE);
+    this.buffer.limit(0);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return buffer.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  /**
+   * Returns the number of bytes that can be read without blocking, i.e. those
+   * buffered and those the underlying stream has available.
+   */
+  @Override
+  public int available() throws IOException {
+    return checkOpen().remaining() + in.available();
+  }
+
+  /**
+   * Reads a line, up to and excluding "\n", and decodes it as UTF-8. A "\r"
+   * before the "\n" is part of the line.
+   *
+   * @return the line, or null if the stream ends before the "\n"
+   */
+  @Nullable
+  public String readLine() throws IOException {
+    ByteArrayOutputStream spill = null;
+    while (fill()) {
+      byte[] array = buffer.array();
+      int start = buffer.arrayOffset() + buffer.position();
+      int end = buffer.arrayOffset() + buffer.limit();
+      for (int i = start; i < end; i++) {
+        if (array[i] == '\n') {
+          buffer.position(buffer.position() + i - start + 1);
+          if (spill == null) {
+            // The usual case: the whole line is in the buffer.
+            return new String(array, start, i - start, Charsets.UTF_8);
+          }
+          spill.write(array, start, i - start);
+          return new String(spill.toByteArray(), Charsets.UTF_8);
+        }
+      }
+      // The line continues past the buffered bytes.
+      if (spill == null) {
+        spill = new ByteArrayOutputStream(2 * (end - start));
+      }
+      spill.write(array, start, end - start);
+      buffer.position(buffer.limit());
+    }
+    return null;
+  }
+
+  /** Returns the buffer to the pool. */
+  @Override
+  public void close() {
+    if (buffer != null) {
+      pool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  /**
+   * Makes sure the buffer holds unread bytes, reading more if it does not.
+   * Returns false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    ByteBuffer buffer = checkOpen();
+    if (buffer.hasRemaining()) {
+      return true;
+    }
+    int count =
+        in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+    if (count <= 0) {
+      buffer.limit(0);
+      return false;
+    }
+    buffer.position(0);
+    buffer.limit(count);
+    return true;
+  }
+
+  private ByteBuffer checkOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream closed");
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,155 @@
+package buffer;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+
+/**
+ * A buffered output stream whose buffer comes from a {@link BufferPool}, which
+ * encodes text into the buffer without an intermediate byte array.
+ * <p>
+ * Several small writes (e.g. the replies to pipelined commands, or HTTP
+ * headers and the body after them) thus reach the socket in one system
+ * call. Writes larger than the buffer go straight to the underlying stream.
+ * <p>
+ * Closing the stream flushes it and returns its buffer to the pool. It does
+ * not close the underlying stream, which belongs to the caller (e.g. a
+ * socket).
+ */
+public final class PooledOutputStream extends OutputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final OutputStream out;
+  private final BufferPool pool;
+  @Nullable private ByteBuffer buffer;
+
+  public PooledOutputStream(OutputStream out, BufferPool pool) {
+    this.out = out;
+    this.pool = pool;
+    this.buffer = pool.acquire(BUFFER_SIZE);
+  }
+
+  /**
+   * Writes the text, encoded as UTF-8, to the stream. Works with any stream,
+   * but only avoids copying the text into a new array for a pooled one.
+   */
+  public static void writeUtf8(OutputStream out, CharSequence text)
+      throws IOException {
+    if (out instanceof PooledOutputStream) {
+      ((PooledOutputStream) out).writeUtf8(text);
+    } else {
+      out.write(text.toString().getBytes(Charsets.UTF_8));
+    }
+  }
+
+  /** Writes the text, encoded as UTF-8, to the stream. */
+  public void writeUtf8(CharSequence text) throws IOException {
+    ByteBuffer buffer = checkOpen();
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        // Rare in protocol text: encode the rest the slow way.
+        write(text.subSequence(i, length).toString().getBytes(Charsets.UTF_8));
+        return;
+      }
+      if (!buffer.hasRemaining()) {
+        flushBuffer();
+      }
+      buffer.put((byte) c);
+    }
+  }
+
+  /**
+   * Writes the number in decimal to the stream. Works with any stream, but
+   * only avoids allocating a string for a pooled one.
+   */
+  public static void writeDecimal(OutputStream out, long number)
+      throws IOException {
+    if (out instanceof PooledOutputStream) {
+      ((PooledOutputStream) out).writeDecimal(number);
+    } else {
+      out.write(Long.toString(number).getBytes(Charsets.UTF_8));
+    }
+  }
+
+  /** Writes the number in decimal to the stream. */
+  public void writeDecimal(long number) throws IOException {
+    if (number < 0) {
+      if (number == Long.MIN_VALUE) {
+        // Its negation overflows.
+        writeUtf8(Long.toString(number));
+        return;
+      }
+      write('-');
+      number = -number;
+    }
+    long divisor = 1;
+    while (divisor <= number / 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      write((int) ('0' + number / divisor % 10));
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ByteBuffer buffer = checkOpen();
+    if (!buffer.hasRemaining()) {
+      flushBuffer();
+    }
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    ByteBuffer buffer = checkOpen();
+    if (length > buffer.remaining()) {
+      flushBuffer();
+    }
+    if (length > buffer.capacity()) {
+      out.write(bytes, offset, length);
+    } else {
+      buffer.put(bytes, offset, length);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  /** Flushes the stream and returns its buffer to the pool. */
+  @Override
+  public void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      pool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    ByteBuffer buffer = checkOpen();
+    if (buffer.position() > 0) {
+      out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+      buffer.clear();
+    }
+  }
+
+  private ByteBuffer checkOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream closed");
+    }
+    return buffer;
+  }
+}
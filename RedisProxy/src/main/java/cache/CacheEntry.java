@@ -0,0 +1,215 @@
+package cache;
+
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * What the {@link LruCache} holds for a key: its value (or the fact that it
+ * has none), or a marker that its value is too large to cache.
+ * <p>
+ * The marker lets repeated reads of a large value skip straight to streaming
+ * it from Redis, and is kept coherent by writes like any other entry.
+ * <p>
+ * Values may be held compressed (see {@link ValueCompression}), in which case
+ * they are decompressed on every read.
+ */
+@AutoValue
+public abstract class CacheEntry {
+
+  /** Approximate per-entry overhead, in bytes, when weighing entries. */
+  private static final int OVERHEAD_BYTES = 64;
+  /** Reads this soon after the last recorded one are not recorded. */
+  private static final long ACCESS_GRANULARITY_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * When the entry was last read, according to the cache's ticker. Not part
+   * of its value: entries that differ only by it are equal.
+   */
+  private volatile long lastAccessNanos;
+
+  @Nullable
+  abstract String rawValue();
+
+  /** The value as a gzip stream, or null if it is not compressed. */
+  @Nullable
+  @SuppressWarnings("mutable")
+  abstract byte[] gzippedValue();
+
+  /** Whether the value is too large to cache and must be streamed instead. */
+  public abstract boolean isLarge();
+
+  /**
+   * When the entry becomes stale, according to the cache's ticker: the
+   * earlier of its load time plus CACHE_EXPIRY and {@link
+   * #keyExpiresAtNanos}.
+   */
+  abstract long expiresAtNanos();
+
+  /**
+   * When the key expires in Redis, according to the cache's ticker, or
+   * Long.MAX_VALUE if it has no time to live. The entry is never served
+   * after this, not even stale.
+   */
+  abstract long keyExpiresAtNanos();
+
+  /** Whether the entry is stale (see {@link #expiresAtNanos}). */
+  boolean isExpired(long nowNanos) {
+    return nowNanos - expiresAtNanos() >= 0;
+  }
+
+  /**
+   * Whether the entry may still be served at the specified time if it may
+   * be served for up to {@code staleNanos} after it became stale.
+   */
+  boolean isServableStale(long nowNanos, long staleNanos) {
+    return nowNanos - (expiresAtNanos() + staleNanos) < 0
+        && (keyExpiresAtNanos() == Long.MAX_VALUE
+            || nowNanos - keyExpiresAtNanos() < 0);
+  }
+
+  /**
+   * Records that the entry was read. Hot entries are read by many threads at
+   * once, so reads are recorded at a coarse granularity to keep those
+   * threads from all writing the same field.
+   */
+  void recordAccess(long nowNanos) {
+    if (nowNanos - lastAccessNanos >= ACCESS_GRANULARITY_NANOS) {
+      lastAccessNanos = nowNanos;
+    }
+  }
+
+  long lastAccessNanos() {
+    return lastAccessNanos;
+  }
+
+  /** Whether the entry holds a value (without decompressing it). */
+  public boolean hasValue() {
+    return rawValue() != null || gzippedValue() != null;
+  }
+
+  /** The value, which is absent if the key has none or it is too large. */
+  public Optional<String> value() {
+    if (rawValue() != null) {
+      return Optional.of(rawValue());
+    }
+    return gzippedValue() == null
+        ? Optional.empty()
+        : Optional.of(ValueCompression.decompress(gzippedValue()));
+  }
+
+  /**
+   * The value as a gzip stream, if it is held compressed. Callers must not
+   * modify the array.
+   */
+  public Optional<byte[]> gzipped() {
+    return Optional.ofNullable(gzippedValue());
+  }
+
+  /**
+   * A hash of the value, suitable for an HTTP entity tag (without the
+   * quotes). It is computed on first use and then kept with the entry.
+   */
+  @Memoized
+  public String hash() {
+    return (gzippedValue() != null
+        ? Hashing.farmHashFingerprint64().hashBytes(gzippedValue())
+        : Hashing.farmHashFingerprint64()
+            .hashString(value().orElse(""), Charsets.UTF_8)).toString();
+  }
+
+  /** The approximate heap footprint of the entry, in bytes. */
+  int weight() {
+    if (gzippedValue() != null) {
+      return OVERHEAD_BYTES + gzippedValue().length;
+    }
+    // Strings hold one byte per Latin-1 character and two otherwise.
+    return OVERHEAD_BYTES + (rawValue() == null ? 0 : rawValue().length() * 2);
+  }
+
+  /** Returns the entry for a key that has no value. */
+  static CacheEntry absent(long expiresAtNanos) {
+    return create(null, null, false, expiresAtNanos, Long.MAX_VALUE);
+  }
+
+  /** Returns the marker for a key whose value is too large to cache. */
+  static CacheEntry large(long expiresAtNanos) {
+    return create(null, null, true, expiresAtNanos, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the entry for a value, compressing it if it is at least
+   * {@code compressionMinBytes} long (0 disables compression) and compresses
+   * well.
+   */
+  static CacheEntry of(
+      String value,
+      byte[] utf8,
+      int compressionMinBytes,
+      long expiresAtNanos,
+      long keyExpiresAtNanos) {
+    if (compressionMinBytes > 0 && utf8.length >= compressionMinBytes) {
+      byte[] gzipped = ValueCompression.compress(utf8);
+      if (gzipped != null) {
+        return create(
+            null,
+            gzipped,
+            false,
+            expiresAtNanos,
+            keyExpiresAtNanos);
+      }
+    }
+    return create(value, null, false, expiresAtNanos, keyExpiresAtNanos);
+  }
+
+  static CacheEntry of(
+      String value,
+      int compressionMinBytes,
+      long expiresAtNanos,
+      long keyExpiresAtNanos) {
+    return compressionMinBytes > 0
+        ? of(
+            value,
+            value.getBytes(Charsets.UTF_8),
+            compressionMinBytes,
+            expiresAtNanos,
+            keyExpiresAtNanos)
+        : create(value, null, false, expiresAtNanos, keyExpiresAtNanos);
+  }
+
+  /**
+   * Returns an entry as it was held before, e.g. by {@link DiskTier}, with
+   * either its raw or its gzipped value.
+   */
+  static CacheEntry restore(
+      @Nullable String rawValue,
+      @Nullable byte[] gzippedValue,
+      long expiresAtNanos,
+      long keyExpiresAtNanos) {
+    return create(
+        rawValue,
+        gzippedValue,
+        false,
+        expiresAtNanos,
+        keyExpiresAtNanos);
+  }
+
+  private static CacheEntry create(
+      @Nullable String rawValue,
+      @Nullable byte[] gzippedValue,
+      boolean isLarge,
+      long expiresAtNanos,
+      long keyExpiresAtNanos) {
+    return new AutoValue_CacheEntry(
+        rawValue,
+        gzippedValue,
+        isLarge,
+        expiresAtNanos,
+        keyExpiresAtNanos);
+  }
+}
@@ -0,0 +1,115 @@
+package cache;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Stops sending requests to a backend that keeps failing, so that callers
+ * fail fast instead of each waiting for a timeout.
+ * <p>
+ * The breaker opens after {@code failureThreshold} consecutive failures
+ * (errors or timeouts). While it is open every request is rejected. After
+ * {@code openDuration} it is half-open: a single request is let through as a
+ * probe, and its outcome closes the breaker or opens it again. A probe whose
+ * outcome is never recorded is replaced by another after openDuration.
+ */
+final class CircuitBreaker {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  /** The breaker's state, reported by the circuit_breaker.state gauge. */
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  /** Thrown (as the cause of an ExecutionException) for rejected requests. */
+  static class OpenException extends RuntimeException {
+    OpenException() {
+      super("circuit breaker is open: Redis is failing");
+    }
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Ticker ticker;
+  private final LongAdder opened = Metrics.counter("circuit_breaker.opened");
+  private final LongAdder rejected =
+      Metrics.counter("circuit_breaker.rejected");
+
+  // Guarded by "this".
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  /** When the breaker opened or, when half-open, when the probe started. */
+  private long sinceNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param failureThreshold consecutive failures that open the breaker (0
+   *        disables it)
+   */
+  CircuitBreaker(int failureThreshold, Duration openDuration, Ticker ticker) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openDuration.toNanos();
+    this.ticker = ticker;
+    Metrics.gauge("circuit_breaker.state", () -> state().ordinal());
+  }
+
+  /**
+   * Returns whether a request may be sent. When half-open, only the first
+   * caller (the probe) gets true.
+   */
+  synchronized boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    long now = ticker.read();
+    if (now - sinceNanos >= openNanos) {
+      // Open for long enough, or the last probe never reported back.
+      state = State.HALF_OPEN;
+      sinceNanos = now;
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /** Records a request that the backend answered. */
+  synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    if (state != State.CLOSED) {
+      logger.info("Circuit breaker closed: Redis recovered.");
+      state = State.CLOSED;
+    }
+  }
+
+  /** Records a request that failed or timed out. */
+  synchronized void onFailure() {
+    if (failureThreshold == 0) {
+      return;
+    }
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN
+        || (state == State.CLOSED
+            && consecutiveFailures >= failureThreshold)) {
+      logger.warn(
+          "Circuit breaker opened after {} consecutive failures.",
+          consecutiveFailures);
+      state = State.OPEN;
+      sinceNanos = ticker.read();
+      opened.increment();
+    }
+  }
+
+  synchronized State state() {
+    return state;
+  }
+}
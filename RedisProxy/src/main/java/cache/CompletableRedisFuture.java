@@ -0,0 +1,48 @@
+package cache;
+
+import io.lettuce.core.RedisFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A RedisFuture that is completed manually, e.g. to combine the results of
+ * several Redis commands into one.
+ */
+public class CompletableRedisFuture<T> extends CompletableFuture<T>
+    implements RedisFuture<T> {
+
+  /** Returns a future that has already completed with the specified value. */
+  public static <T> CompletableRedisFuture<T> completed(T value) {
+    CompletableRedisFuture<T> future = new CompletableRedisFuture<>();
+    future.complete(value);
+    return future;
+  }
+
+  @Override
+  public String getError() {
+    if (!isCompletedExceptionally()) {
+      return null;
+    }
+    try {
+      join();
+      return null;
+    } catch (RuntimeException e) {
+      return e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+    }
+  }
+
+  @Override
+  public boolean await(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    try {
+      get(timeout, unit);
+    } catch (ExecutionException e) {
+      // Completed exceptionally, which still counts as done.
+    } catch (TimeoutException e) {
+      return false;
+    }
+    return true;
+  }
+}
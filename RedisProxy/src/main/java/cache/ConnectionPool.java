@@ -0,0 +1,146 @@
+package cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Spreads commands across a fixed pool of connections to one Redis instance.
+ * <p>
+ * Each Lettuce connection is bound to a single Netty event loop, so a single
+ * shared connection caps miss throughput at what one I/O thread can encode
+ * and decode. Spreading misses over several connections (and I/O threads)
+ * lets throughput scale with cores.
+ */
+public class ConnectionPool implements RedisRouter {
+
+  /** How a connection is chosen for each command. */
+  public enum RoutingPolicy {
+    /**
+     * Always use the same connection for a given key. Commands for one key
+     * are therefore executed in the order they were issued.
+     */
+    KEY_HASH,
+    /** Use the connection with the fewest outstanding commands. */
+    LEAST_OUTSTANDING;
+  }
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private final ImmutableList<RedisAsyncCommands<String, String>> connections;
+  private final RoutingPolicy routingPolicy;
+  private final AtomicIntegerArray inFlight;
+  private final ImmutableList<LongAdder> dispatched;
+  private final AtomicInteger nextIndex = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix for this pool's metrics (e.g. "redis")
+   */
+  ConnectionPool(
+      String name,
+      List<RedisAsyncCommands<String, String>> connections,
+      RoutingPolicy routingPolicy) {
+    Preconditions.checkArgument(!connections.isEmpty());
+    this.connections = ImmutableList.copyOf(connections);
+    this.routingPolicy = routingPolicy;
+    this.inFlight = new AtomicIntegerArray(connections.size());
+    ImmutableList.Builder<LongAdder> dispatched = ImmutableList.builder();
+    for (int i = 0; i < connections.size(); i++) {
+      int index = i;
+      String prefix = String.format("%s.connection.%d", name, i);
+      Metrics.gauge(prefix + ".in_flight", () -> inFlight.get(index));
+      dispatched.add(Metrics.counter(prefix + ".dispatched"));
+    }
+    this.dispatched = dispatched.build();
+  }
+
+  /** Opens a pool of connections to the specified Redis instance. */
+  public static ConnectionPool connect(
+      String name,
+      RedisClient redisClient,
+      RedisURI redisUri,
+      int size,
+      RoutingPolicy routingPolicy) {
+    ImmutableList.Builder<RedisAsyncCommands<String, String>> connections =
+        ImmutableList.builder();
+    for (int i = 0; i < size; i++) {
+      connections.add(redisClient.connect(redisUri).async());
+    }
+    logger.info(
+        "Opened {} connection(s) to {} with routing policy {}",
+        size,
+        redisUri,
+        routingPolicy);
+    return new ConnectionPool(name, connections.build(), routingPolicy);
+  }
+
+  @Override
+  public <T> RedisFuture<T> execute(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    int index = choose(key);
+    inFlight.incrementAndGet(index);
+    dispatched.get(index).increment();
+    RedisFuture<T> future;
+    try {
+      future = command.apply(connections.get(index));
+    } catch (RuntimeException e) {
+      inFlight.decrementAndGet(index);
+      throw e;
+    }
+    future.whenComplete((value, error) -> inFlight.decrementAndGet(index));
+    return future;
+  }
+
+  /** Returns the number of outstanding commands on each connection. */
+  public ImmutableList<Integer> inFlightCounts() {
+    ImmutableList.Builder<Integer> counts = ImmutableList.builder();
+    for (int i = 0; i < inFlight.length(); i++) {
+      counts.add(inFlight.get(i));
+    }
+    return counts.build();
+  }
+
+  @Override
+  public void close() {
+    connections.forEach(c -> c.getStatefulConnection().close());
+  }
+
+  private int choose(String key) {
+    int size = connections.size();
+    if (size == 1) {
+      return 0;
+    }
+    switch (routingPolicy) {
+      case KEY_HASH:
+        return Math.floorMod(key.hashCode(), size);
+      case LEAST_OUTSTANDING:
+      default:
+        // Start from a rotating index so ties are spread evenly.
+        int start = Math.floorMod(nextIndex.getAndIncrement(), size);
+        int best = start;
+        for (int i = 1; i < size; i++) {
+          int candidate = (start + i) % size;
+          if (inFlight.get(candidate) < inFlight.get(best)) {
+            best = candidate;
+          }
+        }
+        return best;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Immutable consistent-hash ring that maps keys to weighted nodes.
+ * <p>
+ * Each node is placed on the ring at {@code weight * virtualNodesPerWeight}
+ * pseudo-random points derived from its id, and a key belongs to the first
+ * node point at or after the key's hash. Adding or removing a node therefore
+ * only remaps the keys that hash next to that node's points (roughly 1/N of
+ * the keyspace), and a node with twice the weight owns roughly twice as many
+ * keys.
+ */
+public class ConsistentHashRing<T> {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final ImmutableMap<T, Integer> weights;
+  private final int virtualNodesPerWeight;
+  private final Function<T, String> nodeId;
+  // Parallel arrays sorted by point, for allocation-free binary search.
+  private final int[] points;
+  private final Object[] owners;
+
+  /**
+   * Constructor.
+   *
+   * @param weights every node on the ring and its (positive) weight
+   * @param virtualNodesPerWeight ring points per unit of weight
+   * @param nodeId stable id used to place a node on the ring
+   */
+  public ConsistentHashRing(
+      Map<T, Integer> weights,
+      int virtualNodesPerWeight,
+      Function<T, String> nodeId) {
+    Preconditions.checkArgument(!weights.isEmpty(), "ring has no nodes");
+    Preconditions.checkArgument(virtualNodesPerWeight > 0);
+    this.weights = ImmutableMap.copyOf(weights);
+    this.virtualNodesPerWeight = virtualNodesPerWeight;
+    this.nodeId = nodeId;
+
+    TreeMap<Integer, T> ring = new TreeMap<>();
+    for (Map.Entry<T, Integer> entry : this.weights.entrySet()) {
+      Preconditions.checkArgument(entry.getValue() > 0, "weight must be > 0");
+      String id = nodeId.apply(entry.getKey());
+      for (int i = 0; i < entry.getValue() * virtualNodesPerWeight; i++) {
+        // On the (rare) collision, keep the smaller id so that the ring does
+        // not depend on map iteration order.
+        ring.merge(
+            hash(id + "#" + i),
+            entry.getKey(),
+            (a, b) -> nodeId.apply(a).compareTo(nodeId.apply(b)) <= 0 ? a : b);
+      }
+    }
+    points = new int[ring.size()];
+    owners = new Object[ring.size()];
+    int i = 0;
+    for (Map.Entry<Integer, T> entry : ring.entrySet()) {
+      points[i] = entry.getKey();
+      owners[i] = entry.getValue();
+      i++;
+    }
+  }
+
+  /** Returns the node that owns the specified key. */
+  @SuppressWarnings("unchecked")
+  public T get(String key) {
+    int index = Arrays.binarySearch(points, hash(key));
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return (T) owners[index == points.length ? 0 : index];
+  }
+
+  /** Returns every node on the ring and its weight. */
+  public ImmutableMap<T, Integer> weights() {
+    return weights;
+  }
+
+  /** Returns a new ring with the specified node added (or re-weighted). */
+  public ConsistentHashRing<T> withNode(T node, int weight) {
+    return new ConsistentHashRing<>(
+        ImmutableMap.<T, Integer>builder()
+            .putAll(Maps.filterKeys(weights, k -> !k.equals(node)))
+            .put(node, weight)
+            .build(),
+        virtualNodesPerWeight,
+        nodeId);
+  }
+
+  /** Returns a new ring with the specified node removed. */
+  public ConsistentHashRing<T> withoutNode(T node) {
+    return new ConsistentHashRing<>(
+        Maps.filterKeys(weights, k -> !k.equals(node)),
+        virtualNodesPerWeight,
+        nodeId);
+  }
+
+  private static int hash(String str) {
+    return HASH_FUNCTION.hashString(str, Charsets.UTF_8).asInt();
+  }
+}
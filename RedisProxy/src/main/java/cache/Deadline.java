@@ -0,0 +1,36 @@
+package cache;
+
+import com.google.common.base.Ticker;
+import java.time.Duration;
+
+/**
+ * The time by which an operation, and all the Redis round trips it makes,
+ * must complete.
+ */
+final class Deadline {
+
+  private static final long NONE = Long.MAX_VALUE;
+
+  private final Ticker ticker;
+  private final long atNanos;
+
+  private Deadline(Ticker ticker, long atNanos) {
+    this.ticker = ticker;
+    this.atNanos = atNanos;
+  }
+
+  /** Returns the deadline that is the timeout from now (zero means none). */
+  static Deadline after(Duration timeout, Ticker ticker) {
+    return new Deadline(
+        ticker,
+        timeout.isZero() ? NONE : ticker.read() + timeout.toNanos());
+  }
+
+  /**
+   * Returns the time left until the deadline (never negative), or
+   * Long.MAX_VALUE if there is none.
+   */
+  long remainingNanos() {
+    return atNanos == NONE ? NONE : Math.max(0, atNanos - ticker.read());
+  }
+}
@@ -0,0 +1,489 @@
+package cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * A second cache tier on local disk, holding the entries evicted from the
+ * in-memory cache so that a later miss can be served without a Redis round
+ * trip.
+ * <p>
+ * Entries are appended as records to segment files of CACHE_DISK_SEGMENT_BYTES
+ * each, which are memory-mapped: writes and reads are memory copies, and the
+ * operating system pages the data in and out. An in-memory index maps each
+ * key to its latest record, packed into a long (segment and offset). Only one
+ * segment is written at a time; when it is full, writing moves on to a new
+ * one, and when there are more than CACHE_DISK_MAX_BYTES worth of segments
+ * the oldest is dropped with its entries.
+ * <p>
+ * Records that are removed or replaced become garbage. A background thread
+ * compacts the full segments that are mostly garbage: it copies their live
+ * records to the segment being written and deletes them.
+ * <p>
+ * The tier is a cache, not a store: it starts empty (deleting any segments
+ * left in the directory), and its entries keep the deadlines, per the
+ * cache's ticker, that they had in memory.
+ */
+final class DiskTier implements AutoCloseable {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  /** Key length, value length, flags, expiresAt and keyExpiresAt. */
+  private static final int HEADER_BYTES = 4 + 4 + 1 + 8 + 8;
+  private static final byte FLAG_GZIPPED = 1;
+  /** Full segments with less live data than this fraction are compacted. */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+  private static final long COMPACTION_PERIOD_MILLIS = 1000;
+
+  /** A segment file, mapped into memory. */
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final MappedByteBuffer buffer;
+    /** The bytes of the records that the index points to. */
+    final AtomicLong liveBytes = new AtomicLong();
+    /** The keys of its records, in order. Guarded by the tier. */
+    final List<String> keys = new ArrayList<>();
+    /** Where the next record goes. Guarded by the tier. */
+    int writeOffset;
+    /** Whether it is full, and so may be compacted. Guarded by the tier. */
+    boolean sealed;
+
+    Segment(int id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final Ticker ticker;
+  private final LongSupplier staleNanos;
+  /** Where each key's latest record is (see {@link #location}). */
+  private final ConcurrentMap<String, Long> index = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Integer, Segment> segments =
+      new ConcurrentSkipListMap<>();
+  private final ScheduledExecutorService compactor;
+  // Guarded by "this".
+  private Segment active;
+  private int nextSegmentId;
+  private boolean closed;
+
+  private final LongAdder hits = Metrics.counter("cache.disk.hits");
+  private final LongAdder misses = Metrics.counter("cache.disk.misses");
+  private final LongAdder demotions = Metrics.counter("cache.disk.demotions");
+  private final LongAdder droppedSegments =
+      Metrics.counter("cache.disk.dropped_segments");
+  private final LongAdder compactions =
+      Metrics.counter("cache.disk.compactions");
+  private final LatencyHistogram readTime =
+      Metrics.histogram("cache.disk.read");
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes the total size of the segments (at least one segment)
+   * @param staleNanos how long after they expire entries may still be served
+   *        stale (see {@link CacheEntry#isServableStale}); compaction drops
+   *        those that no longer may
+   */
+  DiskTier(
+      Path directory,
+      long maxBytes,
+      int segmentBytes,
+      Ticker ticker,
+      LongSupplier staleNanos) throws IOException {
+    Preconditions.checkArgument(
+        segmentBytes > HEADER_BYTES,
+        "CACHE_DISK_SEGMENT_BYTES is too small");
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(1, maxBytes / segmentBytes);
+    this.ticker = ticker;
+    this.staleNanos = staleNanos;
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> leftovers =
+        Files.newDirectoryStream(
+            directory,
+            SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path leftover : leftovers) {
+        Files.delete(leftover);
+      }
+    }
+    synchronized (this) {
+      active = newSegment();
+    }
+    Metrics.gauge("cache.disk.entries", index::size);
+    Metrics.gauge("cache.disk.segments", segments::size);
+    Metrics.gauge(
+        "cache.disk.live_bytes",
+        () -> segments.values()
+            .stream()
+            .mapToLong(segment -> segment.liveBytes.get())
+            .sum());
+    Metrics.gauge(
+        "cache.disk.hit_ratio_percent",
+        () -> hits.sum() + misses.sum() == 0
+            ? 0
+            : hits.sum() * 100 / (hits.sum() + misses.sum()));
+    compactor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("disk-tier-compactor")
+                .setDaemon(true)
+                .build());
+    compactor.scheduleWithFixedDelay(
+        this::compactSafely,
+        COMPACTION_PERIOD_MILLIS,
+        COMPACTION_PERIOD_MILLIS,
+        TimeUnit.MILLISECONDS);
+    logger.info(
+        "Disk cache tier in {}: {} segments of {} bytes.",
+        directory,
+        maxSegments,
+        segmentBytes);
+  }
+
+  /**
+   * Stores an entry evicted from memory, replacing any previous one for the
+   * key. Entries without a value, and those too large for a segment, are
+   * not stored.
+   */
+  void put(String key, CacheEntry entry) {
+    if (!entry.hasValue()) {
+      return;
+    }
+    byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+    boolean gzipped = entry.gzippedValue() != null;
+    byte[] value =
+        gzipped
+            ? entry.gzippedValue()
+            : entry.rawValue().getBytes(Charsets.UTF_8);
+    if (HEADER_BYTES + keyBytes.length + value.length > segmentBytes) {
+      return;
+    }
+    Long location =
+        append(
+            key,
+            keyBytes,
+            value,
+            gzipped ? FLAG_GZIPPED : 0,
+            entry.expiresAtNanos(),
+            entry.keyExpiresAtNanos());
+    if (location == null) {
+      return;
+    }
+    Long previous = index.put(key, location);
+    if (previous != null) {
+      release(previous);
+    }
+    demotions.increment();
+  }
+
+  /**
+   * Removes and returns the entry for the key (which is moving back to
+   * memory), or returns null if there is none.
+   */
+  @Nullable
+  CacheEntry take(String key) {
+    long start = ticker.read();
+    Long location = index.remove(key);
+    CacheEntry entry = location == null ? null : read(location);
+    if (location != null) {
+      release(location);
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    readTime.record(ticker.read() - start);
+    return entry;
+  }
+
+  /** Removes the entry for the key, if any (e.g. because it was written). */
+  void remove(String key) {
+    Long location = index.remove(key);
+    if (location != null) {
+      release(location);
+    }
+  }
+
+  /** Removes every entry. */
+  void clear() {
+    index.keySet().forEach(this::remove);
+  }
+
+  /** Stops compacting and deletes the segment files. */
+  @Override
+  public void close() {
+    compactor.shutdownNow();
+    synchronized (this) {
+      closed = true;
+      index.clear();
+      segments.values().forEach(this::delete);
+      segments.clear();
+    }
+  }
+
+  /**
+   * Compacts every full segment that is mostly garbage: re-appends its live
+   * records and deletes it.
+   */
+  void compact() {
+    for (Segment segment : segments.values()) {
+      boolean compactable;
+      synchronized (this) {
+        compactable =
+            segment.sealed
+                && segments.containsKey(segment.id)
+                && segment.liveBytes.get()
+                    < segment.writeOffset * COMPACTION_THRESHOLD;
+      }
+      if (!compactable) {
+        continue;
+      }
+      List<String> keys;
+      synchronized (this) {
+        keys = new ArrayList<>(segment.keys);
+      }
+      long now = ticker.read();
+      for (String key : keys) {
+        Long location = index.get(key);
+        if (location == null || segmentOf(location) != segment.id) {
+          continue;
+        }
+        CacheEntry entry = read(location);
+        if (entry == null
+            || !entry.isServableStale(now, staleNanos.getAsLong())) {
+          // Expired: drop it rather than copy it.
+          if (index.remove(key, location)) {
+            release(location);
+          }
+          continue;
+        }
+        moveRecord(key, location, entry);
+      }
+      synchronized (this) {
+        if (segments.remove(segment.id) != null) {
+          dropIndexEntries(segment);
+          delete(segment);
+          compactions.increment();
+        }
+      }
+    }
+  }
+
+  /** Copies a live record to the active segment, if it is still live. */
+  private void moveRecord(String key, long from, CacheEntry entry) {
+    byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+    boolean gzipped = entry.gzippedValue() != null;
+    byte[] value =
+        gzipped
+            ? entry.gzippedValue()
+            : entry.rawValue().getBytes(Charsets.UTF_8);
+    Long to =
+        append(
+            key,
+            keyBytes,
+            value,
+            gzipped ? FLAG_GZIPPED : 0,
+            entry.expiresAtNanos(),
+            entry.keyExpiresAtNanos());
+    if (to == null) {
+      return;
+    }
+    if (index.replace(key, from, to)) {
+      release(from);
+    } else {
+      // Removed or replaced meanwhile: the copy is garbage.
+      release(to);
+    }
+  }
+
+  private void compactSafely() {
+    try {
+      compact();
+    } catch (RuntimeException e) {
+      logger.warn("Failed to compact the disk cache tier", e);
+    }
+  }
+
+  /**
+   * Appends a record to the active segment and returns its location, or null
+   * if the tier is closed.
+   */
+  @Nullable
+  private synchronized Long append(
+      String key,
+      byte[] keyBytes,
+      byte[] value,
+      byte flags,
+      long expiresAtNanos,
+      long keyExpiresAtNanos) {
+    if (closed) {
+      return null;
+    }
+    int length = HEADER_BYTES + keyBytes.length + value.length;
+    if (active.writeOffset + length > segmentBytes) {
+      active.sealed = true;
+      active = newSegment();
+    }
+    int offset = active.writeOffset;
+    MappedByteBuffer buffer = active.buffer;
+    buffer.putInt(offset, keyBytes.length);
+    buffer.putInt(offset + 4, value.length);
+    buffer.put(offset + 8, flags);
+    buffer.putLong(offset + 9, expiresAtNanos);
+    buffer.putLong(offset + 17, keyExpiresAtNanos);
+    buffer.put(offset + HEADER_BYTES, keyBytes);
+    buffer.put(offset + HEADER_BYTES + keyBytes.length, value);
+    active.writeOffset += length;
+    active.liveBytes.addAndGet(length);
+    active.keys.add(key);
+    return location(active.id, offset);
+  }
+
+  /**
+   * Reads the record at the location, or returns null if its segment was
+   * dropped meanwhile.
+   */
+  @Nullable
+  private CacheEntry read(long location) {
+    Segment segment = segments.get(segmentOf(location));
+    if (segment == null) {
+      return null;
+    }
+    MappedByteBuffer buffer = segment.buffer;
+    int offset = offsetOf(location);
+    int keyLength = buffer.getInt(offset);
+    byte[] value = new byte[buffer.getInt(offset + 4)];
+    byte flags = buffer.get(offset + 8);
+    long expiresAtNanos = buffer.getLong(offset + 9);
+    long keyExpiresAtNanos = buffer.getLong(offset + 17);
+    buffer.get(offset + HEADER_BYTES + keyLength, value);
+    return (flags & FLAG_GZIPPED) != 0
+        ? CacheEntry.restore(null, value, expiresAtNanos, keyExpiresAtNanos)
+        : CacheEntry.restore(
+            new String(value, Charsets.UTF_8),
+            null,
+            expiresAtNanos,
+            keyExpiresAtNanos);
+  }
+
+  /** Marks the record at the location as garbage. */
+  private void release(long location) {
+    Segment segment = segments.get(segmentOf(location));
+    if (segment != null) {
+      MappedByteBuffer buffer = segment.buffer;
+      int offset = offsetOf(location);
+      segment.liveBytes.addAndGet(
+          -(HEADER_BYTES + buffer.getInt(offset) + buffer.getInt(offset + 4)));
+    }
+  }
+
+  /**
+   * Creates and maps a new segment, first dropping the oldest if there
+   * would be too many.
+   */
+  private Segment newSegment() {
+    while (segments.size() >= maxSegments) {
+      Segment oldest = segments.pollFirstEntry().getValue();
+      dropIndexEntries(oldest);
+      delete(oldest);
+      droppedSegments.increment();
+    }
+    int id = nextSegmentId++;
+    Path path = directory.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    try (FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      // The mapping stays valid after the channel is closed.
+      Segment segment =
+          new Segment(
+              id,
+              path,
+              channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+      segments.put(id, segment);
+      return segment;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Removes the index entries that point into a dropped segment. */
+  private void dropIndexEntries(Segment segment) {
+    for (String key : segment.keys) {
+      index.computeIfPresent(
+          key,
+          (k, location) -> segmentOf(location) == segment.id ? null : location);
+    }
+  }
+
+  /**
+   * Deletes a segment's file. Readers that already hold its mapping can still
+   * use it: the space is reclaimed once the mapping is garbage collected.
+   */
+  private void delete(Segment segment) {
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException e) {
+      logger.warn("Failed to delete {}: {}", segment.path, e.getMessage());
+    }
+  }
+
+  private static long location(int segment, int offset) {
+    return ((long) segment << 32) | (offset & 0xffffffffL);
+  }
+
+  private static int segmentOf(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static int offsetOf(long location) {
+    return (int) location;
+  }
+
+  /** Returns the segment files, oldest first. */
+  List<Path> segmentFiles() {
+    return segments.values()
+        .stream()
+        .map(segment -> segment.path)
+        .collect(Collectors.toList());
+  }
+}
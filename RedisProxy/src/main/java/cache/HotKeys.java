@@ -0,0 +1,195 @@
+package cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects the keys that receive the most lookups ("hot" keys), so that the
+ * cache can pin them and refresh them before they expire.
+ * <p>
+ * Lookups are counted per time window in a count-min sketch, which never
+ * under-estimates a key's count and over-estimates it by a bounded amount in
+ * fixed memory. The {@code topK} keys with the highest estimates are tracked
+ * alongside it. Counting a key that is not tracked and not above the smallest
+ * tracked estimate only costs the sketch's atomic increments.
+ * <p>
+ * When a window ends, the tracked keys and their lookup rates become the
+ * view returned by {@link #snapshot}. Those whose rate reached
+ * {@code minRate} per second are hot until the next window ends. The counts
+ * then restart, so keys that cool down stop being hot after one window.
+ */
+public final class HotKeys {
+
+  private static final int DEPTH = 4;
+  /** Counters per row. A power of two. */
+  private static final int WIDTH = 4096;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final int topK;
+  private final int minRate;
+  private final long windowNanos;
+  private final Ticker ticker;
+  private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+  /** The tracked keys and their estimated lookups in this window. */
+  private final ConcurrentMap<String, Long> top = new ConcurrentHashMap<>();
+  /** The smallest tracked estimate once topK keys are tracked, else 0. */
+  private volatile long threshold;
+  private volatile long windowStart;
+  private volatile long windowEnd;
+  /** The last window's tracked keys and their rates, highest first. */
+  private volatile ImmutableMap<String, Double> lastWindow = ImmutableMap.of();
+  private volatile ImmutableSet<String> hot = ImmutableSet.of();
+
+  /**
+   * Constructor.
+   *
+   * @param topK the number of keys to track (0 disables detection)
+   * @param minRate the lookups per second that make a tracked key hot
+   */
+  HotKeys(int topK, int minRate, Duration window, Ticker ticker) {
+    this.topK = topK;
+    this.minRate = minRate;
+    this.windowNanos = window.toNanos();
+    this.ticker = ticker;
+    this.windowStart = ticker.read();
+    this.windowEnd = windowStart + windowNanos;
+  }
+
+  long windowNanos() {
+    return windowNanos;
+  }
+
+  /** Returns whether detection is enabled. */
+  boolean isEnabled() {
+    return topK > 0;
+  }
+
+  /** Counts a lookup of the key. */
+  void record(String key) {
+    if (topK == 0) {
+      return;
+    }
+    rotateIfDue();
+    long estimate = increment(key);
+    if (top.computeIfPresent(key, (k, count) -> Math.max(count, estimate))
+        != null
+        || estimate <= threshold) {
+      return;
+    }
+    synchronized (this) {
+      top.merge(key, estimate, Math::max);
+      if (top.size() > topK) {
+        top.remove(smallest().getKey());
+      }
+      threshold = top.size() < topK ? 0 : smallest().getValue();
+    }
+  }
+
+  /** Returns whether the key was hot in the last complete window. */
+  public boolean isHot(String key) {
+    return hot.contains(key);
+  }
+
+  /** Returns the keys that were hot in the last complete window. */
+  public ImmutableSet<String> hotKeys() {
+    return hot;
+  }
+
+  /**
+   * Returns the keys tracked in the last complete window and their lookups
+   * per second, highest first.
+   */
+  public ImmutableMap<String, Double> snapshot() {
+    rotateIfDue();
+    return lastWindow;
+  }
+
+  /**
+   * Formats a snapshot as one "key rate" pair per line, marking the hot
+   * (pinned) keys.
+   */
+  public String format() {
+    StringBuilder output = new StringBuilder();
+    snapshot().forEach(
+        (key, rate) -> {
+          output.append(key)
+              .append(' ')
+              .append(String.format("%.1f/s", rate));
+          if (hot.contains(key)) {
+            output.append(" pinned");
+          }
+          output.append('\n');
+        });
+    return output.toString();
+  }
+
+  /** Ends the current window if it is over. */
+  void rotateIfDue() {
+    if (ticker.read() < windowEnd) {
+      return;
+    }
+    synchronized (this) {
+      long now = ticker.read();
+      if (now < windowEnd) {
+        return;
+      }
+      // The window may have lasted longer than planned if nothing was
+      // looked up at its end.
+      double seconds = Math.max(1, now - windowStart) / 1e9;
+      ImmutableMap.Builder<String, Double> rates = ImmutableMap.builder();
+      ImmutableSet.Builder<String> hotKeys = ImmutableSet.builder();
+      top.entrySet()
+          .stream()
+          .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+          .forEach(entry -> {
+            double rate = entry.getValue() / seconds;
+            rates.put(entry.getKey(), rate);
+            if (rate >= minRate) {
+              hotKeys.add(entry.getKey());
+            }
+          });
+      lastWindow = rates.build();
+      hot = hotKeys.build();
+      top.clear();
+      threshold = 0;
+      for (int i = 0; i < sketch.length(); i++) {
+        sketch.set(i, 0);
+      }
+      windowStart = now;
+      windowEnd = now + windowNanos;
+    }
+  }
+
+  /**
+   * Increments the key's counter in every row of the sketch and returns the
+   * smallest, which is the key's estimated count.
+   */
+  private long increment(String key) {
+    long hash = HASH.hashUnencodedChars(key).asLong();
+    int hash1 = (int) hash;
+    int hash2 = (int) (hash >>> 32);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      int column = (hash1 + row * hash2) & (WIDTH - 1);
+      estimate =
+          Math.min(estimate, sketch.incrementAndGet(row * WIDTH + column));
+    }
+    return estimate;
+  }
+
+  private Map.Entry<String, Long> smallest() {
+    return top.entrySet()
+        .stream()
+        .min(Comparator.comparing(Map.Entry::getValue))
+        .get();
+  }
+}
@@ -1,14 +1,67 @@
 package cache;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Ticker;
+import com.google.common.base.Utf8;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import cache.Peers.Fetched.Kind;
 import configuration.Configuration;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisCommandTimeoutException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.ByteArrayOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import metrics.BigKeys;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import server.Server;
@@ -21,45 +74,243 @@ import server.Server;
  * Redis instance, directly.
  * <li>If a key is not present in the Redis instance, the cache stores an absent
  * value.
+ * <li>Writes (e.g. {@link #set}) are sent to Redis and, once Redis accepts
+ * them, the cache is updated with the key's new value.
+ * <li>Values larger than CACHE_MAX_VALUE_BYTES are not cached: the cache
+ * only remembers that they are large (see {@link CacheEntry}), and callers
+ * stream them from Redis in chunks with {@link #streamValue}.
+ * <li>Values of at least CACHE_COMPRESSION_MIN_BYTES are held compressed.
+ * With CACHE_MAX_BYTES set, the cache is bounded by the (compressed) size of
+ * its entries rather than by CACHE_CAPACITY, so compression lets it hold more.
+ * <li>Entries expire after CACHE_EXPIRY, or sooner if their key expires in
+ * Redis first: a key's PTTL is read in the same round trip as its value.
+ * <li>An expired (stale) entry is reloaded by the next read. For
+ * CACHE_STALE_WHILE_REVALIDATE after it expires, that read returns the
+ * stale value at once and the reload happens in the background. For
+ * CACHE_STALE_IF_ERROR after it expires, the stale value is returned if
+ * the reload fails. Values are never served past their key's Redis TTL.
+ * <li>Every lookup is counted by {@link HotKeys}. The hot keys it detects are
+ * pinned: their entries weigh nothing, so they are never evicted, and they
+ * are reloaded in the background before they expire, so their readers never
+ * wait for Redis.
+ * <li>Every reply from Redis is waited for at most REDIS_TIMEOUT, and all the
+ * round trips of an operation together at most REQUEST_DEADLINE. Timeouts
+ * and errors feed a {@link CircuitBreaker}: while it is open, operations fail
+ * at once without contacting Redis (stale entries are still served within
+ * CACHE_STALE_IF_ERROR). At most CACHE_MAX_CONCURRENT_LOADS loads are in
+ * flight at once, so that a slow Redis cannot tie up every request thread.
+ * <li>The bounds, expiry and timeouts can be changed while the cache is in use
+ * (see {@link #reconfigure}). The cache is then rebuilt with its entries,
+ * most recently read last, so that a smaller cache keeps the hottest ones.
+ * <li>With CACHE_DISK_DIRECTORY set, entries evicted for size are demoted to a
+ * {@link DiskTier} on local disk, and misses are looked up there before
+ * Redis. A key is in at most one tier: an entry found on disk moves back to
+ * memory, and writes drop the key from disk.
+ * <li>With {@link Peers}, this proxy is one of a fleet in which every key
+ * has an owner. A single-key miss for a key owned by another proxy is
+ * fetched from it rather than from Redis (batches read Redis directly), and
+ * writes drop the key from the other proxies' caches.
  * </ul>
+ * <p>
+ * Writes update the cache with {@code put} rather than invalidating it. If a
+ * load for the key is in flight when the write completes, that load may have
+ * read the old value from Redis; the cache discards the result of a load that
+ * is overtaken by a {@code put}, whereas an invalidation would not stop the
+ * old value from being stored. Writes to the same key are serialized so that
+ * the order in which the cache is updated matches the order in which Redis
+ * applied them.
  */
 public class LruCache {
 
-  private final LoadingCache<String, Optional<String>> cache;
+  /** The condition under which a SET is applied. */
+  public enum SetCondition {
+    /** Always set the value. */
+    ALWAYS,
+    /** Only set the value if the key does not exist (NX). */
+    IF_ABSENT,
+    /** Only set the value if the key already exists (XX). */
+    IF_PRESENT;
+  }
+
+  /** Large values are streamed from Redis in chunks of this many bytes. */
+  static final int STREAM_CHUNK_BYTES = 64 * 1024;
+  /** The PTTL of a key that does not exist. */
+  private static final long PTTL_NO_KEY = -2;
+
+  /** Replaced (under every write lock) when the cache is rebuilt. */
+  private volatile LoadingCache<String, CacheEntry> cache;
+  /** The configuration the cache was built with. */
+  private volatile Configuration configuration;
+  private final RedisRouter router;
+  private final int maxValueBytes;
+  private final int compressionMinBytes;
+  private final Ticker ticker;
+  private volatile Duration expiry;
+  private volatile long staleWhileRevalidateNanos;
+  private volatile long staleIfErrorNanos;
+  /** Zero if replies are waited for indefinitely. */
+  private volatile long redisTimeoutNanos;
+  private volatile Duration requestDeadline;
+  private final CircuitBreaker breaker;
+  /** Null if the number of loads in flight is unlimited. */
+  @Nullable private final Semaphore loadPermits;
+  /** The reloads of stale entries in progress, by key. */
+  private final ConcurrentMap<String, CompletableFuture<CacheEntry>>
+      revalidations = new ConcurrentHashMap<>();
+  private final ExecutorService revalidator =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("cache-revalidator-%d")
+              .setDaemon(true)
+              .build());
+  private final HotKeys hotKeys;
+  /** Null if there is no disk tier. */
+  @Nullable private final DiskTier disk;
+  /** Null if this proxy is not one of a fleet. */
+  @Nullable private final Peers peers;
+  /** Null if hot key detection is disabled. */
+  @Nullable private final ScheduledExecutorService hotKeyRefresher;
+  /** The hot keys at the last refresh. Only used by the refresher. */
+  private Set<String> refreshedHotKeys = ImmutableSet.of();
+  private final LongAdder largeValuesBypassed =
+      Metrics.counter("cache.large_values.bypassed");
+  private final LongAdder largeValueBytesStreamed =
+      Metrics.counter("cache.large_values.streamed_bytes");
+  private final LongAdder hotKeyRefreshes =
+      Metrics.counter("cache.hot_keys.refreshes");
+  private final LongAdder staleServed = Metrics.counter("cache.stale.served");
+  private final LongAdder staleServedOnError =
+      Metrics.counter("cache.stale.served_on_error");
+  private final LongAdder revalidationFailures =
+      Metrics.counter("cache.stale.revalidation_failures");
+  private final LongAdder redisTimeouts = Metrics.counter("redis.timeouts");
+  private final LongAdder memoryHits = Metrics.counter("cache.memory.hits");
+  private final LongAdder memoryMisses =
+      Metrics.counter("cache.memory.misses");
+  private final LatencyHistogram redisLoadTime =
+      Metrics.histogram("cache.redis.load");
+  private final LongAdder loadsRejected =
+      Metrics.counter("cache.loads.rejected");
+  private final List<Consumer<String>> removalListeners =
+      new CopyOnWriteArrayList<>();
+  private final Striped<Lock> writeLocks = Striped.lock(1024);
   private static final Logger logger =
       LoggerFactory.getLogger(Server.class.getName());
 
   /**
    * Retrieves values for keys in the backing Redis instance.
    */
-  private class Loader extends CacheLoader<String, Optional<String>> {
+  private class Loader extends CacheLoader<String, CacheEntry> {
 
-    RedisAsyncCommands<String, String> commands;
-
-    Loader(RedisAsyncCommands<String, String> commands) {
-      this.commands = commands;
+    @Override
+    public CacheEntry load(String key) throws Exception {
+      return loadMiss(key, /* askOwner= */ true);
     }
+  }
 
-    @Override
-    public Optional<String> load(String key) throws Exception {
-      logger.info(
-          "Key [{}] is not present in cache. Attempting to load value from Redis...",
-          key);
-      return Optional.ofNullable(commands.get(key).get());
+  /**
+   * Loads a key that is not in memory: from the disk tier if it is there,
+   * else from the key's owner if this proxy is one of a fleet that does not
+   * own it (and askOwner is true), else from Redis.
+   */
+  private CacheEntry loadMiss(String key, boolean askOwner)
+      throws ExecutionException {
+    logger.debug(
+        "Key [{}] is not present in cache. Attempting to load value from Redis...",
+        key);
+    CacheEntry demoted = takeFromDisk(key);
+    if (demoted != null) {
+      return demoted;
+    }
+    if (askOwner) {
+      CacheEntry fetched = fetchFromOwner(key);
+      if (fetched != null) {
+        return fetched;
+      }
     }
+    long start = ticker.read();
+    // The caller's deadline cannot be passed through the cache, but it
+    // started a moment ago and has the same length.
+    CacheEntry entry = loadEntry(key, /* fromPrimary= */ false, newDeadline());
+    redisLoadTime.record(ticker.read() - start);
+    return entry;
   }
 
-  /** Constructor. */
+  /** Constructor for a cache backed by a single shared connection. */
   public LruCache(
       RedisAsyncCommands<String, String> commands,
       Configuration configuration,
       Ticker ticker) {
-    cache =
-        CacheBuilder.newBuilder()
-            .expireAfterWrite(configuration.cacheExpiry())
-            .maximumSize(configuration.cacheCapacity())
-            .ticker(ticker)
-            .build(new Loader(commands));
+    this(new SingleConnectionRouter(commands), configuration, ticker);
+  }
+
+  /** Constructor. */
+  public LruCache(
+      RedisRouter router,
+      Configuration configuration,
+      Ticker ticker) {
+    this(router, configuration, ticker, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param peers the other proxies of the fleet this one belongs to, or null
+   *        if it does not belong to one
+   */
+  public LruCache(
+      RedisRouter router,
+      Configuration configuration,
+      Ticker ticker,
+      @Nullable Peers peers) {
+    this.router = router;
+    this.peers = peers;
+    this.maxValueBytes = configuration.cacheMaxValueBytes();
+    this.compressionMinBytes = configuration.cacheCompressionMinBytes();
+    this.ticker = ticker;
+    this.breaker =
+        new CircuitBreaker(
+            configuration.circuitBreakerFailures(),
+            configuration.circuitBreakerOpenDuration(),
+            ticker);
+    int maxConcurrentLoads = configuration.cacheMaxConcurrentLoads();
+    this.loadPermits =
+        maxConcurrentLoads > 0 ? new Semaphore(maxConcurrentLoads) : null;
+    Metrics.gauge(
+        "cache.loads.in_flight",
+        () -> loadPermits == null
+            ? 0
+            : maxConcurrentLoads - loadPermits.availablePermits());
+    this.hotKeys =
+        new HotKeys(
+            configuration.hotKeysTopK(),
+            configuration.hotKeysMinRate(),
+            configuration.hotKeysWindow(),
+            ticker);
+    applySettings(configuration);
+    this.configuration = configuration;
+    this.disk = newDiskTier(configuration);
+    this.cache = newCache(configuration);
+    Metrics.gauge(
+        "cache.memory.hit_ratio_percent",
+        () -> memoryHits.sum() + memoryMisses.sum() == 0
+            ? 0
+            : memoryHits.sum() * 100 / (memoryHits.sum() + memoryMisses.sum()));
+    Metrics.gauge("cache.hot_keys.pinned", () -> hotKeys.hotKeys().size());
+    if (hotKeys.isEnabled()) {
+      hotKeyRefresher =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder().setNameFormat("hot-key-refresher")
+                  .setDaemon(true)
+                  .build());
+      long periodMillis = configuration.hotKeysWindow().toMillis();
+      hotKeyRefresher.scheduleWithFixedDelay(
+          this::refreshHotKeys,
+          periodMillis,
+          periodMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      hotKeyRefresher = null;
+    }
   }
 
   /** Returns a new Builder */
@@ -70,12 +321,18 @@ public class LruCache {
   /** Builder. */
   public static class Builder {
 
-    private RedisAsyncCommands<String, String> commands;
+    private RedisRouter router;
     private Configuration configuration;
     private Ticker ticker = Ticker.systemTicker();
+    private Peers peers;
 
     public Builder setCommands(RedisAsyncCommands<String, String> commands) {
-      this.commands = commands;
+      this.router = new SingleConnectionRouter(commands);
+      return this;
+    }
+
+    public Builder setRouter(RedisRouter router) {
+      this.router = router;
       return this;
     }
 
@@ -89,19 +346,1177 @@ public class LruCache {
       return this;
     }
 
+    /** Sets the other proxies of the fleet (none by default). */
+    public Builder setPeers(@Nullable Peers peers) {
+      this.peers = peers;
+      return this;
+    }
+
     public LruCache build() {
-      Preconditions.checkState(commands != null);
+      Preconditions.checkState(router != null);
       Preconditions.checkState(configuration != null);
-      return new LruCache(commands, configuration, ticker);
+      return new LruCache(router, configuration, ticker, peers);
+    }
+  }
+
+  /**
+   * Builds the underlying cache, bounded and expiring as configured.
+   */
+  private LoadingCache<String, CacheEntry> newCache(
+      Configuration configuration) {
+    // Entries of weight 0 are never evicted for size. An entry's weight is
+    // computed when it is stored, so a key is pinned once it is stored while
+    // hot (see refreshHotKeys).
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+    if (configuration.cacheMaxBytes() > 0) {
+      builder.maximumWeight(configuration.cacheMaxBytes())
+          .weigher(
+              (String key, CacheEntry entry) ->
+                  hotKeys.isHot(key) ? 0 : entry.weight());
+    } else {
+      builder.maximumWeight(configuration.cacheCapacity())
+          .weigher(
+              (String key, CacheEntry entry) -> hotKeys.isHot(key) ? 0 : 1);
+    }
+    return builder.expireAfterWrite(
+            // Stale entries are kept for as long as they may be served.
+            configuration.cacheExpiry()
+                .plus(
+                    Collections.max(
+                        ImmutableList.of(
+                            configuration.cacheStaleWhileRevalidate(),
+                            configuration.cacheStaleIfError()))))
+        .ticker(ticker)
+        .removalListener(
+            (RemovalNotification<String, CacheEntry> removal) -> {
+              if (removal.getCause() == RemovalCause.SIZE) {
+                demote(removal.getKey(), removal.getValue());
+              }
+              removalListeners.forEach(
+                  listener -> listener.accept(removal.getKey()));
+            })
+        .build(new Loader());
+  }
+
+  @Nullable
+  private DiskTier newDiskTier(Configuration configuration) {
+    if (configuration.cacheDiskDirectory().isEmpty()) {
+      return null;
+    }
+    try {
+      return new DiskTier(
+          Paths.get(configuration.cacheDiskDirectory()),
+          configuration.cacheDiskMaxBytes(),
+          configuration.cacheDiskSegmentBytes(),
+          ticker,
+          () -> Math.max(staleWhileRevalidateNanos, staleIfErrorNanos));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Moves an entry evicted from memory to the disk tier, if there is one and
+   * the entry may still be served.
+   */
+  private void demote(String key, CacheEntry entry) {
+    if (disk == null
+        || !entry.isServableStale(
+            ticker.read(),
+            Math.max(staleWhileRevalidateNanos, staleIfErrorNanos))) {
+      return;
+    }
+    disk.put(key, entry);
+    // If the key was stored in memory again meanwhile (e.g. by a write, which
+    // then dropped it from disk before this put), the disk copy is outdated.
+    // While the cache is rebuilt, the evicted entry is still in the old one.
+    CacheEntry current = cache.getIfPresent(key);
+    if (current != null && current != entry) {
+      disk.remove(key);
+    }
+  }
+
+  /**
+   * Takes the key's entry from the disk tier, if there is one and the entry
+   * may still be served.
+   */
+  @Nullable
+  private CacheEntry takeFromDisk(String key) {
+    if (disk == null) {
+      return null;
+    }
+    CacheEntry entry = disk.take(key);
+    return entry != null
+            && entry.isServableStale(
+                ticker.read(),
+                Math.max(staleWhileRevalidateNanos, staleIfErrorNanos))
+        ? entry
+        : null;
+  }
+
+  /**
+   * Drops the key from the disk tier, and from the caches of the other
+   * proxies of the fleet, after it was written.
+   */
+  private void afterWrite(String key) {
+    if (disk != null) {
+      disk.remove(key);
+    }
+    if (peers != null) {
+      peers.invalidate(key);
+    }
+  }
+
+  /**
+   * Fetches the key's entry from its owner if this proxy is one of a fleet
+   * that does not own it. Returns null if it does own it, or the value must
+   * be read from Redis anyway (it is too large to cache, or the owner cannot
+   * be reached).
+   */
+  @Nullable
+  private CacheEntry fetchFromOwner(String key) {
+    if (peers == null || peers.isOwner(key)) {
+      return null;
+    }
+    Peers.Fetched fetched;
+    try {
+      fetched = peers.fetch(key);
+    } catch (IOException e) {
+      logger.info(
+          "Failed to fetch key [{}] from its owner, reading Redis: {}",
+          key,
+          e.getMessage());
+      return null;
+    }
+    long now = ticker.read();
+    // Fresh for no longer than at the owner, which is invalidated on writes.
+    long expiresAt =
+        now + Math.min(
+            expiry.toNanos(),
+            TimeUnit.MILLISECONDS.toNanos(fetched.freshMillis()));
+    switch (fetched.kind()) {
+      case ABSENT:
+        return CacheEntry.absent(expiresAt);
+      case VALUE:
+        if (maxValueBytes > 0 && fetched.value().length > maxValueBytes) {
+          return null;
+        }
+        long keyExpiresAt =
+            fetched.pttlMillis() < 0
+                ? Long.MAX_VALUE
+                : now + TimeUnit.MILLISECONDS.toNanos(fetched.pttlMillis());
+        return CacheEntry.of(
+            new String(fetched.value(), Charsets.UTF_8),
+            fetched.value(),
+            compressionMinBytes,
+            Math.min(expiresAt, keyExpiresAt),
+            keyExpiresAt);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the entry for a key that this proxy owns to another proxy of the
+   * fleet. Like {@link #getEntry}, but a miss is never fetched from another
+   * proxy, so that proxies that disagree about who owns a key do not ask
+   * each other in a loop.
+   */
+  public Peers.Fetched fetchForPeer(String key) throws ExecutionException {
+    CacheEntry entry = getEntry(key, /* askOwner= */ false);
+    long freshMillis = remainingTtl(entry).toMillis();
+    if (entry.isLarge()) {
+      return Peers.Fetched.create(Kind.LARGE, null, freshMillis, -1);
+    }
+    if (!entry.hasValue()) {
+      return Peers.Fetched.create(Kind.ABSENT, null, freshMillis, -1);
+    }
+    long pttlMillis =
+        entry.keyExpiresAtNanos() == Long.MAX_VALUE
+            ? -1
+            : TimeUnit.NANOSECONDS.toMillis(
+                Math.max(0, entry.keyExpiresAtNanos() - ticker.read()));
+    return Peers.Fetched.create(
+        Kind.VALUE,
+        entry.value().get().getBytes(Charsets.UTF_8),
+        freshMillis,
+        pttlMillis);
+  }
+
+  /**
+   * Drops the key because another proxy of the fleet wrote it. Unlike a
+   * write, this is not passed on to the other proxies.
+   */
+  public void invalidateFromPeer(String key) {
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      cache.invalidate(key);
+      if (disk != null) {
+        disk.remove(key);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Applies the settings that take effect without rebuilding the cache. */
+  private void applySettings(Configuration configuration) {
+    this.expiry = configuration.cacheExpiry();
+    this.staleWhileRevalidateNanos =
+        configuration.cacheStaleWhileRevalidate().toNanos();
+    this.staleIfErrorNanos = configuration.cacheStaleIfError().toNanos();
+    this.redisTimeoutNanos = configuration.redisTimeout().toNanos();
+    this.requestDeadline = configuration.requestDeadline();
+  }
+
+  /**
+   * Applies a changed configuration while the cache is in use: its bounds
+   * (CACHE_CAPACITY, CACHE_MAX_BYTES), expiry (CACHE_EXPIRY and the stale
+   * windows) and timeouts (REDIS_TIMEOUT, REQUEST_DEADLINE). Other settings
+   * are ignored.
+   * <p>
+   * A new expiry applies to the entries stored from then on. If the bounds
+   * or the expiry changed, the underlying cache is rebuilt: writes wait
+   * while every entry is copied to a new cache, least recently read first,
+   * so that if it is smaller the least recently read entries are evicted
+   * (and their removal listeners called). Reads keep being served meanwhile.
+   */
+  public void reconfigure(Configuration updated) {
+    Configuration previous = configuration;
+    applySettings(updated);
+    configuration = updated;
+    if (updated.cacheCapacity() == previous.cacheCapacity()
+        && updated.cacheMaxBytes() == previous.cacheMaxBytes()
+        && updated.cacheExpiry().equals(previous.cacheExpiry())
+        && updated.cacheStaleWhileRevalidate()
+            .equals(previous.cacheStaleWhileRevalidate())
+        && updated.cacheStaleIfError().equals(previous.cacheStaleIfError())) {
+      return;
+    }
+    List<Lock> locks = new ArrayList<>();
+    for (int i = 0; i < writeLocks.size(); i++) {
+      locks.add(writeLocks.getAt(i));
+    }
+    locks.forEach(Lock::lock);
+    try {
+      LoadingCache<String, CacheEntry> rebuilt = newCache(updated);
+      List<Map.Entry<String, CacheEntry>> entries =
+          new ArrayList<>(cache.asMap().entrySet());
+      entries.sort(
+          Comparator.comparingLong(
+              entry -> entry.getValue().lastAccessNanos()));
+      entries.forEach(entry -> rebuilt.put(entry.getKey(), entry.getValue()));
+      cache = rebuilt;
+      logger.info(
+          "Rebuilt the cache: kept {} of {} entries.",
+          rebuilt.size(),
+          entries.size());
+    } finally {
+      locks.forEach(Lock::unlock);
     }
   }
 
+  /**
+   * Registers a listener that is called with the key whenever an entry leaves
+   * the cache or is overwritten, for any reason (a write, expiry, eviction).
+   * Guava calls it on the thread that performed the change, after the change.
+   */
+  public void addRemovalListener(Consumer<String> listener) {
+    removalListeners.add(listener);
+  }
+
   /**
    * Get the value associated with the specified key.
    * <p>
    * An absent value indicates that the key does not have an associated value.
+   * Values too large to cache are read from Redis in full; callers that can
+   * stream them should use {@link #getEntry} and {@link #streamValue}.
    */
   public Optional<String> get(String key) throws ExecutionException {
-    return cache.get(key);
+    CacheEntry entry = getEntry(key);
+    if (!entry.isLarge()) {
+      return entry.value();
+    }
+    checkCircuit();
+    return Optional.ofNullable(
+        await(router.execute(key, c -> c.get(key)), newDeadline()));
+  }
+
+  /**
+   * Get the cache entry for the specified key, loading it if needed. Unlike
+   * {@link #get}, this gives access to the compressed form of the value.
+   */
+  public CacheEntry getEntry(String key) throws ExecutionException {
+    return getEntry(key, /* askOwner= */ true);
+  }
+
+  private CacheEntry getEntry(String key, boolean askOwner)
+      throws ExecutionException {
+    hotKeys.record(key);
+    CacheEntry entry = cache.getIfPresent(key);
+    if (entry == null) {
+      memoryMisses.increment();
+      entry =
+          askOwner
+              ? cache.get(key)
+              : cache.get(key, () -> loadMiss(key, /* askOwner= */ false));
+    } else {
+      memoryHits.increment();
+    }
+    long now = ticker.read();
+    entry.recordAccess(now);
+    return entry.isExpired(now) ? revalidate(key, entry) : entry;
+  }
+
+  /**
+   * Reloads a stale entry, unless a reload is already in progress, and
+   * returns what to serve meanwhile: the stale entry if it is within
+   * CACHE_STALE_WHILE_REVALIDATE, else the reloaded entry, or the stale
+   * entry again if the reload fails within CACHE_STALE_IF_ERROR.
+   */
+  private CacheEntry revalidate(String key, CacheEntry stale)
+      throws ExecutionException {
+    CompletableFuture<CacheEntry> reload = startRevalidation(key, stale);
+    long now = ticker.read();
+    if (stale.isServableStale(now, staleWhileRevalidateNanos)) {
+      staleServed.increment();
+      return stale;
+    }
+    try {
+      return reload.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(e);
+    } catch (ExecutionException e) {
+      if (stale.isServableStale(ticker.read(), staleIfErrorNanos)) {
+        logger.info(
+            "Serving stale value of [{}] after error: {}",
+            key,
+            e.getMessage());
+        staleServedOnError.increment();
+        return stale;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Starts reloading a stale entry in the background, or returns the reload
+   * already in progress for the key. The result replaces the stale entry
+   * only if nothing else (e.g. a write) replaced it first.
+   */
+  private CompletableFuture<CacheEntry> startRevalidation(
+      String key,
+      CacheEntry stale) {
+    CompletableFuture<CacheEntry> reload = new CompletableFuture<>();
+    CompletableFuture<CacheEntry> existing =
+        revalidations.putIfAbsent(key, reload);
+    if (existing != null) {
+      return existing;
+    }
+    revalidator.execute(() -> {
+      try {
+        CacheEntry fresh = fetchFromOwner(key);
+        if (fresh == null) {
+          fresh = loadEntry(key, /* fromPrimary= */ false, newDeadline());
+        }
+        cache.asMap().replace(key, stale, fresh);
+        reload.complete(fresh);
+      } catch (ExecutionException e) {
+        revalidationFailures.increment();
+        reload.completeExceptionally(e.getCause());
+      } catch (RuntimeException e) {
+        revalidationFailures.increment();
+        reload.completeExceptionally(e);
+      } finally {
+        revalidations.remove(key, reload);
+      }
+    });
+    return reload;
+  }
+
+  /**
+   * Streams the value of the specified key from Redis to the output in
+   * chunks, without holding all of it in memory.
+   * <p>
+   * The length is read first and passed to {@code writeHeader}, which must
+   * write whatever precedes the value (e.g. "$length\r\n"), or the absence
+   * of a value if the length is -1. The next chunk is requested while the
+   * current one is written.
+   * <p>
+   * Every read of the stream goes to the primary, never to a replica: the
+   * replica router may pick (or hedge to) a different replica for each
+   * request, which could each hold a different version of the value.
+   * <p>
+   * If the value shrinks while it is being streamed, fewer bytes than
+   * announced are available, so this throws and the caller must close the
+   * connection. A value overwritten with one of the same (or greater) length
+   * mid-stream may be served torn.
+   *
+   * @return whether the key had a value
+   */
+  public boolean streamValue(
+      String key,
+      OutputStream output,
+      LengthWriter writeHeader) throws ExecutionException, IOException {
+    Deadline deadline = newDeadline();
+    long length = valueLength(key, deadline);
+    if (length < 0) {
+      writeHeader.write(-1);
+      return false;
+    }
+    writeHeader.write(length);
+    RedisFuture<byte[]> next = getRange(key, 0, length);
+    for (long offset = 0; offset < length;) {
+      byte[] chunk = await(next, deadline);
+      if (chunk.length == 0) {
+        throw new IOException(
+            String.format("value of [%s] shrank while streaming it", key));
+      }
+      offset += chunk.length;
+      if (offset < length) {
+        next = getRange(key, offset, length);
+      }
+      output.write(chunk);
+      largeValueBytesStreamed.add(chunk.length);
+    }
+    return true;
+  }
+
+  /**
+   * Gets the entries for many keys at once, passing each to the listener as
+   * soon as it is available: cached entries first, then the others in order
+   * as they arrive from Redis. A key listed more than once is passed once.
+   * <p>
+   * The reads of all the missing keys are sent before any of them is waited
+   * for, so they are pipelined on the router's connections and cost about one
+   * round trip in total. Each result is then stored through the same path as
+   * a regular load, so a write that completes meanwhile still wins.
+   */
+  public void getAll(Iterable<String> keys, BatchListener listener)
+      throws IOException {
+    Deadline deadline = newDeadline();
+    Map<String, PendingLoad> misses = new LinkedHashMap<>();
+    Map<String, CacheEntry> stale = new LinkedHashMap<>();
+    Set<String> seen = new HashSet<>();
+    for (String key : keys) {
+      if (!seen.add(key)) {
+        continue;
+      }
+      hotKeys.record(key);
+      CacheEntry entry = cache.getIfPresent(key);
+      if (entry == null) {
+        memoryMisses.increment();
+        CacheEntry demoted = takeFromDisk(key);
+        if (demoted != null) {
+          try {
+            entry = cache.get(key, () -> demoted);
+          } catch (ExecutionException e) {
+            throw new AssertionError(e);
+          }
+        }
+      } else if (entry != null) {
+        memoryHits.increment();
+      }
+      if (entry == null) {
+        // Misses beyond the free load permits are loaded after the others,
+        // rather than holding permits while waiting for more.
+        misses.put(
+            key,
+            startLoad(
+                key,
+                /* fromPrimary= */ false,
+                deadline,
+                /* waitForPermit= */ false));
+      } else if (!entry.isExpired(ticker.read())) {
+        entry.recordAccess(ticker.read());
+        listener.onEntry(key, entry);
+      } else {
+        // Start the reload now, so that it overlaps with the others.
+        startRevalidation(key, entry);
+        stale.put(key, entry);
+      }
+    }
+    listener.onCachedEntriesDone();
+    for (Map.Entry<String, CacheEntry> entry : stale.entrySet()) {
+      try {
+        listener.onEntry(
+            entry.getKey(),
+            revalidate(entry.getKey(), entry.getValue()));
+      } catch (ExecutionException e) {
+        listener.onError(entry.getKey(), e.getCause());
+      }
+    }
+    List<String> deferred = new ArrayList<>();
+    for (Map.Entry<String, PendingLoad> miss : misses.entrySet()) {
+      if (miss.getValue() == null) {
+        deferred.add(miss.getKey());
+      } else {
+        loadInto(listener, miss.getKey(), miss.getValue());
+      }
+    }
+    for (String key : deferred) {
+      loadInto(
+          listener,
+          key,
+          startLoad(
+              key,
+              /* fromPrimary= */ false,
+              deadline,
+              /* waitForPermit= */ true));
+    }
+  }
+
+  /** Completes a load started by {@link #getAll} and passes on its result. */
+  private void loadInto(BatchListener listener, String key, PendingLoad load)
+      throws IOException {
+    CacheEntry entry;
+    try {
+      entry = cache.get(key, load::get);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      // The load's own ExecutionException is wrapped by the cache's.
+      Throwable error = e.getCause();
+      listener.onError(
+          key,
+          error instanceof ExecutionException ? error.getCause() : error);
+      return;
+    } finally {
+      // The cache may have waited for another thread's load instead.
+      load.release();
+    }
+    listener.onEntry(key, entry);
+  }
+
+  /** Receives the results of {@link #getAll}. */
+  public interface BatchListener {
+    void onEntry(String key, CacheEntry entry) throws IOException;
+
+    void onError(String key, Throwable error) throws IOException;
+
+    /**
+     * Called once every fresh cached entry was passed on, before waiting for
+     * Redis.
+     */
+    default void onCachedEntriesDone() throws IOException {}
+  }
+
+  /**
+   * Returns the length in bytes of the key's value in Redis, or -1 if it has
+   * none. Used for values too large to cache, so it is read from the primary
+   * like the value itself (see {@link #streamValue}).
+   */
+  public long valueLength(String key) throws ExecutionException {
+    return valueLength(key, newDeadline());
+  }
+
+  private long valueLength(String key, Deadline deadline)
+      throws ExecutionException {
+    checkCircuit();
+    long length = await(
+        execute(key, /* fromPrimary= */ true, c -> c.strlen(key)), deadline);
+    if (length == 0
+        && await(
+            execute(key, /* fromPrimary= */ true, c -> c.exists(key)),
+            deadline) == 0) {
+      return -1;
+    }
+    BigKeys.record(key, length);
+    return length;
+  }
+
+  /**
+   * Returns how much longer the entry will be served from the cache before
+   * it expires (never negative).
+   */
+  public Duration remainingTtl(CacheEntry entry) {
+    long remaining = entry.expiresAtNanos() - ticker.read();
+    return Duration.ofNanos(Math.max(0, remaining));
+  }
+
+  /** Writes whatever precedes a streamed value of the specified length. */
+  @FunctionalInterface
+  public interface LengthWriter {
+    void write(long length) throws IOException;
+  }
+
+  /**
+   * Sets the value of the specified key in Redis and then in the cache.
+   *
+   * @param expiry the key's time to live in Redis, or null to not expire
+   * @return whether the value was set (false if the condition did not hold)
+   */
+  public boolean set(
+      String key,
+      String value,
+      Duration expiry,
+      SetCondition condition) throws ExecutionException {
+    SetArgs args = new SetArgs();
+    if (expiry != null) {
+      args.px(expiry.toMillis());
+    }
+    if (condition == SetCondition.IF_ABSENT) {
+      args.nx();
+    } else if (condition == SetCondition.IF_PRESENT) {
+      args.xx();
+    }
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      checkCircuit();
+      // A null reply means the NX/XX condition did not hold.
+      if (await(
+              router.executeWrite(key, c -> c.set(key, value, args)),
+              newDeadline())
+          == null) {
+        return false;
+      }
+      cache.put(key, entryFor(key, value, expiry));
+      afterWrite(key);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the specified key from Redis and then from the cache.
+   *
+   * @param unlink whether to use UNLINK (which reclaims memory in the
+   *        background) instead of DEL
+   * @return whether the key existed
+   */
+  public boolean delete(String key, boolean unlink)
+      throws ExecutionException {
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      checkCircuit();
+      Long deleted =
+          await(
+              router.executeWrite(
+                  key,
+                  c -> unlink ? c.unlink(key) : c.del(key)),
+              newDeadline());
+      cache.put(key, CacheEntry.absent(ticker.read() + expiry.toNanos()));
+      afterWrite(key);
+      return deleted > 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets a time to live on the specified key in Redis. A non-positive time to
+   * live deletes the key.
+   *
+   * @return whether the key exists
+   */
+  public boolean expire(String key, Duration ttl) throws ExecutionException {
+    return updateExpiry(
+        key,
+        ttl.isNegative() || ttl.isZero(),
+        c -> c.pexpire(key, ttl.toMillis()));
+  }
+
+  /**
+   * Makes the specified key expire at the given time in Redis. A time in the
+   * past deletes the key.
+   *
+   * @return whether the key exists
+   */
+  public boolean expireAt(String key, Instant when)
+      throws ExecutionException {
+    return updateExpiry(
+        key,
+        !when.isAfter(Instant.now()),
+        c -> c.pexpireat(key, when.toEpochMilli()));
+  }
+
+  /**
+   * Removes any time to live from the specified key in Redis.
+   *
+   * @return whether the key had a time to live
+   */
+  public boolean persist(String key) throws ExecutionException {
+    // The value does not change, so the cache does not either (an entry that
+    // expires with the old time to live is merely reloaded).
+    checkCircuit();
+    return await(
+        router.executeWrite(key, c -> c.persist(key)),
+        newDeadline());
+  }
+
+  /**
+   * Re-reads the specified key from Redis after it was modified by a command
+   * that did not go through the cache, and stores the result. Like the other
+   * writes, the value is read from where writes go (e.g. the primary).
+   */
+  public void reloadAfterWrite(String key) {
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      cache.put(
+          key,
+          loadEntry(key, /* fromPrimary= */ true, newDeadline()));
+    } catch (ExecutionException e) {
+      // E.g. the key no longer holds a string; let the next read decide.
+      logger.info("Failed to reload key [{}]: {}", key, e.getMessage());
+      cache.invalidate(key);
+    } finally {
+      afterWrite(key);
+      lock.unlock();
+    }
+  }
+
+  /** Drops every entry (e.g. after the Redis database was flushed). */
+  public void invalidateAll() {
+    cache.invalidateAll();
+    if (disk != null) {
+      disk.clear();
+    }
+  }
+
+  /** Returns the detector of the keys with the most lookups. */
+  public HotKeys hotKeys() {
+    return hotKeys;
+  }
+
+  /**
+   * Stops refreshing hot keys and revalidating stale entries, and deletes
+   * the disk tier.
+   */
+  public void close() {
+    if (hotKeyRefresher != null) {
+      hotKeyRefresher.shutdownNow();
+    }
+    revalidator.shutdownNow();
+    if (disk != null) {
+      disk.close();
+    }
+  }
+
+  /**
+   * Reloads each hot key that was not hot at the previous refresh (to store
+   * it pinned), is not cached, or would expire before the next refresh.
+   * <p>
+   * Like a load, a refresh that is overtaken by a write is discarded. The old
+   * value is served until the refresh completes, and kept if it fails.
+   */
+  void refreshHotKeys() {
+    hotKeys.rotateIfDue();
+    Set<String> hot = hotKeys.hotKeys();
+    long refreshBefore = 2 * hotKeys.windowNanos();
+    for (String key : hot) {
+      CacheEntry entry = cache.getIfPresent(key);
+      if (!refreshedHotKeys.contains(key)
+          || entry == null
+          || remainingTtl(entry).toNanos() < refreshBefore) {
+        hotKeyRefreshes.increment();
+        cache.refresh(key);
+      }
+    }
+    refreshedHotKeys = hot;
+  }
+
+  private boolean updateExpiry(
+      String key,
+      boolean deletesKey,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<Boolean>>
+          command)
+      throws ExecutionException {
+    Lock lock = writeLocks.get(key);
+    lock.lock();
+    try {
+      checkCircuit();
+      boolean exists =
+          await(router.executeWrite(key, command), newDeadline());
+      if (deletesKey) {
+        cache.put(key, CacheEntry.absent(ticker.read() + expiry.toNanos()));
+      } else if (exists) {
+        // The value is unchanged, but drop it so that it is not served for
+        // longer than the key's new time to live.
+        cache.invalidate(key);
+      }
+      afterWrite(key);
+      return exists;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads a key's value from Redis. If values can be too large to cache, only
+   * the first CACHE_MAX_VALUE_BYTES + 1 bytes are read, which is the whole
+   * value unless it is too large.
+   *
+   * @param fromPrimary read from where writes go, rather than from wherever
+   *        reads are routed
+   */
+  private CacheEntry loadEntry(
+      String key,
+      boolean fromPrimary,
+      Deadline deadline) throws ExecutionException {
+    return startLoad(key, fromPrimary, deadline, /* waitForPermit= */ true)
+        .get();
+  }
+
+  /**
+   * Sends the command that reads a key's value (see {@link #loadEntry}) and
+   * returns how to wait for the resulting entry, so that the reads of many
+   * keys can be sent before any is waited for.
+   * <p>
+   * The load holds one of the CACHE_MAX_CONCURRENT_LOADS permits until it
+   * completes. If the circuit breaker is open, or no permit is free before
+   * the timeout, the returned load fails without contacting Redis.
+   *
+   * @param waitForPermit whether to wait for a permit if none is free; if
+   *        false and none is, null is returned
+   */
+  @Nullable
+  private PendingLoad startLoad(
+      String key,
+      boolean fromPrimary,
+      Deadline deadline,
+      boolean waitForPermit) {
+    Permit permit;
+    try {
+      permit = acquireLoadPermit(deadline, waitForPermit);
+      if (permit == null) {
+        return null;
+      }
+      if (!breaker.allowRequest()) {
+        permit.release();
+        throw new ExecutionException(new CircuitBreaker.OpenException());
+      }
+    } catch (ExecutionException e) {
+      return new PendingLoad(
+          () -> {
+            throw e;
+          },
+          () -> {});
+    }
+    long sentAt = ticker.read();
+    if (maxValueBytes == 0) {
+      RedisFuture<WithPttl<String>> future =
+          executeWithPttl(key, fromPrimary, c -> c.get(key));
+      return new PendingLoad(
+          () -> {
+            WithPttl<String> read = await(future, deadline);
+            return read.value == null
+                ? CacheEntry.absent(sentAt + expiry.toNanos())
+                : valueEntry(read.value, null, sentAt, read.pttlMillis);
+          },
+          permit);
+    }
+    RedisFuture<WithPttl<byte[]>> future =
+        executeWithPttl(
+            key,
+            fromPrimary,
+            c -> getRange(c, key, 0, maxValueBytes + 1));
+    return new PendingLoad(
+        () -> {
+          WithPttl<byte[]> read = await(future, deadline);
+          byte[] prefix = read.value;
+          if (prefix.length > maxValueBytes) {
+            largeValuesBypassed.increment();
+            return CacheEntry.large(sentAt + expiry.toNanos());
+          }
+          BigKeys.record(key, prefix.length);
+          // GETRANGE returns an empty string for keys that do not exist.
+          if (prefix.length == 0 && read.pttlMillis == PTTL_NO_KEY) {
+            return CacheEntry.absent(sentAt + expiry.toNanos());
+          }
+          return valueEntry(
+              new String(prefix, Charsets.UTF_8),
+              prefix,
+              sentAt,
+              read.pttlMillis);
+        },
+        permit);
+  }
+
+  /**
+   * Takes one of the CACHE_MAX_CONCURRENT_LOADS permits, waiting for one for
+   * at most REDIS_TIMEOUT and the deadline if asked to.
+   *
+   * @return the permit, or null if none was free and waitForPermit is false
+   * @throws ExecutionException if none became free in time
+   */
+  @Nullable
+  private Permit acquireLoadPermit(Deadline deadline, boolean waitForPermit)
+      throws ExecutionException {
+    if (loadPermits == null) {
+      return () -> {};
+    }
+    boolean acquired;
+    if (!waitForPermit) {
+      acquired = loadPermits.tryAcquire();
+      if (!acquired) {
+        return null;
+      }
+    } else {
+      long waitNanos = waitNanos(deadline);
+      try {
+        if (waitNanos == Long.MAX_VALUE) {
+          loadPermits.acquire();
+          acquired = true;
+        } else {
+          acquired = loadPermits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException(e);
+      }
+    }
+    if (!acquired) {
+      loadsRejected.increment();
+      throw new ExecutionException(
+          new RedisCommandTimeoutException(
+              "too many loads in flight: no permit became free in time"));
+    }
+    AtomicBoolean held = new AtomicBoolean(true);
+    return () -> {
+      if (held.getAndSet(false)) {
+        loadPermits.release();
+      }
+    };
+  }
+
+  /**
+   * Returns the entry for a value read (or written) at the specified time,
+   * given its key's PTTL in Redis: -1 (or less) if the key has no time to
+   * live. Measuring from when the read was sent errs on the side of expiring
+   * early.
+   *
+   * @param utf8 the value's UTF-8 encoding, if it is at hand
+   */
+  private CacheEntry valueEntry(
+      String value,
+      @Nullable byte[] utf8,
+      long readAtNanos,
+      long pttlMillis) {
+    long keyExpiresAt =
+        pttlMillis < 0
+            ? Long.MAX_VALUE
+            : readAtNanos + TimeUnit.MILLISECONDS.toNanos(pttlMillis);
+    long expiresAt = Math.min(readAtNanos + expiry.toNanos(), keyExpiresAt);
+    return utf8 == null
+        ? CacheEntry.of(value, compressionMinBytes, expiresAt, keyExpiresAt)
+        : CacheEntry.of(
+            value,
+            utf8,
+            compressionMinBytes,
+            expiresAt,
+            keyExpiresAt);
+  }
+
+  /** A read of a key's value that has been sent to Redis. */
+  private static final class PendingLoad {
+
+    private final Result result;
+    private final Permit permit;
+
+    PendingLoad(Result result, Permit permit) {
+      this.result = result;
+      this.permit = permit;
+    }
+
+    /** Waits for the entry, then releases the load's permit. */
+    CacheEntry get() throws ExecutionException {
+      try {
+        return result.get();
+      } finally {
+        permit.release();
+      }
+    }
+
+    /** Releases the load's permit if {@link #get} was never called. */
+    void release() {
+      permit.release();
+    }
+
+    @FunctionalInterface
+    interface Result {
+      CacheEntry get() throws ExecutionException;
+    }
+  }
+
+  /** A CACHE_MAX_CONCURRENT_LOADS permit. Releasing it twice is a no-op. */
+  @FunctionalInterface
+  private interface Permit {
+    void release();
+  }
+
+  /**
+   * Returns the entry to cache after the value was written.
+   *
+   * @param ttl the key's time to live in Redis, or null if it has none
+   */
+  private CacheEntry entryFor(
+      String key,
+      String value,
+      @Nullable Duration ttl) {
+    int bytes = Utf8.encodedLength(value);
+    BigKeys.record(key, bytes);
+    if (maxValueBytes > 0 && bytes > maxValueBytes) {
+      largeValuesBypassed.increment();
+      return CacheEntry.large(ticker.read() + expiry.toNanos());
+    }
+    return valueEntry(
+        value,
+        null,
+        ticker.read(),
+        ttl == null ? -1 : ttl.toMillis());
+  }
+
+  private <T> RedisFuture<T> execute(
+      String key,
+      boolean fromPrimary,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    return fromPrimary
+        ? router.executeWrite(key, command)
+        : router.execute(key, command);
+  }
+
+  /** A value read from Redis, with its key's PTTL at the time. */
+  private static final class WithPttl<T> {
+    @Nullable final T value;
+    final long pttlMillis;
+
+    WithPttl(@Nullable T value, long pttlMillis) {
+      this.value = value;
+      this.pttlMillis = pttlMillis;
+    }
+  }
+
+  /**
+   * Sends a read and a PTTL of the same key as one unit: both are pipelined
+   * on the single connection the router chooses, so that with replicas (and
+   * hedged reads) the value and its time to live come from the same instance.
+   */
+  private <T> RedisFuture<WithPttl<T>> executeWithPttl(
+      String key,
+      boolean fromPrimary,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> read) {
+    return execute(
+        key,
+        fromPrimary,
+        c -> {
+          RedisFuture<T> value = read.apply(c);
+          RedisFuture<Long> pttl = c.pttl(key);
+          CompletableRedisFuture<WithPttl<T>> both =
+              new CompletableRedisFuture<>();
+          value.thenCombine(pttl, WithPttl::new)
+              .whenComplete(
+                  (result, error) -> {
+                    if (error == null) {
+                      both.complete(result);
+                    } else {
+                      // Keep the cause's type, which the breaker looks at.
+                      both.completeExceptionally(
+                          error instanceof CompletionException
+                                  && error.getCause() != null
+                              ? error.getCause()
+                              : error);
+                    }
+                  });
+          both.whenComplete(
+              (result, error) -> {
+                if (both.isCancelled()) {
+                  value.cancel(false);
+                  pttl.cancel(false);
+                }
+              });
+          return both;
+        });
+  }
+
+  /** Requests the next chunk of a streamed value, starting at offset. */
+  private RedisFuture<byte[]> getRange(String key, long offset, long length) {
+    long end = Math.min(offset + STREAM_CHUNK_BYTES, length);
+    return execute(
+        key,
+        /* fromPrimary= */ true,
+        c -> getRange(c, key, offset, end - offset));
+  }
+
+  /** GETRANGE key offset offset+count-1, as raw bytes. */
+  private static RedisFuture<byte[]> getRange(
+      RedisAsyncCommands<String, String> commands,
+      String key,
+      long offset,
+      long count) {
+    return commands.dispatch(
+        CommandType.GETRANGE,
+        new ByteArrayOutput<>(StringCodec.UTF8),
+        new CommandArgs<>(StringCodec.UTF8).addKey(key)
+            .add(offset)
+            .add(offset + count - 1));
+  }
+
+  /** Returns a deadline of REQUEST_DEADLINE from now. */
+  private Deadline newDeadline() {
+    return Deadline.after(requestDeadline, ticker);
+  }
+
+  /**
+   * Returns how long to wait for a reply: REDIS_TIMEOUT, or less if the
+   * deadline is sooner. Long.MAX_VALUE means indefinitely.
+   */
+  private long waitNanos(Deadline deadline) {
+    long remaining = deadline.remainingNanos();
+    return redisTimeoutNanos == 0
+        ? remaining
+        : Math.min(redisTimeoutNanos, remaining);
+  }
+
+  /**
+   * Fails (without contacting Redis) if the circuit breaker is open. Checked
+   * once per operation, so that a half-open breaker's probe is a whole
+   * operation.
+   */
+  private void checkCircuit() throws ExecutionException {
+    if (!breaker.allowRequest()) {
+      throw new ExecutionException(new CircuitBreaker.OpenException());
+    }
+  }
+
+  /**
+   * Waits for a reply from Redis for at most REDIS_TIMEOUT and the deadline,
+   * and records the outcome in the circuit breaker. A command that times out
+   * is cancelled.
+   */
+  private <T> T await(Future<T> future, Deadline deadline)
+      throws ExecutionException {
+    long waitNanos = waitNanos(deadline);
+    try {
+      T result =
+          waitNanos == Long.MAX_VALUE
+              ? future.get()
+              : future.get(waitNanos, TimeUnit.NANOSECONDS);
+      breaker.onSuccess();
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException(e);
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      redisTimeouts.increment();
+      breaker.onFailure();
+      throw new ExecutionException(
+          new RedisCommandTimeoutException(
+              String.format(
+                  "Redis did not reply within %d ms",
+                  TimeUnit.NANOSECONDS.toMillis(waitNanos))));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RedisCommandExecutionException) {
+        // Redis replied (with an error, e.g. WRONGTYPE), so it is healthy.
+        breaker.onSuccess();
+      } else {
+        breaker.onFailure();
+      }
+      throw e;
+    }
   }
 }
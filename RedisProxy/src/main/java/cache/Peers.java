@@ -0,0 +1,68 @@
+package cache;
+
+import com.google.auto.value.AutoValue;
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * The other proxies of a fleet, as seen by the cache (see peer.PeerGroup).
+ * <p>
+ * Every key is owned by one proxy of the fleet. The others fetch a key they
+ * miss from its owner rather than from Redis, so that the fleet loads each
+ * key from Redis once, and a write through any proxy drops the key from the
+ * others' caches.
+ */
+public interface Peers {
+
+  /** A proxy's reply when asked for a key it owns. */
+  @AutoValue
+  abstract class Fetched {
+
+    public enum Kind {
+      /** The key has a value. */
+      VALUE,
+      /** The key has no value. */
+      ABSENT,
+      /** The value is too large to cache; it must be read from Redis. */
+      LARGE;
+    }
+
+    public abstract Kind kind();
+
+    /** The value's UTF-8 encoding, or null unless the kind is VALUE. */
+    @Nullable
+    @SuppressWarnings("mutable")
+    public abstract byte[] value();
+
+    /** How much longer the owner serves its entry before it goes stale. */
+    public abstract long freshMillis();
+
+    /** The key's time to live in Redis, or -1 if it has none. */
+    public abstract long pttlMillis();
+
+    public static Fetched create(
+        Kind kind,
+        @Nullable byte[] value,
+        long freshMillis,
+        long pttlMillis) {
+      return new AutoValue_Peers_Fetched(kind, value, freshMillis, pttlMillis);
+    }
+  }
+
+  /** Returns whether this proxy owns the key. */
+  boolean isOwner(String key);
+
+  /**
+   * Asks the key's owner for its entry, which the owner loads from Redis if
+   * it does not have it.
+   *
+   * @throws IOException if the owner cannot be reached in time
+   */
+  Fetched fetch(String key) throws IOException;
+
+  /**
+   * Tells every other proxy to drop the key because it was written. Returns
+   * once the key's owner has dropped it; the others may do so later.
+   */
+  void invalidate(String key);
+}
@@ -0,0 +1,37 @@
+package cache;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.function.Function;
+
+/**
+ * Chooses the Redis connection that serves a command for a given key.
+ * <p>
+ * Implementations range from a single shared connection to pools of
+ * connections (and, in turn, multiple Redis instances).
+ */
+public interface RedisRouter {
+
+  /**
+   * Dispatches a read-only command for the specified key on the connection
+   * chosen by this router.
+   */
+  <T> RedisFuture<T> execute(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command);
+
+  /**
+   * Dispatches a command that modifies the specified key.
+   * <p>
+   * By default writes are routed like reads; routers that send reads to
+   * replicas must send writes to the primary instead.
+   */
+  default <T> RedisFuture<T> executeWrite(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    return execute(key, command);
+  }
+
+  /** Closes any connections owned by this router. */
+  void close();
+}
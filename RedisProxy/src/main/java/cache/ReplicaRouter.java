@@ -0,0 +1,274 @@
+package cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import configuration.Endpoint;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+
+/**
+ * Spreads reads across Redis replicas, preferring the fastest ones.
+ * <ul>
+ * <li>Each read picks two random replicas and uses the one with the lower
+ * load-adjusted EWMA latency ("power of two choices"). Reads that fail
+ * (other than with an error reply from Redis) count as slow ones.
+ * <li>Optionally, if a read has not completed after the configured percentile
+ * of recent replica latencies, a second (hedged) read is sent to another
+ * replica and whichever answers first wins.
+ * <li>Keys with a primary-only prefix (e.g. keys that must be read-your-writes
+ * consistent) are always read from the primary.
+ * </ul>
+ */
+public class ReplicaRouter implements RedisRouter {
+
+  /** Weight of the newest sample in each replica's latency EWMA. */
+  private static final double EWMA_ALPHA = 0.2;
+  /**
+   * A failed read counts as a read this many times slower than the replica's
+   * current EWMA (or than the failure itself, if that took longer).
+   */
+  private static final double ERROR_PENALTY_FACTOR = 4;
+  /** The least latency a failed read counts as. */
+  private static final long MIN_ERROR_PENALTY_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+  /** Hedging is disabled until this many replica reads have been timed. */
+  private static final long MIN_SAMPLES_FOR_HEDGING = 20;
+
+  /** A replica and its latency statistics. */
+  private final class Replica {
+    final Endpoint endpoint;
+    final RedisRouter router;
+    final AtomicInteger inFlight = new AtomicInteger();
+    volatile double ewmaNanos;
+
+    Replica(Endpoint endpoint, RedisRouter router) {
+      this.endpoint = endpoint;
+      this.router = router;
+      String prefix = "redis.replica." + endpoint;
+      Metrics.gauge(prefix + ".ewma_us", () -> (long) (ewmaNanos / 1000));
+      Metrics.gauge(prefix + ".in_flight", inFlight::get);
+    }
+
+    /** Lower is better: latency scaled by the number of queued commands. */
+    double score() {
+      return ewmaNanos * (inFlight.get() + 1);
+    }
+
+    synchronized void recordLatency(long nanos) {
+      ewmaNanos =
+          ewmaNanos == 0 ? nanos : ewmaNanos + EWMA_ALPHA * (nanos - ewmaNanos);
+    }
+
+    <T> RedisFuture<T> execute(
+        String key,
+        Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+      long start = ticker.read();
+      inFlight.incrementAndGet();
+      RedisFuture<T> future = router.execute(key, command);
+      future.whenComplete((value, error) -> {
+        inFlight.decrementAndGet();
+        long latency = ticker.read() - start;
+        if (error == null || isRedisError(error)) {
+          recordLatency(latency);
+          replicaLatency.record(latency);
+        } else {
+          // A replica that fails fast must not look fast.
+          recordLatency(
+              (long) Math.max(
+                  Math.max(latency, MIN_ERROR_PENALTY_NANOS),
+                  ERROR_PENALTY_FACTOR * ewmaNanos));
+          replicaErrors.increment();
+        }
+      });
+      return future;
+    }
+  }
+
+  private final RedisRouter primary;
+  private final ImmutableList<Replica> replicas;
+  private final ImmutableList<String> primaryOnlyPrefixes;
+  private final double hedgePercentile;
+  private final Ticker ticker;
+  private final ScheduledExecutorService hedgeScheduler;
+  private final LatencyHistogram replicaLatency =
+      Metrics.histogram("redis.replica.latency");
+  private final LongAdder primaryReads = Metrics.counter("redis.primary.reads");
+  private final LongAdder replicaErrors =
+      Metrics.counter("redis.replica.errors");
+  private final LongAdder hedgedReads = Metrics.counter("redis.replica.hedged");
+  private final LongAdder hedgeWins =
+      Metrics.counter("redis.replica.hedge_wins");
+
+  /**
+   * Constructor.
+   *
+   * @param primary router for the primary instance
+   * @param replicas router for each replica
+   * @param primaryOnlyPrefixes keys starting with any of these are always read
+   *        from the primary
+   * @param hedgePercentile send a hedged read once the first has taken longer
+   *        than this percentile of recent replica reads (0 disables hedging)
+   */
+  public ReplicaRouter(
+      RedisRouter primary,
+      Map<Endpoint, RedisRouter> replicas,
+      ImmutableList<String> primaryOnlyPrefixes,
+      double hedgePercentile,
+      Ticker ticker) {
+    Preconditions.checkArgument(!replicas.isEmpty(), "no replicas");
+    Preconditions.checkArgument(hedgePercentile >= 0 && hedgePercentile < 1);
+    this.primary = primary;
+    this.replicas =
+        replicas.entrySet()
+            .stream()
+            .map(e -> new Replica(e.getKey(), e.getValue()))
+            .collect(ImmutableList.toImmutableList());
+    this.primaryOnlyPrefixes = primaryOnlyPrefixes;
+    this.hedgePercentile = hedgePercentile;
+    this.ticker = ticker;
+    this.hedgeScheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("replica-hedger")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public <T> RedisFuture<T> execute(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    if (isPrimaryOnly(key)) {
+      primaryReads.increment();
+      return primary.execute(key, command);
+    }
+    Replica first;
+    Replica second;
+    if (replicas.size() == 1) {
+      first = replicas.get(0);
+      second = null;
+    } else {
+      // Power of two choices: sample two distinct replicas, use the better.
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int a = random.nextInt(replicas.size());
+      int b = (a + 1 + random.nextInt(replicas.size() - 1)) % replicas.size();
+      boolean aIsBetter = replicas.get(a).score() <= replicas.get(b).score();
+      first = replicas.get(aIsBetter ? a : b);
+      second = replicas.get(aIsBetter ? b : a);
+    }
+    RedisFuture<T> future = first.execute(key, command);
+    long hedgeAfterMicros = hedgeDelayMicros();
+    if (hedgeAfterMicros <= 0) {
+      return future;
+    }
+    return hedge(key, command, future, second, hedgeAfterMicros);
+  }
+
+  /** Writes always go to the primary. */
+  @Override
+  public <T> RedisFuture<T> executeWrite(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    return primary.executeWrite(key, command);
+  }
+
+  /** Returns the EWMA latency (in nanos) of each replica. */
+  public ImmutableList<Long> ewmaLatencies() {
+    return replicas.stream()
+        .map(r -> (long) r.ewmaNanos)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  @Override
+  public void close() {
+    hedgeScheduler.shutdownNow();
+    replicas.forEach(r -> r.router.close());
+    primary.close();
+  }
+
+  /**
+   * Returns whether a read failed because Redis replied with an error (e.g.
+   * WRONGTYPE), which says nothing about the replica's health.
+   */
+  private static boolean isRedisError(Throwable error) {
+    Throwable cause =
+        error instanceof CompletionException && error.getCause() != null
+            ? error.getCause()
+            : error;
+    return cause instanceof RedisCommandExecutionException;
+  }
+
+  private boolean isPrimaryOnly(String key) {
+    for (String prefix : primaryOnlyPrefixes) {
+      if (key.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns how long to wait before hedging, or 0 to not hedge. */
+  private long hedgeDelayMicros() {
+    if (hedgePercentile == 0
+        || replicaLatency.count() < MIN_SAMPLES_FOR_HEDGING) {
+      return 0;
+    }
+    return replicaLatency.percentileMicros(hedgePercentile);
+  }
+
+  /**
+   * Returns a future that completes with the first successful result of the
+   * original read, or of a second read sent to {@code backup} (or the primary)
+   * if the original has not completed after the specified delay.
+   */
+  private <T> RedisFuture<T> hedge(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command,
+      RedisFuture<T> original,
+      Replica backup,
+      long hedgeAfterMicros) {
+    CompletableRedisFuture<T> result = new CompletableRedisFuture<>();
+    AtomicInteger pendingReads = new AtomicInteger(1);
+    original.whenComplete((value, error) -> {
+      if (error == null) {
+        result.complete(value);
+      } else if (pendingReads.decrementAndGet() == 0) {
+        result.completeExceptionally(error);
+      }
+    });
+    hedgeScheduler.schedule(() -> {
+      if (result.isDone()) {
+        return;
+      }
+      pendingReads.incrementAndGet();
+      hedgedReads.increment();
+      RedisFuture<T> hedged =
+          backup != null
+              ? backup.execute(key, command)
+              : primary.execute(key, command);
+      hedged.whenComplete((value, error) -> {
+        if (error == null) {
+          if (result.complete(value)) {
+            hedgeWins.increment();
+          }
+        } else if (pendingReads.decrementAndGet() == 0) {
+          result.completeExceptionally(error);
+        }
+      });
+    }, hedgeAfterMicros, TimeUnit.MICROSECONDS);
+    return result;
+  }
+}
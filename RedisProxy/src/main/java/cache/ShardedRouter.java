@@ -0,0 +1,129 @@
+package cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import configuration.Endpoint;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Spreads keys across several Redis instances (shards) using a
+ * {@link ConsistentHashRing}.
+ * <p>
+ * Each shard is served by its own {@link RedisRouter} (typically a
+ * {@link ConnectionPool}). Shards can be added or removed at runtime (see
+ * {@link #setShards}); only the keys owned by the changed shards are
+ * remapped.
+ */
+public class ShardedRouter implements RedisRouter {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  /** Immutable snapshot of the ring and the routers it points to. */
+  private static final class State {
+    final ConsistentHashRing<Endpoint> ring;
+    final ImmutableMap<Endpoint, RedisRouter> shards;
+
+    State(ConsistentHashRing<Endpoint> ring,
+        ImmutableMap<Endpoint, RedisRouter> shards) {
+      this.ring = ring;
+      this.shards = shards;
+    }
+  }
+
+  private final int virtualNodesPerWeight;
+  private volatile State state;
+
+  /**
+   * Constructor.
+   *
+   * @param shards the router for each shard, keyed by endpoint (whose weight
+   *        determines its share of the keyspace)
+   * @param virtualNodesPerWeight ring points per unit of shard weight
+   */
+  public ShardedRouter(
+      Map<Endpoint, RedisRouter> shards,
+      int virtualNodesPerWeight) {
+    this.virtualNodesPerWeight = virtualNodesPerWeight;
+    this.state = newState(ImmutableMap.copyOf(shards));
+  }
+
+  @Override
+  public <T> RedisFuture<T> execute(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    State current = state;
+    return current.shards.get(current.ring.get(key)).execute(key, command);
+  }
+
+  @Override
+  public <T> RedisFuture<T> executeWrite(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    State current = state;
+    return current.shards.get(current.ring.get(key))
+        .executeWrite(key, command);
+  }
+
+  /** Returns the shard that owns the specified key. */
+  public Endpoint shardFor(String key) {
+    return state.ring.get(key);
+  }
+
+  /**
+   * Changes the shards to the specified ones. Only the keys owned by shards
+   * that were added, removed or reweighted are remapped. Shards that stay (by
+   * host:port) keep their router, new shards get one from {@code connect}, and
+   * the routers of removed shards are closed.
+   */
+  public synchronized void setShards(
+      List<Endpoint> endpoints,
+      Function<Endpoint, RedisRouter> connect) {
+    Preconditions.checkArgument(!endpoints.isEmpty(), "no shards");
+    ImmutableMap<Endpoint, RedisRouter> previous = state.shards;
+    if (previous.keySet().equals(ImmutableSet.copyOf(endpoints))) {
+      return;
+    }
+    Map<String, RedisRouter> routers = new HashMap<>();
+    previous.forEach(
+        (endpoint, router) -> routers.put(endpoint.toString(), router));
+    ImmutableMap.Builder<Endpoint, RedisRouter> shards = ImmutableMap.builder();
+    for (Endpoint endpoint : endpoints) {
+      RedisRouter router = routers.remove(endpoint.toString());
+      shards.put(endpoint, router != null ? router : connect.apply(endpoint));
+    }
+    state = newState(shards.build());
+    routers.values().forEach(RedisRouter::close);
+    logger.warn(
+        "Shards changed from {} to {}",
+        previous.keySet(),
+        state.shards.keySet());
+  }
+
+  @Override
+  public void close() {
+    state.shards.values().forEach(RedisRouter::close);
+  }
+
+  private State newState(ImmutableMap<Endpoint, RedisRouter> shards) {
+    return new State(
+        new ConsistentHashRing<>(
+            shards.keySet()
+                .stream()
+                .collect(ImmutableMap.toImmutableMap(
+                    endpoint -> endpoint,
+                    Endpoint::weight)),
+            virtualNodesPerWeight,
+            Endpoint::toString),
+        shards);
+  }
+}
@@ -0,0 +1,27 @@
+package cache;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.function.Function;
+
+/** Routes every command through a single shared connection. */
+public class SingleConnectionRouter implements RedisRouter {
+
+  private final RedisAsyncCommands<String, String> commands;
+
+  public SingleConnectionRouter(RedisAsyncCommands<String, String> commands) {
+    this.commands = commands;
+  }
+
+  @Override
+  public <T> RedisFuture<T> execute(
+      String key,
+      Function<RedisAsyncCommands<String, String>, RedisFuture<T>> command) {
+    return command.apply(commands);
+  }
+
+  @Override
+  public void close() {
+    commands.getStatefulConnection().close();
+  }
+}
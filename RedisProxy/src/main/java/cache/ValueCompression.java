@@ -0,0 +1,126 @@
+package cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+
+/**
+ * Compresses cached values with the JDK's deflate codec at its fastest level.
+ * <p>
+ * Compressed values are complete gzip streams, so they can be sent as-is to
+ * HTTP clients that accept gzip. The uncompressed size is read from the gzip
+ * trailer, so decompression allocates exactly once.
+ */
+final class ValueCompression {
+
+  /** Only keep the compressed form if it saves at least this fraction. */
+  private static final double MIN_SAVING = 0.1;
+  private static final int GZIP_HEADER_BYTES = 10;
+  private static final int GZIP_TRAILER_BYTES = 8;
+  private static final byte[] GZIP_HEADER =
+      {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private static final LongAdder rawBytes =
+      Metrics.counter("cache.compression.raw_bytes");
+  private static final LongAdder storedBytes =
+      Metrics.counter("cache.compression.stored_bytes");
+  private static final LongAdder incompressible =
+      Metrics.counter("cache.compression.incompressible");
+  private static final LatencyHistogram compressTime =
+      Metrics.histogram("cache.compression.compress");
+  private static final LatencyHistogram decompressTime =
+      Metrics.histogram("cache.compression.decompress");
+
+  static {
+    Metrics.gauge(
+        "cache.compression.ratio_percent",
+        () -> rawBytes.sum() == 0
+            ? 100
+            : storedBytes.sum() * 100 / rawBytes.sum());
+  }
+
+  private ValueCompression() {}
+
+  /**
+   * Returns the value as a gzip stream, or null if compressing it does not
+   * save enough to be worth the CPU spent decompressing it.
+   */
+  static byte[] compress(byte[] value) {
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, /* nowrap= */ true);
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      ByteArrayOutputStream output = new ByteArrayOutputStream(
+          GZIP_HEADER_BYTES + value.length / 2 + GZIP_TRAILER_BYTES);
+      output.write(GZIP_HEADER, 0, GZIP_HEADER_BYTES);
+      byte[] buffer = new byte[Math.max(64, Math.min(value.length, 8192))];
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+      CRC32 crc = new CRC32();
+      crc.update(value);
+      writeIntLittleEndian(output, (int) crc.getValue());
+      writeIntLittleEndian(output, value.length);
+      byte[] compressed = output.toByteArray();
+      rawBytes.add(value.length);
+      if (compressed.length > value.length * (1 - MIN_SAVING)) {
+        incompressible.increment();
+        storedBytes.add(value.length);
+        return null;
+      }
+      storedBytes.add(compressed.length);
+      return compressed;
+    } finally {
+      deflater.end();
+      compressTime.record(System.nanoTime() - start);
+    }
+  }
+
+  /** Returns the value compressed by {@link #compress}. */
+  static String decompress(byte[] gzipped) {
+    long start = System.nanoTime();
+    Inflater inflater = new Inflater(/* nowrap= */ true);
+    try {
+      inflater.setInput(
+          gzipped,
+          GZIP_HEADER_BYTES,
+          gzipped.length - GZIP_HEADER_BYTES - GZIP_TRAILER_BYTES);
+      byte[] value = new byte[uncompressedLength(gzipped)];
+      int length = 0;
+      while (length < value.length && !inflater.finished()) {
+        length += inflater.inflate(value, length, value.length - length);
+      }
+      return new String(value, 0, length, Charsets.UTF_8);
+    } catch (DataFormatException e) {
+      // Only values compressed by this class are ever decompressed.
+      throw new IllegalStateException(e);
+    } finally {
+      inflater.end();
+      decompressTime.record(System.nanoTime() - start);
+    }
+  }
+
+  private static int uncompressedLength(byte[] gzipped) {
+    byte[] trailer =
+        Arrays.copyOfRange(gzipped, gzipped.length - 4, gzipped.length);
+    return Ints.fromBytes(trailer[3], trailer[2], trailer[1], trailer[0]);
+  }
+
+  private static void writeIntLittleEndian(
+      ByteArrayOutputStream output,
+      int i) {
+    for (int shift = 0; shift < 32; shift += 8) {
+      output.write(i >>> shift);
+    }
+  }
+}
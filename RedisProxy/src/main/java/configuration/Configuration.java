@@ -1,12 +1,18 @@
 package configuration;
 
+import cache.ConnectionPool.RoutingPolicy;
 import com.google.auto.value.AutoValue;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import java.time.Duration;
 import java.util.Map;
 import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import server.ExecutionMode;
 import server.Server;
 
 /** Holds environment variables used to configure the server. */
@@ -23,7 +29,48 @@ public abstract class Configuration {
     MAX_CONCURRENT_HANDLERS,
     CACHE_EXPIRY,
     REDIS_TEST_HOST,
-    MAX_PIPELINED_RESP_COMMANDS;
+    MAX_PIPELINED_RESP_COMMANDS,
+    EXECUTION_MODE,
+    ADMISSION_TARGET_DELAY,
+    ADMISSION_INTERVAL,
+    REDIS_CONNECTIONS,
+    REDIS_ROUTING_POLICY,
+    REDIS_IO_THREADS,
+    REDIS_SHARDS,
+    REDIS_SHARD_VIRTUAL_NODES,
+    REDIS_REPLICAS,
+    REDIS_PRIMARY_ONLY_PREFIXES,
+    REDIS_REPLICA_HEDGE_PERCENTILE,
+    PASSTHROUGH_CONNECTIONS,
+    CACHE_MAX_VALUE_BYTES,
+    CACHE_MAX_BYTES,
+    CACHE_COMPRESSION_MIN_BYTES,
+    HTTP_BATCH_MAX_KEYS,
+    HTTP2_PORT,
+    HTTP2_MAX_CONCURRENT_STREAMS,
+    HOT_KEYS_TOP_K,
+    HOT_KEYS_MIN_RATE,
+    HOT_KEYS_WINDOW,
+    CACHE_STALE_WHILE_REVALIDATE,
+    CACHE_STALE_IF_ERROR,
+    REDIS_TIMEOUT,
+    REQUEST_DEADLINE,
+    CIRCUIT_BREAKER_FAILURES,
+    CIRCUIT_BREAKER_OPEN_DURATION,
+    CACHE_MAX_CONCURRENT_LOADS,
+    CACHE_DISK_DIRECTORY,
+    CACHE_DISK_MAX_BYTES,
+    CACHE_DISK_SEGMENT_BYTES,
+    PEERS,
+    PEER_SELF,
+    PEER_CONNECTIONS,
+    PEER_TIMEOUT,
+    CONCURRENCY_LIMIT_MIN,
+    HTTP_SOCKET_PATH,
+    RESP_SOCKET_PATH,
+    ACCEPTOR_THREADS,
+    ACCEPT_BACKLOG,
+    ADMIN_TOKEN;
   }
 
   /** The default values for all configurable keys. */
@@ -35,8 +82,49 @@ public abstract class Configuration {
           .put(Key.RESP_PORT, 8124)
           .put(Key.CACHE_EXPIRY, Duration.ofMillis(5000))
           .put(Key.CACHE_CAPACITY, 10)
-          .put(Key.MAX_CONCURRENT_HANDLERS, 10)
+          .put(Key.MAX_CONCURRENT_HANDLERS, 128)
           .put(Key.MAX_PIPELINED_RESP_COMMANDS, 5)
+          .put(Key.EXECUTION_MODE, ExecutionMode.PLATFORM_THREADS)
+          .put(Key.ADMISSION_TARGET_DELAY, Duration.ofMillis(25))
+          .put(Key.ADMISSION_INTERVAL, Duration.ofMillis(250))
+          .put(Key.REDIS_CONNECTIONS, 1)
+          .put(Key.REDIS_ROUTING_POLICY, RoutingPolicy.KEY_HASH)
+          .put(Key.REDIS_IO_THREADS, 0)
+          .put(Key.REDIS_SHARDS, ImmutableList.of())
+          .put(Key.REDIS_SHARD_VIRTUAL_NODES, 160)
+          .put(Key.REDIS_REPLICAS, ImmutableList.of())
+          .put(Key.REDIS_PRIMARY_ONLY_PREFIXES, ImmutableList.of())
+          .put(Key.REDIS_REPLICA_HEDGE_PERCENTILE, 0.0)
+          .put(Key.PASSTHROUGH_CONNECTIONS, 2)
+          .put(Key.CACHE_MAX_VALUE_BYTES, 0)
+          .put(Key.CACHE_MAX_BYTES, 0L)
+          .put(Key.CACHE_COMPRESSION_MIN_BYTES, 0)
+          .put(Key.HTTP_BATCH_MAX_KEYS, 1000)
+          .put(Key.HTTP2_PORT, 0)
+          .put(Key.HTTP2_MAX_CONCURRENT_STREAMS, 100)
+          .put(Key.HOT_KEYS_TOP_K, 0)
+          .put(Key.HOT_KEYS_MIN_RATE, 50)
+          .put(Key.HOT_KEYS_WINDOW, Duration.ofMillis(1000))
+          .put(Key.CACHE_STALE_WHILE_REVALIDATE, Duration.ZERO)
+          .put(Key.CACHE_STALE_IF_ERROR, Duration.ZERO)
+          .put(Key.REDIS_TIMEOUT, Duration.ZERO)
+          .put(Key.REQUEST_DEADLINE, Duration.ZERO)
+          .put(Key.CIRCUIT_BREAKER_FAILURES, 0)
+          .put(Key.CIRCUIT_BREAKER_OPEN_DURATION, Duration.ofMillis(1000))
+          .put(Key.CACHE_MAX_CONCURRENT_LOADS, 256)
+          .put(Key.CACHE_DISK_DIRECTORY, "")
+          .put(Key.CACHE_DISK_MAX_BYTES, 1L << 30)
+          .put(Key.CACHE_DISK_SEGMENT_BYTES, 64 * 1024 * 1024)
+          .put(Key.PEERS, ImmutableList.of())
+          .put(Key.PEER_SELF, "")
+          .put(Key.PEER_CONNECTIONS, 4)
+          .put(Key.PEER_TIMEOUT, Duration.ofMillis(200))
+          .put(Key.CONCURRENCY_LIMIT_MIN, 0)
+          .put(Key.HTTP_SOCKET_PATH, "")
+          .put(Key.RESP_SOCKET_PATH, "")
+          .put(Key.ACCEPTOR_THREADS, 1)
+          .put(Key.ACCEPT_BACKLOG, 50)
+          .put(Key.ADMIN_TOKEN, "")
           .build();
 
   private static final Logger logger =
@@ -54,10 +142,101 @@ public abstract class Configuration {
 
   public abstract int cacheCapacity();
 
+  /**
+   * The size of the HTTP and RESP handler pools. A RESP connection holds a
+   * handler thread for as long as it stays open, so with platform threads
+   * this also caps the number of RESP clients served at once.
+   */
   public abstract int maxConcurrentHandlers();
 
   public abstract int maxPipelinedRespCommands();
 
+  public abstract ExecutionMode executionMode();
+
+  public abstract Duration admissionTargetDelay();
+
+  public abstract Duration admissionInterval();
+
+  public abstract int redisConnections();
+
+  public abstract RoutingPolicy redisRoutingPolicy();
+
+  public abstract int redisIoThreads();
+
+  public abstract ImmutableList<Endpoint> redisShards();
+
+  public abstract int redisShardVirtualNodes();
+
+  public abstract ImmutableList<Endpoint> redisReplicas();
+
+  public abstract ImmutableList<String> redisPrimaryOnlyPrefixes();
+
+  public abstract double redisReplicaHedgePercentile();
+
+  public abstract int passthroughConnections();
+
+  public abstract int cacheMaxValueBytes();
+
+  public abstract long cacheMaxBytes();
+
+  public abstract int cacheCompressionMinBytes();
+
+  public abstract int httpBatchMaxKeys();
+
+  public abstract int http2Port();
+
+  public abstract int http2MaxConcurrentStreams();
+
+  public abstract int hotKeysTopK();
+
+  public abstract int hotKeysMinRate();
+
+  public abstract Duration hotKeysWindow();
+
+  public abstract Duration cacheStaleWhileRevalidate();
+
+  public abstract Duration cacheStaleIfError();
+
+  public abstract Duration redisTimeout();
+
+  public abstract Duration requestDeadline();
+
+  public abstract int circuitBreakerFailures();
+
+  public abstract Duration circuitBreakerOpenDuration();
+
+  public abstract int cacheMaxConcurrentLoads();
+
+  public abstract String cacheDiskDirectory();
+
+  public abstract long cacheDiskMaxBytes();
+
+  public abstract int cacheDiskSegmentBytes();
+
+  public abstract ImmutableList<Endpoint> peers();
+
+  public abstract String peerSelf();
+
+  public abstract int peerConnections();
+
+  public abstract Duration peerTimeout();
+
+  public abstract int concurrencyLimitMin();
+
+  public abstract String httpSocketPath();
+
+  public abstract String respSocketPath();
+
+  public abstract int acceptorThreads();
+
+  public abstract int acceptBacklog();
+
+  /**
+   * The SHA-256 of ADMIN_TOKEN in hex, or empty if runtime configuration is
+   * disabled. Only the hash is kept, so the token is never logged.
+   */
+  public abstract String adminTokenSha256();
+
   /**
    * Gets a default Configuration instance with all values read from the system
    * environment.
@@ -69,21 +248,86 @@ public abstract class Configuration {
             entry -> logger.info(
                 "System.environment: {key={}, value={} }",
                 entry.getKey(),
-                entry.getValue()));
+                entry.getKey().equals(Key.ADMIN_TOKEN.name())
+                    ? "<redacted>"
+                    : entry.getValue()));
     return Configuration.newBuilder()
         .setRedisHost(getOrElse(Key.REDIS_HOST, s -> s))
         .setRedisPort(getOrElse(Key.REDIS_PORT, Integer::parseInt))
         .setHttpPort(getOrElse(Key.HTTP_PORT, Integer::parseInt))
         .setRespPort(getOrElse(Key.RESP_PORT, Integer::parseInt))
         .setCacheCapacity(getOrElse(Key.CACHE_CAPACITY, Integer::parseInt))
-        .setCacheExpiry(
-            getOrElse(
-                Key.CACHE_EXPIRY,
-                s -> Duration.ofMillis(Long.parseLong(s))))
+        .setCacheExpiry(getOrElse(Key.CACHE_EXPIRY, Configuration::parseMillis))
         .setMaxConcurrentHandlers(
             getOrElse(Key.MAX_CONCURRENT_HANDLERS, Integer::parseInt))
         .setMaxPipelinedRespCommands(
             getOrElse(Key.MAX_PIPELINED_RESP_COMMANDS, Integer::parseInt))
+        .setExecutionMode(
+            getOrElse(Key.EXECUTION_MODE, ExecutionMode::valueOf))
+        .setAdmissionTargetDelay(
+            getOrElse(Key.ADMISSION_TARGET_DELAY, Configuration::parseMillis))
+        .setAdmissionInterval(
+            getOrElse(Key.ADMISSION_INTERVAL, Configuration::parseMillis))
+        .setRedisConnections(
+            getOrElse(Key.REDIS_CONNECTIONS, Integer::parseInt))
+        .setRedisRoutingPolicy(
+            getOrElse(Key.REDIS_ROUTING_POLICY, RoutingPolicy::valueOf))
+        .setRedisIoThreads(getOrElse(Key.REDIS_IO_THREADS, Integer::parseInt))
+        .setRedisShards(getOrElse(Key.REDIS_SHARDS, Endpoint::parseList))
+        .setRedisShardVirtualNodes(
+            getOrElse(Key.REDIS_SHARD_VIRTUAL_NODES, Integer::parseInt))
+        .setRedisReplicas(getOrElse(Key.REDIS_REPLICAS, Endpoint::parseList))
+        .setRedisPrimaryOnlyPrefixes(
+            getOrElse(Key.REDIS_PRIMARY_ONLY_PREFIXES, Configuration::parseStringList))
+        .setRedisReplicaHedgePercentile(
+            getOrElse(Key.REDIS_REPLICA_HEDGE_PERCENTILE, Double::parseDouble))
+        .setPassthroughConnections(
+            getOrElse(Key.PASSTHROUGH_CONNECTIONS, Integer::parseInt))
+        .setCacheMaxValueBytes(
+            getOrElse(Key.CACHE_MAX_VALUE_BYTES, Integer::parseInt))
+        .setCacheMaxBytes(getOrElse(Key.CACHE_MAX_BYTES, Long::parseLong))
+        .setCacheCompressionMinBytes(
+            getOrElse(Key.CACHE_COMPRESSION_MIN_BYTES, Integer::parseInt))
+        .setHttpBatchMaxKeys(
+            getOrElse(Key.HTTP_BATCH_MAX_KEYS, Integer::parseInt))
+        .setHttp2Port(getOrElse(Key.HTTP2_PORT, Integer::parseInt))
+        .setHttp2MaxConcurrentStreams(
+            getOrElse(Key.HTTP2_MAX_CONCURRENT_STREAMS, Integer::parseInt))
+        .setHotKeysTopK(getOrElse(Key.HOT_KEYS_TOP_K, Integer::parseInt))
+        .setHotKeysMinRate(getOrElse(Key.HOT_KEYS_MIN_RATE, Integer::parseInt))
+        .setHotKeysWindow(
+            getOrElse(Key.HOT_KEYS_WINDOW, Configuration::parseMillis))
+        .setCacheStaleWhileRevalidate(
+            getOrElse(Key.CACHE_STALE_WHILE_REVALIDATE, Configuration::parseMillis))
+        .setCacheStaleIfError(
+            getOrElse(Key.CACHE_STALE_IF_ERROR, Configuration::parseMillis))
+        .setRedisTimeout(
+            getOrElse(Key.REDIS_TIMEOUT, Configuration::parseMillis))
+        .setRequestDeadline(
+            getOrElse(Key.REQUEST_DEADLINE, Configuration::parseMillis))
+        .setCircuitBreakerFailures(
+            getOrElse(Key.CIRCUIT_BREAKER_FAILURES, Integer::parseInt))
+        .setCircuitBreakerOpenDuration(
+            getOrElse(Key.CIRCUIT_BREAKER_OPEN_DURATION, Configuration::parseMillis))
+        .setCacheMaxConcurrentLoads(
+            getOrElse(Key.CACHE_MAX_CONCURRENT_LOADS, Integer::parseInt))
+        .setCacheDiskDirectory(getOrElse(Key.CACHE_DISK_DIRECTORY, s -> s))
+        .setCacheDiskMaxBytes(
+            getOrElse(Key.CACHE_DISK_MAX_BYTES, Long::parseLong))
+        .setCacheDiskSegmentBytes(
+            getOrElse(Key.CACHE_DISK_SEGMENT_BYTES, Integer::parseInt))
+        .setPeers(getOrElse(Key.PEERS, Endpoint::parseList))
+        .setPeerSelf(getOrElse(Key.PEER_SELF, s -> s))
+        .setPeerConnections(getOrElse(Key.PEER_CONNECTIONS, Integer::parseInt))
+        .setPeerTimeout(getOrElse(Key.PEER_TIMEOUT, Configuration::parseMillis))
+        .setConcurrencyLimitMin(
+            getOrElse(Key.CONCURRENCY_LIMIT_MIN, Integer::parseInt))
+        .setHttpSocketPath(getOrElse(Key.HTTP_SOCKET_PATH, s -> s))
+        .setRespSocketPath(getOrElse(Key.RESP_SOCKET_PATH, s -> s))
+        .setAcceptorThreads(getOrElse(Key.ACCEPTOR_THREADS, Integer::parseInt))
+        .setAcceptBacklog(getOrElse(Key.ACCEPT_BACKLOG, Integer::parseInt))
+        .setAdminTokenSha256(
+            getOrElse(Key.ADMIN_TOKEN, Configuration::hashSecret))
         .build();
   }
 
@@ -102,7 +346,70 @@ public abstract class Configuration {
         .setMaxConcurrentHandlers(
             (int) DEFAULT_VALUES.get(Key.MAX_CONCURRENT_HANDLERS))
         .setMaxPipelinedRespCommands(
-            (int) DEFAULT_VALUES.get(Key.MAX_PIPELINED_RESP_COMMANDS));
+            (int) DEFAULT_VALUES.get(Key.MAX_PIPELINED_RESP_COMMANDS))
+        .setExecutionMode(
+            (ExecutionMode) DEFAULT_VALUES.get(Key.EXECUTION_MODE))
+        .setAdmissionTargetDelay(
+            (Duration) DEFAULT_VALUES.get(Key.ADMISSION_TARGET_DELAY))
+        .setAdmissionInterval(
+            (Duration) DEFAULT_VALUES.get(Key.ADMISSION_INTERVAL))
+        .setRedisConnections((int) DEFAULT_VALUES.get(Key.REDIS_CONNECTIONS))
+        .setRedisRoutingPolicy(
+            (RoutingPolicy) DEFAULT_VALUES.get(Key.REDIS_ROUTING_POLICY))
+        .setRedisIoThreads((int) DEFAULT_VALUES.get(Key.REDIS_IO_THREADS))
+        .setRedisShards(
+            (ImmutableList<Endpoint>) DEFAULT_VALUES.get(Key.REDIS_SHARDS))
+        .setRedisShardVirtualNodes(
+            (int) DEFAULT_VALUES.get(Key.REDIS_SHARD_VIRTUAL_NODES))
+        .setRedisReplicas(
+            (ImmutableList<Endpoint>) DEFAULT_VALUES.get(Key.REDIS_REPLICAS))
+        .setRedisPrimaryOnlyPrefixes(
+            (ImmutableList<String>) DEFAULT_VALUES.get(Key.REDIS_PRIMARY_ONLY_PREFIXES))
+        .setRedisReplicaHedgePercentile(
+            (double) DEFAULT_VALUES.get(Key.REDIS_REPLICA_HEDGE_PERCENTILE))
+        .setPassthroughConnections(
+            (int) DEFAULT_VALUES.get(Key.PASSTHROUGH_CONNECTIONS))
+        .setCacheMaxValueBytes(
+            (int) DEFAULT_VALUES.get(Key.CACHE_MAX_VALUE_BYTES))
+        .setCacheMaxBytes((long) DEFAULT_VALUES.get(Key.CACHE_MAX_BYTES))
+        .setCacheCompressionMinBytes(
+            (int) DEFAULT_VALUES.get(Key.CACHE_COMPRESSION_MIN_BYTES))
+        .setHttpBatchMaxKeys((int) DEFAULT_VALUES.get(Key.HTTP_BATCH_MAX_KEYS))
+        .setHttp2Port((int) DEFAULT_VALUES.get(Key.HTTP2_PORT))
+        .setHttp2MaxConcurrentStreams(
+            (int) DEFAULT_VALUES.get(Key.HTTP2_MAX_CONCURRENT_STREAMS))
+        .setHotKeysTopK((int) DEFAULT_VALUES.get(Key.HOT_KEYS_TOP_K))
+        .setHotKeysMinRate((int) DEFAULT_VALUES.get(Key.HOT_KEYS_MIN_RATE))
+        .setHotKeysWindow((Duration) DEFAULT_VALUES.get(Key.HOT_KEYS_WINDOW))
+        .setCacheStaleWhileRevalidate(
+            (Duration) DEFAULT_VALUES.get(Key.CACHE_STALE_WHILE_REVALIDATE))
+        .setCacheStaleIfError(
+            (Duration) DEFAULT_VALUES.get(Key.CACHE_STALE_IF_ERROR))
+        .setRedisTimeout((Duration) DEFAULT_VALUES.get(Key.REDIS_TIMEOUT))
+        .setRequestDeadline((Duration) DEFAULT_VALUES.get(Key.REQUEST_DEADLINE))
+        .setCircuitBreakerFailures(
+            (int) DEFAULT_VALUES.get(Key.CIRCUIT_BREAKER_FAILURES))
+        .setCircuitBreakerOpenDuration(
+            (Duration) DEFAULT_VALUES.get(Key.CIRCUIT_BREAKER_OPEN_DURATION))
+        .setCacheMaxConcurrentLoads(
+            (int) DEFAULT_VALUES.get(Key.CACHE_MAX_CONCURRENT_LOADS))
+        .setCacheDiskDirectory(
+            (String) DEFAULT_VALUES.get(Key.CACHE_DISK_DIRECTORY))
+        .setCacheDiskMaxBytes(
+            (long) DEFAULT_VALUES.get(Key.CACHE_DISK_MAX_BYTES))
+        .setCacheDiskSegmentBytes(
+            (int) DEFAULT_VALUES.get(Key.CACHE_DISK_SEGMENT_BYTES))
+        .setPeers((ImmutableList<Endpoint>) DEFAULT_VALUES.get(Key.PEERS))
+        .setPeerSelf((String) DEFAULT_VALUES.get(Key.PEER_SELF))
+        .setPeerConnections((int) DEFAULT_VALUES.get(Key.PEER_CONNECTIONS))
+        .setPeerTimeout((Duration) DEFAULT_VALUES.get(Key.PEER_TIMEOUT))
+        .setConcurrencyLimitMin(
+            (int) DEFAULT_VALUES.get(Key.CONCURRENCY_LIMIT_MIN))
+        .setHttpSocketPath((String) DEFAULT_VALUES.get(Key.HTTP_SOCKET_PATH))
+        .setRespSocketPath((String) DEFAULT_VALUES.get(Key.RESP_SOCKET_PATH))
+        .setAcceptorThreads((int) DEFAULT_VALUES.get(Key.ACCEPTOR_THREADS))
+        .setAcceptBacklog((int) DEFAULT_VALUES.get(Key.ACCEPT_BACKLOG))
+        .setAdminTokenSha256((String) DEFAULT_VALUES.get(Key.ADMIN_TOKEN));
   }
 
   /** Converts this Configuration object to a Builder that can be modified. */
@@ -128,6 +435,103 @@ public abstract class Configuration {
     public abstract Builder setMaxPipelinedRespCommands(
         int PipelinedRespCommands);
 
+    public abstract Builder setExecutionMode(ExecutionMode executionMode);
+
+    public abstract Builder setAdmissionTargetDelay(
+        Duration admissionTargetDelay);
+
+    public abstract Builder setAdmissionInterval(Duration admissionInterval);
+
+    public abstract Builder setRedisConnections(int redisConnections);
+
+    public abstract Builder setRedisRoutingPolicy(
+        RoutingPolicy redisRoutingPolicy);
+
+    public abstract Builder setRedisIoThreads(int redisIoThreads);
+
+    public abstract Builder setRedisShards(
+        ImmutableList<Endpoint> redisShards);
+
+    public abstract Builder setRedisShardVirtualNodes(
+        int redisShardVirtualNodes);
+
+    public abstract Builder setRedisReplicas(
+        ImmutableList<Endpoint> redisReplicas);
+
+    public abstract Builder setRedisPrimaryOnlyPrefixes(
+        ImmutableList<String> redisPrimaryOnlyPrefixes);
+
+    public abstract Builder setRedisReplicaHedgePercentile(
+        double redisReplicaHedgePercentile);
+
+    public abstract Builder setPassthroughConnections(
+        int passthroughConnections);
+
+    public abstract Builder setCacheMaxValueBytes(int cacheMaxValueBytes);
+
+    public abstract Builder setCacheMaxBytes(long cacheMaxBytes);
+
+    public abstract Builder setCacheCompressionMinBytes(
+        int cacheCompressionMinBytes);
+
+    public abstract Builder setHttpBatchMaxKeys(int httpBatchMaxKeys);
+
+    public abstract Builder setHttp2Port(int http2Port);
+
+    public abstract Builder setHttp2MaxConcurrentStreams(
+        int http2MaxConcurrentStreams);
+
+    public abstract Builder setHotKeysTopK(int hotKeysTopK);
+
+    public abstract Builder setHotKeysMinRate(int hotKeysMinRate);
+
+    public abstract Builder setHotKeysWindow(Duration hotKeysWindow);
+
+    public abstract Builder setCacheStaleWhileRevalidate(
+        Duration cacheStaleWhileRevalidate);
+
+    public abstract Builder setCacheStaleIfError(Duration cacheStaleIfError);
+
+    public abstract Builder setRedisTimeout(Duration redisTimeout);
+
+    public abstract Builder setRequestDeadline(Duration requestDeadline);
+
+    public abstract Builder setCircuitBreakerFailures(
+        int circuitBreakerFailures);
+
+    public abstract Builder setCircuitBreakerOpenDuration(
+        Duration circuitBreakerOpenDuration);
+
+    public abstract Builder setCacheMaxConcurrentLoads(
+        int cacheMaxConcurrentLoads);
+
+    public abstract Builder setCacheDiskDirectory(String cacheDiskDirectory);
+
+    public abstract Builder setCacheDiskMaxBytes(long cacheDiskMaxBytes);
+
+    public abstract Builder setCacheDiskSegmentBytes(
+        int cacheDiskSegmentBytes);
+
+    public abstract Builder setPeers(ImmutableList<Endpoint> peers);
+
+    public abstract Builder setPeerSelf(String peerSelf);
+
+    public abstract Builder setPeerConnections(int peerConnections);
+
+    public abstract Builder setPeerTimeout(Duration peerTimeout);
+
+    public abstract Builder setConcurrencyLimitMin(int concurrencyLimitMin);
+
+    public abstract Builder setHttpSocketPath(String httpSocketPath);
+
+    public abstract Builder setRespSocketPath(String respSocketPath);
+
+    public abstract Builder setAcceptorThreads(int acceptorThreads);
+
+    public abstract Builder setAcceptBacklog(int acceptBacklog);
+
+    public abstract Builder setAdminTokenSha256(String adminTokenSha256);
+
     public abstract Configuration build();
   }
 
@@ -142,4 +546,24 @@ public abstract class Configuration {
         ? transform.apply(System.getenv(key.name()))
         : (T) DEFAULT_VALUES.get(key);
   }
+
+  /** Parses a duration expressed as a number of milliseconds. */
+  static Duration parseMillis(String millis) {
+    return Duration.ofMillis(Long.parseLong(millis));
+  }
+
+  /**
+   * Returns the SHA-256 of a secret in hex, or empty if the secret is empty.
+   */
+  public static String hashSecret(String secret) {
+    return secret.isEmpty()
+        ? ""
+        : Hashing.sha256().hashString(secret, Charsets.UTF_8).toString();
+  }
+
+  /** Parses a comma-separated list of strings. */
+  private static ImmutableList<String> parseStringList(String str) {
+    return ImmutableList.copyOf(
+        Splitter.on(',').trimResults().omitEmptyStrings().split(str));
+  }
 }
@@ -0,0 +1,63 @@
+package configuration;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * A host/port pair (e.g. a Redis shard), with an optional relative weight.
+ * <p>
+ * Endpoints are configured as comma-separated lists of "host:port[:weight]",
+ * e.g. "redis-1:6379,redis-2:6379:2".
+ */
+@AutoValue
+public abstract class Endpoint {
+
+  private static final Splitter LIST_SPLITTER =
+      Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter PART_SPLITTER = Splitter.on(':').trimResults();
+
+  public abstract String host();
+
+  public abstract int port();
+
+  public abstract int weight();
+
+  public static Endpoint create(String host, int port) {
+    return create(host, port, 1);
+  }
+
+  public static Endpoint create(String host, int port, int weight) {
+    Preconditions.checkArgument(weight > 0, "weight must be positive");
+    return new AutoValue_Endpoint(host, port, weight);
+  }
+
+  /** Parses a single "host:port[:weight]" string. */
+  public static Endpoint parse(String str) {
+    List<String> parts = PART_SPLITTER.splitToList(str);
+    Preconditions.checkArgument(
+        parts.size() == 2 || parts.size() == 3,
+        "expected host:port[:weight] but got [%s]",
+        str);
+    return create(
+        parts.get(0),
+        Integer.parseInt(parts.get(1)),
+        parts.size() == 3 ? Integer.parseInt(parts.get(2)) : 1);
+  }
+
+  /** Parses a comma-separated list of "host:port[:weight]" strings. */
+  public static ImmutableList<Endpoint> parseList(String str) {
+    return LIST_SPLITTER.splitToList(str)
+        .stream()
+        .map(Endpoint::parse)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Returns "host:port", which identifies this endpoint. */
+  @Override
+  public String toString() {
+    return host() + ":" + port();
+  }
+}
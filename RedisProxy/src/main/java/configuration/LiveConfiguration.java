@@ -0,0 +1,250 @@
+package configuration;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import configuration.Configuration.Builder;
+import configuration.Configuration.Key;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * The configuration of a running server, some of whose values can be changed
+ * without restarting it.
+ * <p>
+ * Components read the current values with {@link #get}, and those that hold
+ * on to them (e.g. the cache, the handler pools) register a listener, which
+ * is called with the new configuration after every change. Every change is
+ * logged with its old and new values and with who requested it.
+ */
+public final class LiveConfiguration {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  /** How to parse, validate and apply one reconfigurable key's value. */
+  private static final class Setting<T> {
+    final Function<String, T> parse;
+    final Function<Configuration, T> get;
+    final BiConsumer<Builder, T> set;
+    final Predicate<T> isValid;
+    final String requirement;
+
+    Setting(
+        Function<String, T> parse,
+        Function<Configuration, T> get,
+        BiConsumer<Builder, T> set,
+        Predicate<T> isValid,
+        String requirement) {
+      this.parse = parse;
+      this.get = get;
+      this.set = set;
+      this.isValid = isValid;
+      this.requirement = requirement;
+    }
+
+    void apply(Key key, Builder builder, String value) {
+      T parsed = parse.apply(value.trim());
+      Preconditions.checkArgument(
+          isValid.test(parsed),
+          "%s must be %s",
+          key,
+          requirement);
+      set.accept(builder, parsed);
+    }
+  }
+
+  private static Setting<Integer> positiveInt(
+      Function<Configuration, Integer> get,
+      BiConsumer<Builder, Integer> set) {
+    return new Setting<>(
+        Integer::parseInt, get, set, value -> value > 0, "positive");
+  }
+
+  private static Setting<Duration> millis(
+      Function<Configuration, Duration> get,
+      BiConsumer<Builder, Duration> set) {
+    return new Setting<>(
+        Configuration::parseMillis,
+        get,
+        set,
+        value -> !value.isNegative(),
+        "a non-negative number of milliseconds");
+  }
+
+  /** The keys that can be changed at runtime, in the order they are shown. */
+  private static final ImmutableMap<Key, Setting<?>> RECONFIGURABLE =
+      ImmutableMap.<Key, Setting<?>>builder()
+          .put(
+              Key.CACHE_CAPACITY,
+              positiveInt(
+                  Configuration::cacheCapacity,
+                  Builder::setCacheCapacity))
+          .put(
+              Key.CACHE_MAX_BYTES,
+              new Setting<>(
+                  Long::parseLong,
+                  Configuration::cacheMaxBytes,
+                  Builder::setCacheMaxBytes,
+                  value -> value >= 0,
+                  "non-negative"))
+          .put(
+              Key.CACHE_EXPIRY,
+              new Setting<>(
+                  Configuration::parseMillis,
+                  Configuration::cacheExpiry,
+                  Builder::setCacheExpiry,
+                  value -> !value.isNegative() && !value.isZero(),
+                  "a positive number of milliseconds"))
+          .put(
+              Key.CACHE_STALE_WHILE_REVALIDATE,
+              millis(
+                  Configuration::cacheStaleWhileRevalidate,
+                  Builder::setCacheStaleWhileRevalidate))
+          .put(
+              Key.CACHE_STALE_IF_ERROR,
+              millis(
+                  Configuration::cacheStaleIfError,
+                  Builder::setCacheStaleIfError))
+          .put(
+              Key.REDIS_TIMEOUT,
+              millis(Configuration::redisTimeout, Builder::setRedisTimeout))
+          .put(
+              Key.REQUEST_DEADLINE,
+              millis(
+                  Configuration::requestDeadline,
+                  Builder::setRequestDeadline))
+          .put(
+              Key.MAX_CONCURRENT_HANDLERS,
+              positiveInt(
+                  Configuration::maxConcurrentHandlers,
+                  Builder::setMaxConcurrentHandlers))
+          .put(
+              Key.MAX_PIPELINED_RESP_COMMANDS,
+              positiveInt(
+                  Configuration::maxPipelinedRespCommands,
+                  Builder::setMaxPipelinedRespCommands))
+          .put(
+              Key.HTTP_BATCH_MAX_KEYS,
+              positiveInt(
+                  Configuration::httpBatchMaxKeys,
+                  Builder::setHttpBatchMaxKeys))
+          .build();
+
+  private final List<Consumer<Configuration>> listeners =
+      new CopyOnWriteArrayList<>();
+  private final LongAdder changes = Metrics.counter("config.changes");
+  private volatile Configuration current;
+
+  public LiveConfiguration(Configuration initial) {
+    this.current = initial;
+  }
+
+  /** Returns the current configuration. */
+  public Configuration get() {
+    return current;
+  }
+
+  /**
+   * Registers a listener that is called with the new configuration after
+   * every change, on the thread that made it.
+   */
+  public void addListener(Consumer<Configuration> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Changes the specified keys (by name) to the specified values, given as
+   * they would be in the environment (e.g. durations in milliseconds), and
+   * notifies the listeners. Either every value is applied or, if any is
+   * invalid, none is.
+   *
+   * @param requester who requested the change, for the audit log
+   * @throws IllegalArgumentException if a key is unknown, cannot be changed
+   *         at runtime, or has an invalid value
+   */
+  public synchronized Configuration update(
+      Map<String, String> values,
+      String requester) {
+    Configuration previous = current;
+    Builder builder = previous.toBuilder();
+    for (Map.Entry<String, String> value : values.entrySet()) {
+      Key key = parseKey(value.getKey());
+      RECONFIGURABLE.get(key).apply(key, builder, value.getValue());
+    }
+    Configuration updated = builder.build();
+    List<String> changed = new ArrayList<>();
+    RECONFIGURABLE.forEach(
+        (key, setting) -> {
+          Object before = setting.get.apply(previous);
+          Object after = setting.get.apply(updated);
+          if (!before.equals(after)) {
+            changed.add(
+                String.format(
+                    "%s %s -> %s",
+                    key,
+                    format(before),
+                    format(after)));
+          }
+        });
+    if (changed.isEmpty()) {
+      return previous;
+    }
+    logger.warn(
+        "Configuration changed by {}: {}",
+        requester,
+        String.join(", ", changed));
+    changes.add(changed.size());
+    current = updated;
+    listeners.forEach(listener -> listener.accept(updated));
+    return updated;
+  }
+
+  /**
+   * Formats the current values of the keys that can be changed at runtime,
+   * one "KEY value" pair per line.
+   */
+  public String format() {
+    Configuration configuration = current;
+    StringBuilder output = new StringBuilder();
+    RECONFIGURABLE.forEach(
+        (key, setting) ->
+            output.append(key)
+                .append(' ')
+                .append(format(setting.get.apply(configuration)))
+                .append('\n'));
+    return output.toString();
+  }
+
+  private static Key parseKey(String name) {
+    Key key;
+    try {
+      key = Key.valueOf(name.trim());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("unknown key " + name);
+    }
+    Preconditions.checkArgument(
+        RECONFIGURABLE.containsKey(key),
+        "%s cannot be changed at runtime",
+        key);
+    return key;
+  }
+
+  /** Formats a value as it would be given (durations in milliseconds). */
+  private static String format(Object value) {
+    return value instanceof Duration
+        ? String.valueOf(((Duration) value).toMillis())
+        : String.valueOf(value);
+  }
+}
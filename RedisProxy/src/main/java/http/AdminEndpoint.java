@@ -0,0 +1,142 @@
+package http;
+
+import cache.HotKeys;
+import cache.LruCache;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import configuration.Configuration;
+import configuration.LiveConfiguration;
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import metrics.BigKeys;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Serves operational endpoints under the reserved "/_proxy/" path.
+ * <p>
+ * Keys starting with this prefix cannot be read through the HTTP front end.
+ * <ul>
+ * <li>/_proxy/metrics: a snapshot of all {@link Metrics}, one per line.
+ * <li>/_proxy/bigkeys: the largest values seen ({@link BigKeys}), largest
+ * first.
+ * <li>/_proxy/hotkeys: the keys with the most lookups in the last window
+ * ({@link HotKeys}) and their rates, most looked up first. Pinned keys are
+ * marked.
+ * <li>/_proxy/config: the current values of the settings that can be changed
+ * at runtime ({@link LiveConfiguration}). A POST changes them: each line of
+ * the body is a "KEY=value" pair, with values given as in the environment.
+ * The response lists the values after the change. Changes are refused
+ * unless ADMIN_TOKEN is set and the request carries it as
+ * "Authorization: Bearer &lt;token&gt;".
+ * </ul>
+ */
+public class AdminEndpoint {
+
+  static final String PREFIX = "_proxy/";
+  static final String METRICS = PREFIX + "metrics";
+  static final String BIG_KEYS = PREFIX + "bigkeys";
+  static final String HOT_KEYS = PREFIX + "hotkeys";
+  static final String CONFIG = PREFIX + "config";
+
+  static final String OK_FORMAT_STRING =
+      "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\n%s";
+  static final String BAD_REQUEST_FORMAT_STRING =
+      "HTTP/1.1 400 Bad Request\r\nContent-Type: text/plain\r\n\r\n%s\n";
+  static final String NOT_FOUND_STRING = "HTTP/1.1 404 Not Found\r\n\r\n";
+  static final String FORBIDDEN_FORMAT_STRING =
+      "HTTP/1.1 403 Forbidden\r\nContent-Type: text/plain\r\n\r\n%s\n";
+  private static final String BEARER = "Bearer ";
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private AdminEndpoint() {}
+
+  /** Returns whether the request targets an admin endpoint. */
+  static boolean handles(HttpRequest request) {
+    return request.key.startsWith(PREFIX);
+  }
+
+  /**
+   * Returns the full HTTP response for an admin request.
+   *
+   * @param client who sent the request, for the audit log of configuration
+   *        changes
+   */
+  static String respond(
+      HttpRequest request,
+      LruCache cache,
+      LiveConfiguration configuration,
+      SocketAddress client) {
+    switch (request.path()) {
+      case METRICS:
+        return String.format(OK_FORMAT_STRING, Metrics.format());
+      case BIG_KEYS:
+        return String.format(OK_FORMAT_STRING, BigKeys.format());
+      case HOT_KEYS:
+        return String.format(OK_FORMAT_STRING, cache.hotKeys().format());
+      case CONFIG:
+        return respondToConfig(request, configuration, client);
+      default:
+        return NOT_FOUND_STRING;
+    }
+  }
+
+  private static String respondToConfig(
+      HttpRequest request,
+      LiveConfiguration configuration,
+      SocketAddress client) {
+    if (request.method.equals(HttpRequest.POST)) {
+      String tokenSha256 = configuration.get().adminTokenSha256();
+      if (tokenSha256.isEmpty()) {
+        return String.format(
+            FORBIDDEN_FORMAT_STRING,
+            "runtime configuration is disabled (ADMIN_TOKEN is not set)");
+      }
+      if (!isAuthorized(request, tokenSha256)) {
+        logger.warn("Refused configuration change from {}", client);
+        return String.format(FORBIDDEN_FORMAT_STRING, "invalid admin token");
+      }
+      Map<String, String> values = new LinkedHashMap<>();
+      for (String line
+          : Splitter.on('\n').trimResults().omitEmptyStrings()
+              .split(request.body)) {
+        List<String> pair = Splitter.on('=').limit(2).splitToList(line);
+        if (pair.size() != 2) {
+          return String.format(
+              BAD_REQUEST_FORMAT_STRING,
+              "expected KEY=value, got: " + line);
+        }
+        values.put(pair.get(0), pair.get(1));
+      }
+      try {
+        configuration.update(values, "HTTP client " + client);
+      } catch (IllegalArgumentException e) {
+        return String.format(BAD_REQUEST_FORMAT_STRING, e.getMessage());
+      }
+    }
+    return String.format(OK_FORMAT_STRING, configuration.format());
+  }
+
+  /**
+   * Returns whether the request carries the admin token with the specified
+   * hash. The hashes are compared in constant time.
+   */
+  private static boolean isAuthorized(HttpRequest request, String tokenSha256) {
+    String authorization = request.headers.getOrDefault("authorization", "");
+    if (!authorization.startsWith(BEARER)) {
+      return false;
+    }
+    String presented =
+        Configuration.hashSecret(authorization.substring(BEARER.length()));
+    return MessageDigest.isEqual(
+        presented.getBytes(Charsets.US_ASCII),
+        tokenSha256.getBytes(Charsets.US_ASCII));
+  }
+}
@@ -0,0 +1,184 @@
+package http;
+
+import cache.CacheEntry;
+import cache.LruCache;
+import cache.LruCache.BatchListener;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+
+/**
+ * Serves many keys in a single request at "/_proxy/mget".
+ * <p>
+ * Keys are passed as repeated {@code key} query parameters
+ * ({@code GET /_proxy/mget?key=a&key=b}) or as the lines of a POST body. The
+ * response is a sequence of frames, one per distinct key, each made of a
+ * header line and then the key and value bytes:
+ * <pre>
+ * STATUS KEY_LENGTH VALUE_LENGTH\n KEY VALUE \n
+ * </pre>
+ * where STATUS is OK, MISSING (no value, empty) or ERROR (the value is the
+ * error message). Frames are written as soon as each key is resolved, cached
+ * keys first, so they are not in request order: the cached frames are flushed
+ * together, and then each loaded frame on its own.
+ * <p>
+ * The length of the response is not known when it starts, so it has no
+ * Content-Length and ends when the connection is closed.
+ */
+class BatchEndpoint {
+
+  static final String PATH = AdminEndpoint.PREFIX + "mget";
+
+  static final String OK_STRING =
+      "HTTP/1.1 200 OK\r\nContent-Type: application/x-proxy-batch\r\n"
+          + "Connection: close\r\n\r\n";
+  static final String TOO_MANY_KEYS_FORMAT =
+      "HTTP/1.1 413 Payload Too Large\r\nConnection: close\r\n\r\n"
+          + "At most %d keys per request.";
+
+  private static final LongAdder requests =
+      Metrics.counter("http.batch.requests");
+  private static final LongAdder keys = Metrics.counter("http.batch.keys");
+
+  private BatchEndpoint() {}
+
+  /** Returns whether the request targets the batch endpoint. */
+  static boolean handles(HttpRequest request) {
+    return request.path().equals(PATH);
+  }
+
+  /** Writes the full HTTP response for a batch request. */
+  static void respond(
+      HttpRequest request,
+      LruCache cache,
+      OutputStream output,
+      int maxKeys) throws IOException {
+    List<String> requestedKeys = keysOf(request);
+    if (requestedKeys.size() > maxKeys) {
+      output.write(
+          String.format(TOO_MANY_KEYS_FORMAT, maxKeys)
+              .getBytes(Charsets.UTF_8));
+      return;
+    }
+    requests.increment();
+    keys.add(requestedKeys.size());
+    output.write(OK_STRING.getBytes(Charsets.UTF_8));
+    if (!request.isHead()) {
+      cache.getAll(requestedKeys, new FrameWriter(cache, output));
+    }
+  }
+
+  private static ImmutableList<String> keysOf(HttpRequest request) {
+    if (!request.method.equals(HttpRequest.POST)) {
+      return request.queryParameters("key");
+    }
+    return Splitter.on('\n')
+        .omitEmptyStrings()
+        .splitToList(request.body)
+        .stream()
+        .map(line -> line.endsWith("\r")
+            ? line.substring(0, line.length() - 1)
+            : line)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Writes a frame for each key as it is resolved. */
+  private static class FrameWriter implements BatchListener {
+
+    private final LruCache cache;
+    private final OutputStream output;
+    /** Whether the cached entries were written, so each frame is flushed. */
+    private boolean flushEachFrame;
+
+    FrameWriter(LruCache cache, OutputStream output) {
+      this.cache = cache;
+      this.output = output;
+    }
+
+    @Override
+    public void onEntry(String key, CacheEntry entry) throws IOException {
+      if (entry.isLarge()) {
+        streamFrame(key);
+      } else if (entry.hasValue()) {
+        writeFrame("OK", key, entry.value().get().getBytes(Charsets.UTF_8));
+      } else {
+        writeFrame("MISSING", key, new byte[0]);
+      }
+    }
+
+    @Override
+    public void onError(String key, Throwable error) throws IOException {
+      writeFrame(
+          "ERROR",
+          key,
+          String.valueOf(error.getMessage()).getBytes(Charsets.UTF_8));
+    }
+
+    @Override
+    public void onCachedEntriesDone() throws IOException {
+      output.flush();
+      flushEachFrame = true;
+    }
+
+    /** Streams a value too large to cache from Redis. */
+    private void streamFrame(String key) throws IOException {
+      boolean[] headerWritten = {false};
+      try {
+        boolean found =
+            cache.streamValue(
+                key,
+                output,
+                length -> {
+                  if (length >= 0) {
+                    output.write(header("OK", key, length));
+                    headerWritten[0] = true;
+                  }
+                });
+        if (found) {
+          output.write('\n');
+          flushIfLoaded();
+        } else {
+          writeFrame("MISSING", key, new byte[0]);
+        }
+      } catch (ExecutionException e) {
+        if (headerWritten[0]) {
+          // Part of the value was sent: the frame cannot be completed.
+          throw new IOException(e);
+        }
+        onError(key, e.getCause());
+      }
+    }
+
+    private void writeFrame(String status, String key, byte[] value)
+        throws IOException {
+      output.write(
+          Bytes.concat(
+              header(status, key, value.length),
+              value,
+              new byte[] {'\n'}));
+      flushIfLoaded();
+    }
+
+    private void flushIfLoaded() throws IOException {
+      if (flushEachFrame) {
+        output.flush();
+      }
+    }
+
+    /** Returns the header line followed by the key. */
+    private static byte[] header(String status, String key, long valueLength) {
+      byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+      return Bytes.concat(
+          String.format("%s %d %d\n", status, keyBytes.length, valueLength)
+              .getBytes(Charsets.UTF_8),
+          keyBytes);
+    }
+  }
+}
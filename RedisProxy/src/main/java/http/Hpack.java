@@ -0,0 +1,383 @@
+package http;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541) header compression for the HTTP/2 front end.
+ * <p>
+ * The {@link Decoder} implements the whole format, including the dynamic
+ * table and Huffman-coded strings, since clients use both. The encoder only
+ * emits static table references and literals that are neither indexed nor
+ * Huffman-coded: our responses carry few headers, mostly with values that
+ * change on every response (etag, content-length).
+ */
+final class Hpack {
+
+  /** The default (and, as advertised by the proxy, maximum) table size. */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+  /** Bytes accounted per dynamic table entry on top of name and value. */
+  private static final int ENTRY_OVERHEAD = 32;
+
+  /** RFC 7541 Appendix A. Index 0 is unused. */
+  private static final ImmutableList<Map.Entry<String, String>> STATIC_TABLE =
+      ImmutableList.of(
+          header("", ""),
+          header(":authority", ""),
+          header(":method", "GET"),
+          header(":method", "POST"),
+          header(":path", "/"),
+          header(":path", "/index.html"),
+          header(":scheme", "http"),
+          header(":scheme", "https"),
+          header(":status", "200"),
+          header(":status", "204"),
+          header(":status", "206"),
+          header(":status", "304"),
+          header(":status", "400"),
+          header(":status", "404"),
+          header(":status", "500"),
+          header("accept-charset", ""),
+          header("accept-encoding", "gzip, deflate"),
+          header("accept-language", ""),
+          header("accept-ranges", ""),
+          header("accept", ""),
+          header("access-control-allow-origin", ""),
+          header("age", ""),
+          header("allow", ""),
+          header("authorization", ""),
+          header("cache-control", ""),
+          header("content-disposition", ""),
+          header("content-encoding", ""),
+          header("content-language", ""),
+          header("content-length", ""),
+          header("content-location", ""),
+          header("content-range", ""),
+          header("content-type", ""),
+          header("cookie", ""),
+          header("date", ""),
+          header("etag", ""),
+          header("expect", ""),
+          header("expires", ""),
+          header("from", ""),
+          header("host", ""),
+          header("if-match", ""),
+          header("if-modified-since", ""),
+          header("if-none-match", ""),
+          header("if-range", ""),
+          header("if-unmodified-since", ""),
+          header("last-modified", ""),
+          header("link", ""),
+          header("location", ""),
+          header("max-forwards", ""),
+          header("proxy-authenticate", ""),
+          header("proxy-authorization", ""),
+          header("range", ""),
+          header("referer", ""),
+          header("refresh", ""),
+          header("retry-after", ""),
+          header("server", ""),
+          header("set-cookie", ""),
+          header("strict-transport-security", ""),
+          header("transfer-encoding", ""),
+          header("user-agent", ""),
+          header("vary", ""),
+          header("via", ""),
+          header("www-authenticate", ""));
+
+  /**
+   * The length in bits of the Huffman code of each symbol (RFC 7541 Appendix
+   * B), where 256 is EOS. The code is canonical, so the codes themselves
+   * follow from the lengths.
+   */
+  private static final int[] HUFFMAN_CODE_LENGTHS = {
+    13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+    28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+    6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+    5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+    13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+    7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+    15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+    6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+    20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+    24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+    22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+    21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+    26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+    19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+    20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+    26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    30
+  };
+  private static final int EOS = 256;
+  /**
+   * The Huffman decoding tree: node n's children are at 2n and 2n + 1, and
+   * hold the child node's index, or -(symbol + 1) for leaves.
+   */
+  private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+  private Hpack() {}
+
+  private static Map.Entry<String, String> header(String name, String value) {
+    return Maps.immutableEntry(name, value);
+  }
+
+  /** Thrown for malformed header blocks (a COMPRESSION_ERROR). */
+  static class CompressionException extends IOException {
+    CompressionException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Decodes the header blocks of one connection, in order (they share a
+   * dynamic table).
+   */
+  static class Decoder {
+
+    private final Deque<Map.Entry<String, String>> dynamicTable =
+        new ArrayDeque<>();
+    private int tableSize;
+    private int maxTableSize = DEFAULT_TABLE_SIZE;
+
+    List<Map.Entry<String, String>> decode(byte[] block)
+        throws CompressionException {
+      List<Map.Entry<String, String>> headers = new ArrayList<>();
+      int[] position = {0};
+      while (position[0] < block.length) {
+        int b = block[position[0]] & 0xff;
+        if ((b & 0x80) != 0) {
+          headers.add(entry(readInteger(block, position, 7)));
+        } else if ((b & 0x40) != 0) {
+          Map.Entry<String, String> header = readLiteral(block, position, 6);
+          add(header);
+          headers.add(header);
+        } else if ((b & 0x20) != 0) {
+          int size = readInteger(block, position, 5);
+          if (size > DEFAULT_TABLE_SIZE) {
+            throw new CompressionException("table size too large: " + size);
+          }
+          maxTableSize = size;
+          evict(0);
+        } else {
+          // Literal without indexing, or never indexed.
+          headers.add(readLiteral(block, position, 4));
+        }
+      }
+      return headers;
+    }
+
+    private Map.Entry<String, String> readLiteral(
+        byte[] block,
+        int[] position,
+        int prefixBits) throws CompressionException {
+      int index = readInteger(block, position, prefixBits);
+      String name =
+          index == 0 ? readString(block, position) : entry(index).getKey();
+      return header(name, readString(block, position));
+    }
+
+    private Map.Entry<String, String> entry(int index)
+        throws CompressionException {
+      if (index > 0 && index < STATIC_TABLE.size()) {
+        return STATIC_TABLE.get(index);
+      }
+      int dynamicIndex = index - STATIC_TABLE.size();
+      if (index == 0 || dynamicIndex >= dynamicTable.size()) {
+        throw new CompressionException("invalid index: " + index);
+      }
+      Iterator<Map.Entry<String, String>> entries = dynamicTable.iterator();
+      for (int i = 0; i < dynamicIndex; i++) {
+        entries.next();
+      }
+      return entries.next();
+    }
+
+    private void add(Map.Entry<String, String> header) {
+      int size = size(header);
+      evict(size);
+      if (size <= maxTableSize) {
+        dynamicTable.addFirst(header);
+        tableSize += size;
+      }
+    }
+
+    /** Evicts entries until another of the specified size would fit. */
+    private void evict(int size) {
+      while (!dynamicTable.isEmpty() && tableSize + size > maxTableSize) {
+        tableSize -= size(dynamicTable.removeLast());
+      }
+    }
+
+    private static int size(Map.Entry<String, String> header) {
+      return header.getKey().length()
+          + header.getValue().length()
+          + ENTRY_OVERHEAD;
+    }
+  }
+
+  /** Encodes a header block, without using the dynamic table. */
+  static byte[] encode(List<Map.Entry<String, String>> headers) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (Map.Entry<String, String> header : headers) {
+      int nameIndex = 0;
+      int index = STATIC_TABLE.indexOf(header);
+      if (index > 0) {
+        writeInteger(output, 0x80, 7, index);
+        continue;
+      }
+      for (int i = 1; i < STATIC_TABLE.size(); i++) {
+        if (STATIC_TABLE.get(i).getKey().equals(header.getKey())) {
+          nameIndex = i;
+          break;
+        }
+      }
+      // Literal header field without indexing.
+      writeInteger(output, 0x00, 4, nameIndex);
+      if (nameIndex == 0) {
+        writeString(output, header.getKey());
+      }
+      writeString(output, header.getValue());
+    }
+    return output.toByteArray();
+  }
+
+  /** Reads an integer with an N-bit prefix (RFC 7541 section 5.1). */
+  static int readInteger(byte[] block, int[] position, int prefixBits)
+      throws CompressionException {
+    int mask = (1 << prefixBits) - 1;
+    int value = block[position[0]++] & mask;
+    if (value < mask) {
+      return value;
+    }
+    for (int shift = 0; ; shift += 7) {
+      if (position[0] >= block.length || shift > 21) {
+        throw new CompressionException("invalid integer");
+      }
+      int b = block[position[0]++] & 0xff;
+      value += (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  static void writeInteger(
+      ByteArrayOutputStream output,
+      int flags,
+      int prefixBits,
+      int value) {
+    int mask = (1 << prefixBits) - 1;
+    if (value < mask) {
+      output.write(flags | value);
+      return;
+    }
+    output.write(flags | mask);
+    value -= mask;
+    while (value >= 0x80) {
+      output.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    output.write(value);
+  }
+
+  private static String readString(byte[] block, int[] position)
+      throws CompressionException {
+    if (position[0] >= block.length) {
+      throw new CompressionException("truncated string");
+    }
+    boolean huffman = (block[position[0]] & 0x80) != 0;
+    int length = readInteger(block, position, 7);
+    if (position[0] + length > block.length) {
+      throw new CompressionException("truncated string");
+    }
+    int start = position[0];
+    position[0] += length;
+    return huffman
+        ? huffmanDecode(block, start, length)
+        : new String(block, start, length, Charsets.ISO_8859_1);
+  }
+
+  private static void writeString(ByteArrayOutputStream output, String s) {
+    byte[] bytes = s.getBytes(Charsets.ISO_8859_1);
+    writeInteger(output, 0x00, 7, bytes.length);
+    output.write(bytes, 0, bytes.length);
+  }
+
+  static String huffmanDecode(byte[] block, int start, int length)
+      throws CompressionException {
+    StringBuilder result = new StringBuilder(length * 8 / 5);
+    int node = 0;
+    // The bits read since the last complete symbol, all of which must be 1s.
+    int pendingBits = 0;
+    boolean pendingAllOnes = true;
+    for (int i = start; i < start + length; i++) {
+      for (int bit = 7; bit >= 0; bit--) {
+        int b = (block[i] >> bit) & 1;
+        int child = HUFFMAN_TREE[2 * node + b];
+        pendingBits++;
+        pendingAllOnes &= b == 1;
+        if (child < 0) {
+          int symbol = -child - 1;
+          if (symbol == EOS) {
+            throw new CompressionException("EOS in Huffman string");
+          }
+          result.append((char) symbol);
+          node = 0;
+          pendingBits = 0;
+          pendingAllOnes = true;
+        } else if (child == 0) {
+          throw new CompressionException("invalid Huffman code");
+        } else {
+          node = child;
+        }
+      }
+    }
+    // Padding is the most significant bits of EOS (all 1s), at most 7 bits.
+    if (pendingBits > 7 || !pendingAllOnes) {
+      throw new CompressionException("invalid Huffman padding");
+    }
+    return result.toString();
+  }
+
+  private static int[] buildHuffmanTree() {
+    // A complete binary tree over 257 leaves has 256 internal nodes.
+    int[] tree = new int[2 * 256];
+    int nodes = 1;
+    List<Integer> symbols = new ArrayList<>();
+    for (int symbol = 0; symbol <= EOS; symbol++) {
+      symbols.add(symbol);
+    }
+    symbols.sort(
+        (a, b) -> HUFFMAN_CODE_LENGTHS[a] != HUFFMAN_CODE_LENGTHS[b]
+            ? HUFFMAN_CODE_LENGTHS[a] - HUFFMAN_CODE_LENGTHS[b]
+            : a - b);
+    long code = 0;
+    int previousLength = 0;
+    for (int symbol : symbols) {
+      int length = HUFFMAN_CODE_LENGTHS[symbol];
+      code <<= length - previousLength;
+      previousLength = length;
+      int node = 0;
+      for (int bit = length - 1; bit > 0; bit--) {
+        int slot = 2 * node + (int) ((code >> bit) & 1);
+        if (tree[slot] == 0) {
+          tree[slot] = nodes++;
+        }
+        node = tree[slot];
+      }
+      tree[2 * node + (int) (code & 1)] = -(symbol + 1);
+      code++;
+    }
+    return tree;
+  }
+}
@@ -0,0 +1,950 @@
+package http;
+
+import cache.LruCache;
+import com.google.common.base.Ascii;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Bytes;
+import configuration.LiveConfiguration;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.AdmissionController;
+import server.Server;
+
+/**
+ * Serves one HTTP/2 cleartext (h2c) connection.
+ * <p>
+ * The connection either starts with the HTTP/2 preface ("prior knowledge"),
+ * or is an HTTP/1.1 request asking to upgrade to h2c, which becomes stream 1.
+ * <p>
+ * This thread reads every frame. Each request stream is resolved on the
+ * shared stream executor by an {@link HttpRequestHandler}, whose HTTP/1.1
+ * response is translated into HEADERS and DATA frames as it is written, so
+ * every endpoint (keys, admin, batch, streamed large values) behaves as it
+ * does over HTTP/1.1. Many streams are served concurrently; their frames are
+ * interleaved on the socket, and DATA frames wait for flow control windows.
+ */
+class Http2Connection implements Runnable {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  static final byte[] PREFACE =
+      "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+  static final int DATA = 0x0;
+  static final int HEADERS = 0x1;
+  static final int PRIORITY = 0x2;
+  static final int RST_STREAM = 0x3;
+  static final int SETTINGS = 0x4;
+  static final int PUSH_PROMISE = 0x5;
+  static final int PING = 0x6;
+  static final int GOAWAY = 0x7;
+  static final int WINDOW_UPDATE = 0x8;
+  static final int CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int CANCEL = 0x8;
+  static final int COMPRESSION_ERROR = 0x9;
+  static final int ENHANCE_YOUR_CALM = 0xb;
+
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+  /** The largest frame the proxy accepts (the protocol's default). */
+  static final int MAX_FRAME_SIZE = 16384;
+  private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+  private static final int MAX_REQUEST_BODY_BYTES =
+      HttpRequest.MAX_BODY_BYTES;
+  private static final int MAX_HTTP1_LINE_LENGTH = 8192;
+  /**
+   * The largest header block accepted, over HEADERS and all of its
+   * CONTINUATION frames, so that a peer cannot make the proxy buffer
+   * without end by never ending the block.
+   */
+  static final int MAX_HEADER_BLOCK_BYTES = 64 * 1024;
+
+  /** HTTP/1.1 headers that have no meaning (and are illegal) in HTTP/2. */
+  private static final ImmutableSet<String> CONNECTION_HEADERS =
+      ImmutableSet.of(
+          "connection",
+          "keep-alive",
+          "proxy-connection",
+          "transfer-encoding",
+          "upgrade");
+
+  private static final LongAdder streamsServed =
+      Metrics.counter("http2.streams");
+  private static final LongAdder streamsRefused =
+      Metrics.counter("http2.streams.refused");
+
+  private final Socket socket;
+  private final LruCache cache;
+  private final LiveConfiguration configuration;
+  private final int maxConcurrentStreams;
+  private final Executor streamExecutor;
+  private final AdmissionController admissionController;
+  private final DataInputStream input;
+  /** Guarded by itself: frames are written whole, one at a time. */
+  private final OutputStream output;
+  private final Hpack.Decoder decoder = new Hpack.Decoder();
+  private final ConcurrentMap<Integer, Stream> streams =
+      new ConcurrentHashMap<>();
+  /** The highest stream id the client opened. Read thread only. */
+  private int lastStreamId;
+
+  // Flow control state, guarded by this.
+  private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+  private int initialStreamSendWindow = DEFAULT_WINDOW_SIZE;
+  private int peerMaxFrameSize = MAX_FRAME_SIZE;
+  private boolean closed;
+
+  /** A request stream, from its HEADERS to the end of its response. */
+  private static class Stream {
+    final int id;
+    final Map<String, String> headers = new HashMap<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    /** Whether the whole request has been received. */
+    boolean requestComplete;
+    /** Guarded by the connection. */
+    long sendWindow;
+    /** Guarded by the connection. */
+    boolean reset;
+
+    Stream(int id, long sendWindow) {
+      this.id = id;
+      this.sendWindow = sendWindow;
+    }
+  }
+
+  /** A connection error (GOAWAY) if streamId is 0, else a stream error. */
+  private static class Http2Exception extends IOException {
+    final int errorCode;
+    final int streamId;
+
+    Http2Exception(int errorCode, int streamId, String message) {
+      super(message);
+      this.errorCode = errorCode;
+      this.streamId = streamId;
+    }
+  }
+
+  Http2Connection(
+      Socket socket,
+      LruCache cache,
+      LiveConfiguration configuration,
+      int maxConcurrentStreams,
+      Executor streamExecutor,
+      AdmissionController admissionController) throws IOException {
+    this.socket = socket;
+    this.cache = cache;
+    this.configuration = configuration;
+    this.maxConcurrentStreams = maxConcurrentStreams;
+    this.streamExecutor = streamExecutor;
+    this.admissionController = admissionController;
+    this.input =
+        new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.output = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  @Override
+  public void run() {
+    try {
+      startConnection();
+      while (readFrame()) {}
+    } catch (Http2Exception e) {
+      logger.info("HTTP/2 connection error: {}", e.getMessage());
+      goAway(e.errorCode);
+    } catch (EOFException e) {
+      logger.info("HTTP/2 client closed the connection.");
+    } catch (IOException e) {
+      logger.info("HTTP/2 connection failed: {}", e.getMessage());
+    } finally {
+      close();
+    }
+  }
+
+  /** Returns the number of streams that are open or being responded to. */
+  int activeStreams() {
+    return streams.size();
+  }
+
+  /** Closes the connection, abandoning any streams still being served. */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close HTTP/2 socket: {}", e.getMessage());
+    }
+  }
+
+  /** Reads the client's preface, or its upgrade request, and sends ours. */
+  private void startConnection() throws IOException {
+    String firstLine = readHttp1Line();
+    if (firstLine.equals("PRI * HTTP/2.0")) {
+      // Check the rest of the preface (after the first line).
+      readPrefaceFrom(firstLine.length() + 2);
+      writeSettings();
+      return;
+    }
+    HttpRequest request = HttpRequest.parse(firstLine);
+    Map<String, String> headers = new HashMap<>();
+    for (String line = readHttp1Line(); !line.isEmpty();
+        line = readHttp1Line()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(
+            Ascii.toLowerCase(line.substring(0, colon).trim()),
+            line.substring(colon + 1).trim());
+      }
+    }
+    String upgrade = headers.getOrDefault("upgrade", "");
+    String settings = headers.get("http2-settings");
+    if (!Splitter.on(',').trimResults().splitToList(upgrade).contains("h2c")
+        || settings == null) {
+      writeAndFlush(
+          ("HTTP/1.1 426 Upgrade Required\r\nUpgrade: h2c\r\n"
+              + "Connection: Upgrade\r\nContent-Length: 0\r\n\r\n")
+              .getBytes(Charsets.US_ASCII));
+      throw new EOFException("not an h2c connection");
+    }
+    byte[] body;
+    try {
+      // Bounded like the body of any other stream.
+      body = new byte[HttpRequest.contentLength(headers)];
+    } catch (HttpRequest.InvalidRequestException e) {
+      writeAndFlush(e.response.getBytes(Charsets.US_ASCII));
+      throw e;
+    }
+    input.readFully(body);
+    writeAndFlush(
+        ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(Charsets.US_ASCII));
+    writeSettings();
+    applySettings(BaseEncoding.base64Url().omitPadding().decode(settings));
+    // The upgraded request is stream 1, already complete.
+    Stream stream = new Stream(1, initialStreamSendWindow());
+    headers.put(":method", request.method);
+    headers.put(":path", "/" + request.key);
+    stream.headers.putAll(headers);
+    stream.body.write(body);
+    lastStreamId = 1;
+    streams.put(1, stream);
+    dispatch(stream);
+    readPrefaceFrom(0);
+  }
+
+  private void readPrefaceFrom(int offset) throws IOException {
+    byte[] rest = new byte[PREFACE.length - offset];
+    input.readFully(rest);
+    for (int i = 0; i < rest.length; i++) {
+      if (rest[i] != PREFACE[offset + i]) {
+        throw new Http2Exception(PROTOCOL_ERROR, 0, "invalid preface");
+      }
+    }
+  }
+
+  private String readHttp1Line() throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != '\n') {
+      if (c < 0) {
+        throw new EOFException();
+      }
+      if (line.length() > MAX_HTTP1_LINE_LENGTH) {
+        throw new IOException("line too long");
+      }
+      line.append((char) c);
+    }
+    int length = line.length();
+    return length > 0 && line.charAt(length - 1) == '\r'
+        ? line.substring(0, length - 1)
+        : line.toString();
+  }
+
+  /**
+   * Reads and handles one frame (plus its CONTINUATIONs).
+   *
+   * @return false if the client is going away
+   */
+  private boolean readFrame() throws IOException {
+    int length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+    int type = input.readUnsignedByte();
+    int flags = input.readUnsignedByte();
+    int streamId = input.readInt() & Integer.MAX_VALUE;
+    if (length > MAX_FRAME_SIZE) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, 0, "frame too large");
+    }
+    byte[] payload = new byte[length];
+    input.readFully(payload);
+    try {
+      switch (type) {
+        case DATA:
+          onData(streamId, flags, payload);
+          break;
+        case HEADERS:
+          onHeaders(streamId, flags, payload);
+          break;
+        case RST_STREAM:
+          onReset(streamId);
+          break;
+        case SETTINGS:
+          onSettings(streamId, flags, payload);
+          break;
+        case PING:
+          if (length != 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, 0, "bad PING");
+          }
+          if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, payload);
+          }
+          break;
+        case GOAWAY:
+          logger.info("HTTP/2 client sent GOAWAY.");
+          awaitStreams();
+          return false;
+        case WINDOW_UPDATE:
+          onWindowUpdate(streamId, payload);
+          break;
+        case PUSH_PROMISE:
+        case CONTINUATION:
+          throw new Http2Exception(PROTOCOL_ERROR, 0, "unexpected frame");
+        default:
+          // PRIORITY, and unknown frame types, are ignored.
+      }
+    } catch (Http2Exception e) {
+      if (e.streamId == 0) {
+        throw e;
+      }
+      logger.info("HTTP/2 stream error: {}", e.getMessage());
+      resetStream(e.streamId, e.errorCode);
+    }
+    return true;
+  }
+
+  private void onHeaders(int streamId, int flags, byte[] payload)
+      throws IOException {
+    if (streamId % 2 == 0 || streamId <= lastStreamId) {
+      throw new Http2Exception(PROTOCOL_ERROR, 0, "invalid stream id");
+    }
+    lastStreamId = streamId;
+    int offset = 0;
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0) {
+      padding = payload[0] & 0xff;
+      offset++;
+    }
+    if ((flags & FLAG_PRIORITY) != 0) {
+      offset += 5;
+    }
+    if (offset + padding > payload.length) {
+      throw new Http2Exception(PROTOCOL_ERROR, 0, "invalid padding");
+    }
+    byte[] block =
+        readHeaderBlock(
+            streamId,
+            flags,
+            Arrays.copyOfRange(payload, offset, payload.length - padding));
+    // The block must be decoded even if the stream is refused, to keep the
+    // decoder in step with the client's encoder.
+    List<Map.Entry<String, String>> headers;
+    try {
+      headers = decoder.decode(block);
+    } catch (Hpack.CompressionException e) {
+      throw new Http2Exception(COMPRESSION_ERROR, 0, e.getMessage());
+    }
+    if (streams.size() >= maxConcurrentStreams) {
+      streamsRefused.increment();
+      throw new Http2Exception(REFUSED_STREAM, streamId, "too many streams");
+    }
+    Stream stream = new Stream(streamId, initialStreamSendWindow());
+    for (Map.Entry<String, String> header : headers) {
+      stream.headers.merge(
+          header.getKey(),
+          header.getValue(),
+          (first, second) -> first + ", " + second);
+    }
+    streams.put(streamId, stream);
+    if ((flags & FLAG_END_STREAM) != 0) {
+      dispatch(stream);
+    }
+  }
+
+  /**
+   * Appends CONTINUATION frames until the end of the header block, which may
+   * not exceed MAX_HEADER_BLOCK_BYTES.
+   */
+  private byte[] readHeaderBlock(int streamId, int flags, byte[] fragment)
+      throws IOException {
+    if ((flags & FLAG_END_HEADERS) != 0) {
+      return fragment;
+    }
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    block.write(fragment);
+    while ((flags & FLAG_END_HEADERS) == 0) {
+      int length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+      int type = input.readUnsignedByte();
+      flags = input.readUnsignedByte();
+      int id = input.readInt() & Integer.MAX_VALUE;
+      if (type != CONTINUATION || id != streamId) {
+        throw new Http2Exception(PROTOCOL_ERROR, 0, "expected CONTINUATION");
+      }
+      if (length > MAX_FRAME_SIZE) {
+        throw new Http2Exception(FRAME_SIZE_ERROR, 0, "frame too large");
+      }
+      if (block.size() + length > MAX_HEADER_BLOCK_BYTES) {
+        throw new Http2Exception(
+            ENHANCE_YOUR_CALM,
+            0,
+            "header block too large");
+      }
+      byte[] next = new byte[length];
+      input.readFully(next);
+      block.write(next);
+    }
+    return block.toByteArray();
+  }
+
+  private void onData(int streamId, int flags, byte[] payload)
+      throws IOException {
+    // Received data always counts against the connection window, so it is
+    // replenished even if the stream is gone.
+    if (payload.length > 0) {
+      writeWindowUpdate(0, payload.length);
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null || stream.requestComplete) {
+      throw new Http2Exception(
+          streamId == 0 || streamId > lastStreamId
+              ? PROTOCOL_ERROR
+              : STREAM_CLOSED,
+          streamId == 0 || streamId > lastStreamId ? 0 : streamId,
+          "DATA on a closed stream");
+    }
+    int offset = 0;
+    int padding = 0;
+    if ((flags & FLAG_PADDED) != 0) {
+      padding = payload[0] & 0xff;
+      offset = 1;
+      if (offset + padding > payload.length) {
+        throw new Http2Exception(PROTOCOL_ERROR, 0, "invalid padding");
+      }
+    }
+    stream.body.write(payload, offset, payload.length - offset - padding);
+    if (stream.body.size() > MAX_REQUEST_BODY_BYTES) {
+      streams.remove(streamId);
+      throw new Http2Exception(CANCEL, streamId, "request body too large");
+    }
+    if ((flags & FLAG_END_STREAM) != 0) {
+      dispatch(stream);
+    } else if (payload.length > 0) {
+      writeWindowUpdate(streamId, payload.length);
+    }
+  }
+
+  private void onReset(int streamId) {
+    Stream stream = streams.remove(streamId);
+    if (stream != null) {
+      synchronized (this) {
+        stream.reset = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void onSettings(int streamId, int flags, byte[] payload)
+      throws IOException {
+    if (streamId != 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, 0, "SETTINGS on a stream");
+    }
+    if ((flags & FLAG_ACK) != 0) {
+      return;
+    }
+    if (payload.length % 6 != 0) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, 0, "bad SETTINGS");
+    }
+    applySettings(payload);
+    writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+  }
+
+  private void applySettings(byte[] payload) throws Http2Exception {
+    for (int i = 0; i + 6 <= payload.length; i += 6) {
+      int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+      long value = readUnsignedInt(payload, i + 2);
+      switch (id) {
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value > MAX_WINDOW_SIZE) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "window too large");
+          }
+          synchronized (this) {
+            long delta = value - initialStreamSendWindow;
+            initialStreamSendWindow = (int) value;
+            for (Stream stream : streams.values()) {
+              stream.sendWindow += delta;
+            }
+            notifyAll();
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+            throw new Http2Exception(PROTOCOL_ERROR, 0, "bad frame size");
+          }
+          synchronized (this) {
+            peerMaxFrameSize = (int) value;
+          }
+          break;
+        default:
+          // The encoder does not use the dynamic table, and the proxy never
+          // pushes, so the other settings do not matter.
+      }
+    }
+  }
+
+  private void onWindowUpdate(int streamId, byte[] payload)
+      throws Http2Exception {
+    if (payload.length != 4) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, 0, "bad WINDOW_UPDATE");
+    }
+    long increment = readUnsignedInt(payload, 0) & Integer.MAX_VALUE;
+    if (increment == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, streamId, "zero increment");
+    }
+    synchronized (this) {
+      if (streamId == 0) {
+        connectionSendWindow += increment;
+        if (connectionSendWindow > MAX_WINDOW_SIZE) {
+          throw new Http2Exception(FLOW_CONTROL_ERROR, 0, "window overflow");
+        }
+      } else {
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+          // The stream's response may have just completed.
+          return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > MAX_WINDOW_SIZE) {
+          throw new Http2Exception(
+              FLOW_CONTROL_ERROR,
+              streamId,
+              "window overflow");
+        }
+      }
+      notifyAll();
+    }
+  }
+
+  /** Serves a complete request on the stream executor. */
+  private void dispatch(Stream stream) {
+    stream.requestComplete = true;
+    streamsServed.increment();
+    Runnable task = () -> serve(stream);
+    Runnable reject = () -> respondWithStatus(stream, "503");
+    streamExecutor.execute(admissionController.wrap(task, reject));
+  }
+
+  private void serve(Stream stream) {
+    String method = stream.headers.get(":method");
+    String path = stream.headers.get(":path");
+    if (method == null || path == null || !path.startsWith("/")) {
+      resetStream(stream.id, PROTOCOL_ERROR);
+      return;
+    }
+    if (!method.equals(HttpRequest.GET)
+        && !method.equals(HttpRequest.HEAD)
+        && !method.equals(HttpRequest.POST)) {
+      respondWithStatus(stream, "405");
+      return;
+    }
+    Map<String, String> headers = new HashMap<>();
+    stream.headers.forEach((name, value) -> {
+      if (!name.startsWith(":")) {
+        headers.put(name, value);
+      }
+    });
+    HttpRequest request =
+        new HttpRequest(
+            method,
+            path.substring(1),
+            headers,
+            new String(stream.body.toByteArray(), Charsets.UTF_8));
+    ResponseTranslator response = new ResponseTranslator(stream);
+    try {
+      new HttpRequestHandler(
+              response,
+              cache,
+              configuration,
+              socket.getRemoteSocketAddress())
+          .respond(request);
+      response.close();
+    } catch (Exception e) {
+      logger.info("HTTP/2 stream {} failed: {}", stream.id, e.getMessage());
+      if (response.headersSent) {
+        resetStream(stream.id, INTERNAL_ERROR);
+      } else {
+        respondWithStatus(stream, "500");
+      }
+    } finally {
+      finish(stream);
+    }
+  }
+
+  private void respondWithStatus(Stream stream, String status) {
+    try {
+      writeHeaders(
+          stream.id,
+          ImmutableList.of(Maps.immutableEntry(":status", status)),
+          /* endStream= */ true);
+    } catch (IOException e) {
+      logger.info("Failed to respond on HTTP/2 stream: {}", e.getMessage());
+    } finally {
+      finish(stream);
+    }
+  }
+
+  private void finish(Stream stream) {
+    streams.remove(stream.id);
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /** Waits (briefly) for the responses still being written. */
+  private void awaitStreams() {
+    long deadline = System.currentTimeMillis() + 5000;
+    synchronized (this) {
+      while (!streams.isEmpty() && !closed) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return;
+        }
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private synchronized long initialStreamSendWindow() {
+    return initialStreamSendWindow;
+  }
+
+  private void resetStream(int streamId, int errorCode) {
+    onReset(streamId);
+    try {
+      writeFrame(RST_STREAM, 0, streamId, intBytes(errorCode));
+    } catch (IOException e) {
+      logger.info("Failed to reset HTTP/2 stream: {}", e.getMessage());
+    }
+  }
+
+  private void goAway(int errorCode) {
+    try {
+      writeFrame(
+          GOAWAY,
+          0,
+          0,
+          Bytes.concat(intBytes(lastStreamId), intBytes(errorCode)));
+    } catch (IOException e) {
+      logger.info("Failed to send GOAWAY: {}", e.getMessage());
+    }
+  }
+
+  private void writeSettings() throws IOException {
+    ByteArrayOutputStream settings = new ByteArrayOutputStream();
+    settings.write(0);
+    settings.write(SETTINGS_MAX_CONCURRENT_STREAMS);
+    settings.write(intBytes(maxConcurrentStreams));
+    writeFrame(SETTINGS, 0, 0, settings.toByteArray());
+  }
+
+  private void writeWindowUpdate(int streamId, int increment)
+      throws IOException {
+    writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment));
+  }
+
+  /**
+   * Writes a header block as a HEADERS frame followed, if it does not fit,
+   * by CONTINUATION frames (which nothing else may interleave with).
+   */
+  private void writeHeaders(
+      int streamId,
+      List<Map.Entry<String, String>> headers,
+      boolean endStream) throws IOException {
+    byte[] block = Hpack.encode(headers);
+    int maxFrameSize;
+    synchronized (this) {
+      maxFrameSize = peerMaxFrameSize;
+    }
+    synchronized (output) {
+      int offset = 0;
+      do {
+        int length = Math.min(maxFrameSize, block.length - offset);
+        boolean last = offset + length == block.length;
+        int flags =
+            (last ? FLAG_END_HEADERS : 0)
+                | (offset == 0 && endStream ? FLAG_END_STREAM : 0);
+        writeFrameHeader(
+            offset == 0 ? HEADERS : CONTINUATION,
+            flags,
+            streamId,
+            length);
+        output.write(block, offset, length);
+        offset += length;
+      } while (offset < block.length);
+      output.flush();
+    }
+  }
+
+  /**
+   * Writes the data as DATA frames, waiting for the stream's and the
+   * connection's flow control windows as needed.
+   */
+  private void writeData(
+      Stream stream,
+      byte[] data,
+      int offset,
+      int length,
+      boolean endStream) throws IOException {
+    if (length == 0) {
+      if (endStream) {
+        writeFrame(DATA, FLAG_END_STREAM, stream.id, new byte[0]);
+      }
+      return;
+    }
+    while (length > 0) {
+      int chunk;
+      synchronized (this) {
+        while (!closed
+            && !stream.reset
+            && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+          }
+        }
+        if (closed || stream.reset) {
+          throw new IOException("stream " + stream.id + " was closed");
+        }
+        chunk =
+            (int) Math.min(
+                Math.min(length, peerMaxFrameSize),
+                Math.min(connectionSendWindow, stream.sendWindow));
+        connectionSendWindow -= chunk;
+        stream.sendWindow -= chunk;
+      }
+      boolean last = chunk == length;
+      synchronized (output) {
+        writeFrameHeader(
+            DATA,
+            last && endStream ? FLAG_END_STREAM : 0,
+            stream.id,
+            chunk);
+        output.write(data, offset, chunk);
+        output.flush();
+      }
+      offset += chunk;
+      length -= chunk;
+    }
+  }
+
+  private void writeFrame(int type, int flags, int streamId, byte[] payload)
+      throws IOException {
+    synchronized (output) {
+      writeFrameHeader(type, flags, streamId, payload.length);
+      output.write(payload);
+      output.flush();
+    }
+  }
+
+  /** Must be called while holding the output's lock. */
+  private void writeFrameHeader(int type, int flags, int streamId, int length)
+      throws IOException {
+    output.write(length >>> 16);
+    output.write(length >>> 8);
+    output.write(length);
+    output.write(type);
+    output.write(flags);
+    output.write(intBytes(streamId));
+  }
+
+  private void writeAndFlush(byte[] bytes) throws IOException {
+    synchronized (output) {
+      output.write(bytes);
+      output.flush();
+    }
+  }
+
+  private static byte[] intBytes(int i) {
+    return new byte[] {
+      (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i
+    };
+  }
+
+  private static long readUnsignedInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xffL) << 24
+        | (bytes[offset + 1] & 0xffL) << 16
+        | (bytes[offset + 2] & 0xffL) << 8
+        | (bytes[offset + 3] & 0xffL);
+  }
+
+  /**
+   * Receives an HTTP/1.1 response and writes it to a stream as HTTP/2
+   * frames: the status line and headers become a HEADERS frame, and each
+   * write of the body becomes DATA frames, so that streamed responses are
+   * forwarded as they are produced.
+   * <p>
+   * HEADERS is held back until the first body bytes (or the end of the
+   * response) so that a response without a body is a single frame, and the
+   * DATA frame that completes the Content-Length also ends the stream.
+   */
+  private class ResponseTranslator extends OutputStream {
+
+    private final Stream stream;
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private List<Map.Entry<String, String>> headers;
+    private long contentLength = -1;
+    private long bodyBytesSent;
+    boolean headersSent;
+    private boolean ended;
+
+    ResponseTranslator(Stream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+        throws IOException {
+      if (headers == null) {
+        int consumed = readHead(bytes, offset, length);
+        offset += consumed;
+        length -= consumed;
+        if (headers == null || length == 0) {
+          return;
+        }
+      }
+      if (ended) {
+        throw new IOException("more data than the Content-Length");
+      }
+      sendHeaders(false);
+      bodyBytesSent += length;
+      ended = bodyBytesSent == contentLength;
+      writeData(stream, bytes, offset, length, ended);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      if (headers == null) {
+        throw new IOException("incomplete response head");
+      }
+      if (!headersSent) {
+        sendHeaders(true);
+      } else {
+        writeData(stream, new byte[0], 0, 0, true);
+      }
+    }
+
+    /**
+     * Buffers the response head until its blank line, then parses it.
+     *
+     * @return the number of bytes consumed
+     */
+    private int readHead(byte[] bytes, int offset, int length) {
+      for (int i = 0; i < length; i++) {
+        head.write(bytes[offset + i]);
+        byte[] buffered = head.toByteArray();
+        int n = buffered.length;
+        if (n >= 4
+            && buffered[n - 4] == '\r'
+            && buffered[n - 3] == '\n'
+            && buffered[n - 2] == '\r'
+            && buffered[n - 1] == '\n') {
+          parseHead(new String(buffered, Charsets.UTF_8));
+          return i + 1;
+        }
+      }
+      return length;
+    }
+
+    private void parseHead(String head) {
+      List<String> lines =
+          Splitter.on("\r\n").omitEmptyStrings().splitToList(head);
+      // HTTP/1.1 200 OK
+      String status = lines.get(0).split(" ")[1];
+      headers = new ArrayList<>();
+      headers.add(Maps.immutableEntry(":status", status));
+      for (String line : lines.subList(1, lines.size())) {
+        int colon = line.indexOf(':');
+        String name = Ascii.toLowerCase(line.substring(0, colon).trim());
+        String value = line.substring(colon + 1).trim();
+        if (CONNECTION_HEADERS.contains(name)) {
+          continue;
+        }
+        if (name.equals("content-length")) {
+          contentLength = Long.parseLong(value);
+        }
+        headers.add(Maps.immutableEntry(name, value));
+      }
+    }
+
+    private void sendHeaders(boolean endStream) throws IOException {
+      if (!headersSent) {
+        headersSent = true;
+        writeHeaders(stream.id, headers, endStream);
+      }
+    }
+  }
+}
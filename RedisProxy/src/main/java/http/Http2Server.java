@@ -0,0 +1,115 @@
+package http;
+
+import cache.LruCache;
+import configuration.Configuration;
+import configuration.LiveConfiguration;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.AdmissionController;
+import server.Server;
+
+/**
+ * Server that handles HTTP/2 cleartext (h2c) connections, either with prior
+ * knowledge or upgraded from HTTP/1.1.
+ * <p>
+ * Each connection is read by its own thread, while its streams are served
+ * concurrently on a shared pool sized like the HTTP/1.1 server's.
+ */
+public class Http2Server extends Thread {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private final ExecutorService connectionThreads =
+      Executors.newCachedThreadPool();
+  private final ExecutorService streamThreadPool;
+  private final AdmissionController admissionController;
+  private final ServerSocket serverSocket;
+  private final LruCache cache;
+  private final LiveConfiguration liveConfiguration;
+  private final Set<Http2Connection> connections =
+      ConcurrentHashMap.newKeySet();
+
+  /**
+   * Constructor. The stream handler pool is resized when
+   * MAX_CONCURRENT_HANDLERS changes.
+   */
+  public Http2Server(LruCache cache, LiveConfiguration liveConfiguration)
+      throws IOException {
+    Configuration configuration = liveConfiguration.get();
+    serverSocket = new ServerSocket(configuration.http2Port());
+    streamThreadPool =
+        configuration.executionMode()
+            .newExecutor(configuration.maxConcurrentHandlers());
+    admissionController =
+        AdmissionController.fromConfiguration("http2", configuration);
+    this.cache = cache;
+    this.liveConfiguration = liveConfiguration;
+    liveConfiguration.addListener(
+        updated -> updated.executionMode()
+            .resize(streamThreadPool, updated.maxConcurrentHandlers()));
+    Metrics.gauge("http2.connections", connections::size);
+    Metrics.gauge(
+        "http2.streams.active",
+        () -> connections.stream()
+            .mapToLong(Http2Connection::activeStreams)
+            .sum());
+    logger.info(
+        "HTTP/2 server started with up to [{}] streams per connection...",
+        configuration.http2MaxConcurrentStreams());
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        logger.info("HTTP/2 client accepted: {}", socket);
+        spawnConnection(socket);
+      } catch (Exception e) {
+        logger.info("Encountered an Exception: {}", e.getMessage());
+        shutdown();
+        return;
+      }
+    }
+  }
+
+  private void spawnConnection(Socket socket) throws IOException {
+    Http2Connection connection =
+        new Http2Connection(
+            socket,
+            cache,
+            liveConfiguration,
+            liveConfiguration.get().http2MaxConcurrentStreams(),
+            streamThreadPool,
+            admissionController);
+    connections.add(connection);
+    connectionThreads.execute(() -> {
+      try {
+        connection.run();
+      } finally {
+        connections.remove(connection);
+      }
+    });
+  }
+
+  public void shutdown() {
+    logger.info("Shutting down the HTTP/2 server...");
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close serverSocket: {}", serverSocket);
+    }
+    connections.forEach(Http2Connection::close);
+    connectionThreads.shutdownNow();
+    streamThreadPool.shutdownNow();
+  }
+}
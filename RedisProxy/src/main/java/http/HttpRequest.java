@@ -1,25 +1,230 @@
 package http;
 
+import buffer.PooledInputStream;
+import com.google.common.base.Ascii;
+import com.google.common.base.Charsets;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /** Simple value class representing an HTTP request sent to the server. */
 public class HttpRequest {
+  static final String GET = "GET";
+  static final String HEAD = "HEAD";
+  static final String POST = "POST";
+  /** Distinguishes the entity tag of a value's gzip-encoded form. */
+  static final String GZIP_TAG_SUFFIX = "-gzip";
+  /** The largest request body accepted, over HTTP/1.1 and HTTP/2. */
+  static final int MAX_BODY_BYTES = 1024 * 1024;
+  static final String BAD_REQUEST_STRING =
+      "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n";
+  static final String PAYLOAD_TOO_LARGE_STRING =
+      "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\n\r\n";
+
+  final String method;
   String key;
+  /** Header values by lower-case header name. */
+  final ImmutableMap<String, String> headers;
+  /** The body of a POST request, which is otherwise empty. */
+  final String body;
+
+  /** Thrown for a request that is rejected before it is read in full. */
+  static class InvalidRequestException extends IOException {
+    /** The complete HTTP/1.1 response to send. */
+    final String response;
+
+    InvalidRequestException(String response, String message) {
+      super(message);
+      this.response = response;
+    }
+  }
 
   public HttpRequest(String key) {
+    this(GET, key, ImmutableMap.of(), "");
+  }
+
+  HttpRequest(
+      String method,
+      String key,
+      Map<String, String> headers,
+      String body) {
+    this.method = method;
     this.key = key;
+    this.headers = ImmutableMap.copyOf(headers);
+    this.body = body;
   }
 
   public static HttpRequest parse(String str) throws IOException {
     String[] array = str.split("\\s+");
-    Preconditions.checkState(array[0].equals("GET"));
+    Preconditions.checkState(
+        array[0].equals(GET) || array[0].equals(HEAD) || array[0].equals(POST));
     Preconditions.checkState(array[1].startsWith("/"));
-    return new HttpRequest(array[1].substring(1));
+    return new HttpRequest(
+        array[0],
+        array[1].substring(1),
+        ImmutableMap.of(),
+        "");
+  }
+
+  /**
+   * Reads the request line and headers (up to the blank line after them), and
+   * the body of a POST request.
+   *
+   * @throws InvalidRequestException if the body's length is invalid or larger
+   *     than {@link #MAX_BODY_BYTES}
+   */
+  static HttpRequest read(PooledInputStream input) throws IOException {
+    HttpRequest request = parse(readLine(input));
+    Map<String, String> headers = new HashMap<>();
+    String line;
+    while ((line = readLine(input)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.merge(
+            Ascii.toLowerCase(line.substring(0, colon).trim()),
+            line.substring(colon + 1).trim(),
+            (first, second) -> first + ", " + second);
+      }
+    }
+    String body =
+        request.method.equals(POST)
+            ? readBody(input, contentLength(headers))
+            : "";
+    return new HttpRequest(request.method, request.key, headers, body);
+  }
+
+  /** Reads a line without its "\r\n", or returns null at end of stream. */
+  private static String readLine(PooledInputStream input) throws IOException {
+    String line = input.readLine();
+    return line != null && line.endsWith("\r")
+        ? line.substring(0, line.length() - 1)
+        : line;
+  }
+
+  /**
+   * Returns the Content-Length of a request given its (lower-case) headers,
+   * or 0 if it has none.
+   *
+   * @throws InvalidRequestException if it is not a number, or is larger than
+   *     {@link #MAX_BODY_BYTES}
+   */
+  static int contentLength(Map<String, String> headers)
+      throws InvalidRequestException {
+    String contentLength = headers.get("content-length");
+    if (contentLength == null) {
+      return 0;
+    }
+    if (!contentLength.matches("\\d+")) {
+      throw new InvalidRequestException(
+          BAD_REQUEST_STRING,
+          "invalid Content-Length: " + contentLength);
+    }
+    // Longer numbers would overflow, and are too large anyway.
+    if (contentLength.length() > 9
+        || Integer.parseInt(contentLength) > MAX_BODY_BYTES) {
+      throw new InvalidRequestException(
+          PAYLOAD_TOO_LARGE_STRING,
+          "request body too large: " + contentLength);
+    }
+    return Integer.parseInt(contentLength);
+  }
+
+  /** Reads a body of the specified length in bytes, decoded as UTF-8. */
+  private static String readBody(PooledInputStream input, int length)
+      throws IOException {
+    return new String(input.readNBytes(length), Charsets.UTF_8);
+  }
+
+  /**
+   * Returns the path, without the leading slash or the query string. Only
+   * admin requests have a query string: other paths are keys, whole.
+   */
+  String path() {
+    int question = key.indexOf('?');
+    return question < 0 ? key : key.substring(0, question);
+  }
+
+  /** Returns the (decoded) values of a query string parameter, in order. */
+  ImmutableList<String> queryParameters(String name) {
+    int question = key.indexOf('?');
+    if (question < 0) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<String> values = ImmutableList.builder();
+    String query = key.substring(question + 1);
+    for (String parameter : Splitter.on('&').split(query)) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0 && decode(parameter.substring(0, equals)).equals(name)) {
+        values.add(decode(parameter.substring(equals + 1)));
+      }
+    }
+    return values.build();
+  }
+
+  private static String decode(String component) {
+    try {
+      return URLDecoder.decode(component, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Returns whether the client accepts gzip-encoded responses. */
+  boolean acceptsGzip() {
+    String acceptEncoding = headers.get("accept-encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : Splitter.on(',').trimResults().split(acceptEncoding)) {
+      List<String> parts = Splitter.on(';').trimResults().splitToList(coding);
+      if ((parts.get(0).equalsIgnoreCase("gzip") || parts.get(0).equals("*"))
+          && !parts.subList(1, parts.size()).contains("q=0")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the response must omit the body. */
+  boolean isHead() {
+    return method.equals(HEAD);
+  }
+
+  /**
+   * Returns whether If-None-Match lists the entity tag with the specified
+   * hash. Tags are compared weakly, and a tag for the gzip-encoded form of a
+   * value matches its identity form too.
+   */
+  boolean ifNoneMatch(String hash) {
+    String ifNoneMatch = headers.get("if-none-match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : Splitter.on(',').trimResults().split(ifNoneMatch)) {
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      tag = CharMatcher.is('"').trimFrom(tag);
+      if (tag.equals(hash) || tag.equals(hash + GZIP_TAG_SUFFIX)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
   public String toString() {
-    return String.format("HttpRequest { Key=%s }", key);
+    return String.format("HttpRequest { Method=%s, Key=%s }", method, key);
   }
 }
@@ -1,72 +1,233 @@
 package http;
 
+import buffer.BufferPool;
+import buffer.PooledInputStream;
+import buffer.PooledOutputStream;
+import cache.CacheEntry;
 import cache.LruCache;
-import java.io.BufferedReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Utf8;
+import configuration.LiveConfiguration;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Optional;
+import java.net.SocketAddress;
 import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import server.ClientSocket;
 import server.Server;
 
 /** Handles an HTTP get request. */
 public class HttpRequestHandler implements Runnable {
 
-  public static final String FOUND_FORMAT_STRING = "HTTP/1.1 200 OK\r\n\r\n%s";
+  public static final String OK_STATUS = "HTTP/1.1 200 OK\r\n";
+  public static final String NOT_MODIFIED_STATUS =
+      "HTTP/1.1 304 Not Modified\r\n";
+  /** Headers preceding a streamed value, formatted with its length. */
+  public static final String FOUND_STREAMED_FORMAT_STRING =
+      "HTTP/1.1 200 OK\r\nContent-Length: %d\r\n\r\n";
   public static final String NO_CONTENT_STRING =
       "HTTP/1.1 204 No Content\r\n\r\n";
+  public static final String SERVICE_UNAVAILABLE_STRING =
+      "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n\r\n";
   private static final Logger logger =
       LoggerFactory.getLogger(HttpRequestHandler.class.getName());
-  private Socket socket;
-  private final BufferedReader inputReader;
-  private final OutputStream outputStream;
+  /** Null if the handler only writes responses (see {@link #respond}). */
+  private ClientSocket socket;
+  /**
+   * Where responses are written: a pooled buffer over the socket, set when
+   * the handler runs, or the stream given to the constructor.
+   */
+  private OutputStream outputStream;
   private final LruCache cache;
+  private final LiveConfiguration configuration;
+  /** The client's address, for the audit log of configuration changes. */
+  private final SocketAddress client;
 
-  public HttpRequestHandler(Socket socket, LruCache cache) throws IOException {
+  public HttpRequestHandler(
+      ClientSocket socket,
+      LruCache cache,
+      LiveConfiguration configuration) {
     this.socket = socket;
-    this.inputReader =
-        new BufferedReader(new InputStreamReader(socket.getInputStream()));
-    this.outputStream = socket.getOutputStream();
     this.cache = cache;
+    this.configuration = configuration;
+    this.client = socket.getRemoteSocketAddress();
   }
 
+  /**
+   * Constructor for a handler that writes responses to requests read by
+   * something else (e.g. an HTTP/2 stream) as HTTP/1.1.
+   */
+  HttpRequestHandler(
+      OutputStream outputStream,
+      LruCache cache,
+      LiveConfiguration configuration,
+      SocketAddress client) {
+    this.socket = null;
+    this.outputStream = outputStream;
+    this.cache = cache;
+    this.configuration = configuration;
+    this.client = client;
+  }
+
+  /**
+   * Reads the request and writes the response through buffers from the
+   * shared pool, which are acquired only now so that rejected requests never
+   * hold one.
+   */
   @Override
   public void run() {
-    try {
-      HttpRequest request = parseRequest();
-      String result = getResult(request);
-      writeToOutput(result);
-      closeSocket();
+    BufferPool pool = BufferPool.shared();
+    try (PooledInputStream input =
+            new PooledInputStream(socket.getInputStream(), pool);
+        PooledOutputStream output =
+            new PooledOutputStream(socket.getOutputStream(), pool)) {
+      outputStream = output;
+      HttpRequest request;
+      try {
+        request = HttpRequest.read(input);
+      } catch (HttpRequest.InvalidRequestException e) {
+        logger.debug("Rejected request: {}", e.getMessage());
+        writeToOutput(e.response);
+        return;
+      }
+      respond(request);
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
       closeSocket();
     }
   }
 
-  private HttpRequest parseRequest() {
+  /** Writes the full HTTP/1.1 response to the request. */
+  void respond(HttpRequest request) throws ExecutionException, IOException {
+    if (BatchEndpoint.handles(request)) {
+      BatchEndpoint.respond(
+          request,
+          cache,
+          outputStream,
+          configuration.get().httpBatchMaxKeys());
+    } else if (AdminEndpoint.handles(request)) {
+      writeToOutput(
+          withoutBodyIfHead(
+              request,
+              AdminEndpoint.respond(request, cache, configuration, client)));
+    } else {
+      CacheEntry entry = cache.getEntry(request.key);
+      if (entry.isLarge()) {
+        streamResult(request);
+      } else {
+        writeResult(request, entry);
+      }
+    }
+  }
+
+  /**
+   * Rejects the request without reading it (e.g. because it waited too long
+   * in the handler queue).
+   */
+  public void reject() {
     try {
-      return HttpRequest.parse(inputReader.readLine());
+      socket.getOutputStream()
+          .write(SERVICE_UNAVAILABLE_STRING.getBytes(Charsets.UTF_8));
     } catch (IOException e) {
-      e.printStackTrace();
-      throw new RuntimeException(e);
+      logger.warn("Encountered exception rejecting request: ", e);
+    } finally {
+      closeSocket();
+    }
+  }
+
+  /**
+   * Sends a cached value, gzip-encoded if it is held compressed and the client
+   * accepts gzip, or 304 if the client's copy (per If-None-Match) is current.
+   * <p>
+   * Responses carry the value's entity tag and a max-age equal to the time
+   * the value remains cached: the proxy would serve the same value until then.
+   */
+  private void writeResult(HttpRequest request, CacheEntry entry)
+      throws IOException {
+    if (!entry.hasValue()) {
+      writeToOutput(NO_CONTENT_STRING);
+      return;
+    }
+    // The status and headers are encoded straight into the output buffer.
+    boolean gzip = entry.gzipped().isPresent() && request.acceptsGzip();
+    boolean notModified = request.ifNoneMatch(entry.hash());
+    write(notModified ? NOT_MODIFIED_STATUS : OK_STATUS);
+    write("ETag: \"");
+    write(entry.hash());
+    if (gzip) {
+      write(HttpRequest.GZIP_TAG_SUFFIX);
+    }
+    write("\"\r\nCache-Control: max-age=");
+    PooledOutputStream.writeDecimal(
+        outputStream,
+        cache.remainingTtl(entry).getSeconds());
+    write("\r\n");
+    if (entry.gzipped().isPresent()) {
+      write("Vary: Accept-Encoding\r\n");
+    }
+    if (notModified) {
+      write("\r\n");
+      return;
+    }
+    if (gzip) {
+      write("Content-Encoding: gzip\r\n");
+    }
+    // A value is encoded straight into the output buffer, without copying it
+    // into an array first.
+    String value = gzip ? null : entry.value().get();
+    write("Content-Length: ");
+    PooledOutputStream.writeDecimal(
+        outputStream,
+        gzip ? entry.gzipped().get().length : Utf8.encodedLength(value));
+    write("\r\n\r\n");
+    if (request.isHead()) {
+      return;
+    }
+    if (gzip) {
+      outputStream.write(entry.gzipped().get());
+    } else {
+      PooledOutputStream.writeUtf8(outputStream, value);
+    }
+  }
+
+  private void write(String text) throws IOException {
+    PooledOutputStream.writeUtf8(outputStream, text);
+  }
+
+  /** Streams a value too large to cache from Redis to the client. */
+  private void streamResult(HttpRequest request)
+      throws ExecutionException, IOException {
+    if (request.isHead()) {
+      long length = cache.valueLength(request.key);
+      writeToOutput(
+          length < 0
+              ? NO_CONTENT_STRING
+              : String.format(FOUND_STREAMED_FORMAT_STRING, length));
+      return;
     }
+    cache.streamValue(
+        request.key,
+        outputStream,
+        length -> writeToOutput(
+            length < 0
+                ? NO_CONTENT_STRING
+                : String.format(FOUND_STREAMED_FORMAT_STRING, length)));
+    logger.debug("Streamed the value of {}", request.key);
   }
 
-  private String getResult(HttpRequest request) throws ExecutionException {
-    Optional<String> value = cache.get(request.key);
-    logger.info("cache.get({}) returned {}", request.key, value);
-    return value.map(v -> String.format(FOUND_FORMAT_STRING, v))
-        .orElse(NO_CONTENT_STRING);
+  private static String withoutBodyIfHead(
+      HttpRequest request,
+      String httpResponse) {
+    return request.isHead()
+        ? httpResponse.substring(0, httpResponse.indexOf("\r\n\r\n") + 4)
+        : httpResponse;
   }
 
   private void writeToOutput(String httpResponse) {
     try {
-      outputStream.write(httpResponse.getBytes("UTF-8"));
-      logger
-          .info("Wrote to outputStream: {}", httpResponse.replace("\n+", ": "));
+      PooledOutputStream.writeUtf8(outputStream, httpResponse);
     } catch (IOException e) {
       logger.warn("Encountered exception writing to output: ", httpResponse);
       e.printStackTrace();
@@ -2,14 +2,19 @@ package http;
 
 import cache.LruCache;
 import configuration.Configuration;
+import configuration.LiveConfiguration;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import server.AdmissionController;
+import server.ClientSocket;
+import server.ConcurrencyLimiter;
 import server.Server;
+import server.TcpListener;
+import server.UnixSocketListener;
 
 /**
  * Server that handles HTTP request/responses.
@@ -20,15 +25,57 @@ public class HttpServer extends Thread {
       LoggerFactory.getLogger(Server.class.getName());
 
   private final ExecutorService threadPool;
-  private final ServerSocket serverSocket;
+  private final AdmissionController admissionController;
+  private final ConcurrencyLimiter limiter;
+  private final TcpListener tcpListener;
+  /** Listens on HTTP_SOCKET_PATH, or null if it is not set. */
+  @Nullable private final UnixSocketListener unixListener;
   private final LruCache cache;
+  private final LiveConfiguration liveConfiguration;
 
-  public HttpServer(LruCache cache, Configuration configuration)
+  /**
+   * Constructor. The handler pool is resized when MAX_CONCURRENT_HANDLERS
+   * changes. If CONCURRENCY_LIMIT_MIN is set, requests are also limited by an
+   * adaptive {@link ConcurrencyLimiter}, bounded by the pool's size.
+   * <p>
+   * If HTTP_SOCKET_PATH is set, connections to that Unix domain socket are
+   * served too, by the same pool.
+   */
+  public HttpServer(LruCache cache, LiveConfiguration liveConfiguration)
       throws IOException {
-    serverSocket = new ServerSocket(configuration.httpPort());
+    Configuration configuration = liveConfiguration.get();
+    tcpListener =
+        new TcpListener(
+            "http",
+            configuration.httpPort(),
+            configuration.acceptorThreads(),
+            configuration.acceptBacklog(),
+            this::spawnRequestHandler);
+    unixListener =
+        configuration.httpSocketPath().isEmpty()
+            ? null
+            : new UnixSocketListener(
+                "http",
+                Paths.get(configuration.httpSocketPath()),
+                this::spawnRequestHandler);
     threadPool =
-        Executors.newFixedThreadPool(configuration.maxConcurrentHandlers());
+        configuration.executionMode()
+            .newExecutor(configuration.maxConcurrentHandlers());
+    admissionController =
+        AdmissionController.fromConfiguration("http", configuration);
+    limiter =
+        ConcurrencyLimiter.fromConfiguration(
+            "http",
+            configuration,
+            configuration.maxConcurrentHandlers());
     this.cache = cache;
+    this.liveConfiguration = liveConfiguration;
+    liveConfiguration.addListener(
+        updated -> {
+          updated.executionMode()
+              .resize(threadPool, updated.maxConcurrentHandlers());
+          limiter.setMaxLimit(updated.maxConcurrentHandlers());
+        });
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
@@ -36,45 +83,33 @@ public class HttpServer extends Thread {
       }
     });
     logger.info(
-        "HTTP server started with thread pool size [{}]...",
+        "HTTP server started with execution mode [{}] and thread pool size [{}]...",
+        configuration.executionMode(),
         configuration.maxConcurrentHandlers());
   }
 
   @Override
   public void run() {
-    while (!serverSocket.isClosed()) {
-      try {
-        Socket socket = waitForClientToConnect();
-        spawnRequestHandler(socket);
-      } catch (Exception e) {
-        logger.info("Encountered an Exception: {}", e.getMessage());
-        shutdown();
-        return;
-      }
+    if (unixListener != null) {
+      unixListener.start();
     }
+    tcpListener.start();
   }
 
-  private Socket waitForClientToConnect() throws IOException {
-    logger.info("Waiting for client to connect...");
-    Socket socket = serverSocket.accept();
-    logger.info("Client accepted: {}", socket);
-    return socket;
-  }
-
-  private void spawnRequestHandler(Socket socket) throws IOException {
-    threadPool.execute(new HttpRequestHandler(socket, cache));
+  private void spawnRequestHandler(ClientSocket socket) {
+    HttpRequestHandler handler =
+        new HttpRequestHandler(socket, cache, liveConfiguration);
+    threadPool.execute(
+        admissionController.wrap(
+            limiter.wrap(handler, handler::reject),
+            handler::reject));
   }
 
   public void shutdown() {
     logger.info("Shutting down the server...");
-    if (serverSocket != null) {
-      try {
-        serverSocket.close();
-        logger.warn("Closed server socket: {}", serverSocket);
-      } catch (IOException e) {
-        logger.warn("Failed to close serverSocket: {}", serverSocket);
-        e.printStackTrace();
-      }
+    tcpListener.shutdown();
+    if (unixListener != null) {
+      unixListener.shutdown();
     }
     threadPool.shutdownNow();
     logger.info("Shutdown threadpool: {}", threadPool);
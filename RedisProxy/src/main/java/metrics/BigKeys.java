@@ -0,0 +1,73 @@
+package metrics;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide record of the largest values seen, by key.
+ * <p>
+ * Only the {@link #CAPACITY} largest keys are kept, so recording a value
+ * smaller than all of them is a cheap volatile read. The list is served over
+ * HTTP by {@link http.AdminEndpoint}.
+ */
+public final class BigKeys {
+
+  static final int CAPACITY = 20;
+
+  /** Guarded by BigKeys.class. */
+  private static final Map<String, Long> sizes = new HashMap<>();
+  /** The smallest recorded size once the list is full, else 0. */
+  private static volatile long threshold;
+
+  private BigKeys() {}
+
+  /** Records the size (in bytes) of a key's value. */
+  public static void record(String key, long bytes) {
+    if (bytes <= threshold) {
+      return;
+    }
+    synchronized (BigKeys.class) {
+      sizes.put(key, bytes);
+      if (sizes.size() > CAPACITY) {
+        sizes.remove(smallest().getKey());
+      }
+      threshold = sizes.size() < CAPACITY ? 0 : smallest().getValue();
+    }
+  }
+
+  /** Returns the largest keys seen and their sizes, largest first. */
+  public static synchronized ImmutableMap<String, Long> snapshot() {
+    ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+    sizes.entrySet()
+        .stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .forEach(builder::put);
+    return builder.build();
+  }
+
+  /** Formats a snapshot as one "key bytes" pair per line. */
+  public static String format() {
+    StringBuilder output = new StringBuilder();
+    snapshot().forEach(
+        (key, bytes) -> output.append(key)
+            .append(' ')
+            .append(bytes)
+            .append('\n'));
+    return output.toString();
+  }
+
+  /** Forgets every key (for tests). */
+  static synchronized void clear() {
+    sizes.clear();
+    threshold = 0;
+  }
+
+  private static Map.Entry<String, Long> smallest() {
+    return sizes.entrySet()
+        .stream()
+        .min(Comparator.comparing(Map.Entry::getValue))
+        .get();
+  }
+}
@@ -0,0 +1,71 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ * <p>
+ * Percentiles are approximate (to within a factor of 2), which is plenty for
+ * operational metrics and for latency-based decisions (e.g. hedging).
+ */
+public class LatencyHistogram {
+
+  /** Bucket i holds samples in [2^(i-1), 2^i) micros; bucket 0 holds < 1us. */
+  private static final int BUCKETS = 40;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private volatile long maxMicros;
+
+  /** Records a single sample. */
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    buckets.incrementAndGet(bucketOf(micros));
+    count.increment();
+    totalMicros.add(micros);
+    if (micros > maxMicros) {
+      maxMicros = micros;
+    }
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long meanMicros() {
+    long n = count.sum();
+    return n == 0 ? 0 : totalMicros.sum() / n;
+  }
+
+  public long maxMicros() {
+    return maxMicros;
+  }
+
+  /**
+   * Returns the upper bound (in micros) of the bucket containing the specified
+   * percentile, or 0 if no samples have been recorded.
+   */
+  public long percentileMicros(double percentile) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile * n);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return i == 0 ? 1 : 1L << i;
+      }
+    }
+    return maxMicros;
+  }
+
+  private static int bucketOf(long micros) {
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+}
@@ -0,0 +1,73 @@
+package metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters, gauges and latency histograms.
+ * <p>
+ * Metrics are created lazily on first use, so callers can simply hold on to
+ * the returned instance (or look it up by name each time). A snapshot of all
+ * metrics is served over HTTP by {@link http.AdminEndpoint}.
+ */
+public final class Metrics {
+
+  private static final ConcurrentMap<String, LongAdder> counters =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongSupplier> gauges =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LatencyHistogram> histograms =
+      new ConcurrentHashMap<>();
+
+  private Metrics() {}
+
+  /** Returns the counter with the specified name, creating it if needed. */
+  public static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  /**
+   * Registers a gauge whose value is read on every snapshot. Re-registering a
+   * name replaces the previous gauge.
+   */
+  public static void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /** Returns the histogram with the specified name, creating it if needed. */
+  public static LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  /** Returns the current value of every metric, sorted by name. */
+  public static ImmutableSortedMap<String, Long> snapshot() {
+    ImmutableSortedMap.Builder<String, Long> builder =
+        ImmutableSortedMap.naturalOrder();
+    counters.forEach((name, counter) -> builder.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> builder.put(name, gauge.getAsLong()));
+    histograms.forEach((name, histogram) -> {
+      builder.put(name + ".count", histogram.count());
+      builder.put(name + ".mean_us", histogram.meanMicros());
+      builder.put(name + ".p50_us", histogram.percentileMicros(0.50));
+      builder.put(name + ".p99_us", histogram.percentileMicros(0.99));
+      builder.put(name + ".max_us", histogram.maxMicros());
+    });
+    return builder.build();
+  }
+
+  /** Formats a snapshot as one "name value" pair per line. */
+  public static String format() {
+    StringBuilder output = new StringBuilder();
+    for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+      output.append(entry.getKey())
+          .append(' ')
+          .append(entry.getValue())
+          .append('\n');
+    }
+    return output.toString();
+  }
+}
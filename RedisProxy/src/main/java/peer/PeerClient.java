@@ -0,0 +1,142 @@
+package peer;
+
+import cache.Peers.Fetched;
+import configuration.Endpoint;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Sends requests to one other proxy of the fleet.
+ * <p>
+ * Each request borrows an idle connection, or opens one, for its round
+ * trip. Up to PEER_CONNECTIONS connections are kept open for reuse; more
+ * are opened while requests are concurrent, and closed after. Connecting
+ * and every reply are bounded by PEER_TIMEOUT. A connection that fails is
+ * closed, so the next request reconnects.
+ */
+class PeerClient implements AutoCloseable {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /** An open connection to the peer. */
+  private static final class Connection {
+    final Socket socket;
+    final DataInputStream input;
+    final DataOutputStream output;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.input =
+          new DataInputStream(
+              new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+      this.output =
+          new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Already broken.
+      }
+    }
+  }
+
+  /** A round trip over a connection. */
+  @FunctionalInterface
+  private interface Exchange<T> {
+    T apply(Connection connection) throws IOException;
+  }
+
+  private final Endpoint endpoint;
+  private final int timeoutMillis;
+  private final BlockingQueue<Connection> idle;
+  private volatile boolean closed;
+
+  PeerClient(Endpoint endpoint, int maxIdleConnections, Duration timeout) {
+    this.endpoint = endpoint;
+    this.timeoutMillis = (int) timeout.toMillis();
+    this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdleConnections));
+  }
+
+  /** Asks the peer, which owns the key, for its entry. */
+  Fetched fetch(String key) throws IOException {
+    return exchange(
+        connection -> {
+          PeerProtocol.writeRequest(
+              connection.output,
+              PeerProtocol.FETCH,
+              key);
+          return PeerProtocol.readFetched(connection.input);
+        });
+  }
+
+  /** Tells the peer that the key was written. */
+  void invalidate(String key) throws IOException {
+    exchange(
+        connection -> {
+          PeerProtocol.writeRequest(
+              connection.output,
+              PeerProtocol.INVALIDATE,
+              key);
+          PeerProtocol.readOk(connection.input);
+          return null;
+        });
+  }
+
+  private <T> T exchange(Exchange<T> exchange) throws IOException {
+    if (closed) {
+      throw new IOException("Client of peer " + endpoint + " is closed");
+    }
+    Connection connection = idle.poll();
+    if (connection == null) {
+      connection = connect();
+    }
+    T result;
+    try {
+      result = exchange.apply(connection);
+    } catch (IOException e) {
+      // An error reply leaves the connection usable, but a timeout leaves a
+      // reply in flight; close it either way.
+      connection.close();
+      throw e;
+    }
+    if (closed || !idle.offer(connection)) {
+      connection.close();
+    }
+    return result;
+  }
+
+  private Connection connect() throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(
+          new InetSocketAddress(endpoint.host(), endpoint.port()),
+          timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      return new Connection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package peer;
+
+import cache.ConsistentHashRing;
+import cache.Peers;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import configuration.Configuration;
+import configuration.Endpoint;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * The fleet of proxies listed in PEERS, as seen from the one at PEER_SELF.
+ * <p>
+ * Keys are assigned to proxies with a consistent-hash ring, weighted like
+ * Redis shards, so every proxy configured with the same list agrees on each
+ * key's owner, and adding or removing a proxy only moves about 1/N of the
+ * keys.
+ * <p>
+ * A write's invalidation is sent to the key's owner first, and waited for,
+ * so that other proxies that miss afterwards cannot fetch the old value from
+ * it. The other proxies are sent it by a background thread per proxy, in
+ * the order of the writes, so that a slow proxy does not delay the others.
+ * An invalidation that fails is logged and dropped, leaving the proxy's
+ * entry to expire.
+ */
+public final class PeerGroup implements Peers, AutoCloseable {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  /** Ring points per unit of weight. */
+  private static final int VIRTUAL_NODES_PER_WEIGHT = 160;
+
+  private final Endpoint self;
+  private final ConsistentHashRing<Endpoint> ring;
+  private final ImmutableMap<Endpoint, PeerClient> clients;
+  /** A single thread per peer, which sends it invalidations. */
+  private final ImmutableMap<Endpoint, ExecutorService> broadcasters;
+  private final LongAdder fetches = Metrics.counter("peer.fetches");
+  private final LongAdder fetchErrors = Metrics.counter("peer.fetch_errors");
+  private final LatencyHistogram fetchTime = Metrics.histogram("peer.fetch");
+  private final LongAdder invalidationsSent =
+      Metrics.counter("peer.invalidations_sent");
+  private final LongAdder invalidationErrors =
+      Metrics.counter("peer.invalidation_errors");
+
+  private PeerGroup(Configuration configuration, Endpoint self) {
+    Preconditions.checkArgument(
+        configuration.peers().contains(self),
+        "PEER_SELF [%s] is not one of PEERS %s",
+        self,
+        configuration.peers());
+    this.self = self;
+    this.ring =
+        new ConsistentHashRing<>(
+            configuration.peers()
+                .stream()
+                .collect(
+                    ImmutableMap.toImmutableMap(
+                        peer -> peer,
+                        Endpoint::weight)),
+            VIRTUAL_NODES_PER_WEIGHT,
+            Endpoint::toString);
+    this.clients =
+        configuration.peers()
+            .stream()
+            .filter(peer -> !peer.equals(self))
+            .collect(
+                ImmutableMap.toImmutableMap(
+                    peer -> peer,
+                    peer -> new PeerClient(
+                        peer,
+                        configuration.peerConnections(),
+                        configuration.peerTimeout())));
+    this.broadcasters =
+        clients.keySet()
+            .stream()
+            .collect(
+                ImmutableMap.toImmutableMap(
+                    peer -> peer,
+                    peer -> Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder()
+                            .setNameFormat("peer-broadcaster-" + peer)
+                            .setDaemon(true)
+                            .build())));
+    logger.info("Peer {} of fleet {}", self, configuration.peers());
+  }
+
+  /**
+   * Returns the fleet configured by PEERS and PEER_SELF, or null if PEERS is
+   * empty.
+   */
+  @Nullable
+  public static PeerGroup fromConfiguration(Configuration configuration) {
+    if (configuration.peers().isEmpty()) {
+      return null;
+    }
+    Preconditions.checkArgument(
+        !configuration.peerSelf().isEmpty(),
+        "PEER_SELF is required with PEERS");
+    // Weights are part of the ring but not of a peer's identity.
+    Endpoint self = Endpoint.parse(configuration.peerSelf());
+    return new PeerGroup(
+        configuration,
+        configuration.peers()
+            .stream()
+            .filter(peer -> peer.toString().equals(self.toString()))
+            .findFirst()
+            .orElse(self));
+  }
+
+  /** Returns this proxy's entry in PEERS, whose port it listens on. */
+  public Endpoint self() {
+    return self;
+  }
+
+  /** Returns the proxy that owns the key. */
+  public Endpoint owner(String key) {
+    return ring.get(key);
+  }
+
+  @Override
+  public boolean isOwner(String key) {
+    return owner(key).equals(self);
+  }
+
+  @Override
+  public Fetched fetch(String key) throws IOException {
+    fetches.increment();
+    long start = System.nanoTime();
+    try {
+      return clients.get(owner(key)).fetch(key);
+    } catch (IOException e) {
+      fetchErrors.increment();
+      throw e;
+    } finally {
+      fetchTime.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public void invalidate(String key) {
+    Endpoint owner = owner(key);
+    if (!owner.equals(self)) {
+      sendInvalidation(owner, key);
+    }
+    for (Endpoint peer : clients.keySet()) {
+      if (!peer.equals(owner)) {
+        broadcasters.get(peer).execute(() -> sendInvalidation(peer, key));
+      }
+    }
+  }
+
+  private void sendInvalidation(Endpoint peer, String key) {
+    try {
+      clients.get(peer).invalidate(key);
+      invalidationsSent.increment();
+    } catch (IOException e) {
+      invalidationErrors.increment();
+      logger.info(
+          "Failed to send invalidation of [{}] to peer {}: {}",
+          key,
+          peer,
+          e.getMessage());
+    }
+  }
+
+  @Override
+  public void close() {
+    broadcasters.values().forEach(ExecutorService::shutdownNow);
+    clients.values().forEach(PeerClient::close);
+  }
+}
@@ -0,0 +1,154 @@
+package peer;
+
+import cache.Peers.Fetched;
+import cache.Peers.Fetched.Kind;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The protocol that the proxies of a fleet speak to each other, over
+ * persistent TCP connections to each other's PEER_SELF port.
+ * <p>
+ * Every request gets one reply, in order. A request is an op byte followed
+ * by the key (a length-prefixed UTF-8 string):
+ * <ul>
+ * <li>FETCH: asks the key's owner for its entry. The reply is a status
+ * byte, then the entry's freshness and the key's PTTL in milliseconds (two
+ * longs), then for VALUE the length-prefixed value, or for ERROR a message.
+ * <li>INVALIDATE: tells a proxy that the key was written. The reply is the
+ * OK status byte.
+ * </ul>
+ */
+final class PeerProtocol {
+
+  static final byte FETCH = 1;
+  static final byte INVALIDATE = 2;
+
+  static final byte OK = 0;
+  static final byte VALUE = 1;
+  static final byte ABSENT = 2;
+  static final byte LARGE = 3;
+  static final byte ERROR = 4;
+
+  /** Keys longer than this are rejected, so a bad length cannot OOM. */
+  static final int MAX_KEY_BYTES = 64 * 1024;
+  /** Values longer than this (Redis' own limit) are rejected likewise. */
+  static final int MAX_VALUE_BYTES = 512 * 1024 * 1024;
+  static final int MAX_ERROR_BYTES = 64 * 1024;
+
+  private PeerProtocol() {}
+
+  static void writeRequest(DataOutputStream output, byte op, String key)
+      throws IOException {
+    output.writeByte(op);
+    writeBytes(output, key.getBytes(Charsets.UTF_8));
+    output.flush();
+  }
+
+  /** Reads the key of a request whose op byte was read. */
+  static String readKey(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > MAX_KEY_BYTES) {
+      throw new IOException("Invalid key length: " + length);
+    }
+    byte[] key = new byte[length];
+    input.readFully(key);
+    return new String(key, Charsets.UTF_8);
+  }
+
+  static void writeFetched(DataOutputStream output, Fetched fetched)
+      throws IOException {
+    switch (fetched.kind()) {
+      case VALUE:
+        output.writeByte(VALUE);
+        break;
+      case ABSENT:
+        output.writeByte(ABSENT);
+        break;
+      default:
+        output.writeByte(LARGE);
+        break;
+    }
+    output.writeLong(fetched.freshMillis());
+    output.writeLong(fetched.pttlMillis());
+    if (fetched.kind() == Kind.VALUE) {
+      writeBytes(output, fetched.value());
+    }
+    output.flush();
+  }
+
+  static void writeError(DataOutputStream output, String message)
+      throws IOException {
+    output.writeByte(ERROR);
+    output.writeLong(0);
+    output.writeLong(-1);
+    writeBytes(output, String.valueOf(message).getBytes(Charsets.UTF_8));
+    output.flush();
+  }
+
+  /**
+   * Reads the reply to a FETCH.
+   *
+   * @throws IOException if the owner replied with an error
+   */
+  static Fetched readFetched(DataInputStream input) throws IOException {
+    byte status = input.readByte();
+    long freshMillis = input.readLong();
+    long pttlMillis = input.readLong();
+    switch (status) {
+      case VALUE:
+        return Fetched.create(
+            Kind.VALUE,
+            readBytes(input, MAX_VALUE_BYTES),
+            freshMillis,
+            pttlMillis);
+      case ABSENT:
+        return Fetched.create(Kind.ABSENT, null, freshMillis, pttlMillis);
+      case LARGE:
+        return Fetched.create(Kind.LARGE, null, freshMillis, pttlMillis);
+      case ERROR:
+        throw new IOException(
+            "Owner failed: "
+                + new String(readBytes(input, MAX_ERROR_BYTES), Charsets.UTF_8));
+      default:
+        throw new IOException("Invalid status: " + status);
+    }
+  }
+
+  /** Reads the reply to an INVALIDATE. */
+  static void readOk(DataInputStream input) throws IOException {
+    byte status = input.readByte();
+    if (status != OK) {
+      throw new IOException("Invalid status: " + status);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream output, byte[] bytes)
+      throws IOException {
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * Reads length-prefixed bytes. The buffer grows as they arrive, rather than
+   * being allocated from the length, so a peer that announces more than it
+   * sends cannot make the proxy allocate it.
+   */
+  private static byte[] readBytes(DataInputStream input, int maxLength)
+      throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Invalid length: " + length);
+    }
+    byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(input, length));
+    if (bytes.length < length) {
+      throw new EOFException(
+          String.format("Expected %d bytes, got %d", length, bytes.length));
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,202 @@
+package peer;
+
+import cache.LruCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import configuration.Configuration;
+import configuration.Endpoint;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Server that answers the other proxies of the fleet (see {@link
+ * PeerProtocol}) on the address and port of PEER_SELF.
+ * <p>
+ * Only connections from the addresses of PEERS (resolved at startup) are
+ * served; any other client is disconnected at once, since the protocol
+ * reads cached values and drops entries without further checks.
+ * <p>
+ * Each connection is served by a thread of its own for as long as the peer
+ * keeps it open. Peers keep at most PEER_CONNECTIONS idle connections each,
+ * and open more only while their requests are concurrent, so the pool is
+ * capped at twice that per other peer. Connections beyond the cap are
+ * closed, and the peer reads from Redis instead.
+ */
+public class PeerServer extends Thread {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final ServerSocket serverSocket;
+  private final ThreadPoolExecutor threadPool;
+  private final LruCache cache;
+  /** The addresses that connections are accepted from. */
+  private final ImmutableSet<InetAddress> allowedAddresses;
+  /** Open connections, closed on shutdown. */
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final LongAdder fetchesServed =
+      Metrics.counter("peer.fetches_served");
+  private final LongAdder invalidationsReceived =
+      Metrics.counter("peer.invalidations_received");
+  private final LongAdder connectionsRefused =
+      Metrics.counter("peer.connections_refused");
+
+  public PeerServer(
+      LruCache cache,
+      PeerGroup peers,
+      Configuration configuration) throws IOException {
+    Endpoint self = peers.self();
+    this.serverSocket =
+        new ServerSocket(
+            self.port(),
+            /* backlog= */ 0,
+            InetAddress.getByName(self.host()));
+    int maxHandlers =
+        Math.max(1, configuration.peers().size() - 1)
+            * configuration.peerConnections()
+            * 2;
+    this.threadPool =
+        new ThreadPoolExecutor(
+            0,
+            maxHandlers,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("peer-handler-%d")
+                .setDaemon(true)
+                .build());
+    this.cache = cache;
+    this.allowedAddresses = resolve(configuration.peers());
+    logger.info(
+        "Peer server started on [{}] with at most {} handlers...",
+        serverSocket.getLocalSocketAddress(),
+        maxHandlers);
+  }
+
+  /** Returns every address of the peers' hosts that can be resolved. */
+  private static ImmutableSet<InetAddress> resolve(Iterable<Endpoint> peers) {
+    ImmutableSet.Builder<InetAddress> addresses = ImmutableSet.builder();
+    for (Endpoint peer : peers) {
+      try {
+        addresses.addAll(Arrays.asList(InetAddress.getAllByName(peer.host())));
+      } catch (UnknownHostException e) {
+        logger.warn("Cannot resolve peer {}: {}", peer, e.getMessage());
+      }
+    }
+    return addresses.build();
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        if (!allowedAddresses.contains(socket.getInetAddress())) {
+          refuse(socket, "not a peer");
+          continue;
+        }
+        try {
+          threadPool.execute(() -> serve(socket));
+        } catch (RejectedExecutionException e) {
+          refuse(socket, "too many connections");
+        }
+      } catch (Exception e) {
+        logger.info("Encountered an Exception: {}", e.getMessage());
+        shutdown();
+        return;
+      }
+    }
+  }
+
+  private void refuse(Socket socket, String reason) {
+    connectionsRefused.increment();
+    logger.warn("Refused peer connection {}: {}", socket, reason);
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already closed.
+    }
+  }
+
+  private void serve(Socket socket) {
+    connections.add(socket);
+    try (Socket closing = socket) {
+      socket.setTcpNoDelay(true);
+      DataInputStream input =
+          new DataInputStream(
+              new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+      DataOutputStream output =
+          new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+      while (true) {
+        byte op;
+        try {
+          op = input.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+        String key = PeerProtocol.readKey(input);
+        switch (op) {
+          case PeerProtocol.FETCH:
+            fetchesServed.increment();
+            try {
+              PeerProtocol.writeFetched(output, cache.fetchForPeer(key));
+            } catch (ExecutionException e) {
+              PeerProtocol.writeError(output, e.getCause().getMessage());
+            }
+            break;
+          case PeerProtocol.INVALIDATE:
+            invalidationsReceived.increment();
+            cache.invalidateFromPeer(key);
+            output.writeByte(PeerProtocol.OK);
+            output.flush();
+            break;
+          default:
+            throw new IOException("Invalid op: " + op);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.info("Closing peer connection {}: {}", socket, e.getMessage());
+    } finally {
+      connections.remove(socket);
+    }
+  }
+
+  public void shutdown() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.info("Failed to close serverSocket: {}", serverSocket);
+    }
+    threadPool.shutdownNow();
+    for (Socket socket : connections) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+  }
+}
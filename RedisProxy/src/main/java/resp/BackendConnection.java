@@ -0,0 +1,230 @@
+package resp;
+
+import configuration.Endpoint;
+import io.lettuce.core.RedisCommandTimeoutException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * A pipelined connection to Redis that forwards raw RESP frames on behalf of
+ * any number of client connections.
+ * <p>
+ * Frames are queued and written by a single writer thread, which writes
+ * everything that is queued before flushing, so concurrent clients share
+ * writes (and Redis reads) instead of each paying for their own. Redis replies
+ * in order, so a reader thread hands each reply to the oldest frame that is
+ * still waiting for one.
+ * <p>
+ * If the connection fails, every outstanding frame fails and the next frame
+ * reconnects. So does a frame whose reply does not arrive in time: Redis
+ * replies in order, so every frame written after it is stuck behind it.
+ */
+class BackendConnection {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** A frame waiting to be written, and the future for its reply. */
+  private static final class Pending {
+    final byte[] frame;
+    final CompletableFuture<byte[]> reply;
+
+    Pending(byte[] frame, CompletableFuture<byte[]> reply) {
+      this.frame = frame;
+      this.reply = reply;
+    }
+  }
+
+  private final String name;
+  private final Endpoint endpoint;
+  private final BlockingQueue<Pending> queued = new LinkedBlockingQueue<>();
+  /** Replies expected from Redis, oldest first. */
+  private final Queue<CompletableFuture<byte[]>> awaitingReply =
+      new ConcurrentLinkedQueue<>();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final LongAdder flushes = Metrics.counter("resp.passthrough.flushes");
+  private final LongAdder timeouts =
+      Metrics.counter("resp.passthrough.timeouts");
+  private final Thread writer;
+  private volatile boolean closed;
+  /** The current socket, or null if disconnected. Guarded by this. */
+  private Socket socket;
+  private OutputStream outputStream;
+
+  BackendConnection(String name, Endpoint endpoint) {
+    this.name = name;
+    this.endpoint = endpoint;
+    Metrics.gauge(name + ".in_flight", outstanding::get);
+    writer = new Thread(this::writeLoop, name + "-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a frame and returns a future for Redis' (raw) reply to it, which
+   * fails if the reply does not arrive within the timeout (0 waits
+   * indefinitely).
+   */
+  CompletableFuture<byte[]> send(byte[] frame, long timeoutNanos) {
+    CompletableFuture<byte[]> reply = new CompletableFuture<>();
+    if (closed) {
+      reply.completeExceptionally(new IOException(name + " is closed"));
+      return reply;
+    }
+    outstanding.incrementAndGet();
+    reply.whenComplete((value, error) -> outstanding.decrementAndGet());
+    queued.add(new Pending(frame, reply));
+    if (timeoutNanos > 0) {
+      CompletableFuture.delayedExecutor(timeoutNanos, TimeUnit.NANOSECONDS)
+          .execute(() -> timeOut(reply, timeoutNanos));
+    }
+    return reply;
+  }
+
+  /**
+   * Fails the reply if it has not arrived yet and, if its frame was written,
+   * reconnects.
+   */
+  private void timeOut(CompletableFuture<byte[]> reply, long timeoutNanos) {
+    boolean written = awaitingReply.contains(reply);
+    String message =
+        String.format(
+            "Redis did not reply within %d ms",
+            TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+    if (!reply.completeExceptionally(
+        new RedisCommandTimeoutException(message))) {
+      return;
+    }
+    timeouts.increment();
+    if (written) {
+      disconnect(null, new IOException(message));
+    }
+  }
+
+  /** Returns the number of frames that have not been answered yet. */
+  int outstanding() {
+    return outstanding.get();
+  }
+
+  void close() {
+    closed = true;
+    writer.interrupt();
+    disconnect(null, new IOException(name + " is closed"));
+    Pending pending;
+    while ((pending = queued.poll()) != null) {
+      pending.reply.completeExceptionally(new IOException(name + " is closed"));
+    }
+  }
+
+  private void writeLoop() {
+    List<Pending> batch = new ArrayList<>();
+    while (!closed) {
+      try {
+        batch.add(queued.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queued.drainTo(batch);
+      try {
+        OutputStream output = connectIfNeeded();
+        for (Pending pending : batch) {
+          // Expect the reply before writing, since it may arrive immediately.
+          awaitingReply.add(pending.reply);
+          output.write(pending.frame);
+        }
+        output.flush();
+        flushes.increment();
+      } catch (IOException e) {
+        batch.forEach(pending -> pending.reply.completeExceptionally(e));
+        disconnect(null, e);
+      }
+      batch.clear();
+    }
+  }
+
+  private synchronized OutputStream connectIfNeeded() throws IOException {
+    if (socket == null) {
+      // Nothing can be waiting for a reply on a new connection.
+      failAwaitingReplies(new IOException("connection reset"));
+      Socket newSocket = new Socket(endpoint.host(), endpoint.port());
+      newSocket.setTcpNoDelay(true);
+      InputStream inputStream =
+          new BufferedInputStream(newSocket.getInputStream(), BUFFER_SIZE);
+      Thread reader =
+          new Thread(() -> readLoop(newSocket, inputStream), name + "-reader");
+      reader.setDaemon(true);
+      reader.start();
+      socket = newSocket;
+      outputStream =
+          new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE);
+      logger.info("Connected {} to {}", name, endpoint);
+    }
+    return outputStream;
+  }
+
+  private void readLoop(Socket readSocket, InputStream inputStream) {
+    try {
+      while (true) {
+        byte[] reply = RespProtocol.readRawReply(inputStream);
+        if (reply == null) {
+          throw new EOFException("Redis closed the connection");
+        }
+        CompletableFuture<byte[]> future = awaitingReply.poll();
+        if (future == null) {
+          throw new IOException("unexpected reply from Redis");
+        }
+        future.complete(reply);
+      }
+    } catch (IOException e) {
+      disconnect(readSocket, e);
+    }
+  }
+
+  /**
+   * Closes the socket (if it is still {@code expected}, or whichever socket
+   * is open if null) and fails every frame waiting for a reply.
+   */
+  private synchronized void disconnect(Socket expected, IOException cause) {
+    if (socket == null || (expected != null && expected != socket)) {
+      return;
+    }
+    if (!closed) {
+      logger.warn("Disconnected {} from {}: {}", name, endpoint, cause);
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close {}", socket);
+    }
+    socket = null;
+    outputStream = null;
+    failAwaitingReplies(cause);
+  }
+
+  private void failAwaitingReplies(IOException cause) {
+    CompletableFuture<byte[]> future;
+    while ((future = awaitingReply.poll()) != null) {
+      future.completeExceptionally(cause);
+    }
+  }
+}
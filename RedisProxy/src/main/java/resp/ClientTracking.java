@@ -0,0 +1,137 @@
+package resp;
+
+import cache.LruCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import server.Server;
+
+/**
+ * Server-side state for CLIENT TRACKING, which lets RESP3 clients keep their
+ * own copy of the values they read from the proxy.
+ * <p>
+ * The proxy remembers which tracking connections read each key (through GET)
+ * and, when the key's entry leaves the {@link LruCache} or is overwritten,
+ * pushes an invalidation message to them and forgets them, as Redis does. The
+ * proxy's cache stays coherent with writes made through the proxy, so its
+ * clients' copies do too. Entries also leave the cache when they expire or are
+ * evicted, which bounds how long a client can hold a value the proxy would no
+ * longer serve.
+ * <p>
+ * Pushes are written by a single background thread so that cache writers are
+ * never blocked by a slow client.
+ */
+public class ClientTracking {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private final ConcurrentMap<Long, RespConnection> connections =
+      new ConcurrentHashMap<>();
+  /** The subset of connections in broadcast mode. */
+  private final ConcurrentMap<Long, RespConnection> broadcasters =
+      new ConcurrentHashMap<>();
+  /** The ids of the (non-broadcast) connections that read each key. */
+  private final ConcurrentMap<String, Set<Long>> readers =
+      new ConcurrentHashMap<>();
+  private final ExecutorService pusher =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("resp-tracking-pusher")
+              .setDaemon(true)
+              .build());
+  private final LongAdder invalidations =
+      Metrics.counter("resp.tracking.invalidations");
+
+  public ClientTracking(LruCache cache) {
+    cache.addRemovalListener(this::invalidate);
+    Metrics.gauge("resp.tracking.clients", connections::size);
+    Metrics.gauge("resp.tracking.keys", readers::size);
+  }
+
+  /** Starts sending invalidations to the connection. */
+  void enable(RespConnection connection) {
+    connections.put(connection.id(), connection);
+    if (connection.isBroadcast()) {
+      broadcasters.put(connection.id(), connection);
+    } else {
+      broadcasters.remove(connection.id());
+    }
+  }
+
+  /**
+   * Stops sending invalidations to the connection (its entries in the table of
+   * readers are dropped lazily).
+   */
+  void disable(RespConnection connection) {
+    connections.remove(connection.id());
+    broadcasters.remove(connection.id());
+  }
+
+  /**
+   * Records that the connection is reading the key. Must be called before the
+   * value is read, so that a change made meanwhile is not missed.
+   */
+  void trackRead(RespConnection connection, String key) {
+    if (!connection.isTracking() || connection.isBroadcast()) {
+      return;
+    }
+    // compute() and remove() are atomic per key, so a read is either
+    // invalidated by a concurrent change or recorded for the next one.
+    readers.compute(key, (k, ids) -> {
+      Set<Long> result = ids == null ? new HashSet<>() : ids;
+      result.add(connection.id());
+      return result;
+    });
+  }
+
+  /** Tells every interested connection that the key has changed. */
+  void invalidate(String key) {
+    List<RespConnection> targets = new ArrayList<>();
+    Set<Long> ids = readers.remove(key);
+    if (ids != null) {
+      for (long id : ids) {
+        RespConnection connection = connections.get(id);
+        if (connection != null) {
+          targets.add(connection);
+        }
+      }
+    }
+    for (RespConnection connection : broadcasters.values()) {
+      if (connection.matchesPrefix(key)) {
+        targets.add(connection);
+      }
+    }
+    if (targets.isEmpty()) {
+      return;
+    }
+    invalidations.add(targets.size());
+    pusher.execute(() -> {
+      for (RespConnection connection : targets) {
+        try {
+          connection.pushInvalidation(key);
+        } catch (IOException e) {
+          logger.info(
+              "Failed to push invalidation to client {}: {}",
+              connection.id(),
+              e.getMessage());
+          disable(connection);
+        }
+      }
+    });
+  }
+
+  public void shutdown() {
+    pusher.shutdownNow();
+  }
+}
@@ -0,0 +1,159 @@
+package resp;
+
+import cache.ConsistentHashRing;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import configuration.Configuration;
+import configuration.Endpoint;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import metrics.Metrics;
+
+/**
+ * Forwards commands that the proxy does not cache to Redis as raw RESP frames,
+ * multiplexing every client connection onto a few pipelined
+ * {@link BackendConnection}s per Redis instance.
+ * <ul>
+ * <li>Commands are routed by their first argument (usually the key): to the
+ * shard that owns it, using the same ring as the cache, and then to one of
+ * that shard's connections. Commands for the same key therefore share a
+ * connection and are answered in order.
+ * <li>Multi-key commands are routed by their first key only, so with several
+ * shards all of their keys must live on the same shard.
+ * <li>Each reply is waited for at most REDIS_TIMEOUT, after which the command
+ * fails and its connection is reset.
+ * </ul>
+ */
+public class PassthroughEngine {
+
+  /** Immutable snapshot of the ring and the connections it points to. */
+  private static final class State {
+    final ConsistentHashRing<Endpoint> ring;
+    final ImmutableMap<Endpoint, ImmutableList<BackendConnection>> connections;
+
+    State(
+        ConsistentHashRing<Endpoint> ring,
+        ImmutableMap<Endpoint, ImmutableList<BackendConnection>> connections) {
+      this.ring = ring;
+      this.connections = connections;
+    }
+  }
+
+  private final int virtualNodesPerWeight;
+  private final int connectionsPerEndpoint;
+  private final LongAdder forwarded =
+      Metrics.counter("resp.passthrough.forwarded");
+  private volatile State state;
+  private volatile long timeoutNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param endpoints the Redis instances (shards) to forward to
+   * @param virtualNodesPerWeight ring points per unit of shard weight
+   * @param connectionsPerEndpoint pipelined connections to each instance
+   * @param timeout how long to wait for each reply (0 waits indefinitely)
+   */
+  public PassthroughEngine(
+      List<Endpoint> endpoints,
+      int virtualNodesPerWeight,
+      int connectionsPerEndpoint,
+      Duration timeout) {
+    Preconditions.checkArgument(connectionsPerEndpoint > 0);
+    this.virtualNodesPerWeight = virtualNodesPerWeight;
+    this.connectionsPerEndpoint = connectionsPerEndpoint;
+    this.timeoutNanos = timeout.toNanos();
+    this.state =
+        newState(
+            endpoints.stream()
+                .collect(ImmutableMap.toImmutableMap(
+                    endpoint -> endpoint,
+                    this::connect)));
+  }
+
+  /** Forwards a pass-through request and returns Redis' raw reply. */
+  CompletableFuture<byte[]> forward(RespRequest request) {
+    Preconditions.checkArgument(request.isPassthrough());
+    String key = request.arguments().isEmpty() ? "" : request.key();
+    State current = state;
+    List<BackendConnection> candidates =
+        current.connections.get(current.ring.get(key));
+    BackendConnection connection =
+        candidates.get(Math.floorMod(key.hashCode(), candidates.size()));
+    forwarded.increment();
+    return connection.send(request.rawFrame(), timeoutNanos);
+  }
+
+  /** Applies a new REDIS_TIMEOUT to the commands forwarded from now on. */
+  public void reconfigure(Configuration configuration) {
+    timeoutNanos = configuration.redisTimeout().toNanos();
+  }
+
+  /** Returns the Redis instance that commands for the key are sent to. */
+  public Endpoint endpointFor(String key) {
+    return state.ring.get(key);
+  }
+
+  /**
+   * Changes the Redis instances to forward to, keeping the same ring as the
+   * cache's {@link cache.ShardedRouter#setShards}. Instances that stay (by
+   * host:port) keep their connections, and those of removed instances are
+   * closed.
+   */
+  public synchronized void setEndpoints(List<Endpoint> endpoints) {
+    Preconditions.checkArgument(!endpoints.isEmpty(), "no endpoints");
+    ImmutableMap<Endpoint, ImmutableList<BackendConnection>> previous =
+        state.connections;
+    if (previous.keySet().equals(ImmutableSet.copyOf(endpoints))) {
+      return;
+    }
+    Map<String, ImmutableList<BackendConnection>> connections =
+        new HashMap<>();
+    previous.forEach(
+        (endpoint, list) -> connections.put(endpoint.toString(), list));
+    ImmutableMap.Builder<Endpoint, ImmutableList<BackendConnection>> updated =
+        ImmutableMap.builder();
+    for (Endpoint endpoint : endpoints) {
+      ImmutableList<BackendConnection> list =
+          connections.remove(endpoint.toString());
+      updated.put(endpoint, list != null ? list : connect(endpoint));
+    }
+    state = newState(updated.build());
+    connections.values()
+        .forEach(list -> list.forEach(BackendConnection::close));
+  }
+
+  private ImmutableList<BackendConnection> connect(Endpoint endpoint) {
+    return IntStream.range(0, connectionsPerEndpoint)
+        .mapToObj(i -> new BackendConnection(
+            "resp.passthrough." + endpoint + "." + i,
+            endpoint))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private State newState(
+      ImmutableMap<Endpoint, ImmutableList<BackendConnection>> connections) {
+    return new State(
+        new ConsistentHashRing<>(
+            connections.keySet()
+                .stream()
+                .collect(ImmutableMap.toImmutableMap(
+                    endpoint -> endpoint,
+                    Endpoint::weight)),
+            virtualNodesPerWeight,
+            Endpoint::toString),
+        connections);
+  }
+
+  public void close() {
+    state.connections.values()
+        .forEach(list -> list.forEach(BackendConnection::close));
+  }
+}
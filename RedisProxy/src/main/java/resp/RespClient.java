@@ -1,5 +1,6 @@
 package resp;
 
+import com.google.common.base.Charsets;
 import configuration.Configuration;
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
@@ -74,7 +75,9 @@ public class RespClient {
     BufferedReader inFromServer =
         new BufferedReader(
             new InputStreamReader(clientSocket.getInputStream()));
-    outToServer.writeBytes(bulkStringArray);
+    // One write, like a real client: the proxy may close the connection as
+    // soon as it has read a malformed request.
+    outToServer.write(bulkStringArray.getBytes(Charsets.ISO_8859_1));
     Thread.sleep(500);
     String response = readResponse(inFromServer);
     clientSocket.close();
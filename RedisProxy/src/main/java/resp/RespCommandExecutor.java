@@ -0,0 +1,458 @@
+package resp;
+
+import cache.CacheEntry;
+import cache.LruCache;
+import cache.LruCache.SetCondition;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.protocol.CommandType;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import resp.RespExceptions.UnsupportedRespFeatureException;
+import server.Server;
+
+/**
+ * Executes parsed RESP requests against the cache and encodes their replies.
+ * <ul>
+ * <li>GET is served from the cache.
+ * <li>Writes (SET, DEL, EXPIRE, ...) are forwarded to Redis and the cache is
+ * updated once Redis accepts them (see {@link LruCache}).
+ * <li>Any other command is passed through to Redis by the
+ * {@link PassthroughEngine}, if there is one. Keys modified by known string
+ * commands (INCR, APPEND, MSET, RENAME, ...) are then reloaded into the cache.
+ * <li>Connection commands (HELLO, CLIENT ID, CLIENT TRACKING) change the
+ * state of the client's {@link RespConnection}.
+ * </ul>
+ */
+class RespCommandExecutor {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  static final String SYNTAX_ERROR = "ERR syntax error";
+  static final String NOT_AN_INTEGER_ERROR =
+      "ERR value is not an integer or out of range";
+
+  private static final ImmutableSet<CommandType> WRITE_COMMANDS =
+      ImmutableSet.of(
+          CommandType.SET,
+          CommandType.SETEX,
+          CommandType.PSETEX,
+          CommandType.DEL,
+          CommandType.UNLINK,
+          CommandType.EXPIRE,
+          CommandType.PEXPIRE,
+          CommandType.EXPIREAT,
+          CommandType.PEXPIREAT,
+          CommandType.PERSIST);
+
+  /** Pass-through commands that modify the string value at their first key. */
+  private static final ImmutableSet<String> FIRST_KEY_WRITES =
+      ImmutableSet.of(
+          "APPEND",
+          "DECR",
+          "DECRBY",
+          "GETDEL",
+          "GETEX",
+          "GETSET",
+          "INCR",
+          "INCRBY",
+          "INCRBYFLOAT",
+          "MOVE",
+          "RESTORE",
+          "SETBIT",
+          "SETNX",
+          "SETRANGE");
+  private static final ImmutableSet<String> FLUSHES =
+      ImmutableSet.of("FLUSHALL", "FLUSHDB");
+
+  /** The Redis version whose protocol features the proxy offers. */
+  private static final String REDIS_VERSION = "6.0.0";
+
+  private final LruCache cache;
+  @Nullable
+  private final PassthroughEngine passthroughEngine;
+  private final RespConnection connection;
+  private final ClientTracking tracking;
+
+  /**
+   * Constructor.
+   *
+   * @param passthroughEngine forwards commands the proxy does not handle
+   *        itself, or null to reject them
+   * @param connection the connection whose commands are executed
+   */
+  RespCommandExecutor(
+      LruCache cache,
+      @Nullable PassthroughEngine passthroughEngine,
+      RespConnection connection,
+      ClientTracking tracking) {
+    this.cache = cache;
+    this.passthroughEngine = passthroughEngine;
+    this.connection = connection;
+    this.tracking = tracking;
+  }
+
+  /** Returns whether the request modifies Redis. */
+  static boolean isWrite(RespRequest request) {
+    return WRITE_COMMANDS.contains(request.commandType());
+  }
+
+  /**
+   * Returns whether the request is passed through and may modify cached
+   * values, in which case {@link #updateCacheAfter} must be called once it
+   * completes.
+   */
+  static boolean modifiesCache(RespRequest request) {
+    return request.isPassthrough()
+        && (FLUSHES.contains(request.name())
+            || !keysWrittenBy(request).isEmpty());
+  }
+
+  /**
+   * Forwards a pass-through request to Redis and returns its raw reply.
+   * Failures are encoded as RESP errors.
+   */
+  CompletableFuture<byte[]> forward(RespRequest request) {
+    if (passthroughEngine == null) {
+      String error =
+          new UnsupportedRespFeatureException(request.name()).getMessage();
+      return CompletableFuture.completedFuture(toBytes(error + "\r\n"));
+    }
+    return passthroughEngine.forward(request)
+        .exceptionally(error -> toBytes(toError(error)));
+  }
+
+  /** Brings the cache up to date after a pass-through request completed. */
+  void updateCacheAfter(RespRequest request) {
+    if (FLUSHES.contains(request.name())) {
+      cache.invalidateAll();
+      return;
+    }
+    keysWrittenBy(request).forEach(cache::reloadAfterWrite);
+  }
+
+  /** Returns the string keys modified by a pass-through request. */
+  private static ImmutableList<String> keysWrittenBy(RespRequest request) {
+    List<String> args = request.arguments();
+    if (args.isEmpty()) {
+      return ImmutableList.of();
+    }
+    switch (request.name()) {
+      case "MSET":
+      case "MSETNX":
+        // MSET key value [key value ...]
+        return IntStream.range(0, args.size())
+            .filter(i -> i % 2 == 0)
+            .mapToObj(args::get)
+            .collect(ImmutableList.toImmutableList());
+      case "RENAME":
+      case "RENAMENX":
+      case "COPY":
+        return ImmutableList.copyOf(args.subList(0, Math.min(2, args.size())));
+      case "BITOP":
+        // BITOP operation destkey key [key ...]
+        return args.size() > 1
+            ? ImmutableList.of(args.get(1))
+            : ImmutableList.of();
+      default:
+        return FIRST_KEY_WRITES.contains(request.name())
+            ? ImmutableList.of(args.get(0))
+            : ImmutableList.of();
+    }
+  }
+
+  private static byte[] toBytes(String reply) {
+    return reply.getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Executes the request and returns its reply. GETs of values too large to
+   * cache are not executed here: their reply streams the value when written.
+   */
+  RespReply reply(RespRequest request) {
+    if (request.commandType() != CommandType.GET) {
+      return RespReply.of(execute(request));
+    }
+    // The entry is looked up once, so that the read is counted once in the
+    // cache's metrics and hot keys.
+    String key = request.key();
+    tracking.trackRead(connection, key);
+    CacheEntry entry;
+    try {
+      entry = cache.getEntry(key);
+    } catch (ExecutionException e) {
+      return RespReply.of(toError(e.getCause()));
+    } catch (RuntimeException e) {
+      return RespReply.of(toError(e));
+    }
+    if (entry.isLarge()) {
+      return connection -> connection.writeStreamed(cache, key);
+    }
+    return RespReply.of(
+        withProtocolNull(RespProtocol.toBulkString(entry.value())));
+  }
+
+  /**
+   * Executes the request and returns its RESP-encoded reply. Errors (including
+   * those returned by Redis) are encoded as RESP errors.
+   */
+  String execute(RespRequest request) {
+    try {
+      String reply =
+          request.isConnectionCommand()
+              ? executeConnectionCommand(request)
+              : executeOrThrow(request);
+      return withProtocolNull(reply);
+    } catch (UnsupportedRespFeatureException e) {
+      return e.getMessage() + "\r\n";
+    } catch (NumberFormatException e) {
+      return RespProtocol.toError(NOT_AN_INTEGER_ERROR);
+    } catch (IllegalArgumentException e) {
+      return RespProtocol.toError(SYNTAX_ERROR);
+    } catch (ExecutionException e) {
+      return toError(e.getCause());
+    } catch (RuntimeException e) {
+      return toError(e);
+    }
+  }
+
+  /** Replaces a null bulk string with RESP3's null, for RESP3 clients. */
+  private String withProtocolNull(String reply) {
+    return connection.protocolVersion() >= 3
+        && reply.equals(RespProtocol.NULL_BULK_STRING)
+            ? RespProtocol.RESP3_NULL
+            : reply;
+  }
+
+  private String executeOrThrow(RespRequest request)
+      throws ExecutionException {
+    List<String> args = request.arguments();
+    switch (request.commandType()) {
+      case GET:
+        tracking.trackRead(connection, request.key());
+        return RespProtocol.toBulkString(cache.get(request.key()));
+      case SET:
+        return set(args);
+      case SETEX:
+        cache.set(
+            request.key(),
+            args.get(2),
+            Duration.ofSeconds(Long.parseLong(args.get(1))),
+            SetCondition.ALWAYS);
+        return RespProtocol.toSimpleString("OK");
+      case PSETEX:
+        cache.set(
+            request.key(),
+            args.get(2),
+            Duration.ofMillis(Long.parseLong(args.get(1))),
+            SetCondition.ALWAYS);
+        return RespProtocol.toSimpleString("OK");
+      case DEL:
+      case UNLINK:
+        long deleted = 0;
+        for (String key : args) {
+          if (cache.delete(key, request.commandType() == CommandType.UNLINK)) {
+            deleted++;
+          }
+        }
+        return RespProtocol.toInteger(deleted);
+      case EXPIRE:
+        return toInteger(
+            cache.expire(
+                request.key(),
+                Duration.ofSeconds(Long.parseLong(args.get(1)))));
+      case PEXPIRE:
+        return toInteger(
+            cache.expire(
+                request.key(),
+                Duration.ofMillis(Long.parseLong(args.get(1)))));
+      case EXPIREAT:
+        return toInteger(
+            cache.expireAt(
+                request.key(),
+                Instant.ofEpochSecond(Long.parseLong(args.get(1)))));
+      case PEXPIREAT:
+        return toInteger(
+            cache.expireAt(
+                request.key(),
+                Instant.ofEpochMilli(Long.parseLong(args.get(1)))));
+      case PERSIST:
+        return toInteger(cache.persist(request.key()));
+      default:
+        // The parser only produces supported commands.
+        throw new IllegalStateException(
+            "Unexpected command: " + request.commandType());
+    }
+  }
+
+  private String executeConnectionCommand(RespRequest request)
+      throws UnsupportedRespFeatureException {
+    List<String> args = request.arguments();
+    if (request.name().equals("HELLO")) {
+      return hello(args);
+    }
+    // CLIENT subcommand [arguments]
+    String subcommand = args.isEmpty() ? "" : args.get(0).toUpperCase();
+    switch (subcommand) {
+      case "ID":
+        return RespProtocol.toInteger(connection.id());
+      case "TRACKING":
+        return clientTracking(args.subList(1, args.size()));
+      default:
+        throw new UnsupportedRespFeatureException(
+            ("CLIENT " + subcommand).trim());
+    }
+  }
+
+  /** HELLO [protover] */
+  private String hello(List<String> args)
+      throws UnsupportedRespFeatureException {
+    if (args.size() > 1) {
+      // AUTH and SETNAME.
+      throw new UnsupportedRespFeatureException("HELLO " + args.get(1));
+    }
+    if (!args.isEmpty()) {
+      int version = Integer.parseInt(args.get(0));
+      if (version != 2 && version != 3) {
+        return RespProtocol.toError(
+            "NOPROTO unsupported protocol version");
+      }
+      connection.setProtocolVersion(version);
+    }
+    return RespProtocol.toMap(
+        ImmutableMap.<String, String>builder()
+            .put("server", toBulkString("redis"))
+            .put("version", toBulkString(REDIS_VERSION))
+            .put("proto", RespProtocol.toInteger(connection.protocolVersion()))
+            .put("id", RespProtocol.toInteger(connection.id()))
+            .put("mode", toBulkString("standalone"))
+            .put("role", toBulkString("master"))
+            .put("modules", RespProtocol.toArray(ImmutableList.of(), false))
+            .build(),
+        connection.protocolVersion());
+  }
+
+  /** CLIENT TRACKING ON|OFF [BCAST] [PREFIX prefix ...] */
+  private String clientTracking(List<String> args)
+      throws UnsupportedRespFeatureException {
+    if (args.isEmpty()) {
+      throw new IllegalArgumentException("missing ON|OFF");
+    }
+    boolean enable;
+    switch (args.get(0).toUpperCase()) {
+      case "ON":
+        enable = true;
+        break;
+      case "OFF":
+        enable = false;
+        break;
+      default:
+        throw new IllegalArgumentException(args.get(0));
+    }
+    boolean broadcast = false;
+    ImmutableList.Builder<String> prefixes = ImmutableList.builder();
+    for (int i = 1; i < args.size(); i++) {
+      String option = args.get(i).toUpperCase();
+      if (option.equals("BCAST")) {
+        broadcast = true;
+      } else if (option.equals("PREFIX") && i + 1 < args.size()) {
+        prefixes.add(args.get(++i));
+      } else if (option.equals("PREFIX")) {
+        throw new IllegalArgumentException(option);
+      } else {
+        // REDIRECT, OPTIN, OPTOUT and NOLOOP.
+        throw new UnsupportedRespFeatureException("CLIENT TRACKING " + option);
+      }
+    }
+    if (!enable) {
+      tracking.disable(connection);
+      connection.setTracking(false, false, ImmutableList.of());
+      return RespProtocol.toSimpleString("OK");
+    }
+    if (connection.protocolVersion() < 3) {
+      // Redis can redirect RESP2 invalidations to a pub/sub connection, but
+      // the proxy does not support pub/sub.
+      return RespProtocol.toError(
+          "ERR client tracking on the proxy requires RESP3 (send HELLO 3)");
+    }
+    if (!broadcast && !prefixes.build().isEmpty()) {
+      return RespProtocol.toError(
+          "ERR PREFIX option requires BCAST mode to be enabled");
+    }
+    connection.setTracking(true, broadcast, prefixes.build());
+    tracking.enable(connection);
+    return RespProtocol.toSimpleString("OK");
+  }
+
+  /** SET key value [EX seconds|PX milliseconds] [NX|XX] */
+  private String set(List<String> args) throws ExecutionException {
+    Duration expiry = null;
+    SetCondition condition = SetCondition.ALWAYS;
+    for (int i = 2; i < args.size(); i++) {
+      String option = args.get(i).toUpperCase();
+      switch (option) {
+        case "EX":
+        case "PX":
+          if (expiry != null || i + 1 == args.size()) {
+            throw new IllegalArgumentException(option);
+          }
+          long amount = Long.parseLong(args.get(++i));
+          expiry =
+              option.equals("EX")
+                  ? Duration.ofSeconds(amount)
+                  : Duration.ofMillis(amount);
+          break;
+        case "NX":
+        case "XX":
+          if (condition != SetCondition.ALWAYS) {
+            throw new IllegalArgumentException(option);
+          }
+          condition =
+              option.equals("NX")
+                  ? SetCondition.IF_ABSENT
+                  : SetCondition.IF_PRESENT;
+          break;
+        default:
+          throw new IllegalArgumentException(option);
+      }
+    }
+    boolean applied = cache.set(args.get(0), args.get(1), expiry, condition);
+    return applied
+        ? RespProtocol.toSimpleString("OK")
+        : RespProtocol.NULL_BULK_STRING;
+  }
+
+  private static String toBulkString(String value) {
+    return RespProtocol.toBulkString(Optional.of(value));
+  }
+
+  private static String toInteger(boolean value) {
+    return RespProtocol.toInteger(value ? 1 : 0);
+  }
+
+  private static String toError(Throwable error) {
+    while ((error instanceof ExecutionException
+        || error instanceof CompletionException) && error.getCause() != null) {
+      error = error.getCause();
+    }
+    if (error instanceof RedisCommandExecutionException) {
+      // Redis errors already start with their error code (e.g. "ERR").
+      return RespProtocol.toError(error.getMessage());
+    }
+    logger.warn("Command failed", error);
+    return RespProtocol.toError("ERR " + error.getMessage());
+  }
+}
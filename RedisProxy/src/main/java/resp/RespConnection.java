@@ -0,0 +1,175 @@
+package resp;
+
+import buffer.BufferPool;
+import buffer.PooledOutputStream;
+import cache.LruCache;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a single RESP client connection: its protocol version, its
+ * CLIENT TRACKING settings, and its output.
+ * <p>
+ * Replies and invalidation pushes share the output. While replies to
+ * pipelined commands are pending (a batch), pushes are held back and written
+ * once they are. A reply computed from a value that was invalidated meanwhile is
+ * therefore always followed by the push that invalidates it.
+ * <p>
+ * The output is buffered in a pooled buffer, which is flushed at the end of
+ * each batch and returned to the pool when the connection is closed.
+ */
+class RespConnection {
+
+  private static final AtomicLong NEXT_ID = new AtomicLong(1);
+  private static final byte[] CRLF = "\r\n".getBytes(Charsets.UTF_8);
+
+  private final long id = NEXT_ID.getAndIncrement();
+  private final PooledOutputStream outputStream;
+  private volatile int protocolVersion = 2;
+  private volatile boolean tracking;
+  private volatile boolean broadcast;
+  private volatile ImmutableList<String> prefixes = ImmutableList.of();
+  /** Guarded by this. */
+  private boolean batchInProgress;
+  /** Keys invalidated while a batch was in progress. Guarded by this. */
+  private final List<String> pendingInvalidations = new ArrayList<>();
+
+  RespConnection(OutputStream outputStream) {
+    this.outputStream =
+        new PooledOutputStream(outputStream, BufferPool.shared());
+  }
+
+  long id() {
+    return id;
+  }
+
+  int protocolVersion() {
+    return protocolVersion;
+  }
+
+  void setProtocolVersion(int protocolVersion) {
+    this.protocolVersion = protocolVersion;
+  }
+
+  boolean isTracking() {
+    return tracking;
+  }
+
+  /** Returns whether the connection tracks key prefixes instead of reads. */
+  boolean isBroadcast() {
+    return broadcast;
+  }
+
+  ImmutableList<String> prefixes() {
+    return prefixes;
+  }
+
+  /**
+   * Enables or disables CLIENT TRACKING. In broadcast mode the connection is
+   * told about every key that starts with one of the prefixes (or every key,
+   * if there are none), rather than about the keys it read.
+   */
+  void setTracking(
+      boolean tracking,
+      boolean broadcast,
+      ImmutableList<String> prefixes) {
+    this.tracking = tracking;
+    this.broadcast = broadcast;
+    this.prefixes = prefixes;
+  }
+
+  /** Returns whether a broadcast-mode connection wants to hear about a key. */
+  boolean matchesPrefix(String key) {
+    if (prefixes.isEmpty()) {
+      return true;
+    }
+    for (String prefix : prefixes) {
+      if (key.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Holds back invalidation pushes until {@link #endBatch()}. */
+  synchronized void beginBatch() {
+    batchInProgress = true;
+  }
+
+  /** Writes any invalidation pushes that were held back, and flushes. */
+  synchronized void endBatch() throws IOException {
+    batchInProgress = false;
+    for (String key : pendingInvalidations) {
+      write(RespProtocol.toInvalidationPush(key));
+    }
+    pendingInvalidations.clear();
+    outputStream.flush();
+  }
+
+  /** Tells the client that its copy of the key is no longer valid. */
+  synchronized void pushInvalidation(String key) throws IOException {
+    if (!tracking) {
+      return;
+    }
+    if (batchInProgress) {
+      pendingInvalidations.add(key);
+    } else {
+      write(RespProtocol.toInvalidationPush(key));
+      outputStream.flush();
+    }
+  }
+
+  synchronized void write(String response) throws IOException {
+    outputStream.writeUtf8(response);
+  }
+
+  synchronized void write(byte[] response) throws IOException {
+    outputStream.write(response);
+  }
+
+  synchronized void flush() throws IOException {
+    outputStream.flush();
+  }
+
+  /**
+   * Flushes the output and returns its buffer to the pool. Nothing can be
+   * written afterwards.
+   */
+  synchronized void close() throws IOException {
+    outputStream.close();
+  }
+
+  /**
+   * Writes the value of the key as a bulk string, streaming it from Redis.
+   * <p>
+   * Only the handler thread writes replies, and invalidation pushes are held
+   * back while a batch is in progress, so the stream is written without
+   * holding the connection's lock (which would block the pusher thread).
+   */
+  void writeStreamed(LruCache cache, String key)
+      throws IOException, ExecutionException {
+    boolean found =
+        cache.streamValue(
+            key,
+            outputStream,
+            length -> outputStream.write(
+                (length < 0
+                    ? nullReply()
+                    : "$" + length + "\r\n").getBytes(Charsets.UTF_8)));
+    if (found) {
+      outputStream.write(CRLF);
+    }
+  }
+
+  private String nullReply() {
+    return protocolVersion >= 3
+        ? RespProtocol.RESP3_NULL
+        : RespProtocol.NULL_BULK_STRING;
+  }
+}
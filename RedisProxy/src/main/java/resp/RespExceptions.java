@@ -9,12 +9,12 @@ public final class RespExceptions {
 
   static final String UNNEXPECTED_EMPTY_LINE_ERROR =
       "unnexpected empty line while parsing command";
-  static final String RESP_ARRAY_LENGTH_ERROR =
-      "this proxy server only supports bulk string arrays of size 2";
   static final String BULK_STRING_END_OF_LINE_ERROR_FORMAT =
       "bulk string %s ended incorrectly";
   static final String INVALID_MULTIBULK_LENGTH = "invalid multibulk length";
   static final String INVALID_BULK_LENGTH = "invalid bulk length";
+  static final String EXPECTED_BULK_STRING_ERROR_FORMAT =
+      "expected '$', got '%s'";
 
   /** Abstract exception class extended by all others. */
   abstract static class RespException extends Exception {
@@ -1,13 +1,24 @@
 package resp;
 
+import buffer.BufferPool;
+import buffer.PooledInputStream;
 import com.google.common.base.Charsets;
+import com.google.common.base.Enums;
+import com.google.common.base.Utf8;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import io.lettuce.core.protocol.CommandType;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import resp.RespExceptions.RespException;
@@ -20,6 +31,14 @@ import server.Server;
 public class RespProtocol {
 
   public static final String NULL_BULK_STRING = "$-1\r\n";
+  /** The RESP3 null, which replaces RESP2's null bulk string and array. */
+  public static final String RESP3_NULL = "_\r\n";
+  public static final String BUSY_ERROR =
+      "-BUSY proxy server is overloaded, try again later\r\n";
+  /** The longest bulk string accepted in a request, as in Redis. */
+  private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+  /** The most elements accepted in a request, as in Redis. */
+  private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
   /** Maps the first char of a message to its MessageType. */
   private static final ImmutableMap<Character, MessageType> TYPE_MAP =
       ImmutableMap.<Character, MessageType>builder()
@@ -30,6 +49,74 @@ public class RespProtocol {
           .put('*', MessageType.ARRAY)
           .build();
 
+  /**
+   * The commands supported by the proxy and their arity (the number of
+   * elements including the command name; negative means "at least").
+   */
+  private static final ImmutableMap<CommandType, Integer> ARITY =
+      ImmutableMap.<CommandType, Integer>builder()
+          .put(CommandType.GET, 2)
+          .put(CommandType.SET, -3)
+          .put(CommandType.SETEX, 4)
+          .put(CommandType.PSETEX, 4)
+          .put(CommandType.DEL, -2)
+          .put(CommandType.UNLINK, -2)
+          .put(CommandType.EXPIRE, 3)
+          .put(CommandType.PEXPIRE, 3)
+          .put(CommandType.EXPIREAT, 3)
+          .put(CommandType.PEXPIREAT, 3)
+          .put(CommandType.PERSIST, 2)
+          .build();
+
+  /** Commands that change the state of the client's connection to the proxy. */
+  private static final ImmutableSet<String> CONNECTION_COMMANDS =
+      ImmutableSet.of("CLIENT", "HELLO");
+
+  /**
+   * Commands that cannot be forwarded over a connection shared with other
+   * clients, because they block it or change its state.
+   */
+  private static final ImmutableSet<String> NOT_PASSTHROUGH =
+      ImmutableSet.of(
+          "AUTH",
+          "BLMOVE",
+          "BLMPOP",
+          "BLPOP",
+          "BRPOP",
+          "BRPOPLPUSH",
+          "BZMPOP",
+          "BZPOPMAX",
+          "BZPOPMIN",
+          "DISCARD",
+          "EXEC",
+          "MONITOR",
+          "MULTI",
+          "PSUBSCRIBE",
+          "PSYNC",
+          "PUNSUBSCRIBE",
+          "QUIT",
+          "READONLY",
+          "READWRITE",
+          "RESET",
+          "SELECT",
+          "SHUTDOWN",
+          "SUBSCRIBE",
+          "SWAPDB",
+          "SYNC",
+          "UNSUBSCRIBE",
+          "UNWATCH",
+          "WAIT",
+          "WAITAOF",
+          "WATCH");
+
+  /**
+   * Stream reads that block the connection when given the BLOCK option, and
+   * the number of leading arguments (group and consumer) that are not
+   * options.
+   */
+  private static final ImmutableMap<String, Integer> BLOCKING_STREAM_READS =
+      ImmutableMap.of("XREAD", 0, "XREADGROUP", 3);
+
   /** Different types of RESP messages. */
   enum MessageType {
     COMMAND, SIMPLE_STRING, ERROR, INTEGER, BULK_STRING, ARRAY;
@@ -43,41 +130,52 @@ public class RespProtocol {
   }
 
   /**
-   * Parses a list of GET commands from the provided input.
+   * Parses a list of commands from the provided input.
    */
   public static ImmutableList<RespRequest> parse(InputStream inputStream)
       throws IOException, RespException {
-    InputStreamReader inputReader =
-        new InputStreamReader(inputStream, Charsets.UTF_8);
+    try (PooledInputStream input =
+        new PooledInputStream(inputStream, BufferPool.shared())) {
+      return parse(input);
+    }
+  }
+
+  /**
+   * Parses the commands that are currently available from the provided input,
+   * blocking until at least one is available (or the stream ends, in which
+   * case the result is empty).
+   * <p>
+   * Callers that parse several batches from the same connection must reuse
+   * the same input, since it buffers input.
+   */
+  public static ImmutableList<RespRequest> parse(PooledInputStream input)
+      throws IOException, RespException {
     ImmutableList.Builder<RespRequest> listBuilder = ImmutableList.builder();
     do {
-      Optional<RespRequest> request = parseSingleRequest(inputReader);
+      Optional<RespRequest> request = parseSingleRequest(input);
       if (request.isPresent()) {
-        logger.info("Parsed request: {}", request.get());
         listBuilder.add(request.get());
       } else {
         break;
       }
-    } while (inputReader.ready());
-    logger.info(
-        "Parsed {} requests in total: {}",
-        listBuilder.build().size(),
-        listBuilder.build());
-    return listBuilder.build();
+    } while (input.available() > 0);
+    ImmutableList<RespRequest> requests = listBuilder.build();
+    logger.debug("Parsed {} requests", requests.size());
+    return requests;
   }
 
   public static Optional<RespRequest> parseSingleRequest(
-      InputStreamReader inputReader) throws IOException, RespException {
-    RespString firstLine = getFirstLine(inputReader);
+      PooledInputStream input) throws IOException, RespException {
+    RespString firstLine = getFirstLine(input);
     if (firstLine.line().isEmpty()) {
-      logger.warn("Input is empty!");
+      logger.debug("Input is empty.");
       return Optional.empty();
     }
     RespProtocol.MessageType messageType =
         RespProtocol.getMessageType(firstLine.line());
     switch (messageType) {
       case ARRAY:
-        return Optional.of(parseArrayCommand(firstLine, inputReader));
+        return Optional.of(parseArrayCommand(firstLine, input));
       case COMMAND:
         return Optional.of(parseSimpleCommand(firstLine));
       default:
@@ -89,93 +187,319 @@ public class RespProtocol {
   public static String toBulkString(Optional<String> result) {
     if (result.isPresent()) {
       String value = result.get();
-      int length = value.getBytes().length;
-      return String.format("$%d\r\n%s\r\n", length, value);
+      int length = Utf8.encodedLength(value);
+      return new StringBuilder(value.length() + 16).append('$')
+          .append(length)
+          .append("\r\n")
+          .append(value)
+          .append("\r\n")
+          .toString();
     } else {
       return NULL_BULK_STRING;
     }
   }
 
+  /** Converts a string into the equivalent simple string (e.g. "+OK"). */
+  public static String toSimpleString(String value) {
+    return "+" + value + "\r\n";
+  }
+
+  /** Converts a number into the equivalent RESP integer. */
+  public static String toInteger(long value) {
+    return ":" + value + "\r\n";
+  }
+
+  /**
+   * Converts already-encoded elements into an array, or (for RESP3) into a
+   * push message, which arrives outside the request/reply flow.
+   */
+  public static String toArray(List<String> encodedElements, boolean push) {
+    StringBuilder array =
+        new StringBuilder().append(push ? '>' : '*')
+            .append(encodedElements.size())
+            .append("\r\n");
+    encodedElements.forEach(array::append);
+    return array.toString();
+  }
+
+  /**
+   * Converts a map of already-encoded values into a RESP3 map, or (for RESP2)
+   * into an array of alternating keys and values.
+   */
+  public static String toMap(
+      Map<String, String> encodedValues,
+      int protocolVersion) {
+    StringBuilder map = new StringBuilder();
+    if (protocolVersion >= 3) {
+      map.append('%').append(encodedValues.size());
+    } else {
+      map.append('*').append(encodedValues.size() * 2);
+    }
+    map.append("\r\n");
+    encodedValues.forEach(
+        (key, value) -> map.append(toBulkString(Optional.of(key)))
+            .append(value));
+    return map.toString();
+  }
+
+  /** Returns the RESP3 push that invalidates a key tracked by a client. */
+  public static String toInvalidationPush(String key) {
+    return toArray(
+        ImmutableList.of(
+            toBulkString(Optional.of("invalidate")),
+            toArray(ImmutableList.of(toBulkString(Optional.of(key))), false)),
+        true);
+  }
+
+  /** Converts a message into a RESP error (e.g. "ERR syntax error"). */
+  public static String toError(String message) {
+    return "-" + message + "\r\n";
+  }
+
+  /**
+   * Reads one complete RESP reply from the stream and returns its bytes as
+   * they were received, without decoding any values.
+   *
+   * @return the reply, or null if the stream ended before the reply started
+   * @throws EOFException if the stream ended in the middle of the reply
+   */
+  static byte[] readRawReply(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    return copyRawReply(inputStream, reply) ? reply.toByteArray() : null;
+  }
+
+  private static boolean copyRawReply(
+      InputStream inputStream,
+      ByteArrayOutputStream reply) throws IOException {
+    int type = inputStream.read();
+    if (type == -1) {
+      return false;
+    }
+    reply.write(type);
+    long length = copyRawLine(inputStream, reply);
+    switch (type) {
+      case '$':
+        // Bulk string: the line holds its length (-1 for null), followed by
+        // the data and "\r\n".
+        for (long i = 0; length >= 0 && i < length + 2; i++) {
+          reply.write(readByte(inputStream));
+        }
+        break;
+      case '*':
+        // Array: the line holds its number of elements (-1 for null).
+        for (long i = 0; i < length; i++) {
+          if (!copyRawReply(inputStream, reply)) {
+            throw new EOFException("end of stream inside array reply");
+          }
+        }
+        break;
+      default:
+        // Simple string, error or integer: the line is the whole reply.
+    }
+    return true;
+  }
+
+  /**
+   * Copies the rest of a line (including its "\r\n") and returns it parsed as
+   * a number, or 0 if it is not one.
+   */
+  private static long copyRawLine(
+      InputStream inputStream,
+      ByteArrayOutputStream reply) throws IOException {
+    long number = 0;
+    boolean negative = false;
+    boolean numeric = true;
+    int b;
+    while ((b = readByte(inputStream)) != '\n') {
+      reply.write(b);
+      if (b == '-' && number == 0 && !negative) {
+        negative = true;
+      } else if (b >= '0' && b <= '9') {
+        number = number * 10 + (b - '0');
+      } else if (b != '\r') {
+        numeric = false;
+      }
+    }
+    reply.write(b);
+    return numeric ? (negative ? -number : number) : 0;
+  }
+
+  private static int readByte(InputStream inputStream) throws IOException {
+    int b = inputStream.read();
+    if (b == -1) {
+      throw new EOFException("end of stream inside reply");
+    }
+    return b;
+  }
+
   /** Formats a RESP bulk string into a single line for human-reading. */
   public static String formatNewLineChars(String str) {
     return str.replaceAll("\\r", "\\\\r").replaceAll("\\n", "\\\\n");
   }
 
   private static RespRequest parseSimpleCommand(RespString command)
-      throws UnsupportedRespFeatureException, WrongNumberOfArgumentsException {
-    String[] array = command.line().split("\\s+");
-    CommandType commandType = CommandType.valueOf(array[0]);
-    if (commandType != CommandType.GET) {
-      throw new UnsupportedRespFeatureException(commandType.name());
-    }
-    if (array.length != 2) {
-      throw new WrongNumberOfArgumentsException(commandType);
+      throws RespException {
+    String[] array = command.line().trim().split("\\s+");
+    return toRequest(
+        array[0],
+        Arrays.asList(array).subList(1, array.length),
+        () -> (command.line() + command.endOfLine()).getBytes(Charsets.UTF_8));
+  }
+
+  private static RespRequest parseArrayCommand(RespString arrayLengthLine,
+      PooledInputStream input) throws IOException, RespException {
+    int arrayLength = getArrayLength(arrayLengthLine.line());
+    // Not pre-sized from the client's count: the lists grow as elements
+    // actually arrive.
+    List<byte[]> bulkStrings = new ArrayList<>();
+    List<String> elements = new ArrayList<>();
+    for (int i = 0; i < arrayLength; i++) {
+      RespString lengthLine = readLine(input).verifyNotEmpty();
+      if (getMessageType(lengthLine.line()) != MessageType.BULK_STRING) {
+        throw new RespSyntaxException(
+            String.format(
+                RespExceptions.EXPECTED_BULK_STRING_ERROR_FORMAT,
+                lengthLine.line().charAt(0)));
+      }
+      byte[] bulkString =
+          readBulkString(input, getBulkLength(lengthLine.line()));
+      bulkStrings.add(bulkString);
+      elements.add(new String(bulkString, Charsets.UTF_8));
     }
-    String key = array[1];
-    return RespRequest.get(key);
+    return toRequest(
+        elements.get(0),
+        elements.subList(1, elements.size()),
+        () -> toRawFrame(bulkStrings));
   }
 
-  private static void checkExpectedBulkStringLength(RespString lengthLine,
-      RespString bulkString) {
-    // Warn if input has the wrong length, but handle it.
-    if (bulkString.line().length() != Integer
-        .parseInt(lengthLine.line().substring(1))) {
-      logger.warn("Unnexpected length of bulk string.");
-      logger.warn("lengthLins: {}", lengthLine);
-      logger.warn("bulkString: {}", bulkString);
+  /**
+   * Encodes the bulk strings of a request as it was received, except that
+   * lines end with "\r\n", which Redis requires.
+   */
+  private static byte[] toRawFrame(List<byte[]> bulkStrings) {
+    ByteArrayOutputStream rawFrame = new ByteArrayOutputStream();
+    writeLine(rawFrame, "*" + bulkStrings.size());
+    for (byte[] bulkString : bulkStrings) {
+      writeLine(rawFrame, "$" + bulkString.length);
+      rawFrame.writeBytes(bulkString);
+      rawFrame.write('\r');
+      rawFrame.write('\n');
     }
+    return rawFrame.toByteArray();
   }
 
-  private static RespRequest parseArrayCommand(RespString arrayLengthLine,
-      InputStreamReader inputReader) throws IOException, RespException {
-    validateArrayHasLength2(arrayLengthLine.line());
+  private static void writeLine(ByteArrayOutputStream output, String line) {
+    output.writeBytes(line.getBytes(Charsets.US_ASCII));
+    output.write('\r');
+    output.write('\n');
+  }
 
-    RespString commandLengthLine = readLine(inputReader).verifyNotEmpty();
-    RespString commandLine = readLine(inputReader).verifyNotEmpty();
-    CommandType commandType = CommandType.valueOf(commandLine.line());
-    checkExpectedBulkStringLength(commandLengthLine, commandLine);
-    if (commandType != CommandType.GET) {
-      throw new UnsupportedRespFeatureException(commandType.name());
+  /**
+   * Reads a bulk string's data by its declared length, so that it may hold
+   * any bytes (including "\r\n"), followed by the "\r\n" that ends it.
+   */
+  private static byte[] readBulkString(PooledInputStream input, int length)
+      throws IOException, RespException {
+    byte[] bulkString = input.readNBytes(length);
+    if (bulkString.length < length) {
+      throw new RespSyntaxException(
+          RespExceptions.UNNEXPECTED_EMPTY_LINE_ERROR);
     }
+    int carriageReturn = input.read();
+    int newLine = input.read();
+    if (carriageReturn == -1 || newLine == -1) {
+      throw new RespSyntaxException(
+          RespExceptions.UNNEXPECTED_EMPTY_LINE_ERROR);
+    }
+    if (carriageReturn != '\r' || newLine != '\n') {
+      throw new RespSyntaxException(RespExceptions.INVALID_BULK_LENGTH);
+    }
+    return bulkString;
+  }
 
-    RespString keyLengthLine = readLine(inputReader).verifyNotEmpty();
-    RespString keyLine = readLine(inputReader).verifyNotEmpty();
-    checkExpectedBulkStringLength(keyLengthLine, keyLine);
-
-    return RespRequest.get(keyLine.line());
+  /**
+   * Builds a request for a command handled by the proxy (validating its number
+   * of arguments), or a pass-through request for any other command. The raw
+   * frame is only encoded for pass-through requests.
+   */
+  private static RespRequest toRequest(
+      String command,
+      List<String> arguments,
+      Supplier<byte[]> rawFrame)
+      throws UnsupportedRespFeatureException, WrongNumberOfArgumentsException {
+    String name = command.toUpperCase();
+    if (NOT_PASSTHROUGH.contains(name) || isBlockingRead(name, arguments)) {
+      throw new UnsupportedRespFeatureException(name);
+    }
+    if (CONNECTION_COMMANDS.contains(name)) {
+      return RespRequest.connectionCommand(name, arguments);
+    }
+    CommandType commandType = Enums.getIfPresent(CommandType.class, name)
+        .orNull();
+    Integer arity = commandType == null ? null : ARITY.get(commandType);
+    if (arity == null) {
+      return RespRequest.passthrough(name, arguments, rawFrame.get());
+    }
+    // Like Redis, arity counts the command name and a negative arity means
+    // "at least".
+    int length = arguments.size() + 1;
+    if (arity > 0 ? length != arity : length < -arity) {
+      throw new WrongNumberOfArgumentsException(commandType);
+    }
+    return RespRequest.create(commandType, arguments);
   }
 
-  private static void validateArrayHasLength2(String arrayLengthLine)
-      throws RespSyntaxException, UnsupportedRespFeatureException {
-    if (getArrayLength(arrayLengthLine) != 2) {
-      throw new UnsupportedRespFeatureException(
-          RespExceptions.RESP_ARRAY_LENGTH_ERROR);
+  /** Returns whether the command is a stream read with the BLOCK option. */
+  private static boolean isBlockingRead(String name, List<String> arguments) {
+    Integer firstOption = BLOCKING_STREAM_READS.get(name);
+    if (firstOption == null) {
+      return false;
+    }
+    // Options come before STREAMS, which is followed by keys and ids.
+    for (int i = firstOption; i < arguments.size(); i++) {
+      String argument = arguments.get(i);
+      if (argument.equalsIgnoreCase("STREAMS")) {
+        return false;
+      }
+      if (argument.equalsIgnoreCase("BLOCK")) {
+        return true;
+      }
     }
+    return false;
   }
 
   private static int getArrayLength(String arrayFirstLine)
       throws RespSyntaxException {
     String possibleArrayLength = arrayFirstLine.substring(1);
-    // Enforce digits only and that it can't start with 0.
-    if (!possibleArrayLength.matches("[1-9]\\d*")) {
+    // Enforce digits only, that it can't start with 0, and a bound on the
+    // number of elements.
+    if (!possibleArrayLength.matches("[1-9]\\d{0,9}")
+        || Long.parseLong(possibleArrayLength) > MAX_MULTIBULK_LENGTH) {
       throw new RespSyntaxException(RespExceptions.INVALID_MULTIBULK_LENGTH);
     }
     return Integer.parseInt(possibleArrayLength);
   }
 
+  private static int getBulkLength(String lengthLine)
+      throws RespSyntaxException {
+    String possibleLength = lengthLine.substring(1);
+    // Digits only, like Redis, which also rejects "-1" in requests.
+    if (!possibleLength.matches("0|[1-9]\\d{0,9}")
+        || Long.parseLong(possibleLength) > MAX_BULK_LENGTH) {
+      throw new RespSyntaxException(RespExceptions.INVALID_BULK_LENGTH);
+    }
+    return Integer.parseInt(possibleLength);
+  }
+
   // Find the first real line of input, ignoring any leading "\r\n" or "\n".
-  private static RespString getFirstLine(InputStreamReader inputReader)
+  private static RespString getFirstLine(PooledInputStream input)
       throws IOException, RespException {
     do {
-      RespString firstLine = readLine(inputReader);
+      RespString firstLine = readLine(input);
       if (!firstLine.line().isEmpty()) {
-        logger.info("Found first line: {}", firstLine);
         return firstLine;
       }
-      logger.info(
-          "Skipped empty first line: {}",
-          formatNewLineChars(firstLine.line()));
-    } while (inputReader.ready());
+    } while (input.available() > 0);
     return RespString.EMPTY;
   }
 
@@ -183,33 +507,31 @@ public class RespProtocol {
    * Reads a line from input, enforcing end-of-line syntax before stripping
    * "\r\n" from the result.
    */
-  private static RespString readLine(InputStreamReader inputReader)
+  private static RespString readLine(PooledInputStream input)
       throws IOException, RespException {
-    RespString.Builder respString = RespString.newBuilder();
-    while (true) {
-      int i = inputReader.read();
-      if (i == -1) {
-        logger.warn("Encountered end of stream in middle of request.");
-        return RespString.EMPTY;
-      }
-      char c = (char) i;
-      // Check if this is the end of line.
-      if (c == '\r') {
-        if ((char) inputReader.read() == '\n') {
-          return respString.setEndOfLine("\r\n").build();
-        }
-        // Ending any line with only '\r' is never allowed.
-        throw new RespSyntaxException(
-            String.format(
-                RespExceptions.BULK_STRING_END_OF_LINE_ERROR_FORMAT,
-                respString.setEndOfLine("\r").build()));
-      }
-      // Some lines are allowed to end with only '\n'.
-      if (c == '\n') {
-        return respString.setEndOfLine("\n").build();
-      }
-      // Continue building the line.
-      respString.addToLine(c);
+    String line = input.readLine();
+    if (line == null) {
+      logger.warn("Encountered end of stream in middle of request.");
+      return RespString.EMPTY;
+    }
+    int carriageReturn = line.indexOf('\r');
+    // Some lines are allowed to end with only '\n'.
+    if (carriageReturn < 0) {
+      return RespString.newBuilder().setLine(line).setEndOfLine("\n").build();
+    }
+    // Ending any line with only '\r' is never allowed.
+    if (carriageReturn != line.length() - 1) {
+      throw new RespSyntaxException(
+          String.format(
+              RespExceptions.BULK_STRING_END_OF_LINE_ERROR_FORMAT,
+              RespString.newBuilder()
+                  .setLine(line.substring(0, carriageReturn))
+                  .setEndOfLine("\r")
+                  .build()));
     }
+    return RespString.newBuilder()
+        .setLine(line.substring(0, carriageReturn))
+        .setEndOfLine("\r\n")
+        .build();
   }
 }
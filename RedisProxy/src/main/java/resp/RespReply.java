@@ -0,0 +1,30 @@
+package resp;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A reply to a RESP request, written to the client when its turn comes.
+ * <p>
+ * Most replies are encoded up front; large values are instead streamed from
+ * Redis as they are written (see {@link RespConnection#writeStreamed}).
+ */
+@FunctionalInterface
+interface RespReply {
+
+  void writeTo(RespConnection connection)
+      throws IOException, ExecutionException;
+
+  /** Returns a reply that writes the already-encoded bytes. */
+  static RespReply of(byte[] encoded) {
+    return connection -> connection.write(encoded);
+  }
+
+  /**
+   * Returns a reply that writes the already-encoded text, encoding it to
+   * UTF-8 straight into the connection's buffer.
+   */
+  static RespReply of(String encoded) {
+    return connection -> connection.write(encoded);
+  }
+}
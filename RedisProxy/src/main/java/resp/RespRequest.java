@@ -1,22 +1,88 @@
 package resp;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 import io.lettuce.core.protocol.CommandType;
+import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * Simple value class representing a request/command sent to Redis.
  * <p>
- * Note: this only supports GET requests as of now, but it could be easily
- * extended to support other command types and parameter(s).
+ * The arguments exclude the command name itself, so for most commands the
+ * first argument is the key.
+ * <p>
+ * Commands the proxy does not handle itself are "pass-through" requests: they
+ * have no {@link #commandType()}, and keep the RESP frame they arrived in so
+ * that it can be forwarded to Redis as-is. Connection commands (HELLO,
+ * CLIENT) are handled by the proxy but have no {@link #commandType()} either.
  */
 @AutoValue
 public abstract class RespRequest {
+  /** The command, or null for pass-through and connection requests. */
+  @Nullable
   abstract CommandType commandType();
 
-  abstract String key();
+  /** The upper-case command name. */
+  abstract String name();
+
+  abstract ImmutableList<String> arguments();
+
+  /**
+   * The bytes of the request as it was received, for pass-through requests,
+   * or null for others. Callers must not modify it.
+   */
+  @Nullable
+  @SuppressWarnings("mutable")
+  abstract byte[] rawFrame();
+
+  /** Returns the first argument, which is the key for keyed commands. */
+  String key() {
+    return arguments().get(0);
+  }
+
+  /** Returns whether the request is forwarded to Redis as-is. */
+  boolean isPassthrough() {
+    return rawFrame() != null;
+  }
+
+  /** Returns whether the request changes the client's connection state. */
+  boolean isConnectionCommand() {
+    return commandType() == null && !isPassthrough();
+  }
 
   /** Create a GET request targeting the specified key. */
   static RespRequest get(String key) {
-    return new AutoValue_RespRequest(CommandType.GET, key);
+    return create(CommandType.GET, ImmutableList.of(key));
+  }
+
+  /** Create a request for a command handled by the proxy. */
+  static RespRequest create(CommandType commandType, List<String> arguments) {
+    return new AutoValue_RespRequest(
+        commandType,
+        commandType.name(),
+        ImmutableList.copyOf(arguments),
+        null);
+  }
+
+  /** Create a connection request (e.g. HELLO). */
+  static RespRequest connectionCommand(String name, List<String> arguments) {
+    return new AutoValue_RespRequest(
+        null,
+        name.toUpperCase(),
+        ImmutableList.copyOf(arguments),
+        null);
+  }
+
+  /** Create a pass-through request. */
+  static RespRequest passthrough(
+      String name,
+      List<String> arguments,
+      byte[] rawFrame) {
+    return new AutoValue_RespRequest(
+        null,
+        name.toUpperCase(),
+        ImmutableList.copyOf(arguments),
+        rawFrame);
   }
 }
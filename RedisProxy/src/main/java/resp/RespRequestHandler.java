@@ -1,124 +1,274 @@
 package resp;
 
-import cache.CallableGet;
+import buffer.BufferPool;
+import buffer.PooledInputStream;
 import cache.LruCache;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
 import configuration.Configuration;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import resp.RespExceptions.RespException;
+import server.ClientSocket;
+import server.ConcurrencyLimiter;
 import server.Server;
 
 /**
- * Handles one or more RESP commands sent in a single request.
+ * Handles the RESP commands sent over a single client connection.
  * <p>
- * If more than one command is sent in a single request, the commands are split
- * and processed in parallel, before their results are returned serially in the
- * same order as they were received.
+ * The connection stays open until the client closes it, and holds a thread
+ * of the server's handler pool all the while. Pipelined commands
+ * are streamed: each is dispatched as soon as it is parsed, and its reply is
+ * written as soon as it and every reply before it are ready, so replies are
+ * returned in the same order as the commands were received. Reads are
+ * processed in parallel, while each write waits for the commands before it
+ * and is then processed on its own, so that a read sees the writes sent
+ * before it.
+ * <p>
+ * At most MAX_PIPELINED_RESP_COMMANDS replies are pending at once. When the
+ * window is full, the handler stops reading and waits for the oldest reply,
+ * so a client that pipelines more commands is slowed down by TCP flow
+ * control rather than rejected, and the memory held per connection stays
+ * bounded.
+ * <p>
+ * Pass-through commands are forwarded without occupying a thread while Redis
+ * processes them; those that modify cached keys are treated like writes.
  */
 public class RespRequestHandler implements Runnable {
 
   private static final Logger logger =
       LoggerFactory.getLogger(Server.class.getName());
-  private final ExecutorService threadPool;
-  private Socket socket;
-  private final InputStream inputStream;
-  private final OutputStream outputStream;
+  private final Configuration configuration;
+  private ClientSocket socket;
   private final LruCache cache;
+  private final PassthroughEngine passthroughEngine;
+  private final ClientTracking tracking;
   private final int maxPipelinedRespCommands;
+  private final ConcurrencyLimiter limiter;
+  /**
+   * Set when the handler runs, so that rejected connections never hold
+   * pooled buffers or threads.
+   */
+  private ExecutorService threadPool;
+  private PooledInputStream input;
+  private RespConnection connection;
+  private RespCommandExecutor executor;
+  /**
+   * The replies that have not been written yet, in request order (i.e. the
+   * reorder buffer for replies that complete out of order).
+   */
+  private final Deque<Future<RespReply>> pendingReplies = new ArrayDeque<>();
 
   public RespRequestHandler(
-      Socket socket,
+      ClientSocket socket,
       LruCache cache,
-      Configuration configuration)
-      throws IOException {
-    threadPool =
-        Executors.newFixedThreadPool(configuration.maxPipelinedRespCommands());
+      PassthroughEngine passthroughEngine,
+      ClientTracking tracking,
+      ConcurrencyLimiter limiter,
+      Configuration configuration) {
+    this.configuration = configuration;
     this.socket = socket;
-    this.inputStream = socket.getInputStream();
-    this.outputStream = socket.getOutputStream();
     this.cache = cache;
+    this.passthroughEngine = passthroughEngine;
+    this.tracking = tracking;
     this.maxPipelinedRespCommands = configuration.maxPipelinedRespCommands();
+    this.limiter = limiter;
   }
 
   @Override
   public void run() {
     try {
-      logger.info("RESP request handler running...");
-      ImmutableList<RespRequest> requests = parseRequests();
-      List<Future<Optional<String>>> futures =
-          processAllRequestsInParallel(requests);
-      writeToOutput(futures);
+      threadPool =
+          configuration.executionMode()
+              .newExecutor(configuration.maxPipelinedRespCommands());
+      input =
+          new PooledInputStream(socket.getInputStream(), BufferPool.shared());
+      connection = new RespConnection(socket.getOutputStream());
+      executor =
+          new RespCommandExecutor(
+              cache,
+              passthroughEngine,
+              connection,
+              tracking);
+      while (true) {
+        if (input.available() == 0) {
+          // The client waits for the pending replies before it sends more.
+          writeAllPendingReplies();
+        }
+        Optional<RespRequest> request =
+            RespProtocol.parseSingleRequest(input);
+        if (!request.isPresent()) {
+          logger.debug("Client closed the connection.");
+          writeAllPendingReplies();
+          return;
+        }
+        if (pendingReplies.size() >= maxPipelinedRespCommands) {
+          writeOldestReply();
+        }
+        if (pendingReplies.isEmpty()) {
+          connection.beginBatch();
+        }
+        pendingReplies.add(dispatch(request.get()));
+        writeCompletedReplies();
+      }
     } catch (RespException e) {
+      try {
+        writeAllPendingReplies();
+      } catch (Exception pending) {
+        logger.info(
+            "Failed to write pending replies: {}",
+            pending.getMessage());
+      }
       writeToOutput(e.getMessage() + "\r\n");
     } catch (Exception e) {
       logger.info("RESP request handler encountered an exception!");
-      writeToOutput(
-          String.format("-ERR internal error - %s - %s", e.getClass(), e.getMessage()));
+      if (connection != null) {
+        writeToOutput(
+            String.format(
+                "-ERR internal error - %s - %s",
+                e.getClass(),
+                e.getMessage()));
+      }
     } finally {
+      if (connection != null) {
+        tracking.disable(connection);
+      }
+      releaseBuffers();
       closeSocket();
-      threadPool.shutdown();
+      if (threadPool != null) {
+        threadPool.shutdown();
+      }
     }
   }
 
-  private ImmutableList<RespRequest> parseRequests()
-      throws IOException, RespException {
-    ImmutableList<RespRequest> requests = RespProtocol.parse(inputStream);
-    logger.info("Parsed {} requests", requests.size());
-    if (requests.size() > maxPipelinedRespCommands) {
-      throw new RuntimeException(
-          String.format(
-              "Number of pipelined requests (%d) exceeds the limit (%d): %s",
-              requests.size(),
-              maxPipelinedRespCommands,
-              requests));
+  /**
+   * Rejects the request without reading it (e.g. because it waited too long
+   * in the handler queue).
+   */
+  public void reject() {
+    try {
+      socket.getOutputStream()
+          .write(RespProtocol.BUSY_ERROR.getBytes(Charsets.UTF_8));
+    } catch (IOException e) {
+      logger.warn("Encountered exception rejecting request: ", e);
+    } finally {
+      closeSocket();
     }
-    return requests;
   }
 
-  private ImmutableList<Future<Optional<String>>> processAllRequestsInParallel(
-      List<RespRequest> requests) throws InterruptedException {
-    return ImmutableList.copyOf(
-        threadPool.invokeAll(
-            requests.stream()
-                .map(request -> new CallableGet(cache, request.key()))
-                .collect(ImmutableList.toImmutableList())));
+  /**
+   * Submits the request to the thread pool (or Redis, for pass-through
+   * requests) and returns its reply. A write is a barrier: it waits for the
+   * pending replies, and is processed before this returns.
+   */
+  private Future<RespReply> dispatch(RespRequest request)
+      throws InterruptedException, ExecutionException {
+    boolean isWrite =
+        RespCommandExecutor.isWrite(request)
+            || RespCommandExecutor.modifiesCache(request)
+            || request.isConnectionCommand();
+    if (isWrite) {
+      for (Future<RespReply> pending : pendingReplies) {
+        pending.get();
+      }
+    }
+    if (request.isPassthrough()) {
+      Future<RespReply> future =
+          executor.forward(request).thenApply(RespReply::of);
+      if (isWrite) {
+        future.get();
+        executor.updateCacheAfter(request);
+      }
+      return future;
+    } else if (isWrite) {
+      return Futures.immediateFuture(replyWithinLimit(request));
+    } else {
+      return threadPool.submit(() -> replyWithinLimit(request));
+    }
   }
 
-  private void writeToOutput(List<Future<Optional<String>>> futures)
-      throws InterruptedException, ExecutionException {
-    for (Future<Optional<String>> future : futures) {
-      Optional<String> result = future.get();
-      String response = RespProtocol.toBulkString(result);
-      writeToOutput(response);
+  /**
+   * Executes a request once the concurrency limiter allows it, or replies
+   * -BUSY if it does not in time.
+   */
+  private RespReply replyWithinLimit(RespRequest request)
+      throws InterruptedException {
+    ConcurrencyLimiter.Permit permit = limiter.acquire();
+    if (permit == null) {
+      return RespReply.of(RespProtocol.BUSY_ERROR);
+    }
+    try {
+      return executor.reply(request);
+    } finally {
+      permit.release();
+    }
+  }
+
+  /** Writes the replies at the head of the window that are ready. */
+  private void writeCompletedReplies()
+      throws InterruptedException, ExecutionException, IOException {
+    while (!pendingReplies.isEmpty() && pendingReplies.peek().isDone()) {
+      writeOldestReply();
+    }
+  }
+
+  /** Waits for every pending reply and writes it. */
+  private void writeAllPendingReplies()
+      throws InterruptedException, ExecutionException, IOException {
+    while (!pendingReplies.isEmpty()) {
+      writeOldestReply();
+    }
+  }
+
+  /**
+   * Waits for the oldest pending reply and writes it. Invalidation pushes
+   * held back meanwhile are written once no reply is pending.
+   * <p>
+   * The output is flushed whenever the next reply is not ready, so that the
+   * replies written so far do not wait in the buffer for a slow one.
+   */
+  private void writeOldestReply()
+      throws InterruptedException, ExecutionException, IOException {
+    pendingReplies.poll().get().writeTo(connection);
+    if (pendingReplies.isEmpty()) {
+      connection.endBatch();
+    } else if (!pendingReplies.peek().isDone()) {
+      connection.flush();
     }
   }
 
   private void writeToOutput(String response) {
     try {
-      outputStream.write(response.getBytes("UTF-8"));
-      logger.info(
-          "Wrote to outputStream: {}",
-          RespProtocol.formatNewLineChars(response));
+      connection.write(response);
     } catch (IOException e) {
-      logger.warn(
-          "Encountered exception writing to output: ",
-          RespProtocol.formatNewLineChars(response));
+      logger.warn("Encountered exception writing to output: ");
       e.printStackTrace();
       throw new RuntimeException(e);
     }
   }
 
+  /** Flushes the output and returns the connection's buffers to the pool. */
+  private void releaseBuffers() {
+    if (input != null) {
+      input.close();
+    }
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    } catch (IOException e) {
+      logger.info("Failed to flush the last replies: {}", e.getMessage());
+    }
+  }
+
   private void closeSocket() {
     try {
       socket.close();
@@ -2,15 +2,19 @@ package resp;
 
 import cache.LruCache;
 import configuration.Configuration;
-import io.lettuce.core.RedisClient;
+import configuration.LiveConfiguration;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import server.AdmissionController;
+import server.ClientSocket;
+import server.ConcurrencyLimiter;
 import server.Server;
+import server.TcpListener;
+import server.UnixSocketListener;
 
 /**
  * Server that handles Resp request/responses.
@@ -21,20 +25,69 @@ public class RespServer extends Thread {
       LoggerFactory.getLogger(Server.class.getName());
 
   private final ExecutorService threadPool;
-  private final ServerSocket serverSocket;
+  private final AdmissionController admissionController;
+  private final ConcurrencyLimiter limiter;
+  private final TcpListener tcpListener;
+  /** Listens on RESP_SOCKET_PATH, or null if it is not set. */
+  @Nullable private final UnixSocketListener unixListener;
   private final LruCache cache;
-  private final Configuration configuration;
+  private final PassthroughEngine passthroughEngine;
+  private final ClientTracking tracking;
+  private final LiveConfiguration liveConfiguration;
 
+  /**
+   * Constructor. The handler pool is resized when MAX_CONCURRENT_HANDLERS
+   * changes, and connections accepted after MAX_PIPELINED_RESP_COMMANDS
+   * changes use the new limit. If CONCURRENCY_LIMIT_MIN is set, the commands
+   * executed at once across all connections are also limited by an adaptive
+   * {@link ConcurrencyLimiter}, bounded by the most that the pools allow.
+   * <p>
+   * If RESP_SOCKET_PATH is set, connections to that Unix domain socket are
+   * served too, by the same pool.
+   *
+   * @param passthroughEngine forwards commands the proxy does not handle
+   *        itself, or null to reject them
+   */
   public RespServer(
       LruCache cache,
-      Configuration configuration,
-      RedisClient redisClient)
+      PassthroughEngine passthroughEngine,
+      LiveConfiguration liveConfiguration)
       throws IOException {
-    serverSocket = new ServerSocket(configuration.respPort());
+    Configuration configuration = liveConfiguration.get();
+    tcpListener =
+        new TcpListener(
+            "resp",
+            configuration.respPort(),
+            configuration.acceptorThreads(),
+            configuration.acceptBacklog(),
+            this::spawnRequestHandler);
+    unixListener =
+        configuration.respSocketPath().isEmpty()
+            ? null
+            : new UnixSocketListener(
+                "resp",
+                Paths.get(configuration.respSocketPath()),
+                this::spawnRequestHandler);
     threadPool =
-        Executors.newFixedThreadPool(configuration.maxConcurrentHandlers());
+        configuration.executionMode()
+            .newExecutor(configuration.maxConcurrentHandlers());
+    admissionController =
+        AdmissionController.fromConfiguration("resp", configuration);
+    limiter =
+        ConcurrencyLimiter.fromConfiguration(
+            "resp",
+            configuration,
+            maxConcurrentCommands(configuration));
     this.cache = cache;
-    this.configuration = configuration;
+    this.passthroughEngine = passthroughEngine;
+    this.tracking = new ClientTracking(cache);
+    this.liveConfiguration = liveConfiguration;
+    liveConfiguration.addListener(
+        updated -> {
+          updated.executionMode()
+              .resize(threadPool, updated.maxConcurrentHandlers());
+          limiter.setMaxLimit(maxConcurrentCommands(updated));
+        });
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
@@ -42,47 +95,45 @@ public class RespServer extends Thread {
       }
     });
     logger.info(
-        "RESP server started with thread pool size [{}]...",
+        "RESP server started with execution mode [{}] and thread pool size [{}]...",
+        configuration.executionMode(),
         configuration.maxConcurrentHandlers());
   }
 
+  /** Returns how many commands the handler pools can execute at once. */
+  private static int maxConcurrentCommands(Configuration configuration) {
+    return configuration.maxConcurrentHandlers()
+        * configuration.maxPipelinedRespCommands();
+  }
+
   @Override
   public void run() {
-    while (!serverSocket.isClosed()) {
-      try {
-        Socket socket = waitForClientToConnect();
-        spawnRequestHandler(socket);
-      } catch (Exception e) {
-        logger.info("Encountered an Exception: {}", e.getMessage());
-        shutdown();
-        return;
-      }
+    if (unixListener != null) {
+      unixListener.start();
     }
+    tcpListener.start();
   }
 
-  private Socket waitForClientToConnect() throws IOException {
-    logger.info("Waiting for client to connect...");
-    Socket socket = serverSocket.accept();
-    logger.info("Client accepted: {}", socket);
-    return socket;
-  }
-
-  private void spawnRequestHandler(Socket socket) throws IOException {
-    threadPool.execute(new RespRequestHandler(socket, cache, configuration));
+  private void spawnRequestHandler(ClientSocket socket) throws IOException {
+    RespRequestHandler handler =
+        new RespRequestHandler(
+            socket,
+            cache,
+            passthroughEngine,
+            tracking,
+            limiter,
+            liveConfiguration.get());
+    threadPool.execute(admissionController.wrap(handler, handler::reject));
   }
 
   public void shutdown() {
     logger.info("Shutting down the server...");
-    if (serverSocket != null) {
-      try {
-        serverSocket.close();
-        logger.info("Closed server socket: {}", serverSocket);
-      } catch (IOException e) {
-        logger.info("Failed to close serverSocket: {}", serverSocket);
-        e.printStackTrace();
-      }
+    tcpListener.shutdown();
+    if (unixListener != null) {
+      unixListener.shutdown();
     }
     threadPool.shutdownNow();
+    tracking.shutdown();
     logger.info("Shutdown threadpool: {}", threadPool);
   }
 }
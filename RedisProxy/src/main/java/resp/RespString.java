@@ -44,11 +44,6 @@ public abstract class RespString {
 
     abstract Builder setLine(String str);
 
-    Builder addToLine(char c) {
-      setLine(line() + c);
-      return this;
-    }
-
     abstract Builder setEndOfLine(String str);
 
     abstract RespString build();
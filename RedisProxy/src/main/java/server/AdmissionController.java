@@ -0,0 +1,133 @@
+package server;
+
+import com.google.common.base.Ticker;
+import configuration.Configuration;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CoDel-style admission control for the queue in front of a handler pool.
+ * <p>
+ * Every task records how long it waited in the queue (its sojourn time) when a
+ * handler thread picks it up:
+ * <ul>
+ * <li>While the queue keeps draining (at least one task per interval waited
+ * less than the target delay), tasks are only shed once they have waited a
+ * full interval.
+ * <li>Once the minimum queue delay over an interval exceeds the target, the
+ * queue is considered standing and any task that waited longer than the target
+ * is shed immediately, which drains the backlog quickly.
+ * </ul>
+ * Shed tasks are rejected (e.g. HTTP 503 / RESP -BUSY) instead of being served
+ * after their client has likely given up.
+ */
+public class AdmissionController {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private final long targetNanos;
+  private final long intervalNanos;
+  private final Ticker ticker;
+  private final LongAdder admitted;
+  private final LongAdder shed;
+  private final LatencyHistogram queueDelay;
+
+  // Guarded by "this".
+  private long intervalEnd;
+  private long minDelayInInterval = Long.MAX_VALUE;
+  private boolean overloaded;
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix for this controller's metrics (e.g. "http")
+   */
+  public AdmissionController(
+      String name,
+      Duration targetDelay,
+      Duration interval,
+      Ticker ticker) {
+    this.targetNanos = targetDelay.toNanos();
+    this.intervalNanos = interval.toNanos();
+    this.ticker = ticker;
+    this.admitted = Metrics.counter(name + ".admission.admitted");
+    this.shed = Metrics.counter(name + ".admission.shed");
+    this.queueDelay = Metrics.histogram(name + ".admission.queue_delay");
+    this.intervalEnd = ticker.read() + intervalNanos;
+    Metrics.gauge(name + ".admission.overloaded", () -> isOverloaded() ? 1 : 0);
+  }
+
+  /** Creates an AdmissionController using the configured target/interval. */
+  public static AdmissionController fromConfiguration(
+      String name,
+      Configuration configuration) {
+    return new AdmissionController(
+        name,
+        configuration.admissionTargetDelay(),
+        configuration.admissionInterval(),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Wraps a task so that, when it is eventually run, it is either admitted or
+   * shed based on how long it waited.
+   *
+   * @param task run if the task is admitted
+   * @param onShed run instead of the task if it is shed
+   */
+  public Runnable wrap(Runnable task, Runnable onShed) {
+    long enqueuedAt = ticker.read();
+    return () -> {
+      if (admit(enqueuedAt)) {
+        task.run();
+      } else {
+        onShed.run();
+      }
+    };
+  }
+
+  /**
+   * Decides whether a task enqueued at the specified time (per this
+   * controller's ticker) should be served.
+   */
+  public boolean admit(long enqueuedAt) {
+    long now = ticker.read();
+    long delay = now - enqueuedAt;
+    queueDelay.record(delay);
+    if (targetNanos <= 0) {
+      // Admission control is disabled.
+      admitted.increment();
+      return true;
+    }
+    boolean admit;
+    synchronized (this) {
+      if (now >= intervalEnd) {
+        boolean wasOverloaded = overloaded;
+        overloaded = minDelayInInterval > targetNanos
+            && minDelayInInterval != Long.MAX_VALUE;
+        if (overloaded != wasOverloaded) {
+          logger.warn(
+              "Admission control {} overload (min queue delay {}us)",
+              overloaded ? "entering" : "leaving",
+              minDelayInInterval / 1000);
+        }
+        minDelayInInterval = Long.MAX_VALUE;
+        intervalEnd = now + intervalNanos;
+      }
+      minDelayInInterval = Math.min(minDelayInInterval, delay);
+      admit = delay <= (overloaded ? targetNanos : intervalNanos);
+    }
+    (admit ? admitted : shed).increment();
+    return admit;
+  }
+
+  /** Returns whether the queue is currently considered standing. */
+  public synchronized boolean isOverloaded() {
+    return overloaded;
+  }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.annotation.Nullable;
+
+/**
+ * A client's connection to one of the servers, over TCP or a Unix domain
+ * socket, as seen by the request handlers.
+ */
+public abstract class ClientSocket implements Closeable {
+
+  /** Returns the stream of the bytes the client sends. */
+  public abstract InputStream getInputStream() throws IOException;
+
+  /** Returns the stream of the bytes sent to the client. */
+  public abstract OutputStream getOutputStream() throws IOException;
+
+  /**
+   * Returns the client's address, for logs. The clients of a Unix domain
+   * socket are usually unnamed, so their address is an empty path.
+   */
+  @Nullable
+  public abstract SocketAddress getRemoteSocketAddress();
+
+  /** Wraps a TCP connection. */
+  public static ClientSocket of(Socket socket) {
+    return new TcpClientSocket(socket);
+  }
+
+  /** Wraps a connected, blocking socket channel (e.g. a Unix domain one). */
+  public static ClientSocket of(SocketChannel channel) {
+    return new ChannelClientSocket(channel);
+  }
+
+  private static final class TcpClientSocket extends ClientSocket {
+
+    private final Socket socket;
+
+    TcpClientSocket(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return socket.getOutputStream();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+      return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public String toString() {
+      return socket.toString();
+    }
+  }
+
+  /**
+   * A connection over a socket channel.
+   * <p>
+   * The streams call the channel directly rather than going through {@link
+   * java.nio.channels.Channels}, whose streams hold the channel's blocking
+   * lock while they read: a reply or invalidation push written while the
+   * handler waits for the next command would block until the client sent
+   * one.
+   */
+  private static final class ChannelClientSocket extends ClientSocket {
+
+    private final SocketChannel channel;
+    private final InputStream input;
+    private final OutputStream output;
+
+    ChannelClientSocket(SocketChannel channel) {
+      this.channel = channel;
+      this.input =
+          new InputStream() {
+            @Override
+            public int read() throws IOException {
+              byte[] b = new byte[1];
+              return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length)
+                throws IOException {
+              if (length == 0) {
+                return 0;
+              }
+              return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+          };
+      this.output =
+          new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+              write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length)
+                throws IOException {
+              ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+              while (buffer.hasRemaining()) {
+                channel.write(buffer);
+              }
+            }
+          };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return output;
+    }
+
+    @Override
+    @Nullable
+    public SocketAddress getRemoteSocketAddress() {
+      try {
+        return channel.getRemoteAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+
+    @Override
+    public String toString() {
+      return channel.toString();
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import configuration.Configuration;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive limit on the number of tasks (e.g. requests) served at once,
+ * adjusted from their latency like a TCP congestion window.
+ * <p>
+ * Every {@value #WINDOW_SAMPLES} completed tasks, the average latency over
+ * that window (the short RTT) is compared with a slowly moving average of
+ * past windows (the long RTT, the usual latency, which follows a lasting
+ * change over about {@value #LONG_WINDOWS} windows):
+ * <ul>
+ * <li>While the short RTT stays within {@value #TOLERANCE}x the long RTT,
+ * the limit grows by about its square root per window, probing for spare
+ * capacity. It does not grow while fewer than half of the permits are in
+ * use, since latency then says nothing about the limit.
+ * <li>Beyond that, the limit is scaled by the ratio of the two (the
+ * gradient, at most halving it per window), so queueing in a slower backend
+ * quickly lowers concurrency instead of amplifying the overload.
+ * </ul>
+ * Changes are smoothed, and the limit stays between the configured minimum
+ * and maximum; the maximum is the static setting that a fixed pool would
+ * use. Tasks that find no free permit wait for one for up to
+ * ADMISSION_INTERVAL, then are rejected like tasks shed by the {@link
+ * AdmissionController}.
+ * <p>
+ * A limiter with a minimum of 0 is disabled: it never limits, but still
+ * reports the number of tasks in flight.
+ */
+public class ConcurrencyLimiter {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  @VisibleForTesting static final int WINDOW_SAMPLES = 20;
+  /** How much slower than the long RTT the short RTT may be. */
+  @VisibleForTesting static final double TOLERANCE = 1.5;
+  /** How many windows the long RTT averages over. */
+  @VisibleForTesting static final int LONG_WINDOWS = 50;
+  /** The weight of a new limit against the current one. */
+  private static final double SMOOTHING = 0.2;
+
+  /** A permit to run a task, which must be released when it completes. */
+  public final class Permit {
+
+    private final long startNanos;
+    private final int inFlightAtStart;
+
+    private Permit(long startNanos, int inFlightAtStart) {
+      this.startNanos = startNanos;
+      this.inFlightAtStart = inFlightAtStart;
+    }
+
+    /** Releases the permit and records the task's latency. */
+    public void release() {
+      onRelease(this);
+    }
+  }
+
+  private final String name;
+  private final int minLimit;
+  private final long maxWaitNanos;
+  private final Ticker ticker;
+  private final LongAdder rejected;
+
+  // Guarded by "this".
+  private int maxLimit;
+  private double limit;
+  private int inFlight;
+  private int maxInFlightInWindow;
+  private long windowRttSum;
+  private int windowSamples;
+  private double longRttNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix for this limiter's metrics (e.g. "http")
+   * @param minLimit the lowest the limit may go (0 disables the limiter)
+   * @param maxLimit the highest the limit may go, and its initial value
+   * @param maxWait how long a task waits for a permit before it is rejected
+   */
+  public ConcurrencyLimiter(
+      String name,
+      int minLimit,
+      int maxLimit,
+      Duration maxWait,
+      Ticker ticker) {
+    Preconditions.checkArgument(minLimit >= 0, "minimum limit must be >= 0");
+    this.name = name;
+    this.minLimit = Math.min(minLimit, maxLimit);
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+    this.maxWaitNanos = maxWait.toNanos();
+    this.ticker = ticker;
+    this.rejected = Metrics.counter(name + ".concurrency.rejected");
+    Metrics.gauge(name + ".concurrency.limit", this::limit);
+    Metrics.gauge(name + ".concurrency.in_flight", this::inFlight);
+  }
+
+  /**
+   * Creates a limiter bounded by CONCURRENCY_LIMIT_MIN and the specified
+   * static limit, waiting up to ADMISSION_INTERVAL for permits.
+   */
+  public static ConcurrencyLimiter fromConfiguration(
+      String name,
+      Configuration configuration,
+      int maxLimit) {
+    return new ConcurrencyLimiter(
+        name,
+        configuration.concurrencyLimitMin(),
+        maxLimit,
+        configuration.admissionInterval(),
+        Ticker.systemTicker());
+  }
+
+  /**
+   * Wraps a task so that it runs only once it gets a permit, or runs
+   * onRejected instead if none becomes free in time.
+   */
+  public Runnable wrap(Runnable task, Runnable onRejected) {
+    return () -> {
+      Permit permit;
+      try {
+        permit = acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        permit = null;
+      }
+      if (permit == null) {
+        onRejected.run();
+        return;
+      }
+      try {
+        task.run();
+      } finally {
+        permit.release();
+      }
+    };
+  }
+
+  /**
+   * Returns a permit, waiting for one to become free for up to the maximum
+   * wait, or returns null if none does.
+   */
+  @Nullable
+  public synchronized Permit acquire() throws InterruptedException {
+    long deadline = System.nanoTime() + maxWaitNanos;
+    while (isEnabled() && inFlight >= limit()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        rejected.increment();
+        return null;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return grant();
+  }
+
+  /** Returns a permit if one is free, or null. */
+  @Nullable
+  public synchronized Permit tryAcquire() {
+    if (isEnabled() && inFlight >= limit()) {
+      rejected.increment();
+      return null;
+    }
+    return grant();
+  }
+
+  /** Sets the maximum limit (e.g. after MAX_CONCURRENT_HANDLERS changed). */
+  public synchronized void setMaxLimit(int maxLimit) {
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(Math.min(limit, maxLimit), minLimit);
+    notifyAll();
+  }
+
+  /** Returns the current limit. */
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  /** Returns the number of tasks holding a permit. */
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  private boolean isEnabled() {
+    return minLimit > 0;
+  }
+
+  // Called with "this" held.
+  private Permit grant() {
+    inFlight++;
+    maxInFlightInWindow = Math.max(maxInFlightInWindow, inFlight);
+    return new Permit(ticker.read(), inFlight);
+  }
+
+  private synchronized void onRelease(Permit permit) {
+    inFlight--;
+    notify();
+    if (!isEnabled()) {
+      return;
+    }
+    windowRttSum += ticker.read() - permit.startNanos;
+    windowSamples++;
+    maxInFlightInWindow = Math.max(maxInFlightInWindow, permit.inFlightAtStart);
+    if (windowSamples < WINDOW_SAMPLES) {
+      return;
+    }
+    double shortRtt = Math.max(1, (double) windowRttSum / windowSamples);
+    longRttNanos =
+        longRttNanos == 0
+            ? shortRtt
+            : longRttNanos + (shortRtt - longRttNanos) / LONG_WINDOWS;
+    if (longRttNanos > 2 * shortRtt) {
+      // Latency dropped for good (e.g. a slow backend recovered): let the
+      // long RTT catch up rather than holding the limit at its maximum.
+      longRttNanos = (longRttNanos + shortRtt) / 2;
+    }
+    double gradient =
+        Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRtt));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    if (maxInFlightInWindow < limit / 2) {
+      newLimit = Math.min(newLimit, limit);
+    }
+    int before = limit();
+    limit =
+        Math.max(
+            minLimit,
+            Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+    if (limit() != before) {
+      logger.debug(
+          "{} concurrency limit {} -> {} (latency {}us, usual {}us)",
+          name,
+          before,
+          limit(),
+          (long) shortRtt / 1000,
+          (long) longRttNanos / 1000);
+      notifyAll();
+    }
+    windowRttSum = 0;
+    windowSamples = 0;
+    maxInFlightInWindow = inFlight;
+  }
+}
@@ -0,0 +1,9 @@
+package server;
+
+import java.io.IOException;
+
+/** Serves a connection accepted by one of the listeners. */
+@FunctionalInterface
+public interface ConnectionHandler {
+  void handle(ClientSocket socket) throws IOException;
+}
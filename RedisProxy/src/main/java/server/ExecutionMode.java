@@ -0,0 +1,77 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Determines how the HTTP/RESP servers run their request handlers.
+ * <ul>
+ * <li>PLATFORM_THREADS: each server runs handlers on a fixed-size pool of
+ * platform threads (the pool size caps the number of concurrent clients).
+ * <li>VIRTUAL_THREADS: each accepted connection (and each pipelined cache
+ * load) runs on its own virtual thread, so blocking socket and Redis calls no
+ * longer pin a scarce platform thread.
+ * </ul>
+ * <p>
+ * Virtual threads require a Java 21+ runtime. The executor is looked up
+ * reflectively so the code still compiles against older JDKs.
+ */
+public enum ExecutionMode {
+  PLATFORM_THREADS {
+    @Override
+    public ExecutorService newExecutor(int poolSize) {
+      return Executors.newFixedThreadPool(poolSize);
+    }
+
+    @Override
+    public void resize(ExecutorService executor, int poolSize) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+      // The core size may never exceed the maximum size.
+      if (poolSize > pool.getMaximumPoolSize()) {
+        pool.setMaximumPoolSize(poolSize);
+        pool.setCorePoolSize(poolSize);
+      } else {
+        pool.setCorePoolSize(poolSize);
+        pool.setMaximumPoolSize(poolSize);
+      }
+    }
+  },
+  VIRTUAL_THREADS {
+    @Override
+    public ExecutorService newExecutor(int poolSize) {
+      try {
+        Method factory =
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(
+            String.format(
+                "Execution mode %s requires a Java 21+ runtime (running %s)",
+                name(),
+                System.getProperty("java.version")),
+            e);
+      }
+    }
+
+    @Override
+    public void resize(ExecutorService executor, int poolSize) {
+      // Every task gets its own thread: there is no pool to resize.
+    }
+  };
+
+  /**
+   * Returns a new executor for request handlers.
+   * <p>
+   * The pool size is only honored by modes that use a bounded pool.
+   */
+  public abstract ExecutorService newExecutor(int poolSize);
+
+  /**
+   * Changes the pool size of an executor returned by {@link #newExecutor}.
+   * Tasks that are running are not interrupted: a smaller pool shrinks as
+   * its threads finish them.
+   */
+  public abstract void resize(ExecutorService executor, int poolSize);
+}
@@ -1,16 +1,31 @@
 package server;
 
+import cache.ConnectionPool;
 import cache.LruCache;
+import cache.RedisRouter;
+import cache.ReplicaRouter;
+import cache.ShardedRouter;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import configuration.Configuration;
+import configuration.Endpoint;
+import configuration.LiveConfiguration;
+import http.Http2Server;
 import http.HttpServer;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisURI;
-import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import peer.PeerGroup;
+import peer.PeerServer;
+import resp.PassthroughEngine;
 import resp.RespServer;
 
 /**
@@ -22,22 +37,30 @@ import resp.RespServer;
  * <ul>
  * <li>8080: HTTP GET
  * <li>8124: Resp GET
+ * <li>PEER_SELF's port, if PEERS are configured: the other proxies of the
+ * fleet (see peer.PeerGroup)
  * </ul>
  * <p>
- * Each protocol manages its own threadpool of concurrent clients. Requests are
- * pipelined to Redis.
+ * Each protocol manages its own threadpool of concurrent clients. Cache misses
+ * are pipelined to Redis over a configurable pool of connections.
  */
 public class Server {
 
   private static final Logger logger =
       LoggerFactory.getLogger(Server.class.getName());
-  private final ExecutorService threadPool = Executors.newFixedThreadPool(2);
+  private final ExecutorService threadPool = Executors.newFixedThreadPool(4);
   private HttpServer httpServer;
+  private Http2Server http2Server;
   private RespServer respServer;
+  private ClientResources clientResources;
   private RedisClient redisClient;
-  private RedisAsyncCommands<String, String> commands;
+  private RedisRouter router;
+  private PassthroughEngine passthroughEngine;
   private LruCache cache;
+  private PeerGroup peerGroup;
+  private PeerServer peerServer;
   private Configuration configuration;
+  private LiveConfiguration liveConfiguration;
 
   /** Constructor. */
   public Server() {
@@ -59,7 +82,10 @@ public class Server {
   /**
    * Starts the server:
    * <ul>
-   * <li>Initializes the cache
+   * <li>Initializes the cache, as one of a fleet of proxies if PEERS are
+   * configured, and starts listening for the other proxies
+   * <li>Applies configuration changes (see {@link LiveConfiguration}) to the
+   * cache and the handler pools as they are made
    * <li>Starts an independent thread to listen for HTTP requests
    * <li>Starts an independent thread to listen for RESP requests
    * <ul>
@@ -68,19 +94,29 @@ public class Server {
     logger.info("*****************************");
     logger.info("Starting server with configuration {}", configuration);
     logger.info("*****************************");
-    redisClient =
-        RedisClient.create(
-            RedisURI.builder()
-                .withHost(configuration.redisHost())
-                .withPort(configuration.redisPort())
-                .build());
-    commands = redisClient.connect().async();
+    clientResources = createClientResources();
+    redisClient = RedisClient.create(clientResources);
+    router = createRouter();
+    peerGroup = PeerGroup.fromConfiguration(configuration);
     cache =
         LruCache.newBuilder()
-            .setCommands(commands)
+            .setRouter(router)
             .setConfiguration(configuration)
+            .setPeers(peerGroup)
             .build();
+    if (peerGroup != null) {
+      startPeerServer();
+    }
+    liveConfiguration = new LiveConfiguration(configuration);
+    liveConfiguration.addListener(cache::reconfigure);
+    passthroughEngine = createPassthroughEngine();
+    if (passthroughEngine != null) {
+      liveConfiguration.addListener(passthroughEngine::reconfigure);
+    }
     startHttpServer();
+    if (configuration.http2Port() != 0) {
+      startHttp2Server();
+    }
     startRespServer();
     logger.info("*****************************");
     logger.info("Server started!");
@@ -96,26 +132,144 @@ public class Server {
     new Server().start();
   }
 
+  /**
+   * Creates the Netty resources shared by all Redis connections, optionally
+   * overriding the number of I/O threads (Lettuce defaults to one per core).
+   */
+  private ClientResources createClientResources() {
+    DefaultClientResources.Builder builder = DefaultClientResources.builder();
+    if (configuration.redisIoThreads() > 0) {
+      builder.ioThreadPoolSize(configuration.redisIoThreads());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Creates the router used by the cache to reach Redis: a single pool of
+   * connections to REDIS_HOST:REDIS_PORT, or a consistent-hash ring over
+   * REDIS_SHARDS (each with its own pool) if any shards are configured.
+   * <p>
+   * If REDIS_REPLICAS are configured, reads are spread across them instead of
+   * the primary.
+   */
+  private RedisRouter createRouter() {
+    if (configuration.redisReplicas().isEmpty()) {
+      return createPrimaryRouter();
+    }
+    Preconditions.checkState(
+        configuration.redisShards().isEmpty(),
+        "REDIS_REPLICAS is only supported with a single primary");
+    return new ReplicaRouter(
+        createPrimaryRouter(),
+        configuration.redisReplicas()
+            .stream()
+            .collect(ImmutableMap.toImmutableMap(
+                replica -> replica,
+                replica -> connectionPool("redis.replica." + replica, replica))),
+        configuration.redisPrimaryOnlyPrefixes(),
+        configuration.redisReplicaHedgePercentile(),
+        Ticker.systemTicker());
+  }
+
+  private RedisRouter createPrimaryRouter() {
+    if (configuration.redisShards().isEmpty()) {
+      return connectionPool(
+          "redis",
+          Endpoint.create(configuration.redisHost(), configuration.redisPort()));
+    }
+    return new ShardedRouter(
+        configuration.redisShards()
+            .stream()
+            .collect(ImmutableMap.toImmutableMap(
+                shard -> shard,
+                shard -> connectionPool("redis.shard." + shard, shard))),
+        configuration.redisShardVirtualNodes());
+  }
+
+  private ConnectionPool connectionPool(String name, Endpoint endpoint) {
+    return ConnectionPool.connect(
+        name,
+        redisClient,
+        RedisURI.builder()
+            .withHost(endpoint.host())
+            .withPort(endpoint.port())
+            .build(),
+        configuration.redisConnections(),
+        configuration.redisRoutingPolicy());
+  }
+
+  /**
+   * Creates the engine that forwards uncached RESP commands to the primary
+   * (or the shards), or returns null if PASSTHROUGH_CONNECTIONS is 0.
+   */
+  private PassthroughEngine createPassthroughEngine() {
+    if (configuration.passthroughConnections() == 0) {
+      return null;
+    }
+    return new PassthroughEngine(
+        configuration.redisShards().isEmpty()
+            ? ImmutableList.of(
+                Endpoint.create(
+                    configuration.redisHost(),
+                    configuration.redisPort()))
+            : configuration.redisShards(),
+        configuration.redisShardVirtualNodes(),
+        configuration.passthroughConnections(),
+        configuration.redisTimeout());
+  }
+
   private void startRespServer() throws IOException {
-    respServer = new RespServer(cache, configuration, redisClient);
+    respServer = new RespServer(cache, passthroughEngine, liveConfiguration);
     threadPool.execute(respServer);
   }
 
+  private void startPeerServer() throws IOException {
+    peerServer = new PeerServer(cache, peerGroup, configuration);
+    threadPool.execute(peerServer);
+  }
+
   private void startHttpServer() throws IOException {
-    httpServer = new HttpServer(cache, configuration);
+    httpServer = new HttpServer(cache, liveConfiguration);
     threadPool.execute(httpServer);
   }
 
+  private void startHttp2Server() throws IOException {
+    http2Server = new Http2Server(cache, liveConfiguration);
+    threadPool.execute(http2Server);
+  }
+
   public void shutdown() {
     logger.info("Shutting down the server...");
-    commands.getStatefulConnection().close();
-    redisClient.shutdown();
+    if (peerServer != null) {
+      peerServer.shutdown();
+    }
+    if (peerGroup != null) {
+      peerGroup.close();
+    }
+    if (cache != null) {
+      cache.close();
+    }
+    if (router != null) {
+      router.close();
+    }
+    if (passthroughEngine != null) {
+      passthroughEngine.close();
+    }
+    if (redisClient != null) {
+      redisClient.shutdown();
+    }
+    if (clientResources != null) {
+      clientResources.shutdown();
+    }
     logger.info("Redis client disconnected and shutdown.");
     threadPool.shutdownNow();
     logger.info("Shutdown threadpool: {}", threadPool);
     if (httpServer != null) {
       httpServer.shutdown();
     }
+    if (http2Server != null) {
+      http2Server.shutdown();
+    }
     if (respServer != null) {
       respServer.shutdown();
     }
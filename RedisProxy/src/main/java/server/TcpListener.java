@@ -0,0 +1,252 @@
+package server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens on a TCP port with one or more acceptor threads, each handing the
+ * connections it accepts to a server's handlers.
+ * <p>
+ * With more than one acceptor, each gets its own listening socket bound with
+ * SO_REUSEPORT where the JDK and platform support it, so the kernel spreads
+ * incoming connections over separate accept queues. Otherwise the acceptors
+ * share a single socket. With a single acceptor the port is bound without
+ * SO_REUSEPORT, so a second process started on the same port still fails.
+ * <p>
+ * On Linux, the number of connections waiting in the accept queues is read
+ * from /proc/net/tcp{,6}, and the host-wide count of connections dropped
+ * because an accept queue was full from /proc/net/netstat.
+ */
+public class TcpListener {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private static final Path PROC_NET_TCP = Paths.get("/proc/net/tcp");
+  private static final Path PROC_NET_TCP6 = Paths.get("/proc/net/tcp6");
+  private static final Path PROC_NET_NETSTAT = Paths.get("/proc/net/netstat");
+  /** The state of a listening socket in /proc/net/tcp. */
+  private static final String TCP_LISTEN = "0A";
+  /** Splits a line of /proc/net/tcp up to the queue lengths' column. */
+  private static final Splitter FIELDS =
+      Splitter.on(' ').omitEmptyStrings().limit(6);
+
+  private final int port;
+  private final boolean reusePort;
+  private final ImmutableList<ServerSocket> serverSockets;
+  private final ImmutableList<Thread> acceptors;
+  private final ConnectionHandler handler;
+  private final LongAdder accepted;
+
+  /**
+   * Binds the listening socket(s).
+   *
+   * @param name the protocol, for the threads' names and metrics (e.g. "http")
+   * @param port the port to listen on, or 0 for an ephemeral one
+   * @param acceptorThreads how many threads accept connections
+   * @param backlog the maximum length of each socket's accept queue
+   */
+  public TcpListener(
+      String name,
+      int port,
+      int acceptorThreads,
+      int backlog,
+      ConnectionHandler handler) throws IOException {
+    if (acceptorThreads < 1) {
+      throw new IllegalArgumentException(
+          "acceptorThreads must be positive: " + acceptorThreads);
+    }
+    this.handler = handler;
+    this.accepted = Metrics.counter(name + ".accepted");
+    ServerSocket first = new ServerSocket();
+    reusePort =
+        acceptorThreads > 1
+            && first.supportedOptions()
+                .contains(StandardSocketOptions.SO_REUSEPORT);
+    List<ServerSocket> sockets = new ArrayList<>();
+    sockets.add(first);
+    try {
+      bind(first, port, backlog);
+      // An ephemeral port is only known once the first socket is bound.
+      this.port = first.getLocalPort();
+      for (int i = 1; reusePort && i < acceptorThreads; i++) {
+        ServerSocket socket = new ServerSocket();
+        sockets.add(socket);
+        bind(socket, this.port, backlog);
+      }
+    } catch (IOException e) {
+      for (ServerSocket socket : sockets) {
+        socket.close();
+      }
+      throw e;
+    }
+    serverSockets = ImmutableList.copyOf(sockets);
+    ImmutableList.Builder<Thread> threads = ImmutableList.builder();
+    for (int i = 0; i < acceptorThreads; i++) {
+      ServerSocket socket = serverSockets.get(reusePort ? i : 0);
+      Thread thread = new Thread(() -> accept(socket), name + "-acceptor-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+    }
+    acceptors = threads.build();
+    Metrics.gauge(name + ".accept.queue", this::acceptQueueLength);
+    Metrics.gauge(
+        "tcp.listen_overflows",
+        () -> readTcpExtCounter("ListenOverflows"));
+    Metrics.gauge("tcp.listen_drops", () -> readTcpExtCounter("ListenDrops"));
+    logger.info(
+        "Listening for {} connections on port [{}] with [{}] acceptor(s), "
+            + "[{}] socket(s) and backlog [{}]...",
+        name,
+        this.port,
+        acceptorThreads,
+        serverSockets.size(),
+        backlog);
+  }
+
+  private void bind(ServerSocket socket, int port, int backlog)
+      throws IOException {
+    if (reusePort) {
+      socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+    socket.bind(new InetSocketAddress(port), backlog);
+  }
+
+  /** Returns the port the listener is bound to. */
+  public int getLocalPort() {
+    return port;
+  }
+
+  /** Returns whether each acceptor has its own SO_REUSEPORT socket. */
+  public boolean reusesPort() {
+    return reusePort;
+  }
+
+  /** Starts accepting connections. */
+  public void start() {
+    acceptors.forEach(Thread::start);
+  }
+
+  private void accept(ServerSocket serverSocket) {
+    while (!serverSocket.isClosed()) {
+      try {
+        ClientSocket socket = ClientSocket.of(serverSocket.accept());
+        accepted.increment();
+        logger.debug("Client accepted: {}", socket);
+        handler.handle(socket);
+      } catch (Exception e) {
+        logger.info("Encountered an Exception: {}", e.getMessage());
+        shutdown();
+        return;
+      }
+    }
+  }
+
+  /** Stops listening. Connections already accepted are not affected. */
+  public void shutdown() {
+    for (ServerSocket serverSocket : serverSockets) {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        logger.info(
+            "Failed to close server socket [{}]: {}",
+            serverSocket,
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns how many connections wait to be accepted on the port, or -1 if
+   * that is unknown (i.e. not on Linux).
+   */
+  private long acceptQueueLength() {
+    try {
+      long length = acceptQueueLength(readLines(PROC_NET_TCP), port);
+      if (Files.isReadable(PROC_NET_TCP6)) {
+        length += acceptQueueLength(readLines(PROC_NET_TCP6), port);
+      }
+      return length;
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Sums the accept queues of the sockets listening on a port, given the
+   * lines of /proc/net/tcp or /proc/net/tcp6. For a listening socket, the
+   * receive queue column is the number of connections waiting to be
+   * accepted.
+   */
+  @VisibleForTesting
+  static long acceptQueueLength(List<String> lines, int port) {
+    String localPort = String.format(":%04X", port);
+    long length = 0;
+    // The first line is the header.
+    for (int i = 1; i < lines.size(); i++) {
+      List<String> fields = FIELDS.splitToList(lines.get(i));
+      if (fields.size() < 5
+          || !fields.get(1).endsWith(localPort)
+          || !fields.get(3).equals(TCP_LISTEN)) {
+        continue;
+      }
+      String queues = fields.get(4);
+      length += Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16);
+    }
+    return length;
+  }
+
+  /**
+   * Returns a host-wide TcpExt counter from /proc/net/netstat, or -1 if it is
+   * unknown.
+   */
+  private static long readTcpExtCounter(String counter) {
+    try {
+      return tcpExtCounter(readLines(PROC_NET_NETSTAT), counter);
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns a TcpExt counter given the lines of /proc/net/netstat, where
+   * each group of counters is a line of names followed by a line of values,
+   * or -1 if there is no such counter.
+   */
+  @VisibleForTesting
+  static long tcpExtCounter(List<String> lines, String counter) {
+    for (int i = 0; i + 1 < lines.size(); i++) {
+      if (!lines.get(i).startsWith("TcpExt:")
+          || !lines.get(i + 1).startsWith("TcpExt:")) {
+        continue;
+      }
+      List<String> names = Splitter.on(' ').splitToList(lines.get(i));
+      List<String> values = Splitter.on(' ').splitToList(lines.get(i + 1));
+      int index = names.indexOf(counter);
+      if (index > 0 && index < values.size()) {
+        return Long.parseLong(values.get(index));
+      }
+      return -1;
+    }
+    return -1;
+  }
+
+  private static List<String> readLines(Path path) throws IOException {
+    return Files.readAllLines(path, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens on a Unix domain socket and hands each accepted connection to a
+ * server's handlers, next to its TCP port.
+ * <p>
+ * Clients on the same host (e.g. an application the proxy runs beside as a
+ * sidecar) skip the TCP/IP stack this way. Access is controlled by the
+ * permissions of the socket file, which is removed on shutdown.
+ */
+public class UnixSocketListener extends Thread {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(Server.class.getName());
+
+  private final Path path;
+  private final ServerSocketChannel serverChannel;
+  private final ConnectionHandler handler;
+  private final LongAdder accepted;
+
+  /**
+   * Binds the socket. A socket file left at the path by a previous process
+   * is replaced; any other file there is an error.
+   *
+   * @param name the protocol, for the thread's name and metrics (e.g. "http")
+   */
+  public UnixSocketListener(String name, Path path, ConnectionHandler handler)
+      throws IOException {
+    super(name + "-unix-listener");
+    setDaemon(true);
+    this.path = path;
+    this.handler = handler;
+    this.accepted = Metrics.counter(name + ".unix.accepted");
+    deleteStaleSocket(path);
+    serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    serverChannel.bind(UnixDomainSocketAddress.of(path));
+    logger.info("Listening for {} connections on [{}]...", name, path);
+  }
+
+  private static void deleteStaleSocket(Path path) throws IOException {
+    if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    BasicFileAttributes attributes =
+        Files.readAttributes(
+            path,
+            BasicFileAttributes.class,
+            LinkOption.NOFOLLOW_LINKS);
+    if (!attributes.isOther()) {
+      throw new IOException("Not a socket, refusing to replace: " + path);
+    }
+    Files.delete(path);
+  }
+
+  @Override
+  public void run() {
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        accepted.increment();
+        logger.debug("Client accepted on [{}]", path);
+        handler.handle(ClientSocket.of(channel));
+      } catch (Exception e) {
+        logger.info("Encountered an Exception: {}", e.getMessage());
+        shutdown();
+        return;
+      }
+    }
+  }
+
+  /** Stops listening and removes the socket file. */
+  public void shutdown() {
+    try {
+      serverChannel.close();
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      logger.info("Failed to close Unix socket [{}]: {}", path, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package benchmark;
+
+import com.google.common.base.Charsets;
+import configuration.Configuration;
+import http.HttpClient;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import redis.embedded.RedisServer;
+import server.ExecutionMode;
+import server.Server;
+
+/**
+ * Compares the PLATFORM_THREADS and VIRTUAL_THREADS execution modes.
+ * <p>
+ * This is not a unit test (surefire does not pick it up). Run it manually:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=benchmark.ExecutionModeBenchmark -Dexec.args="500 10"
+ * </pre>
+ *
+ * Arguments: [concurrent clients] [seconds per run]. Virtual threads require a
+ * Java 21+ runtime.
+ */
+public class ExecutionModeBenchmark {
+
+  private static final int REDIS_PORT = 6391;
+  private static final int HTTP_PORT = 8188;
+  private static final int RESP_PORT = 9199;
+  private static final String KEY = "benchmark-key";
+
+  public static void main(String[] args) throws Exception {
+    int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    Duration duration =
+        Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 5);
+
+    RedisServer redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    RedisClient redisClient =
+        RedisClient.create(
+            RedisURI.builder()
+                .withHost("localhost")
+                .withPort(REDIS_PORT)
+                .build());
+    redisClient.connect().sync().set(KEY, "benchmark-value");
+
+    List<LoadGenerator.Result> results = new ArrayList<>();
+    try {
+      for (ExecutionMode mode : ExecutionMode.values()) {
+        Configuration configuration =
+            Configuration.newBuilder()
+                .setRedisHost("localhost")
+                .setRedisPort(REDIS_PORT)
+                .setHttpPort(HTTP_PORT)
+                .setRespPort(RESP_PORT)
+                .setExecutionMode(mode)
+                .build();
+        Server server = new Server().withConfiguration(configuration).start();
+        try {
+          HttpClient httpClient = new HttpClient("localhost", HTTP_PORT);
+          results.add(
+              LoadGenerator.run(
+                  mode + "/HTTP",
+                  concurrency,
+                  duration,
+                  () -> httpClient.get(KEY)));
+          results.add(
+              LoadGenerator.run(
+                  mode + "/RESP",
+                  concurrency,
+                  duration,
+                  () -> respGet(RESP_PORT, KEY)));
+        } finally {
+          server.shutdown();
+        }
+      }
+    } finally {
+      redisClient.shutdown();
+      redisServer.stop();
+    }
+    System.out.printf(
+        "%n%d concurrent clients, %s per run:%n",
+        concurrency,
+        duration);
+    results.forEach(System.out::println);
+    System.exit(0);
+  }
+
+  /**
+   * Issues a single RESP GET and reads the bulk string reply.
+   * <p>
+   * {@link resp.RespClient} sleeps before reading, which would dominate the
+   * measurement.
+   */
+  static String respGet(int port, String key) throws IOException {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.getOutputStream()
+          .write(String.format("GET %s\r\n", key).getBytes(Charsets.UTF_8));
+      DataInputStream input = new DataInputStream(socket.getInputStream());
+      String header = readLine(input);
+      if (!header.startsWith("$") || header.equals("$-1")) {
+        return header;
+      }
+      byte[] value = new byte[Integer.parseInt(header.substring(1))];
+      input.readFully(value);
+      return new String(value, Charsets.UTF_8);
+    }
+  }
+
+  private static String readLine(DataInputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+}
@@ -0,0 +1,100 @@
+package benchmark;
+
+import configuration.Configuration;
+import http.HttpClient;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import redis.embedded.RedisServer;
+import server.Server;
+
+/**
+ * Compares HTTP/1.1 (a connection per request) with h2c (every request a
+ * stream multiplexed over one connection).
+ * <p>
+ * This is not a unit test (surefire does not pick it up). Run it manually:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=benchmark.Http2Benchmark -Dexec.args="200 10"
+ * </pre>
+ *
+ * Arguments: [concurrent clients] [seconds per run].
+ */
+public class Http2Benchmark {
+
+  private static final int REDIS_PORT = 6392;
+  private static final int HTTP_PORT = 8288;
+  private static final int HTTP2_PORT = 8289;
+  private static final int RESP_PORT = 9299;
+  private static final String KEY = "benchmark-key";
+
+  public static void main(String[] args) throws Exception {
+    int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    Duration duration =
+        Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 5);
+
+    RedisServer redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    RedisClient redisClient =
+        RedisClient.create(
+            RedisURI.builder()
+                .withHost("localhost")
+                .withPort(REDIS_PORT)
+                .build());
+    redisClient.connect().sync().set(KEY, "benchmark-value");
+
+    List<LoadGenerator.Result> results = new ArrayList<>();
+    Configuration configuration =
+        Configuration.newBuilder()
+            .setRedisHost("localhost")
+            .setRedisPort(REDIS_PORT)
+            .setHttpPort(HTTP_PORT)
+            .setHttp2Port(HTTP2_PORT)
+            .setRespPort(RESP_PORT)
+            .setHttp2MaxConcurrentStreams(Math.max(100, concurrency))
+            .build();
+    Server server = new Server().withConfiguration(configuration).start();
+    try {
+      HttpClient httpClient = new HttpClient("localhost", HTTP_PORT);
+      results.add(
+          LoadGenerator.run(
+              "HTTP/1.1",
+              concurrency,
+              duration,
+              () -> httpClient.get(KEY)));
+
+      java.net.http.HttpClient http2Client =
+          java.net.http.HttpClient.newBuilder()
+              .version(java.net.http.HttpClient.Version.HTTP_2)
+              .build();
+      HttpRequest request =
+          HttpRequest.newBuilder(
+                  URI.create("http://localhost:" + HTTP2_PORT + "/" + KEY))
+              .build();
+      // Upgrade the connection before the clients start sharing it.
+      http2Client.send(request, BodyHandlers.ofString());
+      results.add(
+          LoadGenerator.run(
+              "h2c",
+              concurrency,
+              duration,
+              () -> http2Client.send(request, BodyHandlers.ofString()).body()));
+    } finally {
+      server.shutdown();
+      redisClient.shutdown();
+      redisServer.stop();
+    }
+    System.out.printf(
+        "%n%d concurrent clients, %s per run:%n",
+        concurrency,
+        duration);
+    results.forEach(System.out::println);
+    System.exit(0);
+  }
+}
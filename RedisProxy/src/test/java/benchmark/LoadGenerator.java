@@ -0,0 +1,119 @@
+package benchmark;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator used by the benchmarks in this package.
+ * <p>
+ * Runs a fixed number of concurrent clients for a fixed duration. Each client
+ * repeatedly issues a request and records its latency.
+ */
+final class LoadGenerator {
+
+  /** Summary of a single benchmark run. */
+  static final class Result {
+    final String name;
+    final long requests;
+    final long errors;
+    final double requestsPerSecond;
+    final long p50Micros;
+    final long p99Micros;
+
+    private Result(
+        String name,
+        long requests,
+        long errors,
+        double requestsPerSecond,
+        long p50Micros,
+        long p99Micros) {
+      this.name = name;
+      this.requests = requests;
+      this.errors = errors;
+      this.requestsPerSecond = requestsPerSecond;
+      this.p50Micros = p50Micros;
+      this.p99Micros = p99Micros;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%-24s requests=%-8d errors=%-6d throughput=%10.1f req/s  p50=%6dus  p99=%6dus",
+          name,
+          requests,
+          errors,
+          requestsPerSecond,
+          p50Micros,
+          p99Micros);
+    }
+  }
+
+  private LoadGenerator() {}
+
+  /**
+   * Runs {@code request} from {@code concurrency} clients for the specified
+   * duration (after an un-recorded warmup of the same length).
+   */
+  static Result run(
+      String name,
+      int concurrency,
+      Duration duration,
+      Callable<?> request) throws InterruptedException {
+    measure("warmup", concurrency, duration, request);
+    return measure(name, concurrency, duration, request);
+  }
+
+  private static Result measure(
+      String name,
+      int concurrency,
+      Duration duration,
+      Callable<?> request) throws InterruptedException {
+    ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+    List<List<Long>> latencies = new ArrayList<>();
+    AtomicLong errors = new AtomicLong();
+    long deadline = System.nanoTime() + duration.toNanos();
+    for (int i = 0; i < concurrency; i++) {
+      List<Long> clientLatencies = new ArrayList<>();
+      latencies.add(clientLatencies);
+      clients.execute(() -> {
+        while (System.nanoTime() < deadline) {
+          long start = System.nanoTime();
+          try {
+            request.call();
+            clientLatencies.add(System.nanoTime() - start);
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+        }
+      });
+    }
+    clients.shutdown();
+    clients.awaitTermination(duration.toMillis() + 60_000, TimeUnit.MILLISECONDS);
+
+    List<Long> all = new ArrayList<>();
+    latencies.forEach(all::addAll);
+    Collections.sort(all);
+    return new Result(
+        name,
+        all.size(),
+        errors.get(),
+        all.size() / (duration.toNanos() / 1e9),
+        percentileMicros(all, 0.50),
+        percentileMicros(all, 0.99));
+  }
+
+  private static long percentileMicros(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.min(sorted.size() - 1, sorted.size() * percentile);
+    return TimeUnit.NANOSECONDS.toMicros(sorted.get(index));
+  }
+}
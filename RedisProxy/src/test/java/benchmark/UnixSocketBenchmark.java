@@ -0,0 +1,238 @@
+package benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import configuration.Configuration;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import redis.embedded.RedisServer;
+import server.Server;
+
+/**
+ * Compares clients on the same host connecting over TCP loopback and over
+ * Unix domain sockets (HTTP_SOCKET_PATH and RESP_SOCKET_PATH).
+ * <p>
+ * HTTP clients open a connection per request, since the proxy closes it after
+ * the response; RESP clients each keep one connection open, like a sidecar's
+ * application would, so that run measures the per-request cost of the
+ * transport alone.
+ * <p>
+ * This is not a unit test (surefire does not pick it up). Run it manually:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=benchmark.UnixSocketBenchmark -Dexec.args="50 10"
+ * </pre>
+ *
+ * Arguments: [concurrent clients] [seconds per run].
+ */
+public class UnixSocketBenchmark {
+
+  private static final int REDIS_PORT = 6392;
+  private static final int HTTP_PORT = 8189;
+  private static final int RESP_PORT = 9198;
+  private static final String KEY = "benchmark-key";
+  private static final String HTTP_REQUEST =
+      "GET /" + KEY + " HTTP/1.1\r\n\r\n";
+
+  /** A client's open RESP connection. */
+  private static final class RespConnection {
+    final Closeable socket;
+    final OutputStream output;
+    final DataInputStream input;
+
+    RespConnection(Closeable socket, OutputStream output, InputStream input) {
+      this.socket = socket;
+      this.output = output;
+      this.input = new DataInputStream(input);
+    }
+  }
+
+  /** Opens a connection to the proxy. */
+  @FunctionalInterface
+  private interface Connector {
+    RespConnection connect() throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    Duration duration =
+        Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 5);
+
+    RedisServer redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    RedisClient redisClient =
+        RedisClient.create(
+            RedisURI.builder()
+                .withHost("localhost")
+                .withPort(REDIS_PORT)
+                .build());
+    redisClient.connect().sync().set(KEY, "benchmark-value");
+    Path directory = Files.createTempDirectory("proxy-benchmark");
+    Path httpSocket = directory.resolve("http.sock");
+    Path respSocket = directory.resolve("resp.sock");
+
+    List<LoadGenerator.Result> results = new ArrayList<>();
+    Server server =
+        new Server()
+            .withConfiguration(
+                Configuration.newBuilder()
+                    .setRedisHost("localhost")
+                    .setRedisPort(REDIS_PORT)
+                    .setHttpPort(HTTP_PORT)
+                    .setRespPort(RESP_PORT)
+                    .setHttpSocketPath(httpSocket.toString())
+                    .setRespSocketPath(respSocket.toString())
+                    // Each open RESP connection occupies a handler.
+                    .setMaxConcurrentHandlers(2 * concurrency)
+                    .build())
+            .start();
+    try {
+      results.add(
+          LoadGenerator.run(
+              "loopback/HTTP",
+              concurrency,
+              duration,
+              () -> {
+                try (Socket socket = new Socket("localhost", HTTP_PORT)) {
+                  return httpGet(
+                      socket.getOutputStream(),
+                      socket.getInputStream());
+                }
+              }));
+      results.add(
+          LoadGenerator.run(
+              "unix/HTTP",
+              concurrency,
+              duration,
+              () -> {
+                try (SocketChannel channel = openUnix(httpSocket)) {
+                  return httpGet(
+                      Channels.newOutputStream(channel),
+                      Channels.newInputStream(channel));
+                }
+              }));
+      results.add(
+          runResp(
+              "loopback/RESP",
+              concurrency,
+              duration,
+              () -> {
+                Socket socket = new Socket("localhost", RESP_PORT);
+                socket.setTcpNoDelay(true);
+                return new RespConnection(
+                    socket,
+                    socket.getOutputStream(),
+                    socket.getInputStream());
+              }));
+      results.add(
+          runResp(
+              "unix/RESP",
+              concurrency,
+              duration,
+              () -> {
+                SocketChannel channel = openUnix(respSocket);
+                return new RespConnection(
+                    channel,
+                    Channels.newOutputStream(channel),
+                    Channels.newInputStream(channel));
+              }));
+    } finally {
+      server.shutdown();
+      redisClient.shutdown();
+      redisServer.stop();
+      Files.deleteIfExists(directory);
+    }
+    System.out.printf(
+        "%n%d concurrent clients, %s per run:%n",
+        concurrency,
+        duration);
+    results.forEach(System.out::println);
+    System.exit(0);
+  }
+
+  private static SocketChannel openUnix(Path path) throws IOException {
+    SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+    channel.connect(UnixDomainSocketAddress.of(path));
+    return channel;
+  }
+
+  private static String httpGet(OutputStream output, InputStream input)
+      throws IOException {
+    output.write(HTTP_REQUEST.getBytes(Charsets.UTF_8));
+    return new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
+  }
+
+  /**
+   * Runs GETs over connections that stay open for the whole run: each request
+   * takes an idle connection (or opens one if there is none) and puts it back
+   * afterwards, so there are at most as many connections as clients.
+   */
+  private static LoadGenerator.Result runResp(
+      String name,
+      int concurrency,
+      Duration duration,
+      Connector connector) throws Exception {
+    Queue<RespConnection> idle = new ConcurrentLinkedQueue<>();
+    try {
+      return LoadGenerator.run(
+          name,
+          concurrency,
+          duration,
+          () -> {
+            RespConnection connection = idle.poll();
+            if (connection == null) {
+              connection = connector.connect();
+            }
+            String value = respGet(connection);
+            idle.add(connection);
+            return value;
+          });
+    } finally {
+      for (RespConnection connection : idle) {
+        connection.socket.close();
+      }
+    }
+  }
+
+  private static String respGet(RespConnection connection)
+      throws IOException {
+    connection.output.write(
+        String.format("GET %s\r\n", KEY).getBytes(Charsets.UTF_8));
+    String header = readLine(connection.input);
+    if (!header.startsWith("$") || header.equals("$-1")) {
+      return header;
+    }
+    byte[] value = new byte[Integer.parseInt(header.substring(1)) + 2];
+    connection.input.readFully(value);
+    return new String(value, 0, value.length - 2, Charsets.UTF_8);
+  }
+
+  private static String readLine(DataInputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+}
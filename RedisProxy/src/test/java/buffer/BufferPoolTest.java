@@ -0,0 +1,166 @@
+package buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import metrics.Metrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for BufferPool and the pooled streams. */
+public class BufferPoolTest {
+
+  private BufferPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new BufferPool("test.buffers", 1, /* detectLeaks= */ true);
+  }
+
+  @After
+  public void tearDown() {
+    pool.checkNoLeaks();
+  }
+
+  private static long metric(String name) {
+    return Metrics.snapshot().getOrDefault(name, 0L);
+  }
+
+  @Test
+  public void testAcquire_roundsUpToSizeClass() {
+    ByteBuffer buffer = pool.acquire(100);
+
+    assertThat(buffer.capacity()).isEqualTo(BufferPool.SIZE_CLASSES[0]);
+    assertThat(buffer.position()).isEqualTo(0);
+    assertThat(buffer.limit()).isEqualTo(buffer.capacity());
+    pool.release(buffer);
+  }
+
+  @Test
+  public void testAcquire_afterRelease_reusesBuffer() {
+    long misses = metric("test.buffers.misses");
+    long hits = metric("test.buffers.hits");
+    ByteBuffer buffer = pool.acquire(2000);
+    buffer.put((byte) 1);
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquire(3000);
+
+    assertThat(reused).isSameAs(buffer);
+    assertThat(reused.position()).isEqualTo(0);
+    assertThat(metric("test.buffers.misses")).isEqualTo(misses + 1);
+    assertThat(metric("test.buffers.hits")).isEqualTo(hits + 1);
+    pool.release(reused);
+  }
+
+  @Test
+  public void testAcquire_largerThanEveryClass_isNotPooled() {
+    int size = BufferPool.SIZE_CLASSES[BufferPool.SIZE_CLASSES.length - 1] + 1;
+    ByteBuffer buffer = pool.acquire(size);
+    assertThat(buffer.capacity()).isEqualTo(size);
+    pool.release(buffer);
+
+    ByteBuffer other = pool.acquire(size);
+
+    assertThat(other).isNotSameAs(buffer);
+    pool.release(other);
+  }
+
+  @Test
+  public void testRelease_twice_throws() {
+    ByteBuffer buffer = pool.acquire(10);
+    pool.release(buffer);
+
+    assertThrows(IllegalStateException.class, () -> pool.release(buffer));
+  }
+
+  @Test
+  public void testCheckNoLeaks_reportsWhereLeakedBufferWasAcquired() {
+    ByteBuffer buffer = pool.acquire(10);
+
+    IllegalStateException leak =
+        assertThrows(IllegalStateException.class, pool::checkNoLeaks);
+    assertThat(leak).hasMessageThat().contains("1 buffer(s)");
+    assertThat(leak.getCause()).isNotNull();
+    assertThat(pool.outstanding()).isEqualTo(1);
+    pool.release(buffer);
+  }
+
+  @Test
+  public void testReadLine_spansBufferRefills() throws IOException {
+    String longLine = Strings.repeat("\u00e9", 10 * 1024);
+    byte[] bytes =
+        ("short\r\n" + longLine + "\nlast").getBytes(Charsets.UTF_8);
+
+    try (PooledInputStream input =
+        new PooledInputStream(new ByteArrayInputStream(bytes), pool)) {
+      assertThat(input.readLine()).isEqualTo("short\r");
+      assertThat(input.readLine()).isEqualTo(longLine);
+      // The stream ends before the line does.
+      assertThat(input.readLine()).isNull();
+    }
+  }
+
+  @Test
+  public void testRead_afterClose_throws() throws IOException {
+    PooledInputStream input =
+        new PooledInputStream(new ByteArrayInputStream(new byte[1]), pool);
+    input.close();
+
+    assertThrows(IOException.class, input::read);
+  }
+
+  @Test
+  public void testWriteUtf8_buffersUntilFlushed() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PooledOutputStream output = new PooledOutputStream(out, pool)) {
+      output.writeUtf8("+OK\r\n");
+      output.writeUtf8("$2\r\n\u00e9\r\n");
+      assertThat(out.size()).isEqualTo(0);
+
+      output.flush();
+
+      assertThat(new String(out.toByteArray(), Charsets.UTF_8))
+          .isEqualTo("+OK\r\n$2\r\n\u00e9\r\n");
+    }
+  }
+
+  @Test
+  public void testWriteDecimal() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PooledOutputStream output = new PooledOutputStream(out, pool)) {
+      for (long number : new long[] {0, 7, 10, -42, 1234567890123L,
+          Long.MAX_VALUE, Long.MIN_VALUE}) {
+        output.writeDecimal(number);
+        output.write(' ');
+      }
+    }
+
+    assertThat(new String(out.toByteArray(), Charsets.UTF_8))
+        .isEqualTo(
+            "0 7 10 -42 1234567890123 9223372036854775807 "
+                + "-9223372036854775808 ");
+  }
+
+  @Test
+  public void testWrite_largerThanBuffer_preservesOrder() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] large = Strings.repeat("x", 20 * 1024).getBytes(Charsets.UTF_8);
+
+    try (PooledOutputStream output = new PooledOutputStream(out, pool)) {
+      output.writeUtf8("head");
+      output.write(large);
+      output.writeUtf8("tail");
+    }
+
+    assertThat(new String(out.toByteArray(), Charsets.UTF_8))
+        .isEqualTo("head" + new String(large, Charsets.UTF_8) + "tail");
+  }
+}
@@ -0,0 +1,85 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import cache.CircuitBreaker.State;
+import com.google.common.testing.FakeTicker;
+import java.time.Duration;
+import org.junit.Test;
+
+/** Tests for CircuitBreaker. */
+public class CircuitBreakerTest {
+
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(1);
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final CircuitBreaker breaker =
+      new CircuitBreaker(/* failureThreshold= */ 3, OPEN_DURATION, ticker);
+
+  private void fail(int times) {
+    for (int i = 0; i < times; i++) {
+      breaker.onFailure();
+    }
+  }
+
+  @Test
+  public void testOnFailure_opensAfterConsecutiveFailures() {
+    fail(2);
+    breaker.onSuccess();
+    fail(2);
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+
+    breaker.onFailure();
+
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+  }
+
+  @Test
+  public void testAllowRequest_halfOpenLetsOneProbeThrough() {
+    fail(3);
+    ticker.advance(OPEN_DURATION);
+
+    assertThat(breaker.allowRequest()).isTrue();
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+  }
+
+  @Test
+  public void testOnSuccess_probeClosesBreaker() {
+    fail(3);
+    ticker.advance(OPEN_DURATION);
+    breaker.allowRequest();
+
+    breaker.onSuccess();
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void testOnFailure_probeReopensBreaker() {
+    fail(3);
+    ticker.advance(OPEN_DURATION);
+    breaker.allowRequest();
+
+    breaker.onFailure();
+
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+    assertThat(breaker.allowRequest()).isFalse();
+    ticker.advance(OPEN_DURATION);
+    assertThat(breaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void testOnFailure_disabled() {
+    CircuitBreaker disabled = new CircuitBreaker(0, OPEN_DURATION, ticker);
+    for (int i = 0; i < 100; i++) {
+      disabled.onFailure();
+    }
+
+    assertThat(disabled.state()).isEqualTo(State.CLOSED);
+    assertThat(disabled.allowRequest()).isTrue();
+  }
+}
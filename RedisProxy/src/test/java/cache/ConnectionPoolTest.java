@@ -0,0 +1,103 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import cache.ConnectionPool.RoutingPolicy;
+import com.google.common.collect.ImmutableList;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for ConnectionPool. */
+public class ConnectionPoolTest {
+
+  private RedisAsyncCommands<String, String> connection1;
+  private RedisAsyncCommands<String, String> connection2;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    connection1 = mock(RedisAsyncCommands.class);
+    connection2 = mock(RedisAsyncCommands.class);
+  }
+
+  private ConnectionPool newPool(RoutingPolicy routingPolicy) {
+    return new ConnectionPool(
+        "test",
+        ImmutableList.of(connection1, connection2),
+        routingPolicy);
+  }
+
+  @Test
+  public void testExecute_keyHash_sameKeyAlwaysSameConnection()
+      throws Exception {
+    when(connection1.get("key")).thenReturn(CompletableRedisFuture.completed("1"));
+    when(connection2.get("key")).thenReturn(CompletableRedisFuture.completed("2"));
+    ConnectionPool pool = newPool(RoutingPolicy.KEY_HASH);
+
+    String first = pool.execute("key", c -> c.get("key")).get();
+    for (int i = 0; i < 10; i++) {
+      assertThat(pool.execute("key", c -> c.get("key")).get())
+          .isEqualTo(first);
+    }
+  }
+
+  @Test
+  public void testExecute_leastOutstanding_avoidsBusyConnection()
+      throws Exception {
+    CompletableRedisFuture<String> pending = new CompletableRedisFuture<>();
+    when(connection1.get("slow")).thenReturn(pending);
+    when(connection2.get("slow")).thenReturn(pending);
+    when(connection1.get("fast")).thenReturn(CompletableRedisFuture.completed("1"));
+    when(connection2.get("fast")).thenReturn(CompletableRedisFuture.completed("2"));
+    ConnectionPool pool = newPool(RoutingPolicy.LEAST_OUTSTANDING);
+
+    pool.execute("slow", c -> c.get("slow"));
+    ImmutableList<Integer> inFlight = pool.inFlightCounts();
+    String expected = inFlight.get(0) == 1 ? "2" : "1";
+
+    // Every other command avoids the connection with the pending command.
+    for (int i = 0; i < 5; i++) {
+      assertThat(pool.execute("fast", c -> c.get("fast")).get())
+          .isEqualTo(expected);
+    }
+
+    pending.complete("done");
+    assertThat(pool.inFlightCounts()).containsExactly(0, 0);
+  }
+
+  @Test
+  public void testExecute_tracksInFlightCommands() {
+    CompletableRedisFuture<String> pending = new CompletableRedisFuture<>();
+    when(connection1.get("key")).thenReturn(pending);
+    when(connection2.get("key")).thenReturn(pending);
+    ConnectionPool pool = newPool(RoutingPolicy.KEY_HASH);
+
+    pool.execute("key", c -> c.get("key"));
+    pool.execute("key", c -> c.get("key"));
+    assertThat(pool.inFlightCounts()).contains(2);
+
+    pending.complete("value");
+    assertThat(pool.inFlightCounts()).containsExactly(0, 0);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testClose_closesEveryConnection() {
+    StatefulRedisConnection<String, String> stateful1 =
+        mock(StatefulRedisConnection.class);
+    StatefulRedisConnection<String, String> stateful2 =
+        mock(StatefulRedisConnection.class);
+    when(connection1.getStatefulConnection()).thenReturn(stateful1);
+    when(connection2.getStatefulConnection()).thenReturn(stateful2);
+
+    newPool(RoutingPolicy.KEY_HASH).close();
+
+    verify(stateful1).close();
+    verify(stateful2).close();
+  }
+}
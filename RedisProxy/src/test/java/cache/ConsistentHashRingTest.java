@@ -0,0 +1,90 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import java.util.function.Function;
+import org.junit.Test;
+
+/** Tests for ConsistentHashRing. */
+public class ConsistentHashRingTest {
+
+  private static final int KEYS = 10_000;
+  private static final int VIRTUAL_NODES = 160;
+
+  private static ConsistentHashRing<String> newRing(
+      ImmutableMap<String, Integer> weights) {
+    return new ConsistentHashRing<>(
+        weights,
+        VIRTUAL_NODES,
+        Function.identity());
+  }
+
+  private static Multiset<String> distribution(ConsistentHashRing<String> ring) {
+    Multiset<String> counts = HashMultiset.create();
+    for (int i = 0; i < KEYS; i++) {
+      counts.add(ring.get("key" + i));
+    }
+    return counts;
+  }
+
+  @Test
+  public void testGet_sameKey_sameNode() {
+    ConsistentHashRing<String> ring = newRing(ImmutableMap.of("a", 1, "b", 1));
+    assertThat(ring.get("foo")).isEqualTo(ring.get("foo"));
+  }
+
+  @Test
+  public void testGet_equalWeights_spreadsEvenly() {
+    Multiset<String> counts =
+        distribution(newRing(ImmutableMap.of("a", 1, "b", 1, "c", 1)));
+    for (String node : counts.elementSet()) {
+      assertThat(counts.count(node)).isGreaterThan(KEYS / 4);
+      assertThat(counts.count(node)).isLessThan(KEYS * 5 / 12);
+    }
+  }
+
+  @Test
+  public void testGet_doubleWeight_ownsRoughlyTwiceAsManyKeys() {
+    Multiset<String> counts =
+        distribution(newRing(ImmutableMap.of("a", 1, "b", 2)));
+    double ratio = (double) counts.count("b") / counts.count("a");
+    assertThat(ratio).isWithin(0.4).of(2.0);
+  }
+
+  @Test
+  public void testWithNode_onlyRemapsKeysToTheNewNode() {
+    ConsistentHashRing<String> before =
+        newRing(ImmutableMap.of("a", 1, "b", 1, "c", 1));
+    ConsistentHashRing<String> after = before.withNode("d", 1);
+
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      String key = "key" + i;
+      if (!before.get(key).equals(after.get(key))) {
+        assertThat(after.get(key)).isEqualTo("d");
+        moved++;
+      }
+    }
+    // Roughly 1/4 of the keys should move to the new node.
+    assertThat(moved).isGreaterThan(KEYS / 6);
+    assertThat(moved).isLessThan(KEYS / 3);
+  }
+
+  @Test
+  public void testWithoutNode_onlyRemapsKeysOfTheRemovedNode() {
+    ConsistentHashRing<String> before =
+        newRing(ImmutableMap.of("a", 1, "b", 1, "c", 1));
+    ConsistentHashRing<String> after = before.withoutNode("c");
+
+    for (int i = 0; i < KEYS; i++) {
+      String key = "key" + i;
+      if (!before.get(key).equals("c")) {
+        assertThat(after.get(key)).isEqualTo(before.get(key));
+      }
+    }
+    assertThat(after.weights()).containsExactly("a", 1, "b", 1);
+  }
+}
@@ -0,0 +1,178 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.testing.FakeTicker;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for DiskTier. */
+public class DiskTierTest {
+
+  /** Holds six records of a two-character key and a ten-character value. */
+  private static final int SEGMENT_BYTES = 256;
+  private static final int RECORDS_PER_SEGMENT = 6;
+  private static final long EXPIRES_AT = 1_000_000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final FakeTicker ticker = new FakeTicker();
+  private DiskTier disk;
+
+  @Before
+  public void setUp() throws Exception {
+    disk = newDiskTier(/* segments= */ 2);
+  }
+
+  @After
+  public void tearDown() {
+    disk.close();
+  }
+
+  private DiskTier newDiskTier(int segments) throws Exception {
+    return new DiskTier(
+        folder.getRoot().toPath(),
+        (long) segments * SEGMENT_BYTES,
+        SEGMENT_BYTES,
+        ticker,
+        () -> 0);
+  }
+
+  private static CacheEntry entry(String value) {
+    return CacheEntry.of(value, 0, EXPIRES_AT, Long.MAX_VALUE);
+  }
+
+  /** Fills segment number {@code segment} with keys a0..a5, b0..b5, etc. */
+  private void fillSegment(int segment) {
+    for (int i = 0; i < RECORDS_PER_SEGMENT; i++) {
+      String key = String.valueOf((char) ('a' + segment)) + i;
+      disk.put(key, entry("value-" + key + "--"));
+    }
+  }
+
+  @Test
+  public void testTake_returnsStoredEntryOnce() {
+    disk.put("key", CacheEntry.of("value", 0, EXPIRES_AT, 2 * EXPIRES_AT));
+
+    CacheEntry entry = disk.take("key");
+
+    assertThat(entry.value()).isEqualTo(Optional.of("value"));
+    assertThat(entry.expiresAtNanos()).isEqualTo(EXPIRES_AT);
+    assertThat(entry.keyExpiresAtNanos()).isEqualTo(2 * EXPIRES_AT);
+    assertThat(disk.take("key")).isNull();
+  }
+
+  @Test
+  public void testTake_gzippedValue() {
+    String value = Strings.repeat("a", 100);
+    disk.put(
+        "key",
+        CacheEntry.of(
+            value,
+            /* compressionMinBytes= */ 1,
+            EXPIRES_AT,
+            Long.MAX_VALUE));
+
+    CacheEntry entry = disk.take("key");
+
+    assertThat(entry.gzippedValue()).isNotNull();
+    assertThat(entry.value()).isEqualTo(Optional.of(value));
+  }
+
+  @Test
+  public void testPut_replacesPreviousEntry() {
+    disk.put("key", entry("old"));
+    disk.put("key", entry("new"));
+
+    assertThat(disk.take("key").value()).isEqualTo(Optional.of("new"));
+  }
+
+  @Test
+  public void testPut_skipsEntriesWithoutValueOrTooLarge() {
+    disk.put("absent", CacheEntry.absent(EXPIRES_AT));
+    disk.put("huge", entry(Strings.repeat("x", SEGMENT_BYTES)));
+
+    assertThat(disk.take("absent")).isNull();
+    assertThat(disk.take("huge")).isNull();
+  }
+
+  @Test
+  public void testRemove() {
+    disk.put("key", entry("value"));
+
+    disk.remove("key");
+
+    assertThat(disk.take("key")).isNull();
+  }
+
+  @Test
+  public void testPut_beyondMaxBytes_dropsOldestSegment() {
+    fillSegment(0);
+    fillSegment(1);
+    assertThat(disk.segmentFiles()).hasSize(2);
+    Path oldest = disk.segmentFiles().get(0);
+
+    fillSegment(2);
+
+    assertThat(disk.segmentFiles()).hasSize(2);
+    assertThat(Files.exists(oldest)).isFalse();
+    assertThat(disk.take("a0")).isNull();
+    assertThat(disk.take("b0")).isNotNull();
+    assertThat(disk.take("c0")).isNotNull();
+  }
+
+  @Test
+  public void testCompact_movesLiveRecordsAndDeletesGarbageSegment()
+      throws Exception {
+    disk.close();
+    disk = newDiskTier(/* segments= */ 4);
+    fillSegment(0);
+    fillSegment(1);
+    Path first = disk.segmentFiles().get(0);
+    for (int i = 0; i < RECORDS_PER_SEGMENT - 2; i++) {
+      disk.remove("a" + i);
+    }
+
+    disk.compact();
+
+    assertThat(Files.exists(first)).isFalse();
+    assertThat(disk.take("a4").value()).isEqualTo(Optional.of("value-a4--"));
+    assertThat(disk.take("a5").value()).isEqualTo(Optional.of("value-a5--"));
+    assertThat(disk.take("b0")).isNotNull();
+  }
+
+  @Test
+  public void testCompact_dropsExpiredRecords() throws Exception {
+    disk.close();
+    disk = newDiskTier(/* segments= */ 4);
+    fillSegment(0);
+    fillSegment(1);
+    for (int i = 0; i < RECORDS_PER_SEGMENT - 1; i++) {
+      disk.remove("a" + i);
+    }
+    ticker.advance(EXPIRES_AT);
+
+    disk.compact();
+
+    assertThat(disk.segmentFiles()).hasSize(1);
+    assertThat(disk.take("a5")).isNull();
+  }
+
+  @Test
+  public void testClose_deletesSegmentFiles() {
+    disk.put("key", entry("value"));
+    Path segment = disk.segmentFiles().get(0);
+
+    disk.close();
+
+    assertThat(Files.exists(segment)).isFalse();
+    assertThat(disk.take("key")).isNull();
+  }
+}
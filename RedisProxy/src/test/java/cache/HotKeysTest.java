@@ -0,0 +1,80 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.testing.FakeTicker;
+import java.time.Duration;
+import org.junit.Test;
+
+/** Tests for HotKeys. */
+public class HotKeysTest {
+
+  private static final Duration WINDOW = Duration.ofSeconds(1);
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  private static void record(HotKeys hotKeys, String key, int times) {
+    for (int i = 0; i < times; i++) {
+      hotKeys.record(key);
+    }
+  }
+
+  @Test
+  public void testRecord_keyAboveMinRateIsHotAfterWindow() {
+    HotKeys hotKeys = new HotKeys(4, /* minRate= */ 50, WINDOW, ticker);
+    record(hotKeys, "flags", 100);
+    record(hotKeys, "user:1", 10);
+
+    assertThat(hotKeys.isHot("flags")).isFalse();
+
+    ticker.advance(WINDOW);
+
+    assertThat(hotKeys.snapshot())
+        .containsExactly("flags", 100.0, "user:1", 10.0)
+        .inOrder();
+    assertThat(hotKeys.isHot("flags")).isTrue();
+    assertThat(hotKeys.isHot("user:1")).isFalse();
+    assertThat(hotKeys.format())
+        .isEqualTo("flags 100.0/s pinned\nuser:1 10.0/s\n");
+  }
+
+  @Test
+  public void testRecord_tracksOnlyTopK() {
+    HotKeys hotKeys = new HotKeys(2, /* minRate= */ 1, WINDOW, ticker);
+    record(hotKeys, "a", 5);
+    record(hotKeys, "b", 30);
+    record(hotKeys, "c", 50);
+    record(hotKeys, "d", 1);
+
+    ticker.advance(WINDOW);
+
+    assertThat(hotKeys.snapshot().keySet()).containsExactly("c", "b").inOrder();
+    assertThat(hotKeys.hotKeys()).containsExactly("c", "b");
+  }
+
+  @Test
+  public void testRecord_keyStopsBeingHotAfterIdleWindow() {
+    HotKeys hotKeys = new HotKeys(4, /* minRate= */ 50, WINDOW, ticker);
+    record(hotKeys, "flags", 100);
+    ticker.advance(WINDOW);
+    hotKeys.rotateIfDue();
+    assertThat(hotKeys.isHot("flags")).isTrue();
+
+    ticker.advance(WINDOW);
+    hotKeys.rotateIfDue();
+
+    assertThat(hotKeys.isHot("flags")).isFalse();
+    assertThat(hotKeys.snapshot()).isEmpty();
+  }
+
+  @Test
+  public void testRecord_disabled() {
+    HotKeys hotKeys = new HotKeys(0, /* minRate= */ 0, WINDOW, ticker);
+    record(hotKeys, "flags", 100);
+
+    ticker.advance(WINDOW);
+
+    assertThat(hotKeys.isHot("flags")).isFalse();
+    assertThat(hotKeys.snapshot()).isEmpty();
+  }
+}
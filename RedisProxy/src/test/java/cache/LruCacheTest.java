@@ -1,18 +1,38 @@
 package cache;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.testing.FakeTicker;
+import cache.LruCache.BatchListener;
+import cache.LruCache.SetCondition;
 import configuration.Configuration;
-import io.lettuce.core.RedisFuture;
+import configuration.Endpoint;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -25,24 +45,27 @@ public class LruCacheTest {
       Configuration.newBuilder()
           .setCacheCapacity(DEFAULT_CACHE_CAPACITY)
           .setCacheExpiry(DEFAULT_CACHE_EXPIRY)
+          .setCacheMaxValueBytes(0)
+          // The mocked futures only stub get().
+          .setRedisTimeout(Duration.ZERO)
+          .setRequestDeadline(Duration.ZERO)
           .build();
 
   @Mock
   private RedisAsyncCommands<String, String> mockCommands;
-  @Mock
-  private RedisFuture<String> mockRedisResponse1;
-  @Mock
-  private RedisFuture<String> mockRedisResponse2;
 
   private FakeTicker fakeTicker;
 
   private LruCache cache;
 
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
   @Before
   public void setUp() throws Exception {
     mockCommands = Mockito.mock(RedisAsyncCommands.class);
-    mockRedisResponse1 = Mockito.mock(RedisFuture.class);
-    mockRedisResponse2 = Mockito.mock(RedisFuture.class);
+    // Keys have no time to live in Redis unless a test says otherwise.
+    when(mockCommands.pttl(any()))
+        .thenReturn(CompletableRedisFuture.completed(-1L));
     fakeTicker = new FakeTicker();
     cache = new LruCache(mockCommands, DEFAULT_CONFIGURATION, fakeTicker);
 
@@ -50,8 +73,8 @@ public class LruCacheTest {
 
   @Test
   public void testGet_keyNotInCache_loadsFromRedis() throws Exception {
-    when(mockCommands.get("key")).thenReturn(mockRedisResponse1);
-    when(mockRedisResponse1.get()).thenReturn("value");
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
 
     assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
     verify(mockCommands).get("key");
@@ -59,8 +82,8 @@ public class LruCacheTest {
 
   @Test
   public void testGet_keyNotInCache_loadsFromRedis_null() throws Exception {
-    when(mockCommands.get("key")).thenReturn(mockRedisResponse1);
-    when(mockRedisResponse1.get()).thenReturn(null);
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed(null));
 
     assertThat(cache.get("key")).isEqualTo(Optional.empty());
     verify(mockCommands).get("key");
@@ -68,8 +91,8 @@ public class LruCacheTest {
 
   @Test
   public void testGet_keyInCache_doesNotLoadFromRedis() throws Exception {
-    when(mockCommands.get("key")).thenReturn(mockRedisResponse1);
-    when(mockRedisResponse1.get()).thenReturn("value");
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
 
     // Make one call to load the value from redis into the cache.
     assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
@@ -82,8 +105,8 @@ public class LruCacheTest {
 
   @Test
   public void testGet_keyExpired_loadsFromRedis() throws Exception {
-    when(mockCommands.get("key")).thenReturn(mockRedisResponse1);
-    when(mockRedisResponse1.get()).thenReturn("value");
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
 
     // Make one call to load the value from redis into the cache.
     assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
@@ -97,13 +120,373 @@ public class LruCacheTest {
     verify(mockCommands, times(2)).get("key");
   }
 
+  @Test
+  public void testGet_keyExpiredInRedis_loadsFromRedis() throws Exception {
+    when(mockCommands.get("key"))
+        .thenReturn(
+            CompletableRedisFuture.completed("value"),
+            CompletableRedisFuture.completed(null));
+    when(mockCommands.pttl("key"))
+        .thenReturn(CompletableRedisFuture.completed(1000L));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+    assertThat(cache.remainingTtl(cache.getEntry("key")))
+        .isEqualTo(Duration.ofSeconds(1));
+
+    // The key expires in Redis well before the cache's expiry.
+    fakeTicker.advance(Duration.ofSeconds(1));
+
+    assertThat(cache.get("key")).isEqualTo(Optional.empty());
+    verify(mockCommands, times(2)).get("key");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testGet_replicas_valueAndPttlFromSameReplica() throws Exception {
+    RedisAsyncCommands<String, String> replica1 =
+        Mockito.mock(RedisAsyncCommands.class);
+    RedisAsyncCommands<String, String> replica2 =
+        Mockito.mock(RedisAsyncCommands.class);
+    when(replica1.get("key")).thenReturn(CompletableRedisFuture.completed("1"));
+    when(replica1.pttl("key"))
+        .thenReturn(CompletableRedisFuture.completed(1000L));
+    when(replica2.get("key")).thenReturn(CompletableRedisFuture.completed("2"));
+    when(replica2.pttl("key"))
+        .thenReturn(CompletableRedisFuture.completed(2000L));
+    cache =
+        new LruCache(
+            new ReplicaRouter(
+                new SingleConnectionRouter(mockCommands),
+                ImmutableMap.of(
+                    Endpoint.create("replica-1", 6379),
+                    new SingleConnectionRouter(replica1),
+                    Endpoint.create("replica-2", 6379),
+                    new SingleConnectionRouter(replica2)),
+                ImmutableList.of(),
+                /* hedgePercentile= */ 0,
+                fakeTicker),
+            DEFAULT_CONFIGURATION,
+            fakeTicker);
+
+    for (int i = 0; i < 20; i++) {
+      String value = cache.get("key").get();
+
+      // The time to live was read along with the value.
+      assertThat(cache.remainingTtl(cache.getEntry("key")))
+          .isEqualTo(Duration.ofSeconds(Long.parseLong(value)));
+      cache.invalidateAll();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testValueLength_replicas_readFromPrimary() throws Exception {
+    RedisAsyncCommands<String, String> replica =
+        Mockito.mock(RedisAsyncCommands.class);
+    when(mockCommands.strlen("key"))
+        .thenReturn(CompletableRedisFuture.completed(5L));
+    cache =
+        new LruCache(
+            new ReplicaRouter(
+                new SingleConnectionRouter(mockCommands),
+                ImmutableMap.of(
+                    Endpoint.create("replica-1", 6379),
+                    new SingleConnectionRouter(replica)),
+                ImmutableList.of(),
+                /* hedgePercentile= */ 0,
+                fakeTicker),
+            DEFAULT_CONFIGURATION,
+            fakeTicker);
+
+    // A large value is streamed in several reads, which must all see the
+    // same instance.
+    assertThat(cache.valueLength("key")).isEqualTo(5L);
+    verify(mockCommands).strlen("key");
+    verify(replica, never()).strlen("key");
+  }
+
+  @Test
+  public void testSet_withExpiry_entryExpiresWithKey() throws Exception {
+    when(mockCommands.set(eq("key"), eq("value"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed("OK"));
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed(null));
+    cache.set(
+        "key",
+        "value",
+        Duration.ofMillis(500),
+        SetCondition.ALWAYS);
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+
+    fakeTicker.advance(Duration.ofMillis(500));
+
+    assertThat(cache.get("key")).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  public void testGet_staleWhileRevalidate_servesStaleAndReloads()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCacheStaleWhileRevalidate(Duration.ofSeconds(5))
+                .build(),
+            fakeTicker);
+    CompletableRedisFuture<String> reload = new CompletableRedisFuture<>();
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("old"), reload);
+    assertThat(cache.get("key")).isEqualTo(Optional.of("old"));
+    fakeTicker.advance(DEFAULT_CACHE_EXPIRY);
+
+    // The reload is still waiting for Redis, but the read does not.
+    assertThat(cache.get("key")).isEqualTo(Optional.of("old"));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("old"));
+    reload.complete("new");
+
+    for (int i = 0; i < 100 && !cache.get("key").get().equals("new"); i++) {
+      Thread.sleep(10);
+    }
+    assertThat(cache.get("key")).isEqualTo(Optional.of("new"));
+    verify(mockCommands, times(2)).get("key");
+    cache.close();
+  }
+
+  @Test
+  public void testGet_staleIfError_servesStaleWithinGracePeriod()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCacheStaleIfError(Duration.ofSeconds(30))
+                .build(),
+            fakeTicker);
+    CompletableRedisFuture<String> failed = new CompletableRedisFuture<>();
+    failed.completeExceptionally(new IllegalStateException("failover"));
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"), failed);
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+
+    fakeTicker.advance(DEFAULT_CACHE_EXPIRY.plusSeconds(29));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+
+    fakeTicker.advance(Duration.ofSeconds(1));
+    try {
+      cache.get("key");
+      throw new AssertionError("expected the load to fail");
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseThat().hasMessageThat().contains("failover");
+    }
+    cache.close();
+  }
+
+  @Test
+  public void testGet_staleValueNotServedPastRedisTtl() throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCacheStaleWhileRevalidate(Duration.ofSeconds(5))
+                .build(),
+            fakeTicker);
+    when(mockCommands.get("key"))
+        .thenReturn(
+            CompletableRedisFuture.completed("value"),
+            CompletableRedisFuture.completed(null));
+    when(mockCommands.pttl("key"))
+        .thenReturn(CompletableRedisFuture.completed(1000L));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+
+    fakeTicker.advance(Duration.ofSeconds(1));
+
+    assertThat(cache.get("key")).isEqualTo(Optional.empty());
+    cache.close();
+  }
+
+  @Test
+  public void testGet_redisTimeout_failsAndCancelsCommand() throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setRedisTimeout(Duration.ofMillis(50))
+                .build(),
+            fakeTicker);
+    CompletableRedisFuture<String> never = new CompletableRedisFuture<>();
+    when(mockCommands.get("key")).thenReturn(never);
+
+    try {
+      cache.get("key");
+      throw new AssertionError("expected the load to time out");
+    } catch (ExecutionException e) {
+      assertThat(e).hasCauseThat().hasMessageThat().contains("50 ms");
+    }
+    assertThat(never.isCancelled()).isTrue();
+    cache.close();
+  }
+
+  @Test
+  public void testGet_circuitBreakerOpen_failsWithoutContactingRedis()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCircuitBreakerFailures(2)
+                .setCircuitBreakerOpenDuration(Duration.ofSeconds(1))
+                .build(),
+            fakeTicker);
+    CompletableRedisFuture<String> failed = new CompletableRedisFuture<>();
+    failed.completeExceptionally(new IllegalStateException("connection lost"));
+    when(mockCommands.get("key"))
+        .thenReturn(failed, failed, CompletableRedisFuture.completed("value"));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        cache.get("key");
+        throw new AssertionError("expected the load to fail");
+      } catch (ExecutionException e) {
+        // Expected.
+      }
+    }
+    verify(mockCommands, times(2)).get("key");
+
+    // After the open duration, a probe goes through and closes the breaker.
+    fakeTicker.advance(Duration.ofSeconds(1));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+    verify(mockCommands, times(3)).get("key");
+    cache.close();
+  }
+
+  @Test
+  public void testReconfigure_smallerCapacity_keepsMostRecentlyRead()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder().setCacheCapacity(10).build(),
+            fakeTicker);
+    for (int i = 0; i < 10; i++) {
+      when(mockCommands.get("key" + i))
+          .thenReturn(CompletableRedisFuture.completed("value" + i));
+    }
+    // Read key9 first and key0 last, so that key0 is the most recent.
+    for (int i = 9; i >= 0; i--) {
+      fakeTicker.advance(Duration.ofMillis(10));
+      cache.get("key" + i);
+    }
+
+    cache.reconfigure(
+        DEFAULT_CONFIGURATION.toBuilder().setCacheCapacity(3).build());
+
+    for (int i = 0; i < 3; i++) {
+      cache.get("key" + i);
+      verify(mockCommands, times(1)).get("key" + i);
+    }
+    cache.get("key9");
+    verify(mockCommands, times(2)).get("key9");
+  }
+
+  @Test
+  public void testGet_evictedKeyOnDisk_doesNotLoadFromRedis()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCacheDiskDirectory(folder.getRoot().getPath())
+                .build(),
+            fakeTicker);
+    when(mockCommands.get("key1"))
+        .thenReturn(CompletableRedisFuture.completed("value1"));
+    when(mockCommands.get("key2"))
+        .thenReturn(CompletableRedisFuture.completed("value2"));
+    try {
+      cache.get("key1");
+      // Evicts key1 (the capacity is 1) to the disk tier.
+      cache.get("key2");
+
+      assertThat(cache.get("key1")).isEqualTo(Optional.of("value1"));
+      verify(mockCommands, times(1)).get("key1");
+      // A write drops the key from disk, so the old value is not served.
+      when(mockCommands.set(eq("key2"), eq("new"), any(SetArgs.class)))
+          .thenReturn(CompletableRedisFuture.completed("OK"));
+      cache.set("key2", "new", null, SetCondition.ALWAYS);
+      cache.get("key1");
+      assertThat(cache.get("key2")).isEqualTo(Optional.of("new"));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testGet_keyOwnedByPeer_fetchesFromOwner() throws Exception {
+    Peers peers = Mockito.mock(Peers.class);
+    when(peers.isOwner("key")).thenReturn(false);
+    when(peers.fetch("key"))
+        .thenReturn(
+            Peers.Fetched.create(
+                Peers.Fetched.Kind.VALUE,
+                "value".getBytes(Charsets.UTF_8),
+                /* freshMillis= */ 1000,
+                /* pttlMillis= */ -1));
+    cache =
+        new LruCache(
+            new SingleConnectionRouter(mockCommands),
+            DEFAULT_CONFIGURATION,
+            fakeTicker,
+            peers);
+
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+    verify(mockCommands, never()).get("key");
+    // Fresh only for as long as at the owner.
+    fakeTicker.advance(Duration.ofSeconds(1));
+    when(peers.fetch("key")).thenThrow(new IOException("owner down"));
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("from redis"));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("from redis"));
+  }
+
+  @Test
+  public void testSet_invalidatesPeers() throws Exception {
+    Peers peers = Mockito.mock(Peers.class);
+    cache =
+        new LruCache(
+            new SingleConnectionRouter(mockCommands),
+            DEFAULT_CONFIGURATION,
+            fakeTicker,
+            peers);
+    when(mockCommands.set(eq("key"), eq("value"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed("OK"));
+
+    cache.set("key", "value", null, SetCondition.ALWAYS);
+
+    verify(peers).invalidate("key");
+  }
+
+  @Test
+  public void testReconfigure_expiry_appliesToNewEntries() throws Exception {
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
+
+    cache.reconfigure(
+        DEFAULT_CONFIGURATION.toBuilder()
+            .setCacheExpiry(Duration.ofSeconds(60))
+            .build());
+    cache.get("key");
+    fakeTicker.advance(DEFAULT_CACHE_EXPIRY);
+    cache.get("key");
+
+    verify(mockCommands, times(1)).get("key");
+  }
+
   @Test
   public void testGet_capacityExhausted_loadsFromRedis() throws Exception {
-    when(mockCommands.get("key1")).thenReturn(mockRedisResponse1);
-    when(mockRedisResponse1.get()).thenReturn("value1");
+    when(mockCommands.get("key1"))
+        .thenReturn(CompletableRedisFuture.completed("value1"));
 
-    when(mockCommands.get("key2")).thenReturn(mockRedisResponse2);
-    when(mockRedisResponse2.get()).thenReturn("value2");
+    when(mockCommands.get("key2"))
+        .thenReturn(CompletableRedisFuture.completed("value2"));
 
     // Make call#1 to get the first key from redis and cache it.
     assertThat(cache.get("key1")).isEqualTo(Optional.of("value1"));
@@ -120,4 +503,172 @@ public class LruCacheTest {
     verify(mockCommands, times(1)).get("key2");
   }
 
+  @Test
+  public void testSet_updatesCache() throws Exception {
+    when(mockCommands.set(eq("key"), eq("value"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed("OK"));
+
+    assertThat(cache.set("key", "value", null, SetCondition.ALWAYS)).isTrue();
+
+    // The value is served without reading it back from redis.
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+    verify(mockCommands, never()).get("key");
+  }
+
+  @Test
+  public void testSet_conditionNotMet_doesNotUpdateCache() throws Exception {
+    when(mockCommands.set(eq("key"), eq("new"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed(null));
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("old"));
+
+    assertThat(cache.set("key", "new", null, SetCondition.IF_ABSENT))
+        .isFalse();
+
+    assertThat(cache.get("key")).isEqualTo(Optional.of("old"));
+  }
+
+  @Test
+  public void testSet_duringLoad_loadedValueIsDiscarded() throws Exception {
+    CompletableRedisFuture<String> load = new CompletableRedisFuture<>();
+    CountDownLatch loading = new CountDownLatch(1);
+    when(mockCommands.get("key")).thenAnswer(invocation -> {
+      loading.countDown();
+      return load;
+    });
+    when(mockCommands.set(eq("key"), eq("new"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed("OK"));
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // A load reads the old value from redis, but only completes after the
+    // write has been applied.
+    Future<Optional<String>> reader = executor.submit(() -> cache.get("key"));
+    assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+    cache.set("key", "new", null, SetCondition.ALWAYS);
+    load.complete("old");
+    reader.get(5, TimeUnit.SECONDS);
+    executor.shutdown();
+
+    assertThat(cache.get("key")).isEqualTo(Optional.of("new"));
+    verify(mockCommands, times(1)).get("key");
+  }
+
+  @Test
+  public void testGetAll_cachedFirstThenMissesWithPerKeyErrors_onceEach()
+      throws Exception {
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder().setCacheCapacity(10).build(),
+            fakeTicker);
+    when(mockCommands.get("cached"))
+        .thenReturn(CompletableRedisFuture.completed("cached-value"));
+    cache.get("cached");
+    CompletableRedisFuture<String> failed = new CompletableRedisFuture<>();
+    failed.completeExceptionally(new IllegalStateException("boom"));
+    when(mockCommands.get("failed")).thenReturn(failed);
+    when(mockCommands.get("missing"))
+        .thenReturn(CompletableRedisFuture.completed(null));
+    List<String> results = new ArrayList<>();
+
+    cache.getAll(
+        ImmutableList.of("failed", "missing", "cached", "missing", "cached"),
+        new BatchListener() {
+          @Override
+          public void onEntry(String key, CacheEntry entry) {
+            results.add(key + "=" + entry.value().orElse("<none>"));
+          }
+
+          @Override
+          public void onError(String key, Throwable error) {
+            results.add(key + " failed: " + error.getMessage());
+          }
+
+          @Override
+          public void onCachedEntriesDone() {
+            results.add("<cached entries done>");
+          }
+        });
+
+    assertThat(results)
+        .containsExactly(
+            "cached=cached-value",
+            "<cached entries done>",
+            "failed failed: boom",
+            "missing=<none>")
+        .inOrder();
+    verify(mockCommands, times(1)).get("missing");
+  }
+
+  @Test
+  public void testHotKey_pinnedAndRefreshedBeforeExpiry() throws Exception {
+    Duration window = Duration.ofMinutes(1);
+    cache =
+        new LruCache(
+            mockCommands,
+            DEFAULT_CONFIGURATION.toBuilder()
+                .setCacheExpiry(Duration.ofMinutes(10))
+                .setHotKeysTopK(4)
+                .setHotKeysMinRate(0)
+                .setHotKeysWindow(window)
+                .build(),
+            fakeTicker);
+    when(mockCommands.get("hot"))
+        .thenReturn(
+            CompletableRedisFuture.completed("v1"),
+            CompletableRedisFuture.completed("v2"),
+            CompletableRedisFuture.completed("v3"));
+    when(mockCommands.get("other1"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
+    when(mockCommands.get("other2"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
+    assertThat(cache.get("hot")).isEqualTo(Optional.of("v1"));
+
+    // The key becomes hot, so the refresh stores it pinned.
+    fakeTicker.advance(window);
+    cache.get("hot");
+    cache.refreshHotKeys();
+    assertThat(cache.hotKeys().isHot("hot")).isTrue();
+    verify(mockCommands, times(2)).get("hot");
+
+    // The pinned entry weighs nothing, so it is not evicted.
+    cache.get("other1");
+    cache.get("other2");
+    assertThat(cache.get("hot")).isEqualTo(Optional.of("v2"));
+    verify(mockCommands, times(2)).get("hot");
+
+    // It is not refreshed again until it is about to expire.
+    for (int minute = 1; minute < 10; minute++) {
+      fakeTicker.advance(window);
+      cache.get("hot");
+      cache.refreshHotKeys();
+    }
+    verify(mockCommands, times(3)).get("hot");
+    assertThat(cache.get("hot")).isEqualTo(Optional.of("v3"));
+    cache.close();
+  }
+
+  @Test
+  public void testDelete_cachesAbsentValue() throws Exception {
+    when(mockCommands.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
+    when(mockCommands.del("key")).thenReturn(CompletableRedisFuture.completed(1L));
+    assertThat(cache.get("key")).isEqualTo(Optional.of("value"));
+
+    assertThat(cache.delete("key", /* unlink= */ false)).isTrue();
+
+    assertThat(cache.get("key")).isEqualTo(Optional.empty());
+    verify(mockCommands, times(1)).get("key");
+  }
+
+  @Test
+  public void testExpire_nonPositiveTtl_cachesAbsentValue() throws Exception {
+    when(mockCommands.pexpire("key", 0))
+        .thenReturn(CompletableRedisFuture.completed(true));
+
+    assertThat(cache.expire("key", Duration.ZERO)).isTrue();
+
+    assertThat(cache.get("key")).isEqualTo(Optional.empty());
+    verify(mockCommands, never()).get("key");
+  }
 }
@@ -0,0 +1,163 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.testing.FakeTicker;
+import configuration.Endpoint;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import metrics.Metrics;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for ReplicaRouter. */
+public class ReplicaRouterTest {
+
+  private static final Endpoint REPLICA_1 = Endpoint.create("replica-1", 6379);
+  private static final Endpoint REPLICA_2 = Endpoint.create("replica-2", 6379);
+
+  private RedisAsyncCommands<String, String> primary;
+  private RedisAsyncCommands<String, String> replica1;
+  private RedisAsyncCommands<String, String> replica2;
+  private FakeTicker fakeTicker;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    primary = mock(RedisAsyncCommands.class);
+    replica1 = mock(RedisAsyncCommands.class);
+    replica2 = mock(RedisAsyncCommands.class);
+    fakeTicker = new FakeTicker();
+  }
+
+  /** Makes a replica answer every GET after the specified latency. */
+  private void respondAfter(
+      RedisAsyncCommands<String, String> commands,
+      String value,
+      Duration latency) {
+    when(commands.get("key")).thenAnswer(invocation -> {
+      fakeTicker.advance(latency);
+      return CompletableRedisFuture.completed(value);
+    });
+  }
+
+  private ReplicaRouter newRouter(
+      ImmutableMap<Endpoint, RedisRouter> replicas,
+      double hedgePercentile) {
+    return new ReplicaRouter(
+        new SingleConnectionRouter(primary),
+        replicas,
+        ImmutableList.of("primary:"),
+        hedgePercentile,
+        fakeTicker);
+  }
+
+  @Test
+  public void testExecute_primaryOnlyPrefix_readsFromPrimary()
+      throws Exception {
+    when(primary.get("primary:key"))
+        .thenReturn(CompletableRedisFuture.completed("value"));
+    ReplicaRouter router =
+        newRouter(
+            ImmutableMap.of(REPLICA_1, new SingleConnectionRouter(replica1)),
+            0);
+
+    assertThat(router.execute("primary:key", c -> c.get("primary:key")).get())
+        .isEqualTo("value");
+    verify(replica1, never()).get("primary:key");
+  }
+
+  @Test
+  public void testExecute_prefersFasterReplica() throws Exception {
+    respondAfter(replica1, "slow", Duration.ofMillis(50));
+    respondAfter(replica2, "fast", Duration.ofMillis(1));
+    ReplicaRouter router =
+        newRouter(
+            ImmutableMap.of(
+                REPLICA_1,
+                new SingleConnectionRouter(replica1),
+                REPLICA_2,
+                new SingleConnectionRouter(replica2)),
+            0);
+
+    // Let the router measure both replicas.
+    for (int i = 0; i < 5; i++) {
+      router.execute("key", c -> c.get("key")).get();
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(router.execute("key", c -> c.get("key")).get())
+          .isEqualTo("fast");
+    }
+    assertThat(router.ewmaLatencies().get(0))
+        .isGreaterThan(router.ewmaLatencies().get(1));
+  }
+
+  @Test
+  public void testExecute_failingReplica_looksSlow() throws Exception {
+    when(replica1.get("key"))
+        .thenAnswer(
+            invocation -> {
+              CompletableRedisFuture<String> failed =
+                  new CompletableRedisFuture<>();
+              failed.completeExceptionally(
+                  new RedisConnectionException("connection lost"));
+              return failed;
+            });
+    respondAfter(replica2, "healthy", Duration.ofMillis(5));
+    ReplicaRouter router =
+        newRouter(
+            ImmutableMap.of(
+                REPLICA_1,
+                new SingleConnectionRouter(replica1),
+                REPLICA_2,
+                new SingleConnectionRouter(replica2)),
+            0);
+
+    // The replica fails at once, which must not make it look fast.
+    for (int i = 0; i < 20; i++) {
+      try {
+        router.execute("key", c -> c.get("key")).get();
+      } catch (ExecutionException e) {
+        // Expected from the failing replica.
+      }
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(router.execute("key", c -> c.get("key")).get())
+          .isEqualTo("healthy");
+    }
+    assertThat(router.ewmaLatencies().get(0))
+        .isGreaterThan(router.ewmaLatencies().get(1));
+  }
+
+  @Test
+  public void testExecute_slowRead_isHedged() throws Exception {
+    respondAfter(replica1, "replica", Duration.ofMillis(1));
+    ReplicaRouter router =
+        newRouter(
+            ImmutableMap.of(REPLICA_1, new SingleConnectionRouter(replica1)),
+            0.5);
+    for (int i = 0; i < 20; i++) {
+      router.execute("key", c -> c.get("key")).get();
+    }
+    long hedgedBefore = Metrics.counter("redis.replica.hedged").sum();
+
+    // The replica stops answering, so the hedged read to the primary wins.
+    when(replica1.get("key")).thenReturn(new CompletableRedisFuture<>());
+    when(primary.get("key"))
+        .thenReturn(CompletableRedisFuture.completed("primary"));
+
+    assertThat(router.execute("key", c -> c.get("key")).get(5, TimeUnit.SECONDS))
+        .isEqualTo("primary");
+    assertThat(Metrics.counter("redis.replica.hedged").sum())
+        .isEqualTo(hedgedBefore + 1);
+  }
+}
@@ -0,0 +1,121 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import configuration.Endpoint;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.junit.Test;
+
+/** Tests for ShardedRouter's changes of shards. */
+public class ShardedRouterTest {
+
+  private static final int KEYS = 10_000;
+  private static final int VIRTUAL_NODES = 160;
+  private static final ImmutableList<Endpoint> SHARDS =
+      ImmutableList.of(
+          Endpoint.create("redis-1", 6379),
+          Endpoint.create("redis-2", 6379),
+          Endpoint.create("redis-3", 6379),
+          Endpoint.create("redis-4", 6379));
+
+  private final Set<Endpoint> connected = new HashSet<>();
+  private final Set<Endpoint> closed = new HashSet<>();
+
+  /** A router that only records whether it was closed. */
+  private RedisRouter connect(Endpoint endpoint) {
+    connected.add(endpoint);
+    return new RedisRouter() {
+      @Override
+      public <T> RedisFuture<T> execute(
+          String key,
+          Function<RedisAsyncCommands<String, String>, RedisFuture<T>>
+              command) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void close() {
+        closed.add(endpoint);
+      }
+    };
+  }
+
+  private ShardedRouter newRouter(List<Endpoint> shards) {
+    ShardedRouter router =
+        new ShardedRouter(
+            shards.stream()
+                .collect(ImmutableMap.toImmutableMap(s -> s, this::connect)),
+            VIRTUAL_NODES);
+    connected.clear();
+    return router;
+  }
+
+  private static Map<String, Endpoint> owners(ShardedRouter router) {
+    Map<String, Endpoint> owners = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      owners.put("key" + i, router.shardFor("key" + i));
+    }
+    return owners;
+  }
+
+  @Test
+  public void testSetShards_addedShard_takesAboutOneNthOfTheKeys() {
+    ShardedRouter router = newRouter(SHARDS.subList(0, 3));
+    Map<String, Endpoint> before = owners(router);
+
+    router.setShards(SHARDS, this::connect);
+
+    Map<String, Endpoint> after = owners(router);
+    int moved = 0;
+    for (String key : before.keySet()) {
+      if (!before.get(key).equals(after.get(key))) {
+        // Keys only move to the new shard.
+        assertThat(after.get(key)).isEqualTo(SHARDS.get(3));
+        moved++;
+      }
+    }
+    assertThat((double) moved / KEYS).isWithin(0.07).of(1.0 / 4);
+    assertThat(connected).containsExactly(SHARDS.get(3));
+    assertThat(closed).isEmpty();
+  }
+
+  @Test
+  public void testSetShards_removedShard_onlyItsKeysMoveAndItIsClosed() {
+    ShardedRouter router = newRouter(SHARDS);
+    Map<String, Endpoint> before = owners(router);
+    List<Endpoint> remaining = new ArrayList<>(SHARDS);
+    remaining.remove(1);
+
+    router.setShards(remaining, this::connect);
+
+    Map<String, Endpoint> after = owners(router);
+    for (String key : before.keySet()) {
+      if (!before.get(key).equals(SHARDS.get(1))) {
+        assertThat(after.get(key)).isEqualTo(before.get(key));
+      }
+    }
+    assertThat(after.values()).doesNotContain(SHARDS.get(1));
+    assertThat(closed).containsExactly(SHARDS.get(1));
+    assertThat(connected).isEmpty();
+  }
+
+  @Test
+  public void testSetShards_sameShards_keepsRouters() {
+    ShardedRouter router = newRouter(SHARDS);
+
+    router.setShards(SHARDS, this::connect);
+
+    assertThat(connected).isEmpty();
+    assertThat(closed).isEmpty();
+  }
+}
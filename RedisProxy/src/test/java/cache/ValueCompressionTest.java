@@ -0,0 +1,55 @@
+package cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+/** Tests for ValueCompression. */
+public class ValueCompressionTest {
+
+  private static final String JSON =
+      Strings.repeat("{\"id\": 12345, \"name\": \"widget\", \"tags\": []}", 50);
+
+  @Test
+  public void testCompress_roundTrip() {
+    byte[] gzipped = ValueCompression.compress(JSON.getBytes(Charsets.UTF_8));
+
+    assertThat(gzipped.length).isLessThan(JSON.length() / 5);
+    assertThat(ValueCompression.decompress(gzipped)).isEqualTo(JSON);
+  }
+
+  @Test
+  public void testCompress_isValidGzip() throws Exception {
+    byte[] gzipped = ValueCompression.compress(JSON.getBytes(Charsets.UTF_8));
+
+    byte[] decompressed =
+        ByteStreams.toByteArray(
+            new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+    assertThat(new String(decompressed, Charsets.UTF_8)).isEqualTo(JSON);
+  }
+
+  @Test
+  public void testCompress_incompressibleValueIsNotCompressed() {
+    byte[] random = new byte[1024];
+    new Random(0).nextBytes(random);
+
+    assertThat(ValueCompression.compress(random)).isNull();
+  }
+
+  @Test
+  public void testCacheEntry_compressesOnlyAboveThreshold() {
+    assertThat(CacheEntry.of(JSON, JSON.length() + 1, 0, 0).gzipped().isPresent())
+        .isFalse();
+
+    CacheEntry entry = CacheEntry.of(JSON, JSON.length(), 0, 0);
+    assertThat(entry.gzipped().isPresent()).isTrue();
+    assertThat(entry.value().get()).isEqualTo(JSON);
+    assertThat(entry.weight()).isLessThan(CacheEntry.of(JSON, 0, 0, 0).weight());
+  }
+}
@@ -0,0 +1,93 @@
+package configuration;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for LiveConfiguration. */
+public class LiveConfigurationTest {
+
+  private final LiveConfiguration configuration =
+      new LiveConfiguration(Configuration.newBuilder().build());
+
+  @Test
+  public void testUpdate_appliesValuesAndNotifiesListeners() {
+    List<Configuration> notified = new ArrayList<>();
+    configuration.addListener(notified::add);
+
+    Configuration updated =
+        configuration.update(
+            ImmutableMap.of("CACHE_CAPACITY", "500", "CACHE_EXPIRY", "30000"),
+            "test");
+
+    assertThat(updated.cacheCapacity()).isEqualTo(500);
+    assertThat(updated.cacheExpiry()).isEqualTo(Duration.ofSeconds(30));
+    assertThat(configuration.get()).isEqualTo(updated);
+    assertThat(notified).containsExactly(updated);
+    assertThat(configuration.format()).contains("CACHE_CAPACITY 500\n");
+    assertThat(configuration.format()).contains("CACHE_EXPIRY 30000\n");
+  }
+
+  @Test
+  public void testUpdate_unchangedValues_doNotNotifyListeners() {
+    List<Configuration> notified = new ArrayList<>();
+    configuration.addListener(notified::add);
+
+    configuration.update(
+        ImmutableMap.of(
+            "CACHE_CAPACITY",
+            String.valueOf(configuration.get().cacheCapacity())),
+        "test");
+
+    assertThat(notified).isEmpty();
+  }
+
+  @Test
+  public void testUpdate_invalidValue_appliesNothing() {
+    Configuration before = configuration.get();
+    List<Configuration> notified = new ArrayList<>();
+    configuration.addListener(notified::add);
+
+    for (ImmutableMap<String, String> values
+        : ImmutableMap.of(
+            ImmutableMap.of("CACHE_CAPACITY", "500", "REDIS_PORT", "1234"),
+            "not reconfigurable",
+            ImmutableMap.of("CACHE_CAPACITY", "500", "NO_SUCH_KEY", "1"),
+            "unknown",
+            ImmutableMap.of("CACHE_CAPACITY", "0"),
+            "not positive",
+            ImmutableMap.of("CACHE_EXPIRY", "soon"),
+            "not a number").keySet()) {
+      try {
+        configuration.update(values, "test");
+        throw new AssertionError("expected " + values + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+
+    assertThat(configuration.get()).isEqualTo(before);
+    assertThat(notified).isEmpty();
+  }
+
+  @Test
+  public void testUpdate_redisShards_cannotBeChangedAtRuntime() {
+    LiveConfiguration sharded =
+        new LiveConfiguration(
+            Configuration.newBuilder()
+                .setRedisShards(Endpoint.parseList("a:6379,b:6379"))
+                .build());
+
+    try {
+      sharded.update(ImmutableMap.of("REDIS_SHARDS", "evil:6379"), "test");
+      throw new AssertionError("expected REDIS_SHARDS to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessageThat().contains("cannot be changed at runtime");
+    }
+    assertThat(sharded.format()).doesNotContain("REDIS_SHARDS");
+  }
+}
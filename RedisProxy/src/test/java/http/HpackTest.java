@@ -0,0 +1,90 @@
+package http;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/** Tests for Hpack, using the examples of RFC 7541 Appendix C. */
+public class HpackTest {
+
+  private static byte[] hex(String hex) {
+    return BaseEncoding.base16().lowerCase().decode(hex.replace(" ", ""));
+  }
+
+  private static Map.Entry<String, String> header(String name, String value) {
+    return Maps.immutableEntry(name, value);
+  }
+
+  @Test
+  public void testDecode_requestsWithHuffmanCoding() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder();
+
+    assertThat(decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")))
+        .containsExactly(
+            header(":method", "GET"),
+            header(":scheme", "http"),
+            header(":path", "/"),
+            header(":authority", "www.example.com"))
+        .inOrder();
+    // The authority is now in the dynamic table.
+    assertThat(decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")))
+        .containsExactly(
+            header(":method", "GET"),
+            header(":scheme", "http"),
+            header(":path", "/"),
+            header(":authority", "www.example.com"),
+            header("cache-control", "no-cache"))
+        .inOrder();
+    assertThat(
+        decoder.decode(
+            hex(
+                "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")))
+        .containsExactly(
+            header(":method", "GET"),
+            header(":scheme", "https"),
+            header(":path", "/index.html"),
+            header(":authority", "www.example.com"),
+            header("custom-key", "custom-value"))
+        .inOrder();
+  }
+
+  @Test
+  public void testDecode_literalWithoutHuffmanCoding() throws Exception {
+    // RFC 7541 C.2.2: literal header field without indexing.
+    assertThat(
+        new Hpack.Decoder().decode(hex("040c 2f73 616d 706c 652f 7061 7468")))
+        .containsExactly(header(":path", "/sample/path"));
+  }
+
+  @Test
+  public void testEncode_roundTrip() throws Exception {
+    List<Map.Entry<String, String>> headers =
+        ImmutableList.of(
+            header(":status", "200"),
+            header(":status", "418"),
+            header("etag", "\"abc\""),
+            header("x-custom", "value"));
+
+    assertThat(new Hpack.Decoder().decode(Hpack.encode(headers)))
+        .containsExactlyElementsIn(headers)
+        .inOrder();
+    assertThat(Hpack.encode(headers.subList(0, 1))).isEqualTo(hex("88"));
+  }
+
+  @Test
+  public void testIntegers() throws Exception {
+    // RFC 7541 C.1.2: 1337 with a 5-bit prefix.
+    assertThat(Hpack.readInteger(hex("1f9a0a"), new int[] {0}, 5))
+        .isEqualTo(1337);
+  }
+
+  @Test(expected = Hpack.CompressionException.class)
+  public void testDecode_invalidIndex() throws Exception {
+    new Hpack.Decoder().decode(hex("be"));
+  }
+}
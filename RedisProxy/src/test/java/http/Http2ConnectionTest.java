@@ -0,0 +1,391 @@
+package http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import cache.CacheEntry;
+import cache.LruCache;
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import configuration.Configuration;
+import configuration.LiveConfiguration;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import server.AdmissionController;
+
+/**
+ * Tests for Http2Connection, speaking raw HTTP/2 frames to a connection
+ * backed by a mock cache.
+ */
+public class Http2ConnectionTest {
+
+  private static final String VALUE = "0123456789";
+
+  private final ExecutorService streamExecutor =
+      Executors.newFixedThreadPool(4);
+  private LruCache cache;
+  private ServerSocket serverSocket;
+  private Http2Connection connection;
+  private Socket client;
+  private DataInputStream input;
+  private OutputStream output;
+
+  /** A frame received by the client. */
+  private static class Frame {
+    final int type;
+    final int flags;
+    final int streamId;
+    final byte[] payload;
+
+    Frame(int type, int flags, int streamId, byte[] payload) {
+      this.type = type;
+      this.flags = flags;
+      this.streamId = streamId;
+      this.payload = payload;
+    }
+  }
+
+  /** A response as seen by the client. */
+  private static class Response {
+    final Map<String, String> headers = new HashMap<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    boolean ended;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    cache = mock(LruCache.class);
+    CacheEntry entry = mock(CacheEntry.class);
+    when(entry.hasValue()).thenReturn(true);
+    when(entry.value()).thenReturn(Optional.of(VALUE));
+    when(entry.gzipped()).thenReturn(Optional.empty());
+    when(entry.hash()).thenReturn("42");
+    when(cache.getEntry(any())).thenReturn(entry);
+    when(cache.remainingTtl(any())).thenReturn(Duration.ofSeconds(60));
+    serverSocket = new ServerSocket(0);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (connection != null) {
+      connection.close();
+    }
+    if (client != null) {
+      client.close();
+    }
+    serverSocket.close();
+    streamExecutor.shutdownNow();
+  }
+
+  private void connect(int maxConcurrentStreams, Executor executor)
+      throws IOException {
+    client = new Socket("localhost", serverSocket.getLocalPort());
+    client.setSoTimeout(5000);
+    input = new DataInputStream(client.getInputStream());
+    output = client.getOutputStream();
+    connection =
+        new Http2Connection(
+            serverSocket.accept(),
+            cache,
+            new LiveConfiguration(
+                Configuration.newBuilder().setHttpBatchMaxKeys(10).build()),
+            maxConcurrentStreams,
+            executor,
+            new AdmissionController(
+                "http2-test",
+                Duration.ofSeconds(10),
+                Duration.ofSeconds(10),
+                Ticker.systemTicker()));
+    new Thread(connection).start();
+  }
+
+  private void writeFrame(int type, int flags, int streamId, byte[] payload)
+      throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write(payload.length >>> 16);
+    frame.write(payload.length >>> 8);
+    frame.write(payload.length);
+    frame.write(type);
+    frame.write(flags);
+    frame.write(intBytes(streamId));
+    frame.write(payload);
+    output.write(frame.toByteArray());
+    output.flush();
+  }
+
+  private void writePreface(byte[] settings) throws IOException {
+    output.write(Http2Connection.PREFACE);
+    writeFrame(Http2Connection.SETTINGS, 0, 0, settings);
+  }
+
+  private void writeGet(int streamId, String path) throws IOException {
+    writeFrame(
+        Http2Connection.HEADERS,
+        Http2Connection.FLAG_END_HEADERS | Http2Connection.FLAG_END_STREAM,
+        streamId,
+        Hpack.encode(
+            ImmutableList.of(
+                Maps.immutableEntry(":method", "GET"),
+                Maps.immutableEntry(":scheme", "http"),
+                Maps.immutableEntry(":path", path),
+                Maps.immutableEntry(":authority", "localhost"))));
+  }
+
+  private Frame readFrame() throws IOException {
+    int length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+    int type = input.readUnsignedByte();
+    int flags = input.readUnsignedByte();
+    int streamId = input.readInt() & Integer.MAX_VALUE;
+    byte[] payload = new byte[length];
+    input.readFully(payload);
+    return new Frame(type, flags, streamId, payload);
+  }
+
+  /** Reads frames until every one of the streams has ended (or was reset). */
+  private Map<Integer, Response> readResponses(
+      Hpack.Decoder decoder,
+      int... streamIds) throws IOException {
+    Map<Integer, Response> responses = new HashMap<>();
+    for (int streamId : streamIds) {
+      responses.put(streamId, new Response());
+    }
+    while (responses.values().stream().anyMatch(r -> !r.ended)) {
+      Frame frame = readFrame();
+      Response response = responses.get(frame.streamId);
+      if (response == null) {
+        continue;
+      }
+      if (frame.type == Http2Connection.HEADERS) {
+        decoder.decode(frame.payload)
+            .forEach(h -> response.headers.put(h.getKey(), h.getValue()));
+      } else if (frame.type == Http2Connection.DATA) {
+        response.body.write(frame.payload);
+      } else if (frame.type == Http2Connection.RST_STREAM) {
+        response.headers.put("reset", Integer.toString(frame.payload[3]));
+        response.ended = true;
+      }
+      if ((frame.type == Http2Connection.HEADERS
+              || frame.type == Http2Connection.DATA)
+          && (frame.flags & Http2Connection.FLAG_END_STREAM) != 0) {
+        response.ended = true;
+      }
+    }
+    return responses;
+  }
+
+  private static byte[] intBytes(int i) {
+    return new byte[] {
+      (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i
+    };
+  }
+
+  private static byte[] setting(int id, int value) {
+    ByteArrayOutputStream setting = new ByteArrayOutputStream();
+    setting.write(id >>> 8);
+    setting.write(id);
+    setting.write(intBytes(value), 0, 4);
+    return setting.toByteArray();
+  }
+
+  @Test
+  public void testPriorKnowledge_servesConcurrentStreams() throws Exception {
+    connect(100, streamExecutor);
+    writePreface(new byte[0]);
+    writeGet(1, "/key1");
+    writeGet(3, "/key2");
+    writeGet(5, "/_proxy/metrics");
+
+    Map<Integer, Response> responses =
+        readResponses(new Hpack.Decoder(), 1, 3, 5);
+
+    for (int streamId : new int[] {1, 3}) {
+      Response response = responses.get(streamId);
+      assertThat(response.headers).containsEntry(":status", "200");
+      assertThat(response.headers).containsEntry("etag", "\"42\"");
+      assertThat(response.headers).containsEntry("content-length", "10");
+      assertThat(response.body.toString("UTF-8")).isEqualTo(VALUE);
+    }
+    assertThat(responses.get(5).headers).containsEntry(":status", "200");
+    assertThat(responses.get(5).body.toString("UTF-8")).contains("http2");
+  }
+
+  @Test
+  public void testUpgrade_servesUpgradedRequestAsStreamOne() throws Exception {
+    connect(100, streamExecutor);
+    output.write(
+        ("GET /key1 HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\n"
+            + "HTTP2-Settings: \r\n\r\n").getBytes(Charsets.US_ASCII));
+    output.write(Http2Connection.PREFACE);
+    writeFrame(Http2Connection.SETTINGS, 0, 0, new byte[0]);
+
+    byte[] status = new byte["HTTP/1.1 101".length()];
+    input.readFully(status);
+    assertThat(new String(status, Charsets.US_ASCII))
+        .isEqualTo("HTTP/1.1 101");
+    // Skip the rest of the 101 response.
+    int matched = 0;
+    while (matched < 4) {
+      int c = input.read();
+      matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : 0;
+    }
+    Response response = readResponses(new Hpack.Decoder(), 1).get(1);
+
+    assertThat(response.headers).containsEntry(":status", "200");
+    assertThat(response.headers).doesNotContainKey("connection");
+    assertThat(response.body.toString("UTF-8")).isEqualTo(VALUE);
+  }
+
+  @Test
+  public void testUpgrade_bodyTooLarge_rejected() throws Exception {
+    connect(100, streamExecutor);
+    output.write(
+        ("POST /_proxy/mget HTTP/1.1\r\nHost: localhost\r\n"
+            + "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\n"
+            + "HTTP2-Settings: \r\nContent-Length: 2000000000\r\n\r\n")
+            .getBytes(Charsets.US_ASCII));
+
+    byte[] status = new byte["HTTP/1.1 413".length()];
+    input.readFully(status);
+
+    assertThat(new String(status, Charsets.US_ASCII))
+        .isEqualTo("HTTP/1.1 413");
+  }
+
+  @Test
+  public void testNotUpgrade_rejected() throws Exception {
+    connect(100, streamExecutor);
+    output.write(
+        "GET /key1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(Charsets.US_ASCII));
+
+    byte[] status = new byte["HTTP/1.1 426".length()];
+    input.readFully(status);
+
+    assertThat(new String(status, Charsets.US_ASCII))
+        .isEqualTo("HTTP/1.1 426");
+  }
+
+  @Test
+  public void testFlowControl_dataWaitsForWindowUpdate() throws Exception {
+    connect(100, streamExecutor);
+    writePreface(setting(Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE, 4));
+    writeGet(1, "/key1");
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    Frame frame;
+    do {
+      frame = readFrame();
+      if (frame.type == Http2Connection.DATA) {
+        body.write(frame.payload);
+      }
+    } while (body.size() < 4);
+    assertThat(body.toString("UTF-8")).isEqualTo("0123");
+    assertThat(frame.flags & Http2Connection.FLAG_END_STREAM).isEqualTo(0);
+
+    writeFrame(Http2Connection.WINDOW_UPDATE, 0, 1, intBytes(100));
+    do {
+      frame = readFrame();
+      if (frame.type == Http2Connection.DATA) {
+        body.write(frame.payload);
+      }
+    } while ((frame.flags & Http2Connection.FLAG_END_STREAM) == 0
+        || frame.type != Http2Connection.DATA);
+
+    assertThat(body.toString("UTF-8")).isEqualTo(VALUE);
+  }
+
+  @Test
+  public void testMaxConcurrentStreams_refusesExcessStreams()
+      throws Exception {
+    // Never serves the streams, so they stay open.
+    connect(1, task -> {});
+    writePreface(new byte[0]);
+    writeGet(1, "/key1");
+    writeGet(3, "/key2");
+
+    Response refused = readResponses(new Hpack.Decoder(), 3).get(3);
+
+    assertThat(refused.headers)
+        .containsEntry(
+            "reset",
+            Integer.toString(Http2Connection.REFUSED_STREAM));
+  }
+
+  @Test
+  public void testPing_acknowledged() throws Exception {
+    connect(100, streamExecutor);
+    writePreface(new byte[0]);
+    byte[] data = "pingpong".getBytes(Charsets.US_ASCII);
+    writeFrame(Http2Connection.PING, 0, 0, data);
+
+    Frame frame;
+    do {
+      frame = readFrame();
+    } while (frame.type != Http2Connection.PING);
+
+    assertThat(frame.flags).isEqualTo(Http2Connection.FLAG_ACK);
+    assertThat(frame.payload).isEqualTo(data);
+  }
+
+  @Test
+  public void testOversizedFrame_goAway() throws Exception {
+    connect(100, streamExecutor);
+    writePreface(new byte[0]);
+    writeFrame(
+        Http2Connection.PING,
+        0,
+        0,
+        new byte[Http2Connection.MAX_FRAME_SIZE + 1]);
+
+    Frame frame;
+    do {
+      frame = readFrame();
+    } while (frame.type != Http2Connection.GOAWAY);
+
+    assertThat(frame.payload[7]).isEqualTo(Http2Connection.FRAME_SIZE_ERROR);
+  }
+
+  @Test
+  public void testHeaderBlockTooLarge_goAway() throws Exception {
+    connect(100, streamExecutor);
+    writePreface(new byte[0]);
+    byte[] fragment = new byte[Http2Connection.MAX_FRAME_SIZE];
+    writeFrame(Http2Connection.HEADERS, 0, 1, fragment);
+    for (int size = fragment.length;
+        size < Http2Connection.MAX_HEADER_BLOCK_BYTES;
+        size += fragment.length) {
+      writeFrame(Http2Connection.CONTINUATION, 0, 1, fragment);
+    }
+    // Only the header of the frame that goes over the limit: it is refused
+    // before its payload is read.
+    output.write(new byte[] {0, 0x40, 0, Http2Connection.CONTINUATION, 0});
+    output.write(intBytes(1));
+    output.flush();
+
+    Frame frame;
+    do {
+      frame = readFrame();
+    } while (frame.type != Http2Connection.GOAWAY);
+
+    assertThat(frame.payload[7]).isEqualTo(Http2Connection.ENHANCE_YOUR_CALM);
+  }
+}
@@ -0,0 +1,104 @@
+package http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import buffer.BufferPool;
+import buffer.PooledInputStream;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayInputStream;
+import org.junit.Test;
+
+/** Tests for HttpRequest. */
+public class HttpRequestTest {
+
+  private static HttpRequest read(String request) throws Exception {
+    try (PooledInputStream input =
+        new PooledInputStream(
+            new ByteArrayInputStream(request.getBytes(Charsets.UTF_8)),
+            BufferPool.shared())) {
+      return HttpRequest.read(input);
+    }
+  }
+
+  @Test
+  public void testRead_headers() throws Exception {
+    HttpRequest request =
+        read(
+            "HEAD /key HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "X-Custom:  a b \r\n\r\n");
+
+    assertThat(request.key).isEqualTo("key");
+    assertThat(request.isHead()).isTrue();
+    assertThat(request.headers).containsEntry("host", "localhost");
+    assertThat(request.headers).containsEntry("x-custom", "a b");
+  }
+
+  @Test
+  public void testRead_postBody() throws Exception {
+    HttpRequest request =
+        read("POST /k HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcdef");
+
+    assertThat(request.body).isEqualTo("abc");
+  }
+
+  @Test
+  public void testRead_postBodyTooLarge_rejected() throws Exception {
+    for (String length : ImmutableList.of("1048577", "99999999999999999999")) {
+      HttpRequest.InvalidRequestException exception =
+          assertThrows(
+              HttpRequest.InvalidRequestException.class,
+              () -> read(
+                  "POST /k HTTP/1.1\r\nContent-Length: " + length
+                      + "\r\n\r\n"));
+
+      assertThat(exception.response)
+          .isEqualTo(HttpRequest.PAYLOAD_TOO_LARGE_STRING);
+    }
+  }
+
+  @Test
+  public void testRead_invalidContentLength_rejected() throws Exception {
+    for (String length : ImmutableList.of("", "-1", "12abc", "1, 1")) {
+      HttpRequest.InvalidRequestException exception =
+          assertThrows(
+              HttpRequest.InvalidRequestException.class,
+              () -> read(
+                  "POST /k HTTP/1.1\r\nContent-Length: " + length
+                      + "\r\n\r\n"));
+
+      assertThat(exception.response)
+          .isEqualTo(HttpRequest.BAD_REQUEST_STRING);
+    }
+  }
+
+  @Test
+  public void testAcceptsGzip() throws Exception {
+    assertThat(read("GET /k HTTP/1.1\r\n\r\n").acceptsGzip()).isFalse();
+    assertThat(
+        read("GET /k HTTP/1.1\r\nAccept-Encoding: br, GZIP\r\n\r\n")
+            .acceptsGzip())
+        .isTrue();
+    assertThat(
+        read("GET /k HTTP/1.1\r\nAccept-Encoding: gzip;q=0\r\n\r\n")
+            .acceptsGzip())
+        .isFalse();
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    HttpRequest request =
+        read(
+            "GET /k HTTP/1.1\r\n"
+                + "If-None-Match: \"other\", W/\"abc-gzip\"\r\n\r\n");
+
+    assertThat(request.ifNoneMatch("abc")).isTrue();
+    assertThat(request.ifNoneMatch("ab")).isFalse();
+    assertThat(
+        read("GET /k HTTP/1.1\r\nIf-None-Match: *\r\n\r\n")
+            .ifNoneMatch("abc"))
+        .isTrue();
+  }
+}
@@ -0,0 +1,36 @@
+package metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for BigKeys. */
+public class BigKeysTest {
+
+  @Before
+  public void setUp() {
+    BigKeys.clear();
+  }
+
+  @Test
+  public void testRecord_keepsLargestKeysOnly() {
+    for (int i = 0; i <= BigKeys.CAPACITY; i++) {
+      BigKeys.record("key" + i, i);
+    }
+
+    assertThat(BigKeys.snapshot()).hasSize(BigKeys.CAPACITY);
+    assertThat(BigKeys.snapshot()).doesNotContainKey("key0");
+    assertThat(BigKeys.snapshot().keySet().iterator().next())
+        .isEqualTo("key" + BigKeys.CAPACITY);
+  }
+
+  @Test
+  public void testRecord_updatesKnownKey() {
+    BigKeys.record("key", 10);
+    BigKeys.record("key", 20);
+
+    assertThat(BigKeys.snapshot()).containsExactly("key", 20L);
+    assertThat(BigKeys.format()).isEqualTo("key 20\n");
+  }
+}
@@ -0,0 +1,80 @@
+package peer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import configuration.Configuration;
+import configuration.Endpoint;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests for PeerGroup. */
+public class PeerGroupTest {
+
+  private static final ImmutableList<Endpoint> PEERS =
+      ImmutableList.of(
+          Endpoint.create("localhost", 7501),
+          Endpoint.create("localhost", 7502),
+          Endpoint.create("localhost", 7503, 2));
+
+  private final List<PeerGroup> groups = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    groups.forEach(PeerGroup::close);
+  }
+
+  private PeerGroup group(String self) {
+    PeerGroup group =
+        PeerGroup.fromConfiguration(
+            Configuration.newBuilder()
+                .setPeers(PEERS)
+                .setPeerSelf(self)
+                .build());
+    groups.add(group);
+    return group;
+  }
+
+  @Test
+  public void testIsOwner_everyKeyHasExactlyOneOwner() {
+    List<PeerGroup> fleet =
+        ImmutableList.of(
+            group("localhost:7501"),
+            group("localhost:7502"),
+            group("localhost:7503"));
+    int[] owned = new int[fleet.size()];
+    for (int i = 0; i < 1000; i++) {
+      String key = "key" + i;
+      int owners = 0;
+      for (int j = 0; j < fleet.size(); j++) {
+        if (fleet.get(j).isOwner(key)) {
+          owners++;
+          owned[j]++;
+          assertThat(fleet.get(0).owner(key)).isEqualTo(PEERS.get(j));
+        }
+      }
+      assertThat(owners).isEqualTo(1);
+    }
+    // The weight-2 peer owns about half of the keys.
+    assertThat(owned[2]).isGreaterThan(owned[0]);
+    assertThat(owned[2]).isGreaterThan(owned[1]);
+  }
+
+  @Test
+  public void testFromConfiguration_noPeers_returnsNull() {
+    assertThat(PeerGroup.fromConfiguration(Configuration.newBuilder().build()))
+        .isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFromConfiguration_selfNotAPeer_throws() {
+    group("localhost:7504");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFromConfiguration_noSelf_throws() {
+    group("");
+  }
+}
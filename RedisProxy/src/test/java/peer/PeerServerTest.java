@@ -0,0 +1,111 @@
+package peer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import cache.LruCache;
+import com.google.common.collect.ImmutableList;
+import configuration.Configuration;
+import configuration.Endpoint;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for PeerServer, on loopback addresses other than 127.0.0.1 so that
+ * connections from peers and from strangers can be told apart.
+ */
+public class PeerServerTest {
+
+  private static final Endpoint SELF = Endpoint.create("127.0.0.2", 7511);
+  private static final Endpoint OTHER = Endpoint.create("127.0.0.3", 7512);
+
+  private static final LruCache cache = Mockito.mock(LruCache.class);
+  private static PeerGroup peers;
+  private static PeerServer server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    Configuration configuration =
+        Configuration.newBuilder()
+            .setPeers(ImmutableList.of(SELF, OTHER))
+            .setPeerSelf(SELF.toString())
+            .build();
+    peers = PeerGroup.fromConfiguration(configuration);
+    server = new PeerServer(cache, peers, configuration);
+    server.start();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    server.shutdown();
+    peers.close();
+  }
+
+  @Before
+  public void resetCache() {
+    Mockito.reset(cache);
+  }
+
+  private static Socket connectFrom(String host) throws IOException {
+    Socket socket = new Socket();
+    socket.bind(new InetSocketAddress(InetAddress.getByName(host), 0));
+    socket.connect(new InetSocketAddress(SELF.host(), SELF.port()));
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  @Test
+  public void testInvalidate_fromPeer_served() throws Exception {
+    try (Socket socket = connectFrom(OTHER.host())) {
+      PeerProtocol.writeRequest(
+          new DataOutputStream(socket.getOutputStream()),
+          PeerProtocol.INVALIDATE,
+          "key");
+
+      PeerProtocol.readOk(new DataInputStream(socket.getInputStream()));
+    }
+    verify(cache).invalidateFromPeer("key");
+  }
+
+  @Test
+  public void testConnection_fromStranger_closed() throws Exception {
+    try (Socket socket = connectFrom("127.0.0.1")) {
+      InputStream input = socket.getInputStream();
+
+      assertThat(input.read()).isEqualTo(-1);
+    }
+    verifyZeroInteractions(cache);
+  }
+
+  @Test
+  public void testReadFetched_lengthBeyondData_throwsWithoutAllocating()
+      throws Exception {
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(reply);
+    output.writeByte(PeerProtocol.VALUE);
+    output.writeLong(0);
+    output.writeLong(-1);
+    output.writeInt(PeerProtocol.MAX_VALUE_BYTES);
+    output.write(new byte[] {'a', 'b'});
+
+    assertThrows(
+        IOException.class,
+        () -> PeerProtocol.readFetched(
+            new DataInputStream(
+                new ByteArrayInputStream(reply.toByteArray()))));
+  }
+}
@@ -0,0 +1,133 @@
+package resp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import cache.CompletableRedisFuture;
+import cache.LruCache;
+import cache.LruCache.SetCondition;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.FakeTicker;
+import configuration.Configuration;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for ClientTracking. */
+public class ClientTrackingTest {
+
+  private LruCache cache;
+  private ClientTracking tracking;
+  private ByteArrayOutputStream output;
+  private RespConnection connection;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    RedisAsyncCommands<String, String> commands =
+        mock(RedisAsyncCommands.class);
+    when(commands.get(anyString()))
+        .thenReturn(CompletableRedisFuture.completed("old"));
+    when(commands.pttl(anyString()))
+        .thenReturn(CompletableRedisFuture.completed(-1L));
+    when(commands.set(anyString(), eq("new"), any(SetArgs.class)))
+        .thenReturn(CompletableRedisFuture.completed("OK"));
+    cache =
+        new LruCache(
+            commands,
+            Configuration.newBuilder()
+                .setCacheCapacity(10)
+                .setCacheExpiry(Duration.ofSeconds(10))
+                .setCacheMaxValueBytes(0)
+                .build(),
+            new FakeTicker());
+    tracking = new ClientTracking(cache);
+    output = new ByteArrayOutputStream();
+    connection = new RespConnection(output);
+    connection.setProtocolVersion(3);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tracking.disable(connection);
+    connection.close();
+  }
+
+  /** Waits for the tracking thread to write everything it has been given. */
+  private String awaitOutput(String expected) throws InterruptedException {
+    for (int i = 0; i < 100 && output.size() < expected.length(); i++) {
+      Thread.sleep(20);
+    }
+    return new String(output.toByteArray(), Charsets.UTF_8);
+  }
+
+  private void read(String key) throws Exception {
+    tracking.trackRead(connection, key);
+    cache.get(key);
+  }
+
+  @Test
+  public void testWrite_invalidatesTrackedRead() throws Exception {
+    connection.setTracking(true, false, ImmutableList.of());
+    tracking.enable(connection);
+    read("key");
+
+    cache.set("key", "new", null, SetCondition.ALWAYS);
+
+    String push = RespProtocol.toInvalidationPush("key");
+    assertThat(awaitOutput(push)).isEqualTo(push);
+  }
+
+  @Test
+  public void testWrite_untrackedKey_notPushed() throws Exception {
+    connection.setTracking(true, false, ImmutableList.of());
+    tracking.enable(connection);
+    read("key");
+    tracking.disable(connection);
+
+    cache.set("key", "new", null, SetCondition.ALWAYS);
+    cache.set("other", "new", null, SetCondition.ALWAYS);
+
+    Thread.sleep(100);
+    assertThat(output.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testWrite_duringBatch_pushedAfterBatch() throws Exception {
+    connection.setTracking(true, false, ImmutableList.of());
+    tracking.enable(connection);
+    read("key");
+    connection.beginBatch();
+
+    cache.set("key", "new", null, SetCondition.ALWAYS);
+    Thread.sleep(100);
+    connection.write("$3\r\nold\r\n");
+    connection.endBatch();
+
+    String push = RespProtocol.toInvalidationPush("key");
+    assertThat(awaitOutput(push)).isEqualTo("$3\r\nold\r\n" + push);
+  }
+
+  @Test
+  public void testBroadcast_pushesMatchingPrefixesOnly() throws Exception {
+    connection.setTracking(true, true, ImmutableList.of("user:"));
+    tracking.enable(connection);
+
+    cache.get("user:1");
+    cache.get("order:1");
+    cache.set("order:1", "new", null, SetCondition.ALWAYS);
+    cache.set("user:1", "new", null, SetCondition.ALWAYS);
+
+    String push = RespProtocol.toInvalidationPush("user:1");
+    assertThat(awaitOutput(push)).isEqualTo(push);
+  }
+}
@@ -3,10 +3,14 @@ package resp;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import io.lettuce.core.protocol.CommandType;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
 import java.util.Optional;
 import org.junit.Test;
 import resp.RespExceptions.RespSyntaxException;
@@ -33,8 +37,12 @@ public class RespProtocolTest {
       throws Exception {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     outputStream.write(string.getBytes());
-    return RespProtocol
-        .parse(new ByteArrayInputStream(outputStream.toByteArray()));
+    return writeAndParse(outputStream.toByteArray());
+  }
+
+  private static ImmutableList<RespRequest> writeAndParse(byte[] bytes)
+      throws Exception {
+    return RespProtocol.parse(new ByteArrayInputStream(bytes));
   }
 
   @Test
@@ -163,12 +171,34 @@ public class RespProtocolTest {
   }
 
   @Test
-  public void testParse_unsupportedCommandType_throws() throws Exception {
+  public void testParse_unknownCommand_isPassthrough() throws Exception {
     String request1 = "INCR foo\r\n";
     String request2 =
         new StringBuilder().append("*2\r\n")
-            .append("$2\r\n")
-            .append("INCR\r\n")
+            .append("$4\r\n")
+            .append("HLEN\r\n")
+            .append("$3\r\n")
+            .append("foo\r\n")
+            .toString();
+
+    assertThat(writeAndParse(request1 + request2)).containsExactly(
+        RespRequest.passthrough(
+            "INCR",
+            ImmutableList.of("foo"),
+            request1.getBytes(Charsets.UTF_8)),
+        RespRequest.passthrough(
+            "HLEN",
+            ImmutableList.of("foo"),
+            request2.getBytes(Charsets.UTF_8)));
+  }
+
+  @Test
+  public void testParse_connectionStateCommand_throws() throws Exception {
+    String request1 = "SUBSCRIBE foo\r\n";
+    String request2 =
+        new StringBuilder().append("*2\r\n")
+            .append("$9\r\n")
+            .append("subscribe\r\n")
             .append("$3\r\n")
             .append("foo\r\n")
             .toString();
@@ -183,12 +213,69 @@ public class RespProtocolTest {
             () -> writeAndParse(request2));
 
     UnsupportedRespFeatureException expectedException =
-        new UnsupportedRespFeatureException("INCR");
+        new UnsupportedRespFeatureException("SUBSCRIBE");
 
     assertThat(exception1).isEqualTo(expectedException);
     assertThat(exception2).isEqualTo(expectedException);
   }
 
+  @Test
+  public void testParse_blockingStreamRead_throws() throws Exception {
+    String blocking = "XREADGROUP GROUP g c COUNT 1 BLOCK 0 STREAMS s >\r\n";
+    // "BLOCK" after STREAMS is a key, not the option.
+    String nonBlocking = "XREAD COUNT 1 STREAMS BLOCK 0\r\n";
+
+    assertThat(
+            assertThrows(
+                UnsupportedRespFeatureException.class,
+                () -> writeAndParse(blocking)))
+        .isEqualTo(new UnsupportedRespFeatureException("XREADGROUP"));
+    assertThat(writeAndParse(nonBlocking)).containsExactly(
+        RespRequest.passthrough(
+            "XREAD",
+            ImmutableList.of("COUNT", "1", "STREAMS", "BLOCK", "0"),
+            nonBlocking.getBytes(Charsets.UTF_8)));
+  }
+
+  @Test
+  public void testReadRawReply() throws Exception {
+    String replies =
+        new StringBuilder().append("+OK\r\n")
+            .append("-ERR wrong type\r\n")
+            .append(":-42\r\n")
+            .append("$-1\r\n")
+            .append("$5\r\na\r\nbc\r\n")
+            .append("*3\r\n$1\r\na\r\n*1\r\n:1\r\n$-1\r\n")
+            .append("*0\r\n")
+            .toString();
+    ByteArrayInputStream inputStream =
+        new ByteArrayInputStream(replies.getBytes());
+
+    assertThat(readRawReply(inputStream)).isEqualTo("+OK\r\n");
+    assertThat(readRawReply(inputStream)).isEqualTo("-ERR wrong type\r\n");
+    assertThat(readRawReply(inputStream)).isEqualTo(":-42\r\n");
+    assertThat(readRawReply(inputStream)).isEqualTo("$-1\r\n");
+    // Bulk strings are read by length, so they may contain "\r\n".
+    assertThat(readRawReply(inputStream)).isEqualTo("$5\r\na\r\nbc\r\n");
+    assertThat(readRawReply(inputStream))
+        .isEqualTo("*3\r\n$1\r\na\r\n*1\r\n:1\r\n$-1\r\n");
+    assertThat(readRawReply(inputStream)).isEqualTo("*0\r\n");
+    assertThat(RespProtocol.readRawReply(inputStream)).isNull();
+  }
+
+  @Test
+  public void testReadRawReply_truncated_throws() throws Exception {
+    ByteArrayInputStream inputStream =
+        new ByteArrayInputStream("*2\r\n$3\r\nfoo\r\n".getBytes());
+
+    assertThrows(EOFException.class, () -> readRawReply(inputStream));
+  }
+
+  private static String readRawReply(ByteArrayInputStream inputStream)
+      throws Exception {
+    return new String(RespProtocol.readRawReply(inputStream));
+  }
+
   @Test
   public void testParse_get_tooManyParams_throws() throws Exception {
     String request1 = "GET foo bar\r\n";
@@ -209,14 +296,11 @@ public class RespProtocolTest {
             .append("$3\r\n")
             .append("bar\r\n")
             .toString();
-    UnsupportedRespFeatureException exception2 =
+    WrongNumberOfArgumentsException exception2 =
         assertThrows(
-            UnsupportedRespFeatureException.class,
+            WrongNumberOfArgumentsException.class,
             () -> writeAndParse(request2));
-    UnsupportedRespFeatureException expectedException2 =
-        new UnsupportedRespFeatureException(
-            RespExceptions.RESP_ARRAY_LENGTH_ERROR);
-    assertThat(exception2).isEqualTo(expectedException2);
+    assertThat(exception2).isEqualTo(expectedException1);
   }
 
   @Test
@@ -243,7 +327,7 @@ public class RespProtocolTest {
   }
 
   @Test
-  public void testParse_array_tooLong_throws() throws Exception {
+  public void testParse_arraySetCommand() throws Exception {
     String request =
         new StringBuilder().append("*3\r\n")
             .append("$3\r\n")
@@ -254,36 +338,145 @@ public class RespProtocolTest {
             .append("bar\r\n")
             .toString();
 
-    UnsupportedRespFeatureException exception =
-        assertThrows(
-            UnsupportedRespFeatureException.class,
-            () -> writeAndParse(request));
+    assertThat(writeAndParse(request)).containsExactly(
+        RespRequest.create(CommandType.SET, ImmutableList.of("foo", "bar")));
+  }
 
-    UnsupportedRespFeatureException expectedException =
-        new UnsupportedRespFeatureException(
-            RespExceptions.RESP_ARRAY_LENGTH_ERROR);
+  @Test
+  public void testParse_writeCommands() throws Exception {
+    String request =
+        new StringBuilder().append("set foo bar EX 10 NX\r\n")
+            .append("SETEX foo 10 bar\r\n")
+            .append("DEL foo bar baz\r\n")
+            .append("UNLINK foo\r\n")
+            .append("EXPIRE foo 10\r\n")
+            .append("PEXPIREAT foo 1000\r\n")
+            .append("PERSIST foo\r\n")
+            .toString();
+
+    assertThat(writeAndParse(request)).containsExactly(
+        RespRequest.create(
+            CommandType.SET,
+            ImmutableList.of("foo", "bar", "EX", "10", "NX")),
+        RespRequest.create(
+            CommandType.SETEX,
+            ImmutableList.of("foo", "10", "bar")),
+        RespRequest.create(
+            CommandType.DEL,
+            ImmutableList.of("foo", "bar", "baz")),
+        RespRequest.create(CommandType.UNLINK, ImmutableList.of("foo")),
+        RespRequest.create(CommandType.EXPIRE, ImmutableList.of("foo", "10")),
+        RespRequest.create(
+            CommandType.PEXPIREAT,
+            ImmutableList.of("foo", "1000")),
+        RespRequest.create(CommandType.PERSIST, ImmutableList.of("foo")));
+  }
+
+  @Test
+  public void testParse_set_tooFewParams_throws() throws Exception {
+    WrongNumberOfArgumentsException exception =
+        assertThrows(
+            WrongNumberOfArgumentsException.class,
+            () -> writeAndParse("SET foo\r\n"));
+    assertThat(exception)
+        .isEqualTo(new WrongNumberOfArgumentsException(CommandType.SET));
+  }
 
-    assertThat(exception).isEqualTo(expectedException);
+  @Test
+  public void testParse_del_noKeys_throws() throws Exception {
+    WrongNumberOfArgumentsException exception =
+        assertThrows(
+            WrongNumberOfArgumentsException.class,
+            () -> writeAndParse("DEL\r\n"));
+    assertThat(exception)
+        .isEqualTo(new WrongNumberOfArgumentsException(CommandType.DEL));
   }
 
   @Test
-  public void testParse_array_tooShort_throws() throws Exception {
+  public void testParse_array_commandWithoutArguments() throws Exception {
     String request =
         new StringBuilder().append("*1\r\n")
             .append("$4\r\n")
             .append("PING\r\n")
             .toString();
 
-    UnsupportedRespFeatureException exception =
-        assertThrows(
-            UnsupportedRespFeatureException.class,
-            () -> writeAndParse(request));
+    assertThat(writeAndParse(request)).containsExactly(
+        RespRequest.passthrough(
+            "PING",
+            ImmutableList.of(),
+            request.getBytes(Charsets.UTF_8)));
+  }
 
-    UnsupportedRespFeatureException expectedException =
-        new UnsupportedRespFeatureException(
-            RespExceptions.RESP_ARRAY_LENGTH_ERROR);
+  @Test
+  public void testParse_array_binaryBulkString_keepsFrameBytes()
+      throws Exception {
+    ByteArrayOutputStream request = new ByteArrayOutputStream();
+    request.write("*3\r\n$4\r\nHSET\r\n$3\r\nfoo\r\n$5\r\n".getBytes());
+    // "\r\n" and bytes that are not valid UTF-8 inside the value.
+    request.write(new byte[] {'a', '\r', '\n', (byte) 0xff, (byte) 0xc3});
+    request.write("\r\n*1\r\n$4\r\nPING\r\n".getBytes());
+    byte[] bytes = request.toByteArray();
+
+    ImmutableList<RespRequest> requests = writeAndParse(bytes);
+
+    assertThat(requests).hasSize(2);
+    assertThat(requests.get(0).name()).isEqualTo("HSET");
+    assertThat(requests.get(0).key()).isEqualTo("foo");
+    assertThat(requests.get(0).rawFrame())
+        .isEqualTo(Arrays.copyOf(bytes, bytes.length - 14));
+    assertThat(requests.get(1).name()).isEqualTo("PING");
+  }
+
+  @Test
+  public void testParse_array_bulkStringLongerThanLength_throws()
+      throws Exception {
+    String request =
+        new StringBuilder().append("*2\r\n")
+            .append("$4\r\n")
+            .append("HLEN\r\n")
+            .append("$2\r\n")
+            .append("foo\r\n")
+            .toString();
+
+    RespSyntaxException exception =
+        assertThrows(RespSyntaxException.class, () -> writeAndParse(request));
 
-    assertThat(exception).isEqualTo(expectedException);
+    assertThat(exception).isEqualTo(
+        new RespSyntaxException(RespExceptions.INVALID_BULK_LENGTH));
+  }
+
+  @Test
+  public void testParse_array_bulkLengthInvalid_throws() throws Exception {
+    for (String length : ImmutableList.of("", "-1", "bar", "536870913")) {
+      String request = "*1\r\n$" + length + "\r\nPING\r\n";
+
+      RespSyntaxException exception =
+          assertThrows(
+              RespSyntaxException.class,
+              () -> writeAndParse(request));
+
+      assertThat(exception).isEqualTo(
+          new RespSyntaxException(RespExceptions.INVALID_BULK_LENGTH));
+    }
+  }
+
+  @Test
+  public void testParse_array_elementNotBulkString_throws() throws Exception {
+    String request =
+        new StringBuilder().append("*2\r\n")
+            .append("$3\r\n")
+            .append("GET\r\n")
+            .append(":3\r\n")
+            .toString();
+
+    RespSyntaxException exception =
+        assertThrows(RespSyntaxException.class, () -> writeAndParse(request));
+
+    assertThat(exception).isEqualTo(
+        new RespSyntaxException(
+            String.format(
+                RespExceptions.EXPECTED_BULK_STRING_ERROR_FORMAT,
+                ':')));
   }
 
   @Test
@@ -305,6 +498,20 @@ public class RespProtocolTest {
     assertThat(exception1).isEqualTo(expectedException);
   }
 
+  @Test
+  public void testParse_array_lengthTooLarge_throws() throws Exception {
+    for (String length :
+        ImmutableList.of("1048577", "2000000000", "99999999999999999999")) {
+      RespSyntaxException exception =
+          assertThrows(
+              RespSyntaxException.class,
+              () -> writeAndParse("*" + length + "\r\n$4\r\nPING\r\n"));
+
+      assertThat(exception).isEqualTo(
+          new RespSyntaxException(RespExceptions.INVALID_MULTIBULK_LENGTH));
+    }
+  }
+
   @Test
   public void testParse_array_lengthNonNumeric_throws() throws Exception {
     String request1 =
@@ -324,4 +531,30 @@ public class RespProtocolTest {
     assertThat(exception1).isEqualTo(expectedException);
   }
 
+  @Test
+  public void testParse_helloIsConnectionCommand() throws Exception {
+    assertThat(writeAndParse("HELLO 3\r\nCLIENT TRACKING ON\r\n"))
+        .containsExactly(
+            RespRequest.connectionCommand("HELLO", ImmutableList.of("3")),
+            RespRequest.connectionCommand(
+                "CLIENT",
+                ImmutableList.of("TRACKING", "ON")));
+  }
+
+  @Test
+  public void testToMap() {
+    ImmutableMap<String, String> map =
+        ImmutableMap.of("proto", ":3\r\n", "mode", "$3\r\none\r\n");
+
+    assertThat(RespProtocol.toMap(map, 3))
+        .isEqualTo("%2\r\n$5\r\nproto\r\n:3\r\n$4\r\nmode\r\n$3\r\none\r\n");
+    assertThat(RespProtocol.toMap(map, 2))
+        .isEqualTo("*4\r\n$5\r\nproto\r\n:3\r\n$4\r\nmode\r\n$3\r\none\r\n");
+  }
+
+  @Test
+  public void testToInvalidationPush() {
+    assertThat(RespProtocol.toInvalidationPush("foo"))
+        .isEqualTo(">2\r\n$10\r\ninvalidate\r\n*1\r\n$3\r\nfoo\r\n");
+  }
 }
@@ -0,0 +1,93 @@
+package server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.testing.FakeTicker;
+import java.time.Duration;
+import metrics.Metrics;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for AdmissionController. */
+public class AdmissionControllerTest {
+
+  private static final Duration TARGET = Duration.ofMillis(10);
+  private static final Duration INTERVAL = Duration.ofMillis(100);
+
+  private FakeTicker fakeTicker;
+  private AdmissionController controller;
+
+  @Before
+  public void setUp() {
+    fakeTicker = new FakeTicker();
+    controller =
+        new AdmissionController("test", TARGET, INTERVAL, fakeTicker);
+  }
+
+  /** Simulates a task that waited in the queue for the specified delay. */
+  private boolean admitAfter(Duration delay) {
+    long enqueuedAt = fakeTicker.read();
+    fakeTicker.advance(delay);
+    return controller.admit(enqueuedAt);
+  }
+
+  @Test
+  public void testAdmit_shortDelay_admitted() {
+    assertThat(admitAfter(Duration.ofMillis(1))).isTrue();
+    assertThat(controller.isOverloaded()).isFalse();
+  }
+
+  @Test
+  public void testAdmit_notOverloaded_shedsOnlyAfterInterval() {
+    assertThat(admitAfter(Duration.ofMillis(50))).isTrue();
+    assertThat(admitAfter(INTERVAL.plusMillis(1))).isFalse();
+  }
+
+  @Test
+  public void testAdmit_standingQueue_shedsAboveTarget() {
+    // Every task in the first interval waits longer than the target.
+    admitAfter(Duration.ofMillis(60));
+    admitAfter(Duration.ofMillis(60));
+
+    // The next interval starts in overload: anything above target is shed.
+    assertThat(admitAfter(Duration.ofMillis(20))).isFalse();
+    assertThat(controller.isOverloaded()).isTrue();
+    assertThat(admitAfter(Duration.ofMillis(5))).isTrue();
+  }
+
+  @Test
+  public void testAdmit_queueDrains_leavesOverload() {
+    admitAfter(Duration.ofMillis(60));
+    admitAfter(Duration.ofMillis(60));
+    assertThat(admitAfter(Duration.ofMillis(20))).isFalse();
+
+    // One fast task per interval shows the queue is draining again.
+    admitAfter(Duration.ofMillis(1));
+    fakeTicker.advance(INTERVAL);
+
+    assertThat(admitAfter(Duration.ofMillis(20))).isTrue();
+    assertThat(controller.isOverloaded()).isFalse();
+  }
+
+  @Test
+  public void testAdmit_disabled_alwaysAdmits() {
+    controller =
+        new AdmissionController("test", Duration.ZERO, INTERVAL, fakeTicker);
+    assertThat(admitAfter(Duration.ofSeconds(10))).isTrue();
+  }
+
+  @Test
+  public void testWrap_shedTaskRunsRejection() {
+    StringBuilder ran = new StringBuilder();
+    Runnable task =
+        controller.wrap(() -> ran.append("task"), () -> ran.append("shed"));
+    fakeTicker.advance(INTERVAL.plusMillis(1));
+    long shedBefore = Metrics.counter("test.admission.shed").sum();
+
+    task.run();
+
+    assertThat(ran.toString()).isEqualTo("shed");
+    assertThat(Metrics.counter("test.admission.shed").sum())
+        .isEqualTo(shedBefore + 1);
+  }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.testing.FakeTicker;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for ConcurrencyLimiter. */
+public class ConcurrencyLimiterTest {
+
+  private static final int MIN_LIMIT = 4;
+  private static final int MAX_LIMIT = 40;
+  private static final Duration FAST = Duration.ofMillis(1);
+  private static final Duration SLOW = Duration.ofMillis(20);
+
+  private FakeTicker fakeTicker;
+  private ConcurrencyLimiter limiter;
+
+  @Before
+  public void setUp() {
+    fakeTicker = new FakeTicker();
+    limiter =
+        new ConcurrencyLimiter(
+            "test",
+            MIN_LIMIT,
+            MAX_LIMIT,
+            Duration.ZERO,
+            fakeTicker);
+  }
+
+  /**
+   * Runs batches of as many tasks as the limit allows, each taking the
+   * specified latency, for the specified number of limit updates.
+   */
+  private void runWindows(int windows, Duration latency) {
+    for (int i = 0; i < windows * ConcurrencyLimiter.WINDOW_SAMPLES; ) {
+      List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+      ConcurrencyLimiter.Permit permit;
+      while ((permit = limiter.tryAcquire()) != null) {
+        permits.add(permit);
+      }
+      fakeTicker.advance(latency);
+      permits.forEach(ConcurrencyLimiter.Permit::release);
+      i += permits.size();
+    }
+  }
+
+  @Test
+  public void testTryAcquire_rejectsBeyondLimit() {
+    for (int i = 0; i < MAX_LIMIT; i++) {
+      assertThat(limiter.tryAcquire()).isNotNull();
+    }
+    assertThat(limiter.tryAcquire()).isNull();
+    assertThat(limiter.inFlight()).isEqualTo(MAX_LIMIT);
+  }
+
+  @Test
+  public void testLimit_steadyLatency_staysAtMaximum() {
+    runWindows(20, FAST);
+
+    assertThat(limiter.limit()).isEqualTo(MAX_LIMIT);
+  }
+
+  /** Runs one task at a time, at the usual latency, for a window. */
+  private void runSingleTaskWindow() {
+    for (int i = 0; i < ConcurrencyLimiter.WINDOW_SAMPLES; i++) {
+      ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+      fakeTicker.advance(FAST);
+      permit.release();
+    }
+  }
+
+  @Test
+  public void testLimit_latencyRises_decreases() {
+    runWindows(5, FAST);
+
+    runWindows(3, SLOW);
+    int lowered = limiter.limit();
+    assertThat(lowered).isLessThan(MAX_LIMIT);
+
+    runWindows(12, SLOW);
+    assertThat(limiter.limit()).isLessThan(MAX_LIMIT / 2);
+  }
+
+  @Test
+  public void testLimit_neverBelowMinimum() {
+    limiter =
+        new ConcurrencyLimiter(
+            "test",
+            /* minLimit= */ 30,
+            MAX_LIMIT,
+            Duration.ZERO,
+            fakeTicker);
+    runWindows(5, FAST);
+
+    runWindows(20, SLOW);
+
+    assertThat(limiter.limit()).isEqualTo(30);
+  }
+
+  @Test
+  public void testLimit_latencyRecovers_increasesAgain() {
+    runWindows(5, FAST);
+    runWindows(15, SLOW);
+    int lowered = limiter.limit();
+
+    runWindows(50, FAST);
+
+    assertThat(limiter.limit()).isGreaterThan(lowered);
+    assertThat(limiter.limit()).isEqualTo(MAX_LIMIT);
+  }
+
+  @Test
+  public void testLimit_underutilized_doesNotGrow() {
+    runWindows(5, FAST);
+    runWindows(15, SLOW);
+    runSingleTaskWindow();
+    int lowered = limiter.limit();
+
+    for (int i = 0; i < 20; i++) {
+      runSingleTaskWindow();
+    }
+
+    assertThat(limiter.limit()).isAtMost(lowered);
+  }
+
+  @Test
+  public void testSetMaxLimit_lowersLimit() {
+    limiter.setMaxLimit(10);
+
+    assertThat(limiter.limit()).isEqualTo(10);
+  }
+
+  @Test
+  public void testDisabled_neverLimits() {
+    limiter =
+        new ConcurrencyLimiter("test", 0, 2, Duration.ZERO, fakeTicker);
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.tryAcquire()).isNotNull();
+    }
+    fakeTicker.advance(SLOW);
+    limiter.tryAcquire().release();
+
+    assertThat(limiter.limit()).isEqualTo(2);
+    assertThat(limiter.inFlight()).isEqualTo(10);
+  }
+}
@@ -2,16 +2,40 @@ package server;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import buffer.BufferPool;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import configuration.Configuration;
 import http.HttpClient;
+import http.HttpRequestHandler;
 import http.HttpResponse;
 import io.lettuce.core.RedisClient;
 import io.lettuce.core.RedisConnectionException;
 import io.lettuce.core.RedisURI;
 import io.lettuce.core.api.sync.RedisCommands;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import metrics.Metrics;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -40,6 +64,13 @@ public class EndToEndServerTest {
 
   private static final int HTTP_PORT = 8088;
   private static final int RESP_PORT = 9099;
+  private static final int HTTP2_PORT = 8089;
+  /** Small enough that some test values are streamed instead of cached. */
+  private static final int MAX_VALUE_BYTES = 1024;
+  private static final int COMPRESSION_MIN_BYTES = 256;
+  private static final String ADMIN_TOKEN = "test-admin-token";
+  private static final String ADMIN_AUTHORIZATION =
+      "Authorization: Bearer " + ADMIN_TOKEN + "\r\n";
 
   private static Configuration configuration;
   private static HttpClient httpClient;
@@ -49,6 +80,7 @@ public class EndToEndServerTest {
 
   private static RedisServer redisServer;
   private static Server server;
+  private static Path socketDirectory;
 
   private static final ImmutableMap<String, String> KEY_VALUE_MAP =
       ImmutableMap.<String, String>builder()
@@ -62,12 +94,19 @@ public class EndToEndServerTest {
   @BeforeClass
   public static void setUp() throws Exception {
     // Initialize configuration from environment variables and test-specific
-    // proxy ports.
+    // proxy ports and socket paths.
+    socketDirectory = Files.createTempDirectory("proxy-sockets");
     configuration =
         Configuration.getFromEnvironment()
             .toBuilder()
             .setHttpPort(HTTP_PORT)
             .setRespPort(RESP_PORT)
+            .setHttp2Port(HTTP2_PORT)
+            .setHttpSocketPath(socketDirectory.resolve("http.sock").toString())
+            .setRespSocketPath(socketDirectory.resolve("resp.sock").toString())
+            .setCacheMaxValueBytes(MAX_VALUE_BYTES)
+            .setCacheCompressionMinBytes(COMPRESSION_MIN_BYTES)
+            .setAdminTokenSha256(Configuration.hashSecret(ADMIN_TOKEN))
             .build();
     // Use a backing redis instance if available, otherwise setup our own.
     try {
@@ -115,6 +154,7 @@ public class EndToEndServerTest {
     }
     commands.getStatefulConnection().close();
     redisClient.shutdown();
+    socketDirectory.toFile().delete();
   }
 
   @Test
@@ -145,6 +185,20 @@ public class EndToEndServerTest {
     assertThat(response2.output).isEmpty();
   }
 
+  @Test
+  public void testGet_http_metricsEndpoint() throws IOException {
+    commands.set("foo-metrics", "bar");
+    httpClient.get("foo-metrics");
+
+    HttpResponse response = httpClient.get("_proxy/metrics");
+    assertThat(response.responseCode).isEqualTo(HttpURLConnection.HTTP_OK);
+    assertThat(response.output).contains("http.admission.admitted");
+  }
+
+  private static long metric(String name) {
+    return Metrics.snapshot().getOrDefault(name, 0L);
+  }
+
   @Test
   public void testGet_resp() throws Exception {
     commands.del("foo-resp");
@@ -159,6 +213,21 @@ public class EndToEndServerTest {
     assertThat(proxyResponse).isEqualTo("$3\r\nbar\r\n");
   }
 
+  @Test
+  public void testGet_resp_looksUpTheCacheOnce() throws Exception {
+    commands.set("foo-resp-once", "bar");
+    // Load the value into the cache.
+    assertThat(respClient.getFromProxy("foo-resp-once"))
+        .isEqualTo("$3\r\nbar\r\n");
+    long lookups = metric("cache.memory.hits") + metric("cache.memory.misses");
+
+    assertThat(respClient.getFromProxy("foo-resp-once"))
+        .isEqualTo("$3\r\nbar\r\n");
+
+    assertThat(metric("cache.memory.hits") + metric("cache.memory.misses"))
+        .isEqualTo(lookups + 1);
+  }
+
   @Test
   public void testGet_resp_noAssociatedValue() throws Exception {
     commands.del("garbage");
@@ -208,4 +277,494 @@ public class EndToEndServerTest {
     assertThat(proxyResponse)
         .isEqualTo("-ERR Protocol error: invalid multibulk length\r\n");
   }
+
+  @Test
+  public void testSet_resp_readAfterWrite() throws Exception {
+    commands.set("resp-write", "old");
+    // Cache the old value.
+    assertThat(respClient.getFromProxy("resp-write"))
+        .isEqualTo("$3\r\nold\r\n");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString("SET resp-write new\r\n");
+    assertThat(proxyResponse).isEqualTo("+OK\r\n");
+
+    assertThat(commands.get("resp-write")).isEqualTo("new");
+    assertThat(respClient.getFromProxy("resp-write"))
+        .isEqualTo("$3\r\nnew\r\n");
+  }
+
+  @Test
+  public void testSet_resp_pipelinedWithReads() throws Exception {
+    commands.del("resp-write-pipeline");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(
+            "GET resp-write-pipeline\r\n"
+                + "SET resp-write-pipeline value EX 60 NX\r\n"
+                + "SET resp-write-pipeline other NX\r\n"
+                + "GET resp-write-pipeline\r\n");
+    assertThat(proxyResponse)
+        .isEqualTo("$-1\r\n+OK\r\n$-1\r\n$5\r\nvalue\r\n");
+    assertThat(commands.ttl("resp-write-pipeline")).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testGet_unixSockets() throws Exception {
+    commands.set("unix-key", "unix-value");
+    commands.del("unix-missing");
+
+    String http =
+        sendOverUnixSocket(
+            configuration.httpSocketPath(),
+            "GET /unix-key HTTP/1.1\r\n\r\n");
+    String resp =
+        sendOverUnixSocket(
+            configuration.respSocketPath(),
+            "GET unix-key\r\nGET unix-missing\r\n");
+
+    assertThat(http).startsWith(HttpRequestHandler.OK_STATUS);
+    assertThat(http).endsWith("\r\n\r\nunix-value");
+    assertThat(resp).isEqualTo("$10\r\nunix-value\r\n$-1\r\n");
+  }
+
+  @Test
+  public void testBuffers_releasedAfterRequests() throws Exception {
+    BufferPool pool = BufferPool.shared();
+    long before = pool.outstanding();
+    commands.set("buffers", "value");
+
+    assertThat(httpClient.get("buffers").output).isEqualTo("value");
+    assertThat(respClient.getFromProxy("buffers"))
+        .isEqualTo("$5\r\nvalue\r\n");
+
+    // The handlers release their buffers after the clients disconnect.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pool.outstanding() > before
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    if (pool.outstanding() > before) {
+      pool.checkNoLeaks();
+    }
+  }
+
+  @Test
+  public void testGet_resp_pipelinedBeyondWindow() throws Exception {
+    commands.set("resp-window", "a");
+    int count = 10 * configuration.maxPipelinedRespCommands();
+    StringBuilder request = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i == count / 2) {
+        request.append("SET resp-window bb\r\n");
+        expected.append("+OK\r\n");
+      }
+      request.append("GET resp-window\r\n");
+      expected.append(i < count / 2 ? "$1\r\na\r\n" : "$2\r\nbb\r\n");
+    }
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(request.toString());
+
+    assertThat(proxyResponse).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void testDelAndExpire_resp() throws Exception {
+    commands.set("resp-del-1", "a");
+    commands.set("resp-del-2", "b");
+    commands.set("resp-expire", "c");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(
+            "GET resp-del-1\r\n"
+                + "DEL resp-del-1 resp-del-2 resp-del-3\r\n"
+                + "GET resp-del-1\r\n"
+                + "EXPIRE resp-expire 0\r\n"
+                + "GET resp-expire\r\n");
+    assertThat(proxyResponse)
+        .isEqualTo("$1\r\na\r\n:2\r\n$-1\r\n:1\r\n$-1\r\n");
+    assertThat(commands.get("resp-del-1")).isNull();
+    assertThat(commands.get("resp-del-2")).isNull();
+    assertThat(commands.get("resp-expire")).isNull();
+  }
+
+  @Test
+  public void testSet_resp_syntaxError() throws Exception {
+    String proxyResponse =
+        respClient.getFromProxyRawString("SET resp-write value EX\r\n");
+    assertThat(proxyResponse).isEqualTo("-ERR syntax error\r\n");
+  }
+
+  @Test
+  public void testPassthrough_resp() throws Exception {
+    commands.del("resp-hash");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(
+            "HSET resp-hash field value\r\n"
+                + "HGET resp-hash field\r\n"
+                + "PING\r\n");
+    assertThat(proxyResponse).isEqualTo(":1\r\n$5\r\nvalue\r\n+PONG\r\n");
+  }
+
+  @Test
+  public void testPassthrough_resp_valueWithLineBreakIsForwardedIntact()
+      throws Exception {
+    commands.del("resp-hash");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(
+            "*4\r\n$4\r\nHSET\r\n$9\r\nresp-hash\r\n$5\r\nfield\r\n"
+                + "$6\r\na\r\nb\r\n\r\n"
+                + "PING\r\n");
+    assertThat(proxyResponse).isEqualTo(":1\r\n+PONG\r\n");
+    assertThat(commands.hget("resp-hash", "field"))
+        .isEqualTo("a\r\nb\r\n");
+  }
+
+  @Test
+  public void testPassthrough_resp_updatesCachedValue() throws Exception {
+    commands.set("resp-counter", "1");
+    // Cache the old value.
+    assertThat(respClient.getFromProxy("resp-counter"))
+        .isEqualTo("$1\r\n1\r\n");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString(
+            "INCR resp-counter\r\nGET resp-counter\r\n");
+    assertThat(proxyResponse).isEqualTo(":2\r\n$1\r\n2\r\n");
+  }
+
+  @Test
+  public void testPassthrough_resp_redisErrorIsReturned() throws Exception {
+    commands.set("resp-not-a-hash", "value");
+
+    String proxyResponse =
+        respClient.getFromProxyRawString("HGET resp-not-a-hash field\r\n");
+    assertThat(proxyResponse).startsWith("-WRONGTYPE");
+  }
+
+  @Test
+  public void testPassthrough_resp_connectionStateCommandRejected()
+      throws Exception {
+    String proxyResponse =
+        respClient.getFromProxyRawString("SUBSCRIBE channel\r\n");
+    assertThat(proxyResponse).isEqualTo(
+        "-ERR proxy server does not support this resp feature: SUBSCRIBE\r\n");
+  }
+
+  @Test
+  public void testPassthrough_resp_slowReplyTimesOut() throws Exception {
+    postConfig("REDIS_TIMEOUT=100\n", ADMIN_AUTHORIZATION);
+    try {
+      String proxyResponse =
+          respClient.getFromProxyRawString("DEBUG SLEEP 0.5\r\n");
+      assertThat(proxyResponse)
+          .isEqualTo("-ERR Redis did not reply within 100 ms\r\n");
+      // The connection that was stuck behind the reply was reset.
+      assertThat(respClient.getFromProxyRawString("PING\r\n"))
+          .isEqualTo("+PONG\r\n");
+    } finally {
+      postConfig(
+          String.format(
+              "REDIS_TIMEOUT=%d\n", configuration.redisTimeout().toMillis()),
+          ADMIN_AUTHORIZATION);
+    }
+  }
+
+  @Test
+  public void testClientTracking_resp3_writePushesInvalidation()
+      throws Exception {
+    commands.set("resp-tracked", "old");
+    try (Socket socket = new Socket("localhost", RESP_PORT)) {
+      socket.setSoTimeout(5000);
+      OutputStream output = socket.getOutputStream();
+      InputStream input = socket.getInputStream();
+
+      output.write("HELLO 3\r\n".getBytes());
+      assertThat(readAvailable(input)).startsWith("%7\r\n");
+      output.write("CLIENT TRACKING ON\r\nGET resp-tracked\r\n".getBytes());
+      assertThat(readAvailable(input, "+OK\r\n$3\r\nold\r\n".length()))
+          .isEqualTo("+OK\r\n$3\r\nold\r\n");
+
+      // Another client overwrites the key through the proxy.
+      assertThat(respClient.getFromProxyRawString("SET resp-tracked new\r\n"))
+          .isEqualTo("+OK\r\n");
+
+      assertThat(readAvailable(input))
+          .isEqualTo(RespProtocol.toInvalidationPush("resp-tracked"));
+    }
+  }
+
+  @Test
+  public void testClientTracking_resp2_rejected() throws Exception {
+    String proxyResponse =
+        respClient.getFromProxyRawString("CLIENT TRACKING ON\r\n");
+    assertThat(proxyResponse).startsWith("-ERR client tracking");
+  }
+
+  @Test
+  public void testGet_http_largeValueStreamed() throws IOException {
+    String value = Strings.repeat("0123456789", 15_000);
+    commands.set("large-http", value);
+
+    HttpResponse response = httpClient.get("large-http");
+    assertThat(response.responseCode).isEqualTo(HttpURLConnection.HTTP_OK);
+    assertThat(response.output).isEqualTo(value);
+
+    HttpResponse bigKeys = httpClient.get("_proxy/bigkeys");
+    assertThat(bigKeys.output).contains("large-http " + value.length());
+  }
+
+  @Test
+  public void testGet_http_compressedValueServedGzipped() throws Exception {
+    String value = Strings.repeat("{\"compressible\": true}", 40);
+    commands.set("compressed-http", value);
+
+    // Clients that do not accept gzip get the decompressed value.
+    assertThat(httpClient.get("compressed-http").output).isEqualTo(value);
+
+    byte[] response =
+        sendHttp(
+            "GET /compressed-http HTTP/1.1\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n\r\n");
+    String headers = new String(response, Charsets.ISO_8859_1);
+    int bodyStart = headers.indexOf("\r\n\r\n") + 4;
+    assertThat(headers.substring(0, bodyStart))
+        .contains("Content-Encoding: gzip");
+    byte[] body =
+        ByteStreams.toByteArray(
+            new GZIPInputStream(
+                new ByteArrayInputStream(
+                    response,
+                    bodyStart,
+                    response.length - bodyStart)));
+    assertThat(new String(body, Charsets.UTF_8)).isEqualTo(value);
+  }
+
+  @Test
+  public void testGet_http_conditionalGetAndHead() throws Exception {
+    commands.set("etag-http", "polled-value");
+
+    String response =
+        new String(sendHttp("GET /etag-http HTTP/1.1\r\n\r\n"));
+    assertThat(response).startsWith("HTTP/1.1 200 OK\r\n");
+    assertThat(response).containsMatch("Cache-Control: max-age=[0-9]+\r\n");
+    assertThat(response).endsWith("\r\n\r\npolled-value");
+    String etag = response.replaceAll("(?s).*ETag: (\"[^\"]+\").*", "$1");
+
+    String notModified =
+        new String(
+            sendHttp(
+                "GET /etag-http HTTP/1.1\r\nIf-None-Match: "
+                    + etag
+                    + "\r\n\r\n"));
+    assertThat(notModified).startsWith("HTTP/1.1 304 Not Modified\r\n");
+    assertThat(notModified).endsWith("\r\n\r\n");
+
+    String head = new String(sendHttp("HEAD /etag-http HTTP/1.1\r\n\r\n"));
+    assertThat(head).contains("Content-Length: 12\r\n");
+    assertThat(head).endsWith("\r\n\r\n");
+
+    // A changed value no longer matches the client's tag.
+    respClient.getFromProxyRawString("SET etag-http new-value\r\n");
+    String modified =
+        new String(
+            sendHttp(
+                "GET /etag-http HTTP/1.1\r\nIf-None-Match: "
+                    + etag
+                    + "\r\n\r\n"));
+    assertThat(modified).startsWith("HTTP/1.1 200 OK\r\n");
+    assertThat(modified).endsWith("new-value");
+  }
+
+  @Test
+  public void testGet_resp_largeValueStreamed() throws Exception {
+    String value = Strings.repeat("0123456789", 15_000);
+    commands.del("large-resp");
+    try (Socket socket = new Socket("localhost", RESP_PORT)) {
+      socket.setSoTimeout(5000);
+      OutputStream output = socket.getOutputStream();
+      InputStream input = socket.getInputStream();
+
+      // The write marks the key as too large to cache.
+      output.write(("SET large-resp " + value + "\r\n").getBytes());
+      assertThat(readAvailable(input)).isEqualTo("+OK\r\n");
+
+      String expected = "$" + value.length() + "\r\n" + value + "\r\n";
+      output.write("GET large-resp\r\nGET large-resp-absent\r\n".getBytes());
+      assertThat(readAvailable(input, expected.length() + 5))
+          .isEqualTo(expected + RespProtocol.NULL_BULK_STRING);
+    }
+  }
+
+  @Test
+  public void testBatch_http() throws Exception {
+    commands.set("batch-1", "one");
+    commands.set("batch-2", "two");
+    commands.del("batch-absent");
+    // Cache one of the keys so that it is answered first.
+    httpClient.get("batch-2");
+
+    String response =
+        new String(
+            sendHttp(
+                "GET /_proxy/mget?key=batch-1&key=batch-2&key=batch-absent"
+                    + " HTTP/1.1\r\n\r\n"),
+            Charsets.UTF_8);
+    assertThat(response).startsWith("HTTP/1.1 200 OK\r\n");
+    // There is no Content-Length: the response ends with the connection.
+    assertThat(response).contains("\r\nConnection: close\r\n");
+    assertThat(response.substring(response.indexOf("\r\n\r\n") + 4))
+        .isEqualTo(
+            "OK 7 3\nbatch-2two\n"
+                + "OK 7 3\nbatch-1one\n"
+                + "MISSING 12 0\nbatch-absent\n");
+
+    String body = "batch-1\nbatch-2\n";
+    String postResponse =
+        new String(
+            sendHttp(
+                "POST /_proxy/mget HTTP/1.1\r\nContent-Length: "
+                    + body.length()
+                    + "\r\n\r\n"
+                    + body),
+            Charsets.UTF_8);
+    assertThat(postResponse).endsWith(
+        "OK 7 3\nbatch-1one\nOK 7 3\nbatch-2two\n");
+  }
+
+  private static String postConfig(String body, String authorization)
+      throws IOException {
+    return new String(
+        sendHttp(
+            "POST /_proxy/config HTTP/1.1\r\n"
+                + authorization
+                + "Content-Length: "
+                + body.length()
+                + "\r\n\r\n"
+                + body),
+        Charsets.UTF_8);
+  }
+
+  @Test
+  public void testConfig_http_changesSettingsWithoutRestart()
+      throws Exception {
+    commands.set("config-key", "config-value");
+    httpClient.get("config-key");
+    String body = "CACHE_CAPACITY=50\nMAX_CONCURRENT_HANDLERS=12\n";
+
+    String response = postConfig(body, ADMIN_AUTHORIZATION);
+
+    assertThat(response).startsWith("HTTP/1.1 200 OK\r\n");
+    assertThat(response).contains("\nCACHE_CAPACITY 50\n");
+    assertThat(response).contains("\nMAX_CONCURRENT_HANDLERS 12\n");
+    // The cached entry survived the resize.
+    commands.set("config-key", "changed-in-redis");
+    assertThat(httpClient.get("config-key").output)
+        .isEqualTo("config-value");
+
+    assertThat(postConfig("REDIS_PORT=1234\n", ADMIN_AUTHORIZATION))
+        .startsWith("HTTP/1.1 400 Bad Request\r\n");
+
+    String restore =
+        String.format(
+            "CACHE_CAPACITY=%d\nMAX_CONCURRENT_HANDLERS=%d\n",
+            configuration.cacheCapacity(),
+            configuration.maxConcurrentHandlers());
+    postConfig(restore, ADMIN_AUTHORIZATION);
+    commands.del("config-key");
+  }
+
+  @Test
+  public void testConfig_http_changeWithoutAdminTokenRefused()
+      throws Exception {
+    for (String authorization : new String[] {
+        "", "Authorization: Bearer wrong\r\n", "Authorization: secret\r\n"}) {
+      assertThat(postConfig("CACHE_CAPACITY=1\n", authorization))
+          .startsWith("HTTP/1.1 403 Forbidden\r\n");
+    }
+    // Reading the configuration needs no token.
+    assertThat(httpClient.get("_proxy/config").output)
+        .contains("CACHE_CAPACITY " + configuration.cacheCapacity());
+  }
+
+  @Test
+  public void testGet_http2_concurrentStreamsOverUpgradedConnection()
+      throws Exception {
+    commands.set("h2-key", "h2-value");
+    java.net.http.HttpClient client =
+        java.net.http.HttpClient.newBuilder()
+            .version(java.net.http.HttpClient.Version.HTTP_2)
+            .build();
+    URI uri = URI.create("http://localhost:" + HTTP2_PORT + "/h2-key");
+
+    // The first request upgrades the connection; the rest are its streams.
+    java.net.http.HttpResponse<String> first =
+        client.send(
+            HttpRequest.newBuilder(uri).build(),
+            BodyHandlers.ofString());
+    List<CompletableFuture<java.net.http.HttpResponse<String>>> responses =
+        new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      responses.add(
+          client.sendAsync(
+              HttpRequest.newBuilder(uri).build(),
+              BodyHandlers.ofString()));
+    }
+
+    assertThat(first.version())
+        .isEqualTo(java.net.http.HttpClient.Version.HTTP_2);
+    assertThat(first.body()).isEqualTo("h2-value");
+    for (CompletableFuture<java.net.http.HttpResponse<String>> response
+        : responses) {
+      assertThat(response.get().version())
+          .isEqualTo(java.net.http.HttpClient.Version.HTTP_2);
+      assertThat(response.get().statusCode()).isEqualTo(200);
+      assertThat(response.get().body()).isEqualTo("h2-value");
+    }
+    commands.del("h2-key");
+  }
+
+  /** Sends a raw HTTP request and returns everything the proxy sent back. */
+  private static byte[] sendHttp(String request) throws IOException {
+    try (Socket socket = new Socket("localhost", HTTP_PORT)) {
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write(request.getBytes(Charsets.UTF_8));
+      return ByteStreams.toByteArray(socket.getInputStream());
+    }
+  }
+
+  /**
+   * Sends a raw request over a Unix domain socket, then closes the sending
+   * side and returns everything the proxy sent back.
+   */
+  private static String sendOverUnixSocket(String path, String request)
+      throws IOException {
+    try (SocketChannel channel =
+        SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      channel.connect(UnixDomainSocketAddress.of(path));
+      channel.write(ByteBuffer.wrap(request.getBytes(Charsets.UTF_8)));
+      channel.shutdownOutput();
+      return new String(
+          ByteStreams.toByteArray(Channels.newInputStream(channel)),
+          Charsets.UTF_8);
+    }
+  }
+
+  /** Reads at least the specified number of bytes (by default, one). */
+  private static String readAvailable(InputStream input, int atLeast)
+      throws IOException {
+    StringBuilder result = new StringBuilder();
+    do {
+      result.append((char) input.read());
+    } while (result.length() < atLeast || input.available() > 0);
+    return result.toString();
+  }
+
+  private static String readAvailable(InputStream input) throws IOException {
+    return readAvailable(input, 1);
+  }
 }
@@ -0,0 +1,132 @@
+package server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import configuration.Configuration;
+import configuration.Endpoint;
+import http.HttpClient;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import peer.PeerGroup;
+import redis.embedded.RedisServer;
+import resp.RespClient;
+
+/**
+ * End-to-end tests of a fleet of proxy servers on localhost that share their
+ * cache as peers, in front of one embedded Redis.
+ */
+public class PeerFleetTest {
+
+  private static final int REDIS_PORT = 6421;
+  private static final int HTTP_PORT = 8388;
+  private static final int RESP_PORT = 9399;
+  private static final ImmutableList<Endpoint> PEERS =
+      ImmutableList.of(
+          Endpoint.create("localhost", 7401),
+          Endpoint.create("localhost", 7402),
+          Endpoint.create("localhost", 7403));
+
+  private static RedisServer redisServer;
+  private static RedisClient redisClient;
+  private static RedisCommands<String, String> commands;
+  /** The fleet, in the order of PEERS. */
+  private static final List<Server> servers = new ArrayList<>();
+  private static final List<HttpClient> httpClients = new ArrayList<>();
+  private static final List<RespClient> respClients = new ArrayList<>();
+  private static PeerGroup ring;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    redisServer = new RedisServer(REDIS_PORT);
+    redisServer.start();
+    redisClient =
+        RedisClient.create(
+            RedisURI.builder()
+                .withHost("localhost")
+                .withPort(REDIS_PORT)
+                .build());
+    commands = redisClient.connect().sync();
+    for (int i = 0; i < PEERS.size(); i++) {
+      Configuration configuration =
+          Configuration.newBuilder()
+              .setHttpPort(HTTP_PORT + i)
+              .setRespPort(RESP_PORT + i)
+              .setRedisHost("localhost")
+              .setRedisPort(REDIS_PORT)
+              .setPeers(PEERS)
+              .setPeerSelf(PEERS.get(i).toString())
+              .build();
+      servers.add(new Server().withConfiguration(configuration).start());
+      httpClients.add(new HttpClient("localhost", HTTP_PORT + i));
+      respClients.add(new RespClient("localhost", configuration));
+      if (i == 0) {
+        ring = PeerGroup.fromConfiguration(configuration);
+      }
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    ring.close();
+    servers.forEach(Server::shutdown);
+    commands.getStatefulConnection().close();
+    redisClient.shutdown();
+    redisServer.stop();
+  }
+
+  private static int ownerOf(String key) {
+    return PEERS.indexOf(ring.owner(key));
+  }
+
+  private static String get(int server, String key) throws Exception {
+    return httpClients.get(server).get(key).output;
+  }
+
+  @Test
+  public void testGet_nonOwnerFetchesFromOwner() throws Exception {
+    String key = "fleet-fetch";
+    int owner = ownerOf(key);
+    commands.set(key, "first");
+
+    assertThat(get((owner + 1) % PEERS.size(), key)).isEqualTo("first");
+    // Bypass the fleet: the owner still serves the value it loaded for the
+    // other proxy, and so does the third one, which fetches it from there.
+    commands.set(key, "second");
+    assertThat(get(owner, key)).isEqualTo("first");
+    assertThat(get((owner + 2) % PEERS.size(), key)).isEqualTo("first");
+  }
+
+  @Test
+  public void testSet_invalidatesEveryPeer() throws Exception {
+    String key = "fleet-write";
+    commands.set(key, "old");
+    for (int i = 0; i < PEERS.size(); i++) {
+      assertThat(get(i, key)).isEqualTo("old");
+    }
+    // Write through a proxy that does not own the key.
+    int writer = (ownerOf(key) + 1) % PEERS.size();
+
+    assertThat(
+            respClients.get(writer)
+                .getFromProxyRawString("SET " + key + " new\r\n"))
+        .isEqualTo("+OK\r\n");
+
+    // The owner dropped the key before the write returned.
+    assertThat(get(ownerOf(key), key)).isEqualTo("new");
+    for (int i = 0; i < PEERS.size(); i++) {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!get(i, key).equals("new")
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(get(i, key)).isEqualTo("new");
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import cache.ConsistentHashRing;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import configuration.Configuration;
+import configuration.Endpoint;
+import http.HttpClient;
+import http.HttpResponse;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import redis.embedded.RedisServer;
+
+/**
+ * End-to-end tests of a proxy server fronting several embedded Redis shards.
+ */
+public class ShardedServerTest {
+
+  private static final int HTTP_PORT = 8288;
+  private static final int RESP_PORT = 9299;
+  private static final ImmutableList<Endpoint> SHARDS =
+      ImmutableList.of(
+          Endpoint.create("localhost", 6411),
+          Endpoint.create("localhost", 6412),
+          Endpoint.create("localhost", 6413, 2));
+
+  private static final Map<Endpoint, RedisServer> redisServers =
+      new HashMap<>();
+  private static final Map<Endpoint, RedisCommands<String, String>> commands =
+      new HashMap<>();
+  private static RedisClient redisClient;
+  private static ConsistentHashRing<Endpoint> ring;
+  private static HttpClient httpClient;
+  private static Server server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    redisClient = RedisClient.create();
+    for (Endpoint shard : SHARDS) {
+      RedisServer redisServer = new RedisServer(shard.port());
+      redisServer.start();
+      redisServers.put(shard, redisServer);
+      commands.put(
+          shard,
+          redisClient.connect(
+              RedisURI.builder()
+                  .withHost(shard.host())
+                  .withPort(shard.port())
+                  .build())
+              .sync());
+    }
+    Configuration configuration =
+        Configuration.newBuilder()
+            .setHttpPort(HTTP_PORT)
+            .setRespPort(RESP_PORT)
+            .setRedisShards(SHARDS)
+            .build();
+    ring =
+        new ConsistentHashRing<>(
+            SHARDS.stream()
+                .collect(ImmutableMap.toImmutableMap(s -> s, Endpoint::weight)),
+            configuration.redisShardVirtualNodes(),
+            Endpoint::toString);
+    httpClient = new HttpClient("localhost", HTTP_PORT);
+    server = new Server().withConfiguration(configuration).start();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    server.shutdown();
+    redisClient.shutdown();
+    redisServers.values().forEach(RedisServer::stop);
+  }
+
+  @Test
+  public void testGet_http_readsEachKeyFromItsOwningShard() throws Exception {
+    Map<Endpoint, Integer> keysPerShard = new HashMap<>();
+    for (int i = 0; i < 30; i++) {
+      String key = "sharded-key-" + i;
+      Endpoint owner = ring.get(key);
+      // Only the owning shard holds the value.
+      commands.values().forEach(c -> c.del(key));
+      commands.get(owner).set(key, owner.toString());
+      keysPerShard.merge(owner, 1, Integer::sum);
+
+      HttpResponse response = httpClient.get(key);
+      assertThat(response.responseCode).isEqualTo(HttpURLConnection.HTTP_OK);
+      assertThat(response.output).isEqualTo(owner.toString());
+    }
+    assertThat(keysPerShard.keySet()).containsExactlyElementsIn(SHARDS);
+  }
+}
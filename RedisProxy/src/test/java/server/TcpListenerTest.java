@@ -0,0 +1,136 @@
+package server;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import metrics.Metrics;
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests for TcpListener. */
+public class TcpListenerTest {
+
+  private final List<Socket> clients = new ArrayList<>();
+  private TcpListener listener;
+
+  @After
+  public void tearDown() throws IOException {
+    for (Socket client : clients) {
+      client.close();
+    }
+    if (listener != null) {
+      listener.shutdown();
+    }
+  }
+
+  private static long metric(String name) {
+    return Metrics.snapshot().getOrDefault(name, 0L);
+  }
+
+  private void connect(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      clients.add(new Socket("localhost", listener.getLocalPort()));
+    }
+  }
+
+  @Test
+  public void testAcceptQueueLength_sumsListeningSocketsOnPort() {
+    ImmutableList<String> lines =
+        ImmutableList.of(
+            "  sl  local_address rem_address   st tx_queue rx_queue tr",
+            "   0: 00000000:1F90 00000000:0000 0A 00000000:00000003 00:0",
+            "   1: 0100007F:1F90 00000000:0000 0A 00000000:0000000B 00:0",
+            // An established connection on the port, and another port.
+            "   2: 0100007F:1F90 0100007F:D431 01 00000000:00000007 00:0",
+            "   3: 00000000:1FBC 00000000:0000 0A 00000000:00000005 00:0");
+
+    assertThat(TcpListener.acceptQueueLength(lines, 8080)).isEqualTo(14);
+    assertThat(TcpListener.acceptQueueLength(lines, 9090)).isEqualTo(0);
+  }
+
+  @Test
+  public void testTcpExtCounter_readsNamedCounter() {
+    ImmutableList<String> lines =
+        ImmutableList.of(
+            "TcpExt: SyncookiesSent ListenOverflows ListenDrops",
+            "TcpExt: 0 12 15",
+            "IpExt: InNoRoutes",
+            "IpExt: 0");
+
+    assertThat(TcpListener.tcpExtCounter(lines, "ListenOverflows"))
+        .isEqualTo(12);
+    assertThat(TcpListener.tcpExtCounter(lines, "ListenDrops")).isEqualTo(15);
+    assertThat(TcpListener.tcpExtCounter(lines, "InNoRoutes")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testStart_everyAcceptorHandsOffConnections() throws Exception {
+    int connections = 20;
+    CountDownLatch handled = new CountDownLatch(connections);
+    long accepted = metric("test-acceptors.accepted");
+    listener =
+        new TcpListener(
+            "test-acceptors",
+            0,
+            4,
+            50,
+            socket -> {
+              socket.close();
+              handled.countDown();
+            });
+    try (ServerSocket unbound = new ServerSocket()) {
+      assertThat(listener.reusesPort())
+          .isEqualTo(
+              unbound.supportedOptions()
+                  .contains(StandardSocketOptions.SO_REUSEPORT));
+    }
+    listener.start();
+
+    connect(connections);
+
+    assertThat(handled.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(metric("test-acceptors.accepted"))
+        .isEqualTo(accepted + connections);
+  }
+
+  @Test
+  public void testSingleAcceptor_portCannotBeShared() throws Exception {
+    listener = new TcpListener("test-single", 0, 1, 50, ClientSocket::close);
+
+    assertThat(listener.reusesPort()).isFalse();
+    assertThrows(
+        BindException.class,
+        () ->
+            new TcpListener(
+                "test-single",
+                listener.getLocalPort(),
+                1,
+                50,
+                ClientSocket::close));
+  }
+
+  @Test
+  public void testAcceptQueue_countsConnectionsNotYetAccepted()
+      throws Exception {
+    assumeTrue(Files.isReadable(Paths.get("/proc/net/tcp")));
+    // Not started, so connections stay in the accept queue.
+    listener = new TcpListener("test-queue", 0, 1, 50, ClientSocket::close);
+
+    connect(3);
+
+    assertThat(metric("test-queue.accept.queue")).isEqualTo(3);
+  }
+}